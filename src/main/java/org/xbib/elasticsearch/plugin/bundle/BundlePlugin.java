@@ -3,8 +3,10 @@ package org.xbib.elasticsearch.plugin.bundle;
 import org.apache.lucene.analysis.Analyzer;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
@@ -13,6 +15,12 @@ import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.index.analysis.AnalyzerProvider;
 import org.elasticsearch.index.analysis.CharFilterFactory;
 import org.elasticsearch.index.analysis.TokenFilterFactory;
@@ -22,15 +30,28 @@ import org.elasticsearch.indices.analysis.AnalysisModule;
 import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.AnalysisPlugin;
 import org.elasticsearch.plugins.MapperPlugin;
+import org.elasticsearch.plugins.NetworkPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.SearchPlugin;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
 import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportInterceptor;
+import org.elasticsearch.watcher.ResourceWatcherService;
+import org.xbib.elasticsearch.plugin.bundle.action.dictionary.DictionaryReloadAction;
+import org.xbib.elasticsearch.plugin.bundle.action.dictionary.TransportDictionaryReloadAction;
 import org.xbib.elasticsearch.plugin.bundle.action.isbnformat.ISBNFormatAction;
 import org.xbib.elasticsearch.plugin.bundle.action.isbnformat.TransportISBNFormatAction;
 import org.xbib.elasticsearch.plugin.bundle.action.langdetect.LangdetectAction;
+import org.xbib.elasticsearch.plugin.bundle.action.langdetect.MultiLangdetectAction;
 import org.xbib.elasticsearch.plugin.bundle.action.langdetect.TransportLangdetectAction;
+import org.xbib.elasticsearch.plugin.bundle.action.langdetect.TransportMultiLangdetectAction;
+import org.xbib.elasticsearch.plugin.bundle.common.dictionary.DictionaryRegistry;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectServiceRegistry;
 import org.xbib.elasticsearch.plugin.bundle.index.analysis.autophrase.AutoPhrasingTokenFilterFactory;
 import org.xbib.elasticsearch.plugin.bundle.index.analysis.baseform.BaseformTokenFilterFactory;
 import org.xbib.elasticsearch.plugin.bundle.index.analysis.concat.ConcatTokenFilterFactory;
@@ -66,14 +87,24 @@ import org.xbib.elasticsearch.plugin.bundle.index.mapper.langdetect.LangdetectMa
 import org.xbib.elasticsearch.plugin.bundle.index.mapper.reference.ReferenceMapper;
 import org.xbib.elasticsearch.plugin.bundle.index.mapper.reference.ReferenceMapperModule;
 import org.xbib.elasticsearch.plugin.bundle.index.mapper.reference.ReferenceMapperTypeParser;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceCache;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceChangeTracker;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferencePropagationJob;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceResolver;
 import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceService;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceTransportInterceptor;
 import org.xbib.elasticsearch.plugin.bundle.index.mapper.standardnumber.StandardnumberMapper;
 import org.xbib.elasticsearch.plugin.bundle.index.mapper.standardnumber.StandardnumberMapperModule;
 import org.xbib.elasticsearch.plugin.bundle.index.mapper.standardnumber.StandardnumberMapperTypeParser;
 import org.xbib.elasticsearch.plugin.bundle.common.standardnumber.StandardnumberService;
 import org.xbib.elasticsearch.plugin.bundle.query.decompound.ExactPhraseQueryBuilder;
+import org.xbib.elasticsearch.plugin.bundle.rest.action.dictionary.RestDictionaryReloadAction;
+import org.xbib.elasticsearch.plugin.bundle.rest.action.dictionary.RestDictionaryStatsAction;
 import org.xbib.elasticsearch.plugin.bundle.rest.action.isbnformat.RestISBNFormatterAction;
 import org.xbib.elasticsearch.plugin.bundle.rest.action.langdetect.RestLangdetectAction;
+import org.xbib.elasticsearch.plugin.bundle.rest.action.langdetect.RestLangdetectStatsAction;
+import org.xbib.elasticsearch.plugin.bundle.rest.action.langdetect.RestMultiLangdetectAction;
+import org.xbib.elasticsearch.plugin.bundle.rest.action.reference.RestReferenceStatsAction;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -88,7 +119,8 @@ import java.util.function.Supplier;
 /**
  * Bundle plugin.
  */
-public class BundlePlugin extends Plugin implements AnalysisPlugin, MapperPlugin, SearchPlugin, ActionPlugin {
+public class BundlePlugin extends Plugin implements AnalysisPlugin, MapperPlugin, SearchPlugin, ActionPlugin,
+        NetworkPlugin {
 
     private static final StandardnumberMapperTypeParser standardNumberTypeParser =
             new StandardnumberMapperTypeParser();
@@ -98,8 +130,22 @@ public class BundlePlugin extends Plugin implements AnalysisPlugin, MapperPlugin
 
     private final Settings settings;
 
+    private final LangdetectServiceRegistry langdetectServiceRegistry;
+
+    private final DictionaryRegistry dictionaryRegistry;
+
+    private ReferenceResolver referenceResolver;
+
+    private ReferenceChangeTracker referenceChangeTracker;
+
+    private ReferencePropagationJob referencePropagationJob;
+
+    private ThreadPool threadPool;
+
     public BundlePlugin(Settings settings) {
         this.settings = settings;
+        this.langdetectServiceRegistry = new LangdetectServiceRegistry();
+        this.dictionaryRegistry = new DictionaryRegistry();
     }
 
     @Override
@@ -123,7 +169,22 @@ public class BundlePlugin extends Plugin implements AnalysisPlugin, MapperPlugin
                 new Setting<>("plugins.xbib.lemmatize.enabled", "true", Function.identity(), Setting.Property.NodeScope),
                 new Setting<>("plugins.xbib.naturalsort.enabled", "true", Function.identity(), Setting.Property.NodeScope),
                 new Setting<>("plugins.xbib.reference.enabled", "true", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.reference.cache.max_bytes", "10mb", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.reference.cache.ttl", "1h", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.reference.cache.verify", "true", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.reference.propagation.enabled", "false", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.reference.propagation.interval", "1s", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.reference.propagation.batch_size", "500", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.reference.propagation.max_changes", "256", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.reference.propagation.max_pending", "100000", Function.identity(), Setting.Property.NodeScope),
                 new Setting<>("plugins.xbib.langdetect.enabled", "true", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.langdetect.max_profiles", "16", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.langdetect.large_text_threshold", "10000", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.langdetect.cache_size", "0", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.langdetect.cache_max_text_length", "256", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.langdetect.max_chars", "0", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.langdetect.windows", "4", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>("plugins.xbib.langdetect.window_threshold", "0.999", Function.identity(), Setting.Property.NodeScope),
                 new Setting<>("plugins.xbib.isbnformat.enabled", "true", Function.identity(), Setting.Property.NodeScope)
                 );
     }
@@ -151,7 +212,8 @@ public class BundlePlugin extends Plugin implements AnalysisPlugin, MapperPlugin
             extra.put("auto_phrase", AutoPhrasingTokenFilterFactory::new);
         }
         if (settings.getAsBoolean("plugins.xbib.baseform.enabled", true)) {
-            extra.put("baseform", BaseformTokenFilterFactory::new);
+            extra.put("baseform", (indexSettings, environment, name, factorySettings) ->
+                    new BaseformTokenFilterFactory(indexSettings, environment, name, factorySettings, dictionaryRegistry));
         }
         if (settings.getAsBoolean("plugins.xbib.concat.enabled", true)) {
             extra.put("concat", ConcatTokenFilterFactory::new);
@@ -160,7 +222,8 @@ public class BundlePlugin extends Plugin implements AnalysisPlugin, MapperPlugin
             extra.put("pair", PairTokenFilterFactory::new);
         }
         if (settings.getAsBoolean("plugins.xbib.decompound.enabled", true)) {
-            extra.put("decompound", DecompoundTokenFilterFactory::new);
+            extra.put("decompound", (indexSettings, environment, name, factorySettings) ->
+                    new DecompoundTokenFilterFactory(indexSettings, environment, name, factorySettings, dictionaryRegistry));
         }
         if (settings.getAsBoolean("plugins.xbib.german_normalize.enabled", true)) {
             extra.put("german_normalize", GermanNormalizationFilterFactory::new);
@@ -176,7 +239,8 @@ public class BundlePlugin extends Plugin implements AnalysisPlugin, MapperPlugin
                     new StandardnumberTokenFilterFactory(indexSettings, environment, name, factorySettings, standardNumberTypeParser));
         }
         if (settings.getAsBoolean("plugins.xbib.fst_decompound.enabled", true)) {
-            extra.put("fst_decompound", FstDecompoundTokenFilterFactory::new);
+            extra.put("fst_decompound", (indexSettings, environment, name, factorySettings) ->
+                    new FstDecompoundTokenFilterFactory(indexSettings, environment, name, factorySettings, dictionaryRegistry));
         }
         if (settings.getAsBoolean("plugins.xbib.worddelimiter.enabled", true)) {
             extra.put("worddelimiter", WordDelimiterFilterFactory::new);
@@ -191,7 +255,8 @@ public class BundlePlugin extends Plugin implements AnalysisPlugin, MapperPlugin
             extra.put("year", GregorianYearTokenFilterFactory::new);
         }
         if (settings.getAsBoolean("plugins.xbib.lemmatize.enabled", true)) {
-            extra.put("lemmatize", LemmatizeTokenFilterFactory::new);
+            extra.put("lemmatize", (indexSettings, environment, name, factorySettings) ->
+                    new LemmatizeTokenFilterFactory(indexSettings, environment, name, factorySettings, dictionaryRegistry));
         }
         return extra;
     }
@@ -244,7 +309,7 @@ public class BundlePlugin extends Plugin implements AnalysisPlugin, MapperPlugin
             extra.put(ReferenceMapper.CONTENT_TYPE, referenceMapperTypeParser);
         }
         if (settings.getAsBoolean("plugins.xbib.langdetect.enabled", true)) {
-            extra.put(LangdetectMapper.CONTENT_TYPE, new LangdetectMapper.TypeParser());
+            extra.put(LangdetectMapper.CONTENT_TYPE, new LangdetectMapper.TypeParser(langdetectServiceRegistry));
         }
         if (settings.getAsBoolean("plugins.xbib.icu.enabled", true)) {
             extra.put(IcuCollationKeyFieldMapper.CONTENT_TYPE, new IcuCollationKeyFieldMapper.TypeParser());
@@ -267,6 +332,10 @@ public class BundlePlugin extends Plugin implements AnalysisPlugin, MapperPlugin
         }
         if (settings.getAsBoolean("plugins.xbib.langdetect.enabled", true)) {
             extra.add(new ActionHandler<>(LangdetectAction.INSTANCE, TransportLangdetectAction.class));
+            extra.add(new ActionHandler<>(MultiLangdetectAction.INSTANCE, TransportMultiLangdetectAction.class));
+        }
+        if (usesDictionaries(settings)) {
+            extra.add(new ActionHandler<>(DictionaryReloadAction.INSTANCE, TransportDictionaryReloadAction.class));
         }
         return extra;
     }
@@ -285,6 +354,79 @@ public class BundlePlugin extends Plugin implements AnalysisPlugin, MapperPlugin
         }
         if (settings.getAsBoolean("plugins.xbib.langdetect.enabled", true)) {
             extra.add(new RestLangdetectAction(settings, restController));
+            extra.add(new RestLangdetectStatsAction(settings, restController, langdetectServiceRegistry));
+            extra.add(new RestMultiLangdetectAction(settings, restController));
+        }
+        if (usesDictionaries(settings)) {
+            extra.add(new RestDictionaryStatsAction(settings, restController, dictionaryRegistry));
+            extra.add(new RestDictionaryReloadAction(settings, restController));
+        }
+        if (referenceResolver != null) {
+            extra.add(new RestReferenceStatsAction(settings, restController, referenceResolver,
+                    referencePropagationJob));
+        }
+        return extra;
+    }
+
+    @Override
+    public List<TransportInterceptor> getTransportInterceptors(NamedWriteableRegistry namedWriteableRegistry,
+                                                               ThreadContext threadContext) {
+        List<TransportInterceptor> extra = new ArrayList<>();
+        if (settings.getAsBoolean("plugins.xbib.reference.enabled", true)) {
+            // the components are created later, the interceptor looks them up when a request arrives
+            extra.add(new ReferenceTransportInterceptor(threadContext, () -> referenceResolver, () -> threadPool));
+        }
+        return extra;
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client,
+                                               ClusterService clusterService,
+                                               ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService,
+                                               ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry,
+                                               Environment environment,
+                                               NodeEnvironment nodeEnvironment,
+                                               NamedWriteableRegistry namedWriteableRegistry) {
+        Collection<Object> extra = new ArrayList<>();
+        if (settings.getAsBoolean("plugins.xbib.langdetect.enabled", true)) {
+            extra.add(langdetectServiceRegistry);
+        }
+        if (usesDictionaries(settings)) {
+            extra.add(dictionaryRegistry);
+        }
+        if (settings.getAsBoolean("plugins.xbib.reference.enabled", true)) {
+            ReferenceCache referenceCache = new ReferenceCache(settings);
+            referenceResolver = new ReferenceResolver(client, referenceCache);
+            this.threadPool = threadPool;
+            extra.add(referenceResolver);
+            if (settings.getAsBoolean("plugins.xbib.reference.propagation.enabled", false)) {
+                referenceChangeTracker = new ReferenceChangeTracker(settings, threadPool.getThreadContext(),
+                        referenceCache);
+                clusterService.addListener(referenceChangeTracker);
+                referencePropagationJob = new ReferencePropagationJob(settings, nodeEnvironment.nodeId(), client,
+                        threadPool, referenceChangeTracker);
+                extra.add(referenceChangeTracker);
+                extra.add(referencePropagationJob);
+            }
+        }
+        return extra;
+    }
+
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        if (referenceChangeTracker != null) {
+            indexModule.addIndexOperationListener(referenceChangeTracker);
+        }
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        List<ExecutorBuilder<?>> extra = new ArrayList<>();
+        if (settings.getAsBoolean("plugins.xbib.langdetect.enabled", true)) {
+            extra.add(new FixedExecutorBuilder(settings, TransportLangdetectAction.EXECUTOR,
+                    EsExecutors.numberOfProcessors(settings), 1000, "thread_pool." + TransportLangdetectAction.EXECUTOR));
         }
         return extra;
     }
@@ -326,4 +468,11 @@ public class BundlePlugin extends Plugin implements AnalysisPlugin, MapperPlugin
         }
         return extra;
     }
+
+    private static boolean usesDictionaries(Settings settings) {
+        return settings.getAsBoolean("plugins.xbib.baseform.enabled", true) ||
+                settings.getAsBoolean("plugins.xbib.decompound.enabled", true) ||
+                settings.getAsBoolean("plugins.xbib.fst_decompound.enabled", true) ||
+                settings.getAsBoolean("plugins.xbib.lemmatize.enabled", true);
+    }
 }
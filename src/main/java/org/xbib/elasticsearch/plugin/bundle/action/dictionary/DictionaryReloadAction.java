@@ -0,0 +1,29 @@
+package org.xbib.elasticsearch.plugin.bundle.action.dictionary;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Dictionary reload action.
+ */
+public class DictionaryReloadAction
+        extends Action<DictionaryReloadRequest, DictionaryReloadResponse, DictionaryReloadRequestBuilder> {
+
+    public static final String NAME = "dictionaries/reload";
+
+    public static final DictionaryReloadAction INSTANCE = new DictionaryReloadAction();
+
+    private DictionaryReloadAction() {
+        super(NAME);
+    }
+
+    @Override
+    public DictionaryReloadRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new DictionaryReloadRequestBuilder(client);
+    }
+
+    @Override
+    public DictionaryReloadResponse newResponse() {
+        return new DictionaryReloadResponse();
+    }
+}
@@ -0,0 +1,45 @@
+package org.xbib.elasticsearch.plugin.bundle.action.dictionary;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+/**
+ * Dictionary reload request, for the dictionaries of a type or all dictionaries on the given nodes.
+ */
+public class DictionaryReloadRequest extends BaseNodesRequest<DictionaryReloadRequest> {
+
+    private String type;
+
+    public DictionaryReloadRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+
+    /**
+     * Return the type of the dictionaries to reload.
+     *
+     * @return the type, or null for all dictionaries
+     */
+    public String getType() {
+        return type;
+    }
+
+    public DictionaryReloadRequest setType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        type = in.readOptionalString();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeOptionalString(type);
+    }
+}
@@ -0,0 +1,20 @@
+package org.xbib.elasticsearch.plugin.bundle.action.dictionary;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Dictionary reload request builder.
+ */
+public class DictionaryReloadRequestBuilder extends NodesOperationRequestBuilder<DictionaryReloadRequest,
+        DictionaryReloadResponse, DictionaryReloadRequestBuilder> {
+
+    public DictionaryReloadRequestBuilder(ElasticsearchClient client) {
+        super(client, DictionaryReloadAction.INSTANCE, new DictionaryReloadRequest());
+    }
+
+    public DictionaryReloadRequestBuilder setType(String type) {
+        request.setType(type);
+        return this;
+    }
+}
@@ -0,0 +1,100 @@
+package org.xbib.elasticsearch.plugin.bundle.action.dictionary;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.xbib.elasticsearch.plugin.bundle.common.dictionary.DictionaryRegistry;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Dictionary reload response, with the statistics of the reloaded dictionaries of each node.
+ */
+public class DictionaryReloadResponse extends BaseNodesResponse<DictionaryReloadResponse.NodeResponse>
+        implements ToXContentFragment {
+
+    DictionaryReloadResponse() {
+    }
+
+    public DictionaryReloadResponse(ClusterName clusterName, List<NodeResponse> nodes,
+                                    List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeResponse> readNodesFrom(StreamInput in) throws IOException {
+        return in.readList(NodeResponse::readNodeResponse);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<NodeResponse> nodes) throws IOException {
+        out.writeStreamableList(nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("nodes");
+        for (NodeResponse node : getNodes()) {
+            builder.startObject(node.getNode().getId());
+            builder.field("name", node.getNode().getName());
+            long sizeDelta = 0L;
+            builder.startArray("dictionaries");
+            for (DictionaryRegistry.ReloadStats stats : node.getReloadStats()) {
+                stats.toXContent(builder, params);
+                sizeDelta += stats.getSizeDelta();
+            }
+            builder.endArray();
+            builder.field("size_delta_in_bytes", sizeDelta);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * The statistics of the reloaded dictionaries of a node.
+     */
+    public static class NodeResponse extends BaseNodeResponse {
+
+        private List<DictionaryRegistry.ReloadStats> reloadStats;
+
+        NodeResponse() {
+            this.reloadStats = Collections.emptyList();
+        }
+
+        public NodeResponse(DiscoveryNode node, List<DictionaryRegistry.ReloadStats> reloadStats) {
+            super(node);
+            this.reloadStats = reloadStats;
+        }
+
+        public static NodeResponse readNodeResponse(StreamInput in) throws IOException {
+            NodeResponse response = new NodeResponse();
+            response.readFrom(in);
+            return response;
+        }
+
+        public List<DictionaryRegistry.ReloadStats> getReloadStats() {
+            return reloadStats;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            reloadStats = in.readList(DictionaryRegistry.ReloadStats::new);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeList(reloadStats);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.xbib.elasticsearch.plugin.bundle.action.dictionary;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.xbib.elasticsearch.plugin.bundle.common.dictionary.DictionaryRegistry;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Transport action for reloading dictionaries on all nodes. The dictionaries are loaded in the generic thread pool
+ * of each node, while the analysis components keep using the current versions.
+ */
+public class TransportDictionaryReloadAction extends TransportNodesAction<DictionaryReloadRequest,
+        DictionaryReloadResponse, TransportDictionaryReloadAction.NodeRequest, DictionaryReloadResponse.NodeResponse> {
+
+    private final DictionaryRegistry dictionaryRegistry;
+
+    @Inject
+    public TransportDictionaryReloadAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                           TransportService transportService, ActionFilters actionFilters,
+                                           IndexNameExpressionResolver indexNameExpressionResolver,
+                                           DictionaryRegistry dictionaryRegistry) {
+        super(settings, DictionaryReloadAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, DictionaryReloadRequest::new, NodeRequest::new,
+                ThreadPool.Names.GENERIC, DictionaryReloadResponse.NodeResponse.class);
+        this.dictionaryRegistry = dictionaryRegistry;
+    }
+
+    @Override
+    protected DictionaryReloadResponse newResponse(DictionaryReloadRequest request,
+                                                   List<DictionaryReloadResponse.NodeResponse> responses,
+                                                   List<FailedNodeException> failures) {
+        return new DictionaryReloadResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, DictionaryReloadRequest request) {
+        return new NodeRequest(nodeId, request.getType());
+    }
+
+    @Override
+    protected DictionaryReloadResponse.NodeResponse newNodeResponse() {
+        return new DictionaryReloadResponse.NodeResponse();
+    }
+
+    @Override
+    protected DictionaryReloadResponse.NodeResponse nodeOperation(NodeRequest request) {
+        return new DictionaryReloadResponse.NodeResponse(clusterService.localNode(),
+                dictionaryRegistry.reload(request.type));
+    }
+
+    /**
+     * The reload request for a node.
+     */
+    public static class NodeRequest extends BaseNodeRequest {
+
+        private String type;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, String type) {
+            super(nodeId);
+            this.type = type;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            type = in.readOptionalString();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeOptionalString(type);
+        }
+    }
+}
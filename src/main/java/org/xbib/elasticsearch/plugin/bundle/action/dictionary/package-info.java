@@ -0,0 +1,4 @@
+/**
+ * Classes for the reload action of the dictionaries of analysis components.
+ */
+package org.xbib.elasticsearch.plugin.bundle.action.dictionary;
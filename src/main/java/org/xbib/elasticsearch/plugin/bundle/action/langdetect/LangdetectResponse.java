@@ -2,6 +2,8 @@ package org.xbib.elasticsearch.plugin.bundle.action.langdetect;
 
 import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.xcontent.StatusToXContentObject;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
@@ -23,6 +25,8 @@ public class LangdetectResponse extends ActionResponse implements StatusToXConte
 
     private List<Language> languages = new ArrayList<>();
 
+    private long consumedChars;
+
     public String getProfile() {
         return profile;
     }
@@ -41,8 +45,18 @@ public class LangdetectResponse extends ActionResponse implements StatusToXConte
         return this;
     }
 
+    public long getConsumedChars() {
+        return consumedChars;
+    }
+
+    public LangdetectResponse setConsumedChars(long consumedChars) {
+        this.consumedChars = consumedChars;
+        return this;
+    }
+
     @Override
     public XContentBuilder toXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
+        builder.startObject();
         if (!Strings.isNullOrEmpty(profile)) {
             builder.field("profile", profile);
         }
@@ -52,9 +66,34 @@ public class LangdetectResponse extends ActionResponse implements StatusToXConte
                     .field("probability", lang.getProbability()).endObject();
         }
         builder.endArray();
+        builder.field("consumed_chars", consumedChars);
+        builder.endObject();
         return builder;
     }
 
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        profile = in.readOptionalString();
+        int size = in.readVInt();
+        languages = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            languages.add(new Language(in.readString(), in.readDouble()));
+        }
+        consumedChars = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeOptionalString(profile);
+        out.writeVInt(languages.size());
+        for (Language language : languages) {
+            language.writeTo(out);
+        }
+        out.writeVLong(consumedChars);
+    }
+
     @Override
     public RestStatus status() {
         return OK;
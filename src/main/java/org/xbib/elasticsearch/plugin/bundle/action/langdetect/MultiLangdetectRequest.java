@@ -0,0 +1,86 @@
+package org.xbib.elasticsearch.plugin.bundle.action.langdetect;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Multi language detection request. Carries many language detection requests, which are executed in parallel.
+ * The requests are validated one by one, an invalid request results in a failed response item.
+ */
+public class MultiLangdetectRequest extends ActionRequest {
+
+    private List<LangdetectRequest> requests = new ArrayList<>();
+
+    private int maxConcurrentRequests = 0;
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = null;
+        if (requests.isEmpty()) {
+            validationException = addValidationError("no requests added", null);
+        }
+        if (maxConcurrentRequests < 0) {
+            validationException = addValidationError("max_concurrent_requests must not be negative", validationException);
+        }
+        return validationException;
+    }
+
+    public MultiLangdetectRequest add(LangdetectRequest request) {
+        requests.add(request);
+        return this;
+    }
+
+    public MultiLangdetectRequest add(String text, String profile) {
+        return add(new LangdetectRequest().setText(text).setProfile(profile));
+    }
+
+    public List<LangdetectRequest> requests() {
+        return requests;
+    }
+
+    /**
+     * Set the maximum number of requests executed in parallel. Zero means the size of the langdetect thread pool.
+     *
+     * @param maxConcurrentRequests the maximum number of requests executed in parallel
+     * @return this request
+     */
+    public MultiLangdetectRequest setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        return this;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        maxConcurrentRequests = in.readVInt();
+        int size = in.readVInt();
+        requests = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            LangdetectRequest request = new LangdetectRequest();
+            request.readFrom(in);
+            requests.add(request);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(maxConcurrentRequests);
+        out.writeVInt(requests.size());
+        for (LangdetectRequest request : requests) {
+            request.writeTo(out);
+        }
+    }
+}
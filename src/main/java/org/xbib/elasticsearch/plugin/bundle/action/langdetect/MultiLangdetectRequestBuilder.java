@@ -0,0 +1,30 @@
+package org.xbib.elasticsearch.plugin.bundle.action.langdetect;
+
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Multi language detection request builder.
+ */
+public class MultiLangdetectRequestBuilder
+        extends ActionRequestBuilder<MultiLangdetectRequest, MultiLangdetectResponse, MultiLangdetectRequestBuilder> {
+
+    public MultiLangdetectRequestBuilder(ElasticsearchClient client) {
+        super(client, MultiLangdetectAction.INSTANCE, new MultiLangdetectRequest());
+    }
+
+    public MultiLangdetectRequestBuilder add(LangdetectRequest langdetectRequest) {
+        request.add(langdetectRequest);
+        return this;
+    }
+
+    public MultiLangdetectRequestBuilder add(String text, String profile) {
+        request.add(text, profile);
+        return this;
+    }
+
+    public MultiLangdetectRequestBuilder setMaxConcurrentRequests(int maxConcurrentRequests) {
+        request.setMaxConcurrentRequests(maxConcurrentRequests);
+        return this;
+    }
+}
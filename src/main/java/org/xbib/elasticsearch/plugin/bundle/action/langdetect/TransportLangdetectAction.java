@@ -1,46 +1,98 @@
 package org.xbib.elasticsearch.plugin.bundle.action.langdetect;
 
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRunnable;
 import org.elasticsearch.action.support.ActionFilters;
 import org.elasticsearch.action.support.TransportAction;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.Detection;
 import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectService;
-import org.xbib.elasticsearch.plugin.bundle.common.langdetect.Language;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectServiceRegistry;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Transport action for language detection response.
+ *
+ * The language detection services of the profiles are held in a bounded cache. Each profile is loaded once,
+ * concurrent requests for a profile which is not loaded yet wait for the first one to load it.
+ * Texts longer than the large text threshold are detected on the langdetect thread pool,
+ * short texts are detected on the calling thread. The services of all profiles share the detection result
+ * cache and max chars settings of the node.
  */
 public class TransportLangdetectAction extends TransportAction<LangdetectRequest, LangdetectResponse> {
 
-    private static final Map<String, LangdetectService> services = new HashMap<>();
+    public static final String EXECUTOR = "langdetect";
+
+    private final LangdetectServiceRegistry registry;
+
+    private final Settings serviceSettings;
+
+    private final Cache<String, LangdetectService> services;
+
+    private final int largeTextThreshold;
 
     @Inject
     public TransportLangdetectAction(Settings settings, ThreadPool threadPool,
                                      ActionFilters actionFilters,
                                      IndexNameExpressionResolver indexNameExpressionResolver,
-                                     TransportService transportService) {
+                                     TransportService transportService,
+                                     LangdetectServiceRegistry registry) {
         super(settings, LangdetectAction.NAME, threadPool, actionFilters, indexNameExpressionResolver, transportService.getTaskManager());
-        services.put("", new LangdetectService(settings));
+        this.registry = registry;
+        this.serviceSettings = Settings.builder()
+                .put(settings)
+                .put("cache_size", settings.getAsInt("plugins.xbib.langdetect.cache_size", 0))
+                .put("cache_max_text_length", settings.getAsInt("plugins.xbib.langdetect.cache_max_text_length", 256))
+                .put("max_chars", settings.getAsInt("plugins.xbib.langdetect.max_chars", 0))
+                .put("windows", settings.getAsInt("plugins.xbib.langdetect.windows", 4))
+                .put("window_threshold", settings.getAsDouble("plugins.xbib.langdetect.window_threshold", 0.999))
+                .build();
+        this.services = CacheBuilder.<String, LangdetectService>builder()
+                .setMaximumWeight(settings.getAsInt("plugins.xbib.langdetect.max_profiles", 16))
+                .build();
+        this.largeTextThreshold = settings.getAsInt("plugins.xbib.langdetect.large_text_threshold", 10000);
+        services.put("", registry.getOrCreate(serviceSettings));
     }
 
     @Override
     protected void doExecute(LangdetectRequest request, ActionListener<LangdetectResponse> listener) {
+        if (request.getText() != null && request.getText().length() > largeTextThreshold) {
+            threadPool.executor(EXECUTOR).execute(new ActionRunnable<LangdetectResponse>(listener) {
+                @Override
+                protected void doRun() throws Exception {
+                    listener.onResponse(detect(request));
+                }
+            });
+        } else {
+            LangdetectResponse response;
+            try {
+                response = detect(request);
+            } catch (Exception e) {
+                listener.onFailure(e);
+                return;
+            }
+            listener.onResponse(response);
+        }
+    }
+
+    private LangdetectResponse detect(LangdetectRequest request) throws ExecutionException {
         String profile = request.getProfile();
         if (profile == null) {
             profile = "";
         }
-        if (!services.containsKey(profile)) {
-            services.put(profile, new LangdetectService(settings, profile));
-        }
-        List<Language> langs = services.get(profile).detectAll(request.getText());
-        listener.onResponse(new LangdetectResponse().setLanguages(langs).setProfile(request.getProfile()));
+        LangdetectService service = services.computeIfAbsent(profile, p ->
+                registry.getOrCreate(Settings.builder().put(serviceSettings).put("profile", p).build()));
+        Detection detection = service.detect(request.getText());
+        return new LangdetectResponse()
+                .setLanguages(detection.getLanguages())
+                .setConsumedChars(detection.getConsumedChars())
+                .setProfile(request.getProfile());
     }
 }
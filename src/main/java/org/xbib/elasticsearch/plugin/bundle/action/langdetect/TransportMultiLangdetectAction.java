@@ -0,0 +1,96 @@
+package org.xbib.elasticsearch.plugin.bundle.action.langdetect;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.TransportAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.AtomicArray;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport action for multi language detection. The requests are executed on the langdetect thread pool,
+ * with at most the maximum number of concurrent requests in flight. A finished request starts the next one.
+ */
+public class TransportMultiLangdetectAction extends TransportAction<MultiLangdetectRequest, MultiLangdetectResponse> {
+
+    private final TransportLangdetectAction langdetectAction;
+
+    private final int defaultMaxConcurrentRequests;
+
+    @Inject
+    public TransportMultiLangdetectAction(Settings settings, ThreadPool threadPool,
+                                          ActionFilters actionFilters,
+                                          IndexNameExpressionResolver indexNameExpressionResolver,
+                                          TransportService transportService,
+                                          TransportLangdetectAction langdetectAction) {
+        super(settings, MultiLangdetectAction.NAME, threadPool, actionFilters, indexNameExpressionResolver,
+                transportService.getTaskManager());
+        this.langdetectAction = langdetectAction;
+        this.defaultMaxConcurrentRequests = EsExecutors.numberOfProcessors(settings);
+    }
+
+    @Override
+    protected void doExecute(MultiLangdetectRequest request, ActionListener<MultiLangdetectResponse> listener) {
+        long startNanos = System.nanoTime();
+        List<LangdetectRequest> requests = request.requests();
+        AtomicArray<MultiLangdetectResponse.Item> items = new AtomicArray<>(requests.size());
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger pending = new AtomicInteger(requests.size());
+        int maxConcurrentRequests = request.getMaxConcurrentRequests() > 0 ?
+                request.getMaxConcurrentRequests() : defaultMaxConcurrentRequests;
+        Runnable finish = () -> listener.onResponse(new MultiLangdetectResponse(
+                items.toArray(new MultiLangdetectResponse.Item[items.length()]),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+        for (int i = 0; i < Math.min(maxConcurrentRequests, requests.size()); i++) {
+            executeNext(requests, items, next, pending, finish);
+        }
+    }
+
+    private void executeNext(List<LangdetectRequest> requests, AtomicArray<MultiLangdetectResponse.Item> items,
+                             AtomicInteger next, AtomicInteger pending, Runnable finish) {
+        int slot = next.getAndIncrement();
+        if (slot >= requests.size()) {
+            return;
+        }
+        threadPool.executor(TransportLangdetectAction.EXECUTOR).execute(new AbstractRunnable() {
+            @Override
+            protected void doRun() {
+                langdetectAction.execute(requests.get(slot), new ActionListener<LangdetectResponse>() {
+                    @Override
+                    public void onResponse(LangdetectResponse response) {
+                        done(new MultiLangdetectResponse.Item(response, null));
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        done(new MultiLangdetectResponse.Item(null, e));
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                // rejected by the thread pool
+                done(new MultiLangdetectResponse.Item(null, e));
+            }
+
+            private void done(MultiLangdetectResponse.Item item) {
+                items.set(slot, item);
+                if (pending.decrementAndGet() == 0) {
+                    finish.run();
+                } else {
+                    executeNext(requests, items, next, pending, finish);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,92 @@
+package org.xbib.elasticsearch.plugin.bundle.common.decompound;
+
+import java.util.Arrays;
+
+/**
+ * A cache key of chars, which compares by content.
+ *
+ * A key can be reset to a slice of a char buffer, for example the term buffer of a token filter, and used
+ * to probe a cache without copying the chars. Only a key which is put into a cache is copied, because the
+ * buffer of a probe changes with the next term.
+ */
+public final class CharsKey {
+
+    private char[] chars;
+
+    private int offset;
+
+    private int length;
+
+    private int hash;
+
+    public CharsKey() {
+        this.chars = new char[0];
+    }
+
+    /**
+     * Reset this key to a slice of a char buffer. The chars are not copied.
+     *
+     * @param chars the chars
+     * @param offset the offset
+     * @param length the length
+     * @return this key
+     */
+    public CharsKey reset(char[] chars, int offset, int length) {
+        this.chars = chars;
+        this.offset = offset;
+        this.length = length;
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + chars[i];
+        }
+        this.hash = h;
+        return this;
+    }
+
+    /**
+     * Return a copy of this key, which does not share the char buffer.
+     *
+     * @return the copy
+     */
+    public CharsKey copy() {
+        CharsKey key = new CharsKey();
+        key.chars = Arrays.copyOfRange(chars, offset, offset + length);
+        key.length = length;
+        key.hash = hash;
+        return key;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof CharsKey)) {
+            return false;
+        }
+        CharsKey other = (CharsKey) object;
+        if (hash != other.hash || length != other.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chars[offset + i] != other.chars[other.offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, offset, length);
+    }
+}
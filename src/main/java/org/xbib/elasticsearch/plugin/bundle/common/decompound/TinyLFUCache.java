@@ -0,0 +1,356 @@
+package org.xbib.elasticsearch.plugin.bundle.common.decompound;
+
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A concurrent, size-bounded cache with TinyLFU admission, for the results of decompounders.
+ *
+ * The cache is striped into segments, each guarded by its own lock. A segment holds its entries in
+ * access order and estimates the access frequencies of its keys in a count-min sketch with small counters,
+ * which are halved periodically, so old frequencies fade. When a segment is full, a new key is only admitted
+ * if it has been accessed more often than the least recently used entry, which is then evicted.
+ * So a burst of rare words does not flush the frequent words from the cache.
+ *
+ * Values are computed outside of any lock. Concurrent misses of the same key may compute the value more
+ * than once, the value is expected to depend only on the key.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class TinyLFUCache<K, V> {
+
+    private static final int MIN_SEGMENT_SIZE = 16;
+
+    private final Segment<K, V>[] segments;
+
+    private final int segmentShift;
+
+    private final int maximumSize;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Create a cache with a number of segments depending on the number of processors.
+     *
+     * @param maximumSize the maximum number of entries
+     */
+    public TinyLFUCache(int maximumSize) {
+        this(maximumSize, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param maximumSize the maximum number of entries
+     * @param concurrencyLevel the number of segments, rounded to a power of two, and reduced for small caches
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TinyLFUCache(int maximumSize, int concurrencyLevel) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximum size must be greater than 0");
+        }
+        int n = 1;
+        while (n < concurrencyLevel && n * 2 * MIN_SEGMENT_SIZE <= maximumSize) {
+            n *= 2;
+        }
+        this.maximumSize = maximumSize;
+        this.segments = new Segment[n];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+        for (int i = 0; i < n; i++) {
+            // distribute the remainder, so the segment sizes add up to the maximum size
+            segments[i] = new Segment<>(maximumSize / n + (i < maximumSize % n ? 1 : 0));
+        }
+    }
+
+    /**
+     * Return the cached value of a key.
+     *
+     * @param key the key
+     * @return the value, or null if the key is not cached
+     */
+    public V get(K key) {
+        int hash = spread(key.hashCode());
+        V value = segmentFor(hash).get(key, hash);
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Add a value to the cache, if the admission policy admits the key.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    public void put(K key, V value) {
+        int hash = spread(key.hashCode());
+        segmentFor(hash).put(key, value, hash, this);
+    }
+
+    /**
+     * Return the cached value of a key, or compute and cache it. The value is computed outside of any lock.
+     *
+     * @param key the key
+     * @param function the function to compute the value
+     * @return the value
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> function) {
+        V value = get(key);
+        if (value == null) {
+            value = function.apply(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Return the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Return the statistics of this cache.
+     *
+     * @return the statistics
+     */
+    public Stats stats() {
+        return new Stats(size(), maximumSize, hits.sum(), misses.sum(), evictions.sum(), rejections.sum());
+    }
+
+    private Segment<K, V> segmentFor(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static final class Segment<K, V> {
+
+        private final LinkedHashMap<K, V> map;
+
+        private final FrequencySketch sketch;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.map = new LinkedHashMap<>(16, 0.75f, true);
+            this.sketch = new FrequencySketch(capacity);
+        }
+
+        synchronized V get(K key, int hash) {
+            sketch.increment(hash);
+            return map.get(key);
+        }
+
+        synchronized void put(K key, V value, int hash, TinyLFUCache<K, V> cache) {
+            if (map.containsKey(key)) {
+                map.put(key, value);
+                return;
+            }
+            if (map.size() >= capacity) {
+                Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+                K victim = iterator.next().getKey();
+                if (sketch.frequency(hash) <= sketch.frequency(spread(victim.hashCode()))) {
+                    cache.rejections.increment();
+                    return;
+                }
+                iterator.remove();
+                cache.evictions.increment();
+            }
+            map.put(key, value);
+        }
+    }
+
+    /**
+     * A count-min sketch with four rows of counters up to 15, with four counters per entry in each row,
+     * so rare keys seldom collide with frequent keys. All counters are halved after a sample of
+     * ten times the capacity increments.
+     */
+    private static final class FrequencySketch {
+
+        private static final int[] SEEDS = { 0x97cb3127, 0x5bd1e995, 0x27d4eb2f, 0x165667b1 };
+
+        private final byte[] table;
+
+        private final int mask;
+
+        private final int width;
+
+        private final int sampleSize;
+
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int w = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 3;
+            this.width = w;
+            this.mask = w - 1;
+            this.table = new byte[4 * w];
+            this.sampleSize = 10 * Math.max(capacity, 8);
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = index(hash, i);
+                if (table[index] < 15) {
+                    table[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, table[index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int i) {
+            int h = hash * SEEDS[i];
+            h ^= h >>> 17;
+            return i * width + (h & mask);
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (byte) (table[i] >>> 1);
+            }
+            additions /= 2;
+        }
+    }
+
+    /**
+     * Statistics of a cache.
+     */
+    public static class Stats implements ToXContentObject {
+
+        private final long size;
+
+        private final long maximumSize;
+
+        private final long hits;
+
+        private final long misses;
+
+        private final long evictions;
+
+        private final long rejections;
+
+        public Stats(long size, long maximumSize, long hits, long misses, long evictions, long rejections) {
+            this.size = size;
+            this.maximumSize = maximumSize;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.rejections = rejections;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getMaximumSize() {
+            return maximumSize;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Return the number of entries which have been evicted for admitting a more frequent key.
+         *
+         * @return the number of evictions
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * Return the number of keys which have not been admitted to a full cache, because they were
+         * less frequent than the entry to evict.
+         *
+         * @return the number of rejections
+         */
+        public long getRejections() {
+            return rejections;
+        }
+
+        public double getHitRate() {
+            long requests = hits + misses;
+            return requests > 0 ? (double) hits / requests : 0d;
+        }
+
+        /**
+         * Return the sum of these and other statistics.
+         *
+         * @param other the other statistics
+         * @return the sum
+         */
+        public Stats add(Stats other) {
+            return new Stats(size + other.size, maximumSize + other.maximumSize, hits + other.hits,
+                    misses + other.misses, evictions + other.evictions, rejections + other.rejections);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("size", size);
+            builder.field("maximum_size", maximumSize);
+            builder.field("hits", hits);
+            builder.field("misses", misses);
+            builder.field("hit_rate", getHitRate());
+            builder.field("evictions", evictions);
+            builder.field("rejections", rejections);
+            builder.endObject();
+            return builder;
+        }
+    }
+}
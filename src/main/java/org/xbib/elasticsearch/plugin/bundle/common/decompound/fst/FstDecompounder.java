@@ -1,50 +1,58 @@
 package org.xbib.elasticsearch.plugin.bundle.common.decompound.fst;
 
 import org.apache.lucene.store.InputStreamDataInput;
-import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.IntsRefBuilder;
-import org.apache.lucene.util.UnicodeUtil;
 import org.apache.lucene.util.fst.Builder;
 import org.apache.lucene.util.fst.FST;
-import org.apache.lucene.util.fst.FST.BytesReader;
 import org.apache.lucene.util.fst.FST.INPUT_TYPE;
 import org.apache.lucene.util.fst.NoOutputs;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.TinyLFUCache;
+import org.xbib.elasticsearch.plugin.bundle.common.fst.CompiledFst;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Deque;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 
 /**
  * This is a copy of org.apache.lucene.analysis.de.compounds.GermanCompoundSplitter from
  * https://github.com/dweiss/compound-splitter
+ *
+ * The recursive traversal of the original is replaced by a loop over an explicit stack in a reusable
+ * {@link Context}. The words and glue morphemes starting at a position are looked up in the transducers once
+ * per word, however often the traversal reaches that position.
+ *
+ * The automatons are traversed in the aligned layout of {@link CompiledFst}, so a compiled automaton can be
+ * memory mapped instead of being read into the heap.
  */
 public class FstDecompounder {
 
     private static final List<String> morphemes = Arrays.asList("e", "es", "en", "er", "n", "ens", "ns", "s");
 
+    private static final int WORD = 0;
+
+    private static final int GLUE_MORPHEME = 1;
+
     /**
      * A static FSA with inflected and base surface forms.
      *
      * @see "http://www.wolfganglezius.de/doku.php?id=cl:surfaceForms"
      */
-    private final FST<Object> surfaceForms;
+    private final CompiledFst surfaceForms;
     /**
      * A static FSA with glue glueMorphemes. This could be merged into a single FSA
      * together with {@link #surfaceForms}, but I leave it separate for now.
      */
-    private final FST<Object> glueMorphemes;
+    private final CompiledFst glueMorphemes;
 
     public FstDecompounder(InputStream inputStream, List<String> glue) throws IOException {
         try {
-            this.surfaceForms = new FST<>(new InputStreamDataInput(inputStream), NoOutputs.getSingleton());
+            this.surfaceForms = CompiledFst.of(new FST<>(new InputStreamDataInput(inputStream),
+                    NoOutputs.getSingleton()));
             // set up glue morphemes
             this.glueMorphemes = createGlueMorphemes(glue != null && glue.size() > 0 ? glue :morphemes);
         } finally {
@@ -52,9 +60,23 @@ public class FstDecompounder {
         }
     }
 
-    private FST<Object> createGlueMorphemes(List<String> glue) throws IOException {
-        for (int i = 0; i < glue.size(); i++) {
-            glue.set(i, new StringBuilder(glue.get(i)).reverse().toString());
+    /**
+     * Create a decompounder from a compiled automaton of surface forms, which may be memory mapped.
+     *
+     * @param surfaceForms the compiled automaton of surface forms
+     * @param glue the glue morphemes, or null for the default glue morphemes
+     * @throws IOException if the glue morphemes can not be compiled
+     */
+    public FstDecompounder(CompiledFst surfaceForms, List<String> glue) throws IOException {
+        this.surfaceForms = surfaceForms;
+        this.glueMorphemes = createGlueMorphemes(glue != null && glue.size() > 0 ? glue :morphemes);
+    }
+
+    private CompiledFst createGlueMorphemes(List<String> glueMorphemes) throws IOException {
+        // do not modify the given list, it may be shared or unmodifiable
+        List<String> glue = new ArrayList<>(glueMorphemes.size());
+        for (String morpheme : glueMorphemes) {
+            glue.add(new StringBuilder(morpheme).reverse().toString());
         }
         Collections.sort(glue);
         final Builder<Object> builder = new Builder<>(INPUT_TYPE.BYTE4, NoOutputs.getSingleton());
@@ -64,7 +86,16 @@ public class FstDecompounder {
             fromUTF16ToUTF32(morpheme, intsBuilder);
             builder.add(intsBuilder.get(), nothing);
         }
-        return builder.finish();
+        return CompiledFst.of(builder.finish());
+    }
+
+    /**
+     * Return the size of the automatons.
+     *
+     * @return the size in bytes
+     */
+    public long sizeInBytes() {
+        return surfaceForms.sizeInBytes() + glueMorphemes.sizeInBytes();
     }
 
     public List<String> decompound(String word) {
@@ -82,111 +113,178 @@ public class FstDecompounder {
      * @param word The word to be split.
      * @return Returns <code>null</code> if this word is not recognized at all. Returns a
      * character sequence with '.'-delimited compound chunks (if ambiguous
-     * interpretations are possible, they are separated by a ',' character). The
-     * returned buffer will change with each call to <code>split</code> so copy the
-     * content if needed.
+     * interpretations are possible, they are separated by a ',' character).
      */
     public CharSequence split(CharSequence word) {
-        try {
-            StringBuilder builder = new StringBuilder();
-            builder.append(word);
-            builder.reverse();
-            for (int i = builder.length(); --i > 0; ) {
-                // see https://issues.apache.org/jira/browse/COLLECTIONS-294
-                builder.setCharAt(i, Character.toLowerCase(Character.toUpperCase(builder.charAt(i))));
+        Context context = new Context();
+        char[] chars = word.toString().toCharArray();
+        int count = split(chars, 0, chars.length, context);
+        if (count == 0) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0, alternative = 0; i < count; i++) {
+            if (i == context.alternativeEnds[alternative]) {
+                builder.append(',');
+                alternative++;
+            } else if (i > 0) {
+                builder.append('.');
             }
-            IntsRefBuilder utf32Builder = new IntsRefBuilder();
-            IntsRef utf32 = fromUTF16ToUTF32(builder, utf32Builder).get();
-            /*
-             * This array stores the minimum number of decomposition words during traversals to
-             * avoid splitting a larger word into smaller chunks.
-             */
-            IntsRefBuilder maxPathsBuilder = new IntsRefBuilder();
-            maxPathsBuilder.grow(utf32.length + 1);
-            Arrays.fill(maxPathsBuilder.ints(), 0, utf32.length + 1, Integer.MAX_VALUE);
-            builder.setLength(0);
-            Deque<Chunk> chunks = new LinkedList<>();
-            matchWord(utf32, utf32.offset, builder, maxPathsBuilder, chunks);
-            return builder.length() == 0 ? null : builder;
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            builder.append(context.chars, context.start(i), context.end(i) - context.start(i));
         }
+        return builder;
     }
 
     /**
-     * Consume a word, then recurse into glue morphemes/ further words.
+     * Split a word in a slice of a char array into the parts of all interpretations of the word as a compound.
+     * The parts are given as offsets into the lower cased word in the context. Once the buffers of the context
+     * have grown to the size of the words, no memory is allocated.
+     *
+     * @param word the chars of the word
+     * @param offset the offset of the word
+     * @param length the length of the word
+     * @param context the context which receives the parts, and holds the buffers of the decompounder
+     * @return the number of parts of all interpretations, or 0 if the word is not recognized
      */
-    private void matchWord(IntsRef utf32, int offset, StringBuilder builder, IntsRefBuilder maxPathsBuilder,
-                           Deque<Chunk> chunks) throws IOException {
-        FST.Arc<Object> arc = surfaceForms.getFirstArc(new FST.Arc<>());
-        FST.Arc<Object> scratch = new FST.Arc<>();
-        List<Chunk> wordsFromHere = new ArrayList<>();
-        BytesReader br = surfaceForms.getBytesReader();
-        for (int i = offset; i < utf32.length; i++) {
-            int chr = utf32.ints[i];
-            arc = surfaceForms.findTargetArc(chr, arc, arc, br);
-            if (arc == null) {
-                break;
-            }
-            if (surfaceForms.findTargetArc('<', arc, scratch, br) != null) {
-                wordsFromHere.add(new Chunk(offset, i + 1, ChunkType.WORD));
-            }
+    public int split(char[] word, int offset, int length, Context context) {
+        context.reset(word, offset, length);
+        traverse(context);
+        return context.count;
+    }
+
+    /**
+     * Split a word like {@link #split(char[], int, int, Context)}, with a cache of the parts of lower cased words.
+     * The cache holds the offsets of the parts, which are valid for all words with the same lower cased chars,
+     * also for words which are not recognized.
+     *
+     * @param word the chars of the word
+     * @param offset the offset of the word
+     * @param length the length of the word
+     * @param context the context which receives the parts, and holds the buffers of the decompounder
+     * @param cache the cache of the parts by lower cased word, which may be shared by many threads
+     * @return the number of parts of all interpretations, or 0 if the word is not recognized
+     */
+    public int split(char[] word, int offset, int length, Context context, TinyLFUCache<String, int[]> cache) {
+        context.reset(word, offset, length);
+        String key = new String(context.chars, 0, length);
+        int[] parts = cache.get(key);
+        if (parts != null) {
+            context.restore(parts);
+        } else {
+            traverse(context);
+            cache.put(key, context.parts());
         }
-        int[] maxPaths = maxPathsBuilder.ints();
-        for (int j = wordsFromHere.size(); --j >= 0; ) {
-            final Chunk ch = wordsFromHere.get(j);
-            if (chunks.size() + 1 > maxPaths[ch.end]) {
-                continue;
-            }
-            maxPaths[ch.end] = chunks.size() + 1;
-            chunks.addLast(ch);
-            if (ch.end == utf32.offset + utf32.length) {
-                // add match to the builder
-                if (builder.length() > 0) {
-                    builder.append(",");
-                }
-                boolean first = true;
-                Iterator<Chunk> i = chunks.descendingIterator();
-                while (i.hasNext()) {
-                    Chunk chunk = i.next();
-                    if (chunk.type == ChunkType.WORD) {
-                        if (!first) {
-                            builder.append('.');
+        return context.count;
+    }
+
+    /**
+     * Traverse the words and glue morphemes of the reversed word, depth first, longest words first.
+     * A frame of the stack consumes the words from a position, or the glue morphemes from a position followed by
+     * a word. A path of chunks is only followed while it is not longer than the shortest path to the same
+     * position found so far.
+     */
+    private void traverse(Context ctx) {
+        int n = ctx.length;
+        ctx.pushFrame(WORD, 0, words(ctx, 0));
+        while (ctx.depth > 0) {
+            int f = ctx.depth - 1;
+            int off = ctx.frameOffsets[f];
+            if (ctx.frameTypes[f] == WORD) {
+                if (ctx.framePhases[f] == 0) {
+                    boolean descended = false;
+                    int start = ctx.wordStarts[off];
+                    while (--ctx.frameIndexes[f] >= 0) {
+                        int end = ctx.ends[start + ctx.frameIndexes[f]];
+                        if (ctx.chunks + 1 > ctx.maxPaths[end]) {
+                            continue;
                         }
-                        first = false;
-                        builder.append(new StringBuilder(UnicodeUtil.newString(utf32.ints, chunk.start,
-                                chunk.end - chunk.start)).reverse());
+                        ctx.maxPaths[end] = ctx.chunks + 1;
+                        ctx.pushChunk(off, end, WORD);
+                        if (end == n) {
+                            ctx.addAlternative();
+                            ctx.chunks--;
+                        } else {
+                            ctx.framePhases[f] = 1;
+                            ctx.pushFrame(WORD, end, words(ctx, end));
+                            descended = true;
+                            break;
+                        }
+                    }
+                    if (!descended) {
+                        ctx.depth--;
                     }
+                } else if (ctx.framePhases[f] == 1) {
+                    ctx.framePhases[f] = 2;
+                    int end = ctx.chunkEnds[ctx.chunks - 1];
+                    glueMorphemes(ctx, end);
+                    ctx.pushFrame(GLUE_MORPHEME, end, -1);
+                } else {
+                    ctx.chunks--;
+                    ctx.framePhases[f] = 0;
                 }
             } else {
-                matchWord(utf32, ch.end, builder, maxPathsBuilder, chunks);
-                matchGlueMorpheme(utf32, ch.end, builder, maxPathsBuilder, chunks);
+                if (ctx.framePhases[f] == 1) {
+                    ctx.chunks--;
+                    ctx.framePhases[f] = 0;
+                }
+                if (++ctx.frameIndexes[f] < ctx.glueCounts[off]) {
+                    int end = ctx.ends[ctx.glueStarts[off] + ctx.frameIndexes[f]];
+                    ctx.pushChunk(off, end, GLUE_MORPHEME);
+                    if (end < n) {
+                        ctx.framePhases[f] = 1;
+                        ctx.pushFrame(WORD, end, words(ctx, end));
+                    } else {
+                        ctx.chunks--;
+                    }
+                } else {
+                    ctx.depth--;
+                }
             }
-            chunks.removeLast();
         }
     }
 
     /**
-     * Consume a maximal glue morpheme, if any, and consume the next word.
+     * Look up the ends of the words at a position on the first call, and return the number of words.
      */
-    private void matchGlueMorpheme(IntsRef utf32, final int offset, StringBuilder builder,
-                                   IntsRefBuilder maxPathsBuilder,
-                                   Deque<Chunk> chunks) throws IOException {
-        FST.Arc<Object> arc = glueMorphemes.getFirstArc(new FST.Arc<>());
-        BytesReader br = glueMorphemes.getBytesReader();
-        for (int i = offset; i < utf32.length; i++) {
-            int chr = utf32.ints[i];
-            arc = glueMorphemes.findTargetArc(chr, arc, arc, br);
-            if (arc == null) {
-                break;
+    private int words(Context ctx, int offset) {
+        if (ctx.wordCounts[offset] < 0) {
+            int start = ctx.endsLength;
+            int state = surfaceForms.root();
+            for (int i = offset; i < ctx.length; i++) {
+                int arc = surfaceForms.arc(state, ctx.codePoints[i]);
+                if (arc < 0) {
+                    break;
+                }
+                state = surfaceForms.target(arc);
+                if (surfaceForms.arc(state, '<') >= 0) {
+                    ctx.addEnd(i + 1);
+                }
             }
-            if (arc.isFinal()) {
-                chunks.addLast(new Chunk(offset, i + 1, ChunkType.GLUE_MORPHEME));
-                if (i + 1 < utf32.offset + utf32.length) {
-                    matchWord(utf32, i + 1, builder, maxPathsBuilder, chunks);
+            ctx.wordStarts[offset] = start;
+            ctx.wordCounts[offset] = ctx.endsLength - start;
+        }
+        return ctx.wordCounts[offset];
+    }
+
+    /**
+     * Look up the ends of the glue morphemes at a position on the first call.
+     */
+    private void glueMorphemes(Context ctx, int offset) {
+        if (ctx.glueCounts[offset] < 0) {
+            int start = ctx.endsLength;
+            int state = glueMorphemes.root();
+            for (int i = offset; i < ctx.length; i++) {
+                int arc = glueMorphemes.arc(state, ctx.codePoints[i]);
+                if (arc < 0) {
+                    break;
+                }
+                if (glueMorphemes.isFinal(arc)) {
+                    ctx.addEnd(i + 1);
                 }
-                chunks.removeLast();
+                state = glueMorphemes.target(arc);
             }
+            ctx.glueStarts[offset] = start;
+            ctx.glueCounts[offset] = ctx.endsLength - start;
         }
     }
 
@@ -204,24 +302,249 @@ public class FstDecompounder {
     }
 
     /**
-     * Category for a given chunk of a compound.
+     * Reverse chars like {@link StringBuilder#reverse()}, which keeps the order of surrogate pairs.
      */
-     enum ChunkType {
-        GLUE_MORPHEME, WORD
+    private static void reverse(char[] src, int offset, int length, char[] dst) {
+        for (int i = 0; i < length; i++) {
+            dst[i] = src[offset + length - 1 - i];
+        }
+        for (int i = 0; i < length - 1; i++) {
+            if (Character.isLowSurrogate(dst[i]) && Character.isHighSurrogate(dst[i + 1])) {
+                char c = dst[i];
+                dst[i] = dst[i + 1];
+                dst[++i] = c;
+            }
+        }
     }
 
     /**
-     * A slice of a compound word.
+     * The buffers of a decompounder, and the parts of a split word.
+     *
+     * A context is not thread safe, each thread, for example each token filter, should use its own context.
+     * The word is traversed reversed, by code points. The parts are chunks of the lower cased word, in the order
+     * of the word, and the interpretations of the word follow one after another.
      */
-    private final class Chunk {
-        final int start;
-        final int end;
-        final ChunkType type;
-
-        Chunk(int start, int end, ChunkType type) {
-            this.start = start;
-            this.end = end;
-            this.type = type;
+    public static final class Context {
+
+        private char[] chars = new char[32];
+
+        private char[] reversed = new char[32];
+
+        private int charLength;
+
+        private int[] codePoints = new int[32];
+
+        private int[] positions = new int[33];
+
+        private int length;
+
+        private int[] maxPaths = new int[33];
+
+        private int[] wordStarts = new int[33];
+
+        private int[] wordCounts = new int[33];
+
+        private int[] glueStarts = new int[33];
+
+        private int[] glueCounts = new int[33];
+
+        private int[] ends = new int[64];
+
+        private int endsLength;
+
+        private int[] frameTypes = new int[16];
+
+        private int[] frameOffsets = new int[16];
+
+        private int[] frameIndexes = new int[16];
+
+        private int[] framePhases = new int[16];
+
+        private int depth;
+
+        private int[] chunkStarts = new int[16];
+
+        private int[] chunkEnds = new int[16];
+
+        private int[] chunkTypes = new int[16];
+
+        private int chunks;
+
+        private int[] starts = new int[8];
+
+        private int[] partEnds = new int[8];
+
+        private int count;
+
+        private int[] alternativeEnds = new int[4];
+
+        private int alternatives;
+
+        /**
+         * Return the number of parts.
+         *
+         * @return the number of parts
+         */
+        public int count() {
+            return count;
+        }
+
+        /**
+         * Return the lower cased chars of the word, into which the parts point.
+         *
+         * @return the chars
+         */
+        public char[] chars() {
+            return chars;
+        }
+
+        /**
+         * Return the start of a part in the chars.
+         *
+         * @param i the index of the part
+         * @return the start of the part
+         */
+        public int start(int i) {
+            return starts[i];
+        }
+
+        /**
+         * Return the end of a part in the chars.
+         *
+         * @param i the index of the part
+         * @return the end of the part
+         */
+        public int end(int i) {
+            return partEnds[i];
+        }
+
+        /**
+         * Return the number of interpretations of the word.
+         *
+         * @return the number of interpretations
+         */
+        public int alternatives() {
+            return alternatives;
+        }
+
+        /**
+         * Return the end of the parts of an interpretation, which is the index of its first part plus the number
+         * of its parts.
+         *
+         * @param i the index of the interpretation
+         * @return the index after the last part of the interpretation
+         */
+        public int alternativeEnd(int i) {
+            return alternativeEnds[i];
+        }
+
+        private void reset(char[] word, int offset, int len) {
+            count = 0;
+            alternatives = 0;
+            depth = 0;
+            chunks = 0;
+            endsLength = 0;
+            charLength = len;
+            // reversed and lower cased except for the last char of the word, as in the original
+            reversed = ArrayUtil.grow(reversed, len);
+            reverse(word, offset, len, reversed);
+            for (int i = len; --i > 0; ) {
+                // see https://issues.apache.org/jira/browse/COLLECTIONS-294
+                reversed[i] = Character.toLowerCase(Character.toUpperCase(reversed[i]));
+            }
+            chars = ArrayUtil.grow(chars, len);
+            reverse(reversed, 0, len, chars);
+            codePoints = ArrayUtil.grow(codePoints, len);
+            positions = ArrayUtil.grow(positions, len + 1);
+            length = 0;
+            for (int i = 0; i < len; ) {
+                int codePoint = Character.codePointAt(reversed, i, len);
+                positions[length] = i;
+                codePoints[length++] = codePoint;
+                i += Character.charCount(codePoint);
+            }
+            positions[length] = len;
+            maxPaths = ArrayUtil.grow(maxPaths, length + 1);
+            Arrays.fill(maxPaths, 0, length + 1, Integer.MAX_VALUE);
+            wordStarts = ArrayUtil.grow(wordStarts, length + 1);
+            wordCounts = ArrayUtil.grow(wordCounts, length + 1);
+            Arrays.fill(wordCounts, 0, length + 1, -1);
+            glueStarts = ArrayUtil.grow(glueStarts, length + 1);
+            glueCounts = ArrayUtil.grow(glueCounts, length + 1);
+            Arrays.fill(glueCounts, 0, length + 1, -1);
+        }
+
+        /**
+         * Return the parts as an array of the number of parts, the number of interpretations, the starts and the
+         * ends of the parts, and the ends of the interpretations.
+         */
+        private int[] parts() {
+            int[] parts = new int[2 + 2 * count + alternatives];
+            parts[0] = count;
+            parts[1] = alternatives;
+            System.arraycopy(starts, 0, parts, 2, count);
+            System.arraycopy(partEnds, 0, parts, 2 + count, count);
+            System.arraycopy(alternativeEnds, 0, parts, 2 + 2 * count, alternatives);
+            return parts;
+        }
+
+        private void restore(int[] parts) {
+            count = parts[0];
+            alternatives = parts[1];
+            starts = ArrayUtil.grow(starts, count);
+            partEnds = ArrayUtil.grow(partEnds, count);
+            alternativeEnds = ArrayUtil.grow(alternativeEnds, alternatives);
+            System.arraycopy(parts, 2, starts, 0, count);
+            System.arraycopy(parts, 2 + count, partEnds, 0, count);
+            System.arraycopy(parts, 2 + 2 * count, alternativeEnds, 0, alternatives);
+        }
+
+        private void addEnd(int end) {
+            ends = ArrayUtil.grow(ends, endsLength + 1);
+            ends[endsLength++] = end;
+        }
+
+        /**
+         * Push a frame, whose index is the number of words, which are visited from the longest,
+         * or -1 for the glue morphemes, which are visited from the shortest.
+         */
+        private void pushFrame(int type, int offset, int index) {
+            frameTypes = ArrayUtil.grow(frameTypes, depth + 1);
+            frameOffsets = ArrayUtil.grow(frameOffsets, depth + 1);
+            frameIndexes = ArrayUtil.grow(frameIndexes, depth + 1);
+            framePhases = ArrayUtil.grow(framePhases, depth + 1);
+            frameTypes[depth] = type;
+            frameOffsets[depth] = offset;
+            frameIndexes[depth] = index;
+            framePhases[depth] = 0;
+            depth++;
+        }
+
+        private void pushChunk(int start, int end, int type) {
+            chunkStarts = ArrayUtil.grow(chunkStarts, chunks + 1);
+            chunkEnds = ArrayUtil.grow(chunkEnds, chunks + 1);
+            chunkTypes = ArrayUtil.grow(chunkTypes, chunks + 1);
+            chunkStarts[chunks] = start;
+            chunkEnds[chunks] = end;
+            chunkTypes[chunks] = type;
+            chunks++;
+        }
+
+        /**
+         * Add the words of the chunks as an interpretation, from the last chunk, which is the first in the word.
+         */
+        private void addAlternative() {
+            for (int k = chunks - 1; k >= 0; k--) {
+                if (chunkTypes[k] == WORD) {
+                    starts = ArrayUtil.grow(starts, count + 1);
+                    partEnds = ArrayUtil.grow(partEnds, count + 1);
+                    starts[count] = charLength - positions[chunkEnds[k]];
+                    partEnds[count] = charLength - positions[chunkStarts[k]];
+                    count++;
+                }
+            }
+            alternativeEnds = ArrayUtil.grow(alternativeEnds, alternatives + 1);
+            alternativeEnds[alternatives++] = count;
         }
     }
 }
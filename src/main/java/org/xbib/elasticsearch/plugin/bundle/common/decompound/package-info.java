@@ -0,0 +1,4 @@
+/**
+ * Classes shared by the decompounders.
+ */
+package org.xbib.elasticsearch.plugin.bundle.common.decompound;
@@ -0,0 +1,43 @@
+package org.xbib.elasticsearch.plugin.bundle.common.decompound.patricia;
+
+import org.apache.lucene.util.CharsRefBuilder;
+
+/**
+ * A classifier of words, by the classes of the nearest word in a patricia trie.
+ */
+public interface Classifier {
+
+    /**
+     * Classify a word.
+     *
+     * @param word the word
+     * @return the class voted for, or "undecided"
+     */
+    String classify(String word);
+
+    /**
+     * Classify a word in a slice of a char array.
+     *
+     * @param word the chars of the word
+     * @param offset the offset of the word
+     * @param length the length of the word
+     * @param result the buffer for the class voted for
+     * @return true if a class has been voted for, false if undecided
+     */
+    default boolean classify(char[] word, int offset, int length, CharsRefBuilder result) {
+        String s = classify(new String(word, offset, length));
+        result.clear();
+        if ("undecided".equals(s)) {
+            return false;
+        }
+        result.copyChars(s.toCharArray(), 0, s.length());
+        return true;
+    }
+
+    /**
+     * Return the size of the trie.
+     *
+     * @return the size of the trie in bytes
+     */
+    long sizeInBytes();
+}
@@ -18,7 +18,7 @@ import java.util.StringTokenizer;
 /**
  * Compact patricia trie.
  */
-public class CompactPatriciaTrie {
+public class CompactPatriciaTrie implements Classifier {
 
     private static final int EXACT = 0;
 
@@ -105,6 +105,7 @@ public class CompactPatriciaTrie {
         insert(k);
     }
 
+    @Override
     public String classify(String word) {
         if (root == null) {
             return classifyString(word);
@@ -241,7 +242,7 @@ public class CompactPatriciaTrie {
         this.reverse = b;
     }
 
-    private String reverse(String s) {
+    static String reverse(String s) {
         char[] ret = new char[s.length()];
         StringBuilder torev = new StringBuilder(s);
         for (int i = torev.length() - 1, j = 0; i >= 0; i--, j++) {
@@ -251,36 +252,15 @@ public class CompactPatriciaTrie {
     }
 
     private String voted(List<String> classes) {
+        return voted(classes, thresh);
+    }
+
+    static String voted(List<String> classes, double thresh) {
         if (classes == null) {
             return null;
         }
-        int sum = 0;
-        int maxval = 0;
-        int actval;
-        String maxclass = "undecided";
-        String actclass;
-        for (String cl : classes) {
-            StringTokenizer st = new StringTokenizer(cl, "=");
-            actclass = st.nextToken();
-            if (st.hasMoreTokens()) {
-                actval = Integer.valueOf(st.nextToken());
-            } else {
-                actval = 0;
-            }
-            sum += actval;
-            if (actval > maxval) {
-                maxval = actval;
-                maxclass = actclass;
-            }
-            if ((actval == maxval) && !actclass.equals(maxclass) && !actclass.isEmpty()) {
-                maxclass = maxclass + ";" + actclass;
-            }
-        }
-        if (((double) maxval / (double) sum) >= this.thresh) {
-            return maxclass;
-        } else {
-            return "undecided";
-        }
+        Vote vote = new Vote(classes);
+        return vote.isDecided(thresh) ? vote.getMaxClass() : "undecided";
     }
 
     private List<String> add(List<String> one, List<String> two) {
@@ -634,7 +614,7 @@ public class CompactPatriciaTrie {
         return k;
     }
 
-    private List<String> getClassesAt(int pos) {
+    List<String> getClassesAt(int pos) {
         int i = pos;
         List<String> retClasses = new ArrayList<>();
         i++;
@@ -995,6 +975,43 @@ public class CompactPatriciaTrie {
         return ret;
     }
 
+    /**
+     * Return the size of the string tree. A trie which is not in string form is not counted.
+     *
+     * @return the size of the string tree in bytes
+     */
+    @Override
+    public long sizeInBytes() {
+        return stringtree != null ? (long) stringtree.length * Character.BYTES : 0L;
+    }
+
+    char[] getStringTree() {
+        if (stringtree == null) {
+            stringtree = getStringTree(root);
+        }
+        return stringtree;
+    }
+
+    int getStartChar() {
+        return startchar;
+    }
+
+    int getEndChar() {
+        return endchar;
+    }
+
+    char getAttentionNumber() {
+        return attentionNumber;
+    }
+
+    char getAttentionNode() {
+        return attentionNode;
+    }
+
+    char getEndOfWordChar() {
+        return endOfWordChar;
+    }
+
     @SuppressForbidden(reason = "we load CPT from file in a format using serialization, yes")
     public void load(InputStream in) throws IOException {
         try (ObjectInputStream ois = new ObjectInputStream(in)) {
@@ -1044,4 +1061,66 @@ public class CompactPatriciaTrie {
         }
     }
 
+    /**
+     * The vote of the classes of a node. The class voted for does not depend on the threshold.
+     */
+    static final class Vote {
+
+        private final String maxclass;
+
+        private final int maxval;
+
+        private final int sum;
+
+        Vote(List<String> classes) {
+            int sum = 0;
+            int maxval = 0;
+            int actval;
+            String maxclass = "undecided";
+            String actclass;
+            for (String cl : classes) {
+                StringTokenizer st = new StringTokenizer(cl, "=");
+                if (!st.hasMoreTokens()) {
+                    continue;
+                }
+                actclass = st.nextToken();
+                if (st.hasMoreTokens()) {
+                    actval = Integer.valueOf(st.nextToken());
+                } else {
+                    actval = 0;
+                }
+                sum += actval;
+                if (actval > maxval) {
+                    maxval = actval;
+                    maxclass = actclass;
+                }
+                if ((actval == maxval) && !actclass.equals(maxclass) && !actclass.isEmpty()) {
+                    maxclass = maxclass + ";" + actclass;
+                }
+            }
+            this.maxclass = maxclass;
+            this.maxval = maxval;
+            this.sum = sum;
+        }
+
+        String getMaxClass() {
+            return maxclass;
+        }
+
+        int getMaxValue() {
+            return maxval;
+        }
+
+        int getSum() {
+            return sum;
+        }
+
+        boolean isDecided(double thresh) {
+            return isDecided(maxval, sum, thresh);
+        }
+
+        static boolean isDecided(int maxval, int sum, double thresh) {
+            return ((double) maxval / (double) sum) >= thresh;
+        }
+    }
 }
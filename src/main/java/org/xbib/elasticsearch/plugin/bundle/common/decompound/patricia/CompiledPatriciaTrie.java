@@ -0,0 +1,578 @@
+package org.xbib.elasticsearch.plugin.bundle.common.decompound.patricia;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.CharsRefBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A compact patricia trie compiled into a binary file, which is classified directly from a memory mapped
+ * buffer. This avoids deserializing the trie into the heap.
+ *
+ * The file format is big endian:
+ * <pre>
+ * int magic, int version
+ * int start char, int end char, int attention number, int attention node, int end of word char, int offset
+ * byte reverse, byte ignore case, short padding
+ * int length, chars tree[length], short padding if length is odd
+ * int node count, ints node positions[node count], ints class ids[node count],
+ * ints max votes[node count], ints vote sums[node count]
+ * int class count, ints class ends[class count], int class chars length, chars classes[class chars length]
+ * </pre>
+ *
+ * The tree is the string tree of {@link CompactPatriciaTrie}, starting at a four byte aligned position.
+ * The classes of the nodes are voted for when the trie is compiled. For each node, ordered by position, the id of
+ * the class voted for, the votes for that class, and the sum of the votes are stored, so a lookup only compares
+ * the share of the votes with the threshold. The distinct classes voted for are stored once, by id.
+ * The buffer is only read by absolute positions, so one trie can be used by many threads.
+ *
+ * The {@link #main(String[])} method compiles all trees of a directory at build time.
+ */
+public class CompiledPatriciaTrie implements Classifier {
+
+    public static final String TREE_SUFFIX = ".tree";
+
+    public static final String COMPILED_SUFFIX = ".cpt";
+
+    private static final int MAGIC = 0x43505442;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 40;
+
+    private static final String UNDECIDED = "undecided";
+
+    private final CharBuffer tree;
+
+    private final IntBuffer positions;
+
+    private final IntBuffer classIds;
+
+    private final IntBuffer maxvals;
+
+    private final IntBuffer sums;
+
+    private final IntBuffer classEnds;
+
+    private final CharBuffer classChars;
+
+    private final long sizeInBytes;
+
+    private final int startchar;
+
+    private final int endchar;
+
+    private final char attentionNumber;
+
+    private final char attentionNode;
+
+    private final char endOfWordChar;
+
+    private final int offset;
+
+    private final int[] powers;
+
+    private final boolean reverse;
+
+    private final boolean ignorecase;
+
+    private final double thresh;
+
+    private CompiledPatriciaTrie(CharBuffer tree, IntBuffer positions, IntBuffer classIds, IntBuffer maxvals,
+                                 IntBuffer sums, IntBuffer classEnds, CharBuffer classChars, long sizeInBytes,
+                                 int startchar, int endchar, char attentionNumber,
+                                 char attentionNode, char endOfWordChar, int offset,
+                                 boolean reverse, boolean ignorecase, double thresh) {
+        this.tree = tree;
+        this.positions = positions;
+        this.classIds = classIds;
+        this.maxvals = maxvals;
+        this.sums = sums;
+        this.classEnds = classEnds;
+        this.classChars = classChars;
+        this.sizeInBytes = sizeInBytes;
+        this.startchar = startchar;
+        this.endchar = endchar;
+        this.attentionNumber = attentionNumber;
+        this.attentionNode = attentionNode;
+        this.endOfWordChar = endOfWordChar;
+        this.offset = offset;
+        this.reverse = reverse;
+        this.ignorecase = ignorecase;
+        this.thresh = thresh;
+        // the same floating point arithmetic as in CompactPatriciaTrie, which wrote the positions
+        int basis = endchar - startchar + 1;
+        this.powers = new int[offset];
+        for (int i = 0; i < offset; i++) {
+            powers[i] = (int) Math.exp((offset - i - 1) * Math.log(basis));
+        }
+    }
+
+    /**
+     * Return the compiled file name of a tree file name.
+     *
+     * @param name the tree file name
+     * @return the compiled file name
+     */
+    public static String compiledName(String name) {
+        return name.endsWith(TREE_SUFFIX) ?
+                name.substring(0, name.length() - TREE_SUFFIX.length()) + COMPILED_SUFFIX : name + COMPILED_SUFFIX;
+    }
+
+    /**
+     * Load a compiled trie. Files are memory mapped, other resources are read in one piece.
+     *
+     * @param url the URL of the compiled trie
+     * @return the compiled trie
+     * @throws IOException if the compiled trie can not be read
+     */
+    public static CompiledPatriciaTrie load(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return load(Paths.get(url.toURI()));
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+        try (InputStream in = url.openStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            return read(ByteBuffer.wrap(out.toByteArray()));
+        }
+    }
+
+    /**
+     * Load a compiled trie from a memory mapped file.
+     *
+     * @param path the path of the compiled trie
+     * @return the compiled trie
+     * @throws IOException if the compiled trie can not be read
+     */
+    public static CompiledPatriciaTrie load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static CompiledPatriciaTrie read(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("not a compiled patricia trie file");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported compiled patricia trie version " + version);
+        }
+        int sc = buffer.getInt();
+        int ec = buffer.getInt();
+        char az = (char) buffer.getInt();
+        char ak = (char) buffer.getInt();
+        char eow = (char) buffer.getInt();
+        int offset = buffer.getInt();
+        boolean rv = buffer.get() != 0;
+        boolean ic = buffer.get() != 0;
+        buffer.getShort();
+        int length = buffer.getInt();
+        CharBuffer tree = chars(buffer, length);
+        if (length % 2 != 0) {
+            buffer.getShort();
+        }
+        int nodeCount = buffer.getInt();
+        IntBuffer positions = ints(buffer, nodeCount);
+        IntBuffer classIds = ints(buffer, nodeCount);
+        IntBuffer maxvals = ints(buffer, nodeCount);
+        IntBuffer sums = ints(buffer, nodeCount);
+        int classCount = buffer.getInt();
+        IntBuffer classEnds = ints(buffer, classCount);
+        CharBuffer classChars = chars(buffer, buffer.getInt());
+        return new CompiledPatriciaTrie(tree, positions, classIds, maxvals, sums, classEnds, classChars,
+                buffer.position() - start, sc, ec, az, ak, eow, offset, rv, ic, 0.0d);
+    }
+
+    private static CharBuffer chars(ByteBuffer buffer, int length) throws IOException {
+        if (length < 0 || buffer.remaining() < length * Character.BYTES) {
+            throw new IOException("truncated compiled patricia trie");
+        }
+        CharBuffer chars = buffer.asCharBuffer();
+        chars.limit(length);
+        buffer.position(buffer.position() + length * Character.BYTES);
+        return chars.slice();
+    }
+
+    private static IntBuffer ints(ByteBuffer buffer, int length) throws IOException {
+        if (length < 0 || buffer.remaining() < length * Integer.BYTES) {
+            throw new IOException("truncated compiled patricia trie");
+        }
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.limit(length);
+        buffer.position(buffer.position() + length * Integer.BYTES);
+        return ints.slice();
+    }
+
+    /**
+     * Write a compact patricia trie in the compiled format.
+     *
+     * @param trie the compact patricia trie
+     * @param outputStream the output stream
+     * @throws IOException if the trie can not be written
+     */
+    public static void compile(CompactPatriciaTrie trie, OutputStream outputStream) throws IOException {
+        char[] stringtree = trie.getStringTree();
+        // the nodes start with the attention node char, which is not used in labels, positions, or classes
+        int[] positions = new int[1024];
+        int[] classIds = new int[1024];
+        int[] maxvals = new int[1024];
+        int[] sums = new int[1024];
+        int nodeCount = 0;
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> classes = new ArrayList<>();
+        for (int i = 0; i + 1 < stringtree.length; i++) {
+            if (stringtree[i] == trie.getAttentionNode() && stringtree[i + 1] == '[') {
+                CompactPatriciaTrie.Vote vote = new CompactPatriciaTrie.Vote(trie.getClassesAt(i));
+                Integer id = ids.get(vote.getMaxClass());
+                if (id == null) {
+                    id = classes.size();
+                    ids.put(vote.getMaxClass(), id);
+                    classes.add(vote.getMaxClass());
+                }
+                positions = ArrayUtil.grow(positions, nodeCount + 1);
+                classIds = ArrayUtil.grow(classIds, nodeCount + 1);
+                maxvals = ArrayUtil.grow(maxvals, nodeCount + 1);
+                sums = ArrayUtil.grow(sums, nodeCount + 1);
+                positions[nodeCount] = i;
+                classIds[nodeCount] = id;
+                maxvals[nodeCount] = vote.getMaxValue();
+                sums[nodeCount] = vote.getSum();
+                nodeCount++;
+            }
+        }
+        int basis = trie.getEndChar() - trie.getStartChar() + 1;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(trie.getStartChar());
+        out.writeInt(trie.getEndChar());
+        out.writeInt(trie.getAttentionNumber());
+        out.writeInt(trie.getAttentionNode());
+        out.writeInt(trie.getEndOfWordChar());
+        out.writeInt((int) Math.ceil(Math.log(Integer.MAX_VALUE) / Math.log(basis)));
+        out.writeByte(trie.getReverse() ? 1 : 0);
+        out.writeByte(trie.getIgnoreCase() ? 1 : 0);
+        out.writeShort(0);
+        out.writeInt(stringtree.length);
+        if (out.size() != HEADER_SIZE) {
+            throw new IllegalStateException("header size " + out.size());
+        }
+        for (char c : stringtree) {
+            out.writeChar(c);
+        }
+        if (stringtree.length % 2 != 0) {
+            out.writeShort(0);
+        }
+        out.writeInt(nodeCount);
+        for (int[] array : new int[][] { positions, classIds, maxvals, sums }) {
+            for (int i = 0; i < nodeCount; i++) {
+                out.writeInt(array[i]);
+            }
+        }
+        out.writeInt(classes.size());
+        int end = 0;
+        for (String cl : classes) {
+            end += cl.length();
+            out.writeInt(end);
+        }
+        out.writeInt(end);
+        for (String cl : classes) {
+            out.writeChars(cl);
+        }
+        out.flush();
+    }
+
+    /**
+     * Compile a compact patricia trie in memory, with the classification settings of the compact trie.
+     *
+     * @param trie the compact patricia trie
+     * @return the compiled trie
+     */
+    public static CompiledPatriciaTrie of(CompactPatriciaTrie trie) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            compile(trie, out);
+            return read(ByteBuffer.wrap(out.toByteArray())).with(trie.getIgnoreCase(), trie.getThreshold());
+        } catch (IOException e) {
+            // can't happen, we write to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return a trie which shares the buffer of this trie, with other classification settings.
+     *
+     * @param ignoreCase true if words are lower cased before classification
+     * @param threshold the minimum share of the votes for a class
+     * @return the trie
+     */
+    public CompiledPatriciaTrie with(boolean ignoreCase, double threshold) {
+        return new CompiledPatriciaTrie(tree, positions, classIds, maxvals, sums, classEnds, classChars, sizeInBytes,
+                startchar, endchar, attentionNumber, attentionNode, endOfWordChar,
+                offset, reverse, ignoreCase, threshold);
+    }
+
+    public boolean getIgnoreCase() {
+        return ignorecase;
+    }
+
+    public double getThreshold() {
+        return thresh;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Return the number of distinct classes voted for.
+     *
+     * @return the number of classes
+     */
+    public int getClassCount() {
+        return classEnds.limit();
+    }
+
+    /**
+     * Return a class voted for.
+     *
+     * @param id the class id
+     * @return the class
+     */
+    public String getClass(int id) {
+        int start = id > 0 ? classEnds.get(id - 1) : 0;
+        char[] chars = new char[classEnds.get(id) - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = classChars.get(start + i);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String classify(String s) {
+        char[] key = stringKey(s);
+        int id = classifyKey(key, key.length);
+        return id >= 0 ? getClass(id) : UNDECIDED;
+    }
+
+    /**
+     * Return the id of the class of a word in a slice of a char array.
+     *
+     * @param word the chars of the word
+     * @param offset the offset of the word
+     * @param length the length of the word
+     * @param key the buffer for the key of the word
+     * @return the class id, or -1 if undecided
+     */
+    public int classId(char[] word, int offset, int length, CharsRefBuilder key) {
+        if (ignorecase && !hasSimpleLowerCase(word, offset, length)) {
+            char[] k = stringKey(new String(word, offset, length));
+            return classifyKey(k, k.length);
+        }
+        key.grow(length + 1);
+        return classifyKey(key.chars(), key(word, offset, length, key.chars()));
+    }
+
+    /**
+     * Classify a word in a slice of a char array. Words are lower cased char by char, except for the few chars
+     * which {@link String#toLowerCase(Locale)} maps depending on the context or to several chars, so the
+     * result is the same as for the word as string. Only those words allocate memory.
+     *
+     * @param word the chars of the word
+     * @param offset the offset of the word
+     * @param length the length of the word
+     * @param result the buffer for the class voted for, also used for the key of the word
+     * @return true if a class has been voted for, false if undecided
+     */
+    @Override
+    public boolean classify(char[] word, int offset, int length, CharsRefBuilder result) {
+        int id = classId(word, offset, length, result);
+        result.clear();
+        if (id < 0) {
+            return false;
+        }
+        int start = id > 0 ? classEnds.get(id - 1) : 0;
+        int end = classEnds.get(id);
+        for (int i = start; i < end; i++) {
+            result.append(classChars.get(i));
+        }
+        return true;
+    }
+
+    private int key(char[] word, int offset, int length, char[] key) {
+        for (int i = 0; i < length; i++) {
+            char c = word[offset + i];
+            key[reverse ? length - 1 - i : i] = ignorecase ? Character.toLowerCase(c) : c;
+        }
+        key[length] = endOfWordChar;
+        return length + 1;
+    }
+
+    private char[] stringKey(String s) {
+        String word = s;
+        if (ignorecase) {
+            word = word.toLowerCase(Locale.ROOT);
+        }
+        if (reverse) {
+            word = CompactPatriciaTrie.reverse(word);
+        }
+        return (word + endOfWordChar).toCharArray();
+    }
+
+    private static boolean hasSimpleLowerCase(char[] word, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            char c = word[i];
+            // dotted capital I, capital sigma, and surrogates
+            if (c == '\u0130' || c == '\u03a3' || Character.isSurrogate(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the class id of the nearest node of a key, if the share of the votes reaches the threshold.
+     */
+    private int classifyKey(char[] key, int length) {
+        int position = getNearest(key, length);
+        int low = 0;
+        int high = positions.limit() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int p = positions.get(mid);
+            if (p < position) {
+                low = mid + 1;
+            } else if (p > position) {
+                high = mid - 1;
+            } else {
+                return CompactPatriciaTrie.Vote.isDecided(maxvals.get(mid), sums.get(mid), thresh) ?
+                        classIds.get(mid) : -1;
+            }
+        }
+        throw new IllegalStateException("no node at position " + position);
+    }
+
+    /**
+     * Return the position of the nearest node, as in the lower mode of {@link CompactPatriciaTrie}.
+     */
+    private int getNearest(char[] word, int wordLength) {
+        int length = tree.limit();
+        int i = 0;
+        while (tree.get(i) != attentionNode) {
+            i++;
+        }
+        int pos = 0;
+        int classes;
+        while (true) {
+            i += 2;
+            classes = i;
+            while (tree.get(i) != ']') {
+                i++;
+            }
+            if (pos == wordLength || i + 1 == length) {
+                break;
+            }
+            i++;
+            char first = word[pos];
+            while (tree.get(i) != first && tree.get(i) != attentionNode) {
+                while (tree.get(i) != attentionNumber) {
+                    i++;
+                }
+                i += 1 + offset;
+            }
+            if (tree.get(i) == attentionNode) {
+                break;
+            }
+            int label = i;
+            while (tree.get(i) != attentionNumber) {
+                i++;
+            }
+            int labelLength = i - label;
+            i++;
+            int child = readPosition(i);
+            if (labelLength > wordLength - pos || !matches(word, pos, label, labelLength)) {
+                classes = child + 2;
+                break;
+            }
+            pos += labelLength;
+            i = child;
+        }
+        return classes - 2;
+    }
+
+    private boolean matches(char[] word, int pos, int label, int length) {
+        for (int j = 0; j < length; j++) {
+            if (word[pos + j] != tree.get(label + j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readPosition(int i) {
+        int position = 0;
+        for (int j = 0; j < offset; j++) {
+            position += (tree.get(i + j) - startchar) * powers[j];
+        }
+        return position;
+    }
+
+    /**
+     * Compile the trees of a directory into the compiled files of an output directory.
+     *
+     * @param args the tree directory and the output directory
+     * @throws IOException if the trees can not be read or the output can not be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("usage: CompiledPatriciaTrie <tree directory> <output directory>");
+        }
+        Path input = Paths.get(args[0]);
+        Path output = Paths.get(args[1]);
+        Files.createDirectories(output);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(input, "*" + TREE_SUFFIX)) {
+            for (Path path : stream) {
+                CompactPatriciaTrie trie = new CompactPatriciaTrie();
+                try (InputStream in = Files.newInputStream(path)) {
+                    trie.load(in);
+                }
+                Path target = output.resolve(compiledName(path.getFileName().toString()));
+                try (OutputStream out = Files.newOutputStream(target)) {
+                    compile(trie, out);
+                }
+            }
+        }
+    }
+}
@@ -1,207 +1,455 @@
 package org.xbib.elasticsearch.plugin.bundle.common.decompound.patricia;
 
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.CharsRefBuilder;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Map;
 
 /**
  * Decompounder.
+ *
+ * The tries are compiled, so the classes of the nodes are voted for in advance. The classes voted for are
+ * parsed once into tables of cut positions and suffix ids, so a lookup only walks the trie and the tables.
  */
 public class Decompounder {
 
-    private CompactPatriciaTrie kompvvTree;
-    private CompactPatriciaTrie kompvhTree;
-    private CompactPatriciaTrie grfTree;
+    private final CompiledPatriciaTrie kompvvTree;
+    private final CompiledPatriciaTrie kompvhTree;
+    private final CompiledPatriciaTrie grfTree;
+
+    private final Classes kompvvClasses;
+    private final Classes kompvhClasses;
+    private final Classes grfClasses;
+
+    private final char[][] suffixes;
 
     public Decompounder(InputStream kompvv, InputStream kompvh, InputStream gfred, double threshold)
             throws IOException {
-        kompvvTree = new CompactPatriciaTrie();
-        kompvvTree.load(kompvv);
-        kompvvTree.setIgnoreCase(true);
-        kompvvTree.setThreshold(threshold);
-        kompvhTree = new CompactPatriciaTrie();
-        kompvhTree.load(kompvh);
-        kompvhTree.setIgnoreCase(true);
-        kompvhTree.setThreshold(threshold);
-        grfTree = new CompactPatriciaTrie();
-        grfTree.load(gfred);
-        grfTree.setIgnoreCase(true);
-        grfTree.setThreshold(threshold); // previous value = 0.46
+        this(CompiledPatriciaTrie.of(load(kompvv, threshold)), CompiledPatriciaTrie.of(load(kompvh, threshold)),
+                CompiledPatriciaTrie.of(load(gfred, threshold))); // previous value = 0.46
+    }
+
+    /**
+     * Create a decompounder from compiled tries, which share their buffers with the given tries.
+     *
+     * @param kompvv the forward trie
+     * @param kompvh the backward trie
+     * @param gfred the base form reduction trie
+     * @param threshold the threshold
+     */
+    public Decompounder(CompiledPatriciaTrie kompvv, CompiledPatriciaTrie kompvh, CompiledPatriciaTrie gfred,
+                        double threshold) {
+        this(kompvv.with(true, threshold), kompvh.with(true, threshold), gfred.with(true, threshold));
     }
 
     public Decompounder(CompactPatriciaTrie kompvv, CompactPatriciaTrie kompvh, CompactPatriciaTrie gfred, double threshold) {
+        this(CompiledPatriciaTrie.of(kompvv), CompiledPatriciaTrie.of(kompvh), CompiledPatriciaTrie.of(gfred).with(gfred.getIgnoreCase(), threshold));
+    }
+
+    private Decompounder(CompiledPatriciaTrie kompvv, CompiledPatriciaTrie kompvh, CompiledPatriciaTrie gfred) {
         kompvvTree = kompvv;
         kompvhTree = kompvh;
         grfTree = gfred;
-        grfTree.setThreshold(threshold); // previous value = 0.46
+        Map<String, Integer> suffixIds = new HashMap<>();
+        List<char[]> suffixList = new ArrayList<>();
+        kompvvClasses = new Classes(kompvv, false, suffixIds, suffixList);
+        kompvhClasses = new Classes(kompvh, false, suffixIds, suffixList);
+        grfClasses = new Classes(gfred, true, suffixIds, suffixList);
+        suffixes = suffixList.toArray(new char[suffixList.size()][]);
     }
 
-    private String reverse(String torev) {
-        StringBuilder ret = new StringBuilder();
-        for (int i = torev.length(); i > 0; i--) {
-            ret.append(torev.substring(i - 1, i));
-        }
-        return ret.toString();
+    private static CompactPatriciaTrie load(InputStream in, double threshold) throws IOException {
+        CompactPatriciaTrie trie = new CompactPatriciaTrie();
+        trie.load(in);
+        trie.setIgnoreCase(true);
+        trie.setThreshold(threshold);
+        return trie;
     }
 
-    public List<String> decompound(String string) {
-        String word = string;
-        word = reduceToBaseForm(word);
-        List<String> list = new ArrayList<>();
-        String classvv = kompvvTree.classify(word + "<");
-        String classvh = kompvhTree.classify(reverse(word) + "<");
-        StringBuilder numStrvv = new StringBuilder();
-        StringBuilder numStrvh = new StringBuilder();
-        StringBuilder suffixvv = new StringBuilder();
-        StringBuilder suffixvh = new StringBuilder();
-        String vvpart1 = "";
-        String vhpart1 = "";
-        String vvpart2 = "";
-        String vhpart2 = "";
-        int numvv = 0;
-        int numvh = 0;
-        boolean vhOk = true;
-        boolean vvOk = true;
-        if ("undecided".equals(classvv)) {
-            vvOk = false;
-        }
-        if ("undecided".equals(classvh)) {
-            vhOk = false;
-        }
-        if (vvOk) {
-            for (int i = 0; i < classvv.length(); i++) {
-                char c = classvv.charAt(i);
-                if ((c <= '9') && (c >= '0')) {
-                    numStrvv.append(c);
-                } else {
-                    suffixvv.append(c);
-                }
-            }
-        }
-        if (vhOk) {
-            for (int i = 0; i < classvh.length(); i++) {
-                char c = classvh.charAt(i);
-                if ((c <= '9') && (c >= '0')) {
-                    numStrvh.append(c);
-                } else {
-                    suffixvh.append(c);
-                }
-            }
-        }
+    /**
+     * Return the size of the tries.
+     *
+     * @return the size of the tries in bytes
+     */
+    public long sizeInBytes() {
+        return kompvvTree.sizeInBytes() + kompvhTree.sizeInBytes() + grfTree.sizeInBytes();
+    }
 
-        if (vvOk) {
-            numvv = Integer.parseInt(numStrvv.toString());
-        }
-        if (vhOk) {
-            numvh = Integer.parseInt(numStrvh.toString());
+    /**
+     * Decompound a word.
+     *
+     * @param string the word
+     * @return the parts of the word
+     */
+    public List<String> decompound(String string) {
+        Context context = new Context();
+        int count = decompound(string.toCharArray(), 0, string.length(), context);
+        List<String> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(context.toString(i));
         }
+        return list;
+    }
 
-        if (vvOk && numvv >= word.length()) {
-            vvOk = false;
-        }
+    /**
+     * Decompound a word in a slice of a char array into the parts of a context. The parts are not always
+     * slices of the word, because the word and its parts are reduced to their base forms. Once the buffers
+     * of the context have grown to the size of the words, no memory is allocated.
+     *
+     * @param word the chars of the word
+     * @param offset the offset of the word
+     * @param length the length of the word
+     * @param context the context which receives the parts, and holds the buffers of the decompounder
+     * @return the number of parts
+     */
+    public int decompound(char[] word, int offset, int length, Context context) {
+        context.clear();
+        int start = context.push(word, offset, length);
+        decompound(context, start, length);
+        return context.count;
+    }
 
-        if (vhOk && numvh >= word.length()) {
-            vhOk = false;
-        }
+    /**
+     * Reduce a word to its base form.
+     *
+     * @param word the word
+     * @return the base form
+     */
+    public String reduceToBaseForm(String word) {
+        Context context = new Context();
+        int start = context.push(word.toCharArray(), 0, word.length());
+        int length = reduceToBaseForm(context, start, word.length());
+        return new String(context.stack, start + word.length(), length);
+    }
 
+    private void decompound(Context context, int start, int length) {
+        int mark = context.top;
+        int partsMark = context.partsTop;
+        int w = context.top;
+        int len = reduceToBaseForm(context, start, length);
+        // forward classification of the word
+        context.clearKey();
+        context.appendKey(context.stack, w, len, false);
+        context.appendKey('<');
+        int vv = kompvvTree.classId(context.key, 0, context.keyLength, context.lookup);
+        // backward classification of the word
+        context.clearKey();
+        context.appendKey(context.stack, w, len, true);
+        context.appendKey('<');
+        int vh = kompvhTree.classId(context.key, 0, context.keyLength, context.lookup);
+        int numvv = vv >= 0 ? kompvvClasses.cut[vv] : -1;
+        int numvh = vh >= 0 ? kompvhClasses.cut[vh] : -1;
+        boolean vvOk = numvv >= 0 && numvv < len;
+        boolean vhOk = numvh >= 0 && numvh < len;
+        char[] chars = context.stack;
+        char[] suffixCharsvv = vvOk ? suffixes[kompvvClasses.suffix[vv]] : null;
+        char[] suffixCharsvh = vhOk ? suffixes[kompvhClasses.suffix[vh]] : null;
+        int suffixvv = vvOk ? suffixCharsvv.length : 0;
+        int suffixvh = vhOk ? suffixCharsvh.length : 0;
         if (vvOk) {
-            for (int i = 0; i < suffixvv.length(); i++) {
-                if (word.length() > (numvv + i)) {
-                    if (suffixvv.charAt(i) != word.charAt(numvv + i)) {
-                        vvOk = false;
-                    }
-                } else {
+            for (int i = 0; i < suffixvv; i++) {
+                if (len <= numvv + i || suffixCharsvv[i] != chars[w + numvv + i]) {
                     vvOk = false;
                 }
             }
         }
         if (vhOk) {
-            for (int i = 0; i < suffixvh.length(); i++) {
-                if (suffixvh.charAt(i) != word.charAt(numvh + 1 + i)) {
+            for (int i = 0; i < suffixvh; i++) {
+                // compares after the cut position, and marks the forward split as failed
+                if (len <= numvh + 1 + i || suffixCharsvh[i] != chars[w + numvh + 1 + i]) {
                     vvOk = false;
                 }
             }
         }
-        if (vvOk) {
-            vvpart1 = word.substring(0, numvv);
-            vvpart2 = word.substring(numvv + suffixvv.length(), word.length());
-            if (vvpart2.length() <= 3) {
-                vvOk = false;
-            }
+        int vvpart1 = numvv;
+        int vvpart2 = len - (numvv + suffixvv);
+        if (vvOk && vvpart2 <= 3) {
+            vvOk = false;
         }
-        if (vhOk) {
-            vhpart1 = word.substring(0, word.length() - numvh);
-            vhpart2 = word.substring(word.length() - (numvh + suffixvh.length()), word.length());
-            if (vhpart1.length() <= 3) {
-                vhOk = false;
-            }
+        int vhpart1 = len - numvh;
+        int vhpart2 = numvh + suffixvh;
+        if (vhOk && (vhpart1 <= 3 || vhpart2 > len)) {
+            vhOk = false;
         }
+        // the parts are prefixes or suffixes of the word, equal parts have equal lengths
         if (vvOk && vhOk) {
-            if ((vvpart1.equals(vhpart1)) || ((vhpart1.length() - vvpart1.length()) < 3)) {
-                list.add(vvpart1);
-                if (vhpart2.length() < vvpart2.length()) {
-                    list.add(vhpart2);
-                } else if (vhpart2.length() > vvpart2.length()) {
-                    list.add(vvpart2);
+            if (vvpart1 == vhpart1 || (vhpart1 - vvpart1) < 3) {
+                context.pushPart(w, vvpart1);
+                if (vhpart2 < vvpart2) {
+                    context.pushPart(w + len - vhpart2, vhpart2);
+                } else if (vhpart2 > vvpart2) {
+                    context.pushPart(w + len - vvpart2, vvpart2);
                 }
             } else {
-                list.add(vvpart1);
-                list.add(word.substring(vvpart1.length() + suffixvv.length(), word.length() - numvh));
-                list.add(vhpart2);
+                context.pushPart(w, vvpart1);
+                int middle = vvpart1 + suffixvv;
+                if (middle <= len - numvh) {
+                    context.pushPart(w + middle, len - numvh - middle);
+                }
+                context.pushPart(w + len - vhpart2, vhpart2);
             }
-            if (vvpart2.equals(vhpart2)) {
-                list.add(vvpart2);
+            if (vvpart2 == vhpart2) {
+                context.pushPart(w + len - vvpart2, vvpart2);
             }
-
-        } else if (vvOk && !vhOk) {
-            list.add(vvpart1);
-            list.add(vvpart2);
-        } else if (vhOk && !vvOk) {
-            list.add(vhpart1);
-            list.add(vhpart2);
+        } else if (vvOk) {
+            context.pushPart(w, vvpart1);
+            context.pushPart(w + len - vvpart2, vvpart2);
+        } else if (vhOk) {
+            context.pushPart(w, vhpart1);
+            context.pushPart(w + len - vhpart2, vhpart2);
         } else {
-            list.add(word);
-        }
-        List<String> retvec2 = new ArrayList<>();
-        List<String> l;
-        if (list.size() > 1) {
-            for (String s : list) {
-                l = decompound(s);
-                retvec2.addAll(l);
+            context.pushPart(w, len);
+        }
+        int parts = (context.partsTop - partsMark) / 2;
+        if (parts > 1) {
+            for (int i = 0; i < parts; i++) {
+                decompound(context, context.parts[partsMark + 2 * i], context.parts[partsMark + 2 * i + 1]);
             }
         } else {
-            retvec2 = list;
+            context.add(context.stack, context.parts[partsMark], context.parts[partsMark + 1]);
         }
-        return retvec2;
+        context.partsTop = partsMark;
+        context.top = mark;
     }
 
-    public String reduceToBaseForm(String word) {
-        String result = word;
-        String baseForm = grfTree.classify(reverse(word));
-        if (!"undecided".equals(baseForm)) {
-            StringTokenizer st = new StringTokenizer(baseForm, ",");
-            baseForm = st.nextToken();
-            StringBuilder numStr = new StringBuilder();
-            StringBuilder suffix = new StringBuilder();
-            for (int i = 0; i < baseForm.length(); i++) {
-                char c = baseForm.charAt(i);
-                if ((c <= '9') && (c >= '0')) {
-                    numStr.append(c);
-                } else {
-                    suffix.append(c);
-                }
+    /**
+     * Push the base form of the word at the given position to the top of the stack of the context.
+     *
+     * @return the length of the base form
+     */
+    private int reduceToBaseForm(Context context, int start, int length) {
+        context.clearKey();
+        context.appendKey(context.stack, start, length, true);
+        int id = grfTree.classId(context.key, 0, context.keyLength, context.lookup);
+        int cutpos = id >= 0 ? grfClasses.cut[id] : -1;
+        if (cutpos >= 0) {
+            if (cutpos > length) {
+                cutpos = length;
             }
-            if (numStr.length() > 0) {
-                int cutpos = Integer.parseInt(numStr.toString());
-                if (cutpos > result.length()) {
-                    cutpos = result.length();
+            int top = context.push(context.stack, start, length - cutpos);
+            char[] suffix = suffixes[grfClasses.suffix[id]];
+            context.push(suffix, 0, suffix.length);
+            return context.top - top;
+        }
+        context.push(context.stack, start, length);
+        return length;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * The cut positions and suffix ids of the classes of a trie, by class id. The cut position is made of the
+     * digits of a class, the suffix of the other chars. Base form classes are lists of alternatives, separated
+     * by commas, of which the first one is used. Classes without digits have no cut position.
+     */
+    private static final class Classes {
+
+        private final int[] cut;
+
+        private final int[] suffix;
+
+        private Classes(CompiledPatriciaTrie trie, boolean baseForm, Map<String, Integer> suffixIds,
+                        List<char[]> suffixList) {
+            int count = trie.getClassCount();
+            this.cut = new int[count];
+            this.suffix = new int[count];
+            for (int id = 0; id < count; id++) {
+                String cl = trie.getClass(id);
+                int begin = 0;
+                int end = cl.length();
+                if (baseForm) {
+                    while (begin < end && cl.charAt(begin) == ',') {
+                        begin++;
+                    }
+                    int comma = cl.indexOf(',', begin);
+                    if (comma >= 0) {
+                        end = comma;
+                    }
                 }
-                result = result.substring(0, result.length() - cutpos) + suffix;
+                long number = -1L;
+                StringBuilder sb = new StringBuilder();
+                for (int i = begin; i < end; i++) {
+                    char c = cl.charAt(i);
+                    if (isDigit(c)) {
+                        // numbers too large for a position, like the digits of tied classes, are not parsed further
+                        if (number <= Integer.MAX_VALUE) {
+                            number = (number < 0L ? 0L : number * 10L) + (c - '0');
+                        }
+                    } else {
+                        sb.append(c);
+                    }
+                }
+                cut[id] = number > Integer.MAX_VALUE ? -1 : (int) number;
+                String s = sb.toString();
+                Integer suffixId = suffixIds.get(s);
+                if (suffixId == null) {
+                    suffixId = suffixList.size();
+                    suffixIds.put(s, suffixId);
+                    suffixList.add(s.toCharArray());
+                }
+                suffix[id] = suffixId;
             }
         }
-        return result;
     }
 
+    /**
+     * The buffers of a decompounder, and the parts of a decompounded word.
+     *
+     * A context is not thread safe, each thread, for example each token filter, should use its own context.
+     * The parts are stored one after another in a char array, the end of each part in an int array.
+     */
+    public static final class Context {
+
+        private char[] stack = new char[64];
+
+        private int top;
+
+        private int[] parts = new int[16];
+
+        private int partsTop;
+
+        private char[] key = new char[64];
+
+        private int keyLength;
+
+        private final CharsRefBuilder lookup = new CharsRefBuilder();
+
+        private char[] chars = new char[64];
+
+        private int length;
+
+        private int[] ends = new int[8];
+
+        private int count;
+
+        /**
+         * Return the number of parts.
+         *
+         * @return the number of parts
+         */
+        public int count() {
+            return count;
+        }
+
+        /**
+         * Return the chars of all parts.
+         *
+         * @return the chars
+         */
+        public char[] chars() {
+            return chars;
+        }
+
+        /**
+         * Return the start of a part in the chars.
+         *
+         * @param i the index of the part
+         * @return the start of the part
+         */
+        public int start(int i) {
+            return i > 0 ? ends[i - 1] : 0;
+        }
+
+        /**
+         * Return the end of a part in the chars.
+         *
+         * @param i the index of the part
+         * @return the end of the part
+         */
+        public int end(int i) {
+            return ends[i];
+        }
+
+        /**
+         * Return a part as a string.
+         *
+         * @param i the index of the part
+         * @return the part
+         */
+        public String toString(int i) {
+            return new String(chars, start(i), end(i) - start(i));
+        }
+
+        /**
+         * Add a part.
+         *
+         * @param part the chars of the part
+         * @param offset the offset of the part
+         * @param len the length of the part
+         */
+        public void add(char[] part, int offset, int len) {
+            chars = ArrayUtil.grow(chars, length + len);
+            System.arraycopy(part, offset, chars, length, len);
+            length += len;
+            ends = ArrayUtil.grow(ends, count + 1);
+            ends[count++] = length;
+        }
+
+        /**
+         * Add a part.
+         *
+         * @param part the part
+         */
+        public void add(String part) {
+            chars = ArrayUtil.grow(chars, length + part.length());
+            part.getChars(0, part.length(), chars, length);
+            length += part.length();
+            ends = ArrayUtil.grow(ends, count + 1);
+            ends[count++] = length;
+        }
+
+        /**
+         * Remove all parts.
+         */
+        public void clear() {
+            length = 0;
+            count = 0;
+            top = 0;
+            partsTop = 0;
+        }
+
+        private int push(char[] word, int offset, int len) {
+            int start = top;
+            // if the word is on the stack, the chars are still valid in the old array after growing
+            stack = ArrayUtil.grow(stack, top + len);
+            System.arraycopy(word, offset, stack, top, len);
+            top += len;
+            return start;
+        }
+
+        private void push(char c) {
+            stack = ArrayUtil.grow(stack, top + 1);
+            stack[top++] = c;
+        }
+
+        private void pushPart(int start, int len) {
+            parts = ArrayUtil.grow(parts, partsTop + 2);
+            parts[partsTop++] = start;
+            parts[partsTop++] = len;
+        }
+
+        private void clearKey() {
+            keyLength = 0;
+        }
+
+        private void appendKey(char[] word, int offset, int len, boolean reverse) {
+            key = ArrayUtil.grow(key, keyLength + len);
+            for (int i = 0; i < len; i++) {
+                key[keyLength + i] = word[reverse ? offset + len - 1 - i : offset + i];
+            }
+            keyLength += len;
+        }
+
+        private void appendKey(char c) {
+            key = ArrayUtil.grow(key, keyLength + 1);
+            key[keyLength++] = c;
+        }
+    }
 }
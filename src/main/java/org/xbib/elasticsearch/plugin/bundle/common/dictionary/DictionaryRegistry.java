@@ -0,0 +1,539 @@
+package org.xbib.elasticsearch.plugin.bundle.common.dictionary;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.TinyLFUCache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * A node-wide registry of the immutable dictionaries of analysis components, like decompounders and
+ * lemmatization dictionaries. Components which are created with equal dictionary settings share one dictionary,
+ * so each dictionary is loaded only once per node, however many indices use it.
+ *
+ * Analysis components have no close hook, so the owners of a dictionary are tracked by weak references.
+ * A dictionary is released from the registry when none of its owners is reachable any more, that is,
+ * after the indices which used it have been closed or deleted.
+ *
+ * A dictionary can be reloaded while it is in use. The new version is loaded by the loader of the dictionary,
+ * while the analysis components keep using the current version, and is then published by a volatile
+ * reference in the {@link Handle} of the dictionary. Components which read the handle for each document
+ * switch to the new version atomically. The loaders must not refer to the owners, or the owners stay reachable.
+ */
+public class DictionaryRegistry {
+
+    private static final Logger logger = LogManager.getLogger(DictionaryRegistry.class.getName());
+
+    private final ConcurrentMap<Settings, Entry<?>> entries = new ConcurrentHashMap<>();
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    /**
+     * The references must be reachable until they are enqueued.
+     */
+    private final Set<OwnerReference> references = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Return the dictionary for the given settings, and load it if it is not in the registry.
+     *
+     * @param owner the owner of the dictionary, which keeps the dictionary in the registry while it is reachable
+     * @param key the settings which define the dictionary, including a type
+     * @param loader the loader of the dictionary
+     * @param sizeInBytes the function for the size of the dictionary
+     * @param <T> the dictionary type
+     * @return the dictionary
+     * @throws IOException if the dictionary can not be loaded
+     */
+    public <T> T acquire(Object owner, Settings key, Loader<T> loader, ToLongFunction<T> sizeInBytes)
+            throws IOException {
+        return acquireHandle(owner, key, loader, sizeInBytes).get();
+    }
+
+    /**
+     * Return the handle of the dictionary for the given settings, and load the dictionary if it is not in the
+     * registry. The handle always returns the current version of the dictionary.
+     *
+     * @param owner the owner of the dictionary, which keeps the dictionary in the registry while it is reachable
+     * @param key the settings which define the dictionary, including a type
+     * @param loader the loader of the dictionary, which is also used for reloading
+     * @param sizeInBytes the function for the size of the dictionary
+     * @param <T> the dictionary type
+     * @return the handle of the dictionary
+     * @throws IOException if the dictionary can not be loaded
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Handle<T> acquireHandle(Object owner, Settings key, Loader<T> loader, ToLongFunction<T> sizeInBytes)
+            throws IOException {
+        expunge();
+        Entry<?> entry;
+        try {
+            // the dictionary is loaded while the entry is locked, so concurrent callers wait for it
+            entry = entries.compute(key, (k, e) -> {
+                Entry<?> en = e;
+                if (en == null) {
+                    try {
+                        long t0 = System.nanoTime();
+                        T dictionary = loader.load();
+                        en = new Entry<>(dictionary, loader, sizeInBytes, (System.nanoTime() - t0) / 1000000L);
+                        logger.debug("loaded dictionary for {} in {} ms", k, en.loadMillis);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+                en.references++;
+                return en;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        references.add(new OwnerReference(owner, key, queue, entry));
+        return (Handle<T>) entry;
+    }
+
+    /**
+     * Reload the dictionaries of a type, or all dictionaries. The dictionaries are reloaded one after another,
+     * in the calling thread. If a dictionary can not be loaded, the current version is kept and the failure is
+     * reported in the statistics.
+     *
+     * Dictionaries which are caches are replaced by empty caches after the other dictionaries have been
+     * reloaded, if their type is the reloaded type followed by {@code _cache}, or if all dictionaries are reloaded.
+     *
+     * @param type the type of the dictionaries, or null for all dictionaries
+     * @return the statistics of the reloaded dictionaries
+     */
+    public List<ReloadStats> reload(String type) {
+        expunge();
+        List<ReloadStats> list = new ArrayList<>();
+        List<Map.Entry<Settings, Entry<?>>> caches = new ArrayList<>();
+        for (Map.Entry<Settings, Entry<?>> e : entries.entrySet()) {
+            String t = e.getKey().get("type");
+            if (e.getValue().dictionary instanceof TinyLFUCache) {
+                if (type == null || (type + "_cache").equals(t)) {
+                    caches.add(e);
+                }
+            } else if (type == null || type.equals(t)) {
+                list.add(e.getValue().reload(e.getKey()));
+            }
+        }
+        for (Map.Entry<Settings, Entry<?>> e : caches) {
+            list.add(e.getValue().reload(e.getKey()));
+        }
+        return list;
+    }
+
+    /**
+     * Return the statistics of the dictionaries in this registry. The cache statistics of a dictionary are summed
+     * over the owners which use the dictionary, are still reachable, and provide cache statistics.
+     * A dictionary which is a shared cache shows its own statistics.
+     *
+     * @return the statistics
+     */
+    public Stats stats() {
+        expunge();
+        List<DictionaryStats> list = new ArrayList<>();
+        for (Map.Entry<Settings, Entry<?>> e : entries.entrySet()) {
+            Entry<?> entry = e.getValue();
+            TinyLFUCache.Stats cacheStats = entry.dictionary instanceof TinyLFUCache ?
+                    ((TinyLFUCache<?, ?>) entry.dictionary).stats() : null;
+            for (OwnerReference reference : references) {
+                Object owner = reference.entry == entry ? reference.get() : null;
+                if (owner instanceof CacheStatsProvider) {
+                    TinyLFUCache.Stats stats = ((CacheStatsProvider) owner).getCacheStats();
+                    if (stats != null) {
+                        cacheStats = cacheStats != null ? cacheStats.add(stats) : stats;
+                    }
+                }
+            }
+            list.add(new DictionaryStats(e.getKey(), entry.references, entry.sizeInBytes, entry.loadMillis,
+                    entry.version, cacheStats));
+        }
+        return new Stats(list);
+    }
+
+    private void expunge() {
+        Reference<?> ref;
+        while ((ref = queue.poll()) != null) {
+            OwnerReference ownerReference = (OwnerReference) ref;
+            references.remove(ownerReference);
+            Entry<?> entry = ownerReference.entry;
+            entries.computeIfPresent(ownerReference.key, (k, e) -> {
+                if (e != entry) {
+                    return e;
+                }
+                e.references--;
+                if (e.references <= 0) {
+                    logger.debug("releasing dictionary for {}", k);
+                    return null;
+                }
+                return e;
+            });
+        }
+    }
+
+    /**
+     * A loader of a dictionary.
+     *
+     * @param <T> the dictionary type
+     */
+    @FunctionalInterface
+    public interface Loader<T> {
+
+        T load() throws IOException;
+    }
+
+    /**
+     * The handle of a dictionary, which returns the current version of the dictionary.
+     *
+     * @param <T> the dictionary type
+     */
+    public interface Handle<T> extends Supplier<T> {
+
+        /**
+         * Return the current version of the dictionary.
+         *
+         * @return the dictionary
+         */
+        @Override
+        T get();
+
+        /**
+         * Return the number of the current version, which starts with 1 and is increased by each reload.
+         *
+         * @return the version number
+         */
+        long getVersion();
+    }
+
+    /**
+     * An owner of a dictionary with a cache, whose statistics are added to the statistics of the dictionary.
+     */
+    public interface CacheStatsProvider {
+
+        /**
+         * Return the statistics of the cache.
+         *
+         * @return the cache statistics, or null if there is no cache
+         */
+        TinyLFUCache.Stats getCacheStats();
+    }
+
+    private static class Entry<T> implements Handle<T> {
+
+        private final Loader<T> loader;
+
+        private final ToLongFunction<T> sizeFunction;
+
+        private volatile T dictionary;
+
+        private volatile long sizeInBytes;
+
+        private volatile long loadMillis;
+
+        private volatile long version;
+
+        /**
+         * Only modified within compute on the map entry.
+         */
+        private volatile int references;
+
+        Entry(T dictionary, Loader<T> loader, ToLongFunction<T> sizeFunction, long loadMillis) {
+            this.dictionary = dictionary;
+            this.loader = loader;
+            this.sizeFunction = sizeFunction;
+            this.sizeInBytes = sizeFunction.applyAsLong(dictionary);
+            this.loadMillis = loadMillis;
+            this.version = 1L;
+        }
+
+        @Override
+        public T get() {
+            return dictionary;
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Load a new version and publish it. Concurrent reloads of the same dictionary are serialized.
+         */
+        synchronized ReloadStats reload(Settings key) {
+            long sizeBefore = sizeInBytes;
+            long t0 = System.nanoTime();
+            try {
+                T newDictionary = loader.load();
+                long size = sizeFunction.applyAsLong(newDictionary);
+                long millis = (System.nanoTime() - t0) / 1000000L;
+                sizeInBytes = size;
+                loadMillis = millis;
+                dictionary = newDictionary;
+                version++;
+                logger.info("reloaded dictionary for {} in {} ms, version {}", key, millis, version);
+                return new ReloadStats(key, version, millis, sizeBefore, size, null);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("failed to reload dictionary for " + key, e);
+                return new ReloadStats(key, version, (System.nanoTime() - t0) / 1000000L, sizeBefore, sizeBefore,
+                        e.toString());
+            }
+        }
+    }
+
+    private static class OwnerReference extends WeakReference<Object> {
+
+        private final Settings key;
+
+        private final Entry<?> entry;
+
+        OwnerReference(Object owner, Settings key, ReferenceQueue<Object> queue, Entry<?> entry) {
+            super(owner, queue);
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Statistics of the dictionaries in a registry.
+     */
+    public static class Stats implements ToXContentObject {
+
+        private final List<DictionaryStats> dictionaries;
+
+        Stats(List<DictionaryStats> dictionaries) {
+            this.dictionaries = Collections.unmodifiableList(dictionaries);
+        }
+
+        public List<DictionaryStats> getDictionaries() {
+            return dictionaries;
+        }
+
+        public long getReferences() {
+            long references = 0L;
+            for (DictionaryStats dictionary : dictionaries) {
+                references += dictionary.getReferences();
+            }
+            return references;
+        }
+
+        public long getSizeInBytes() {
+            long bytes = 0L;
+            for (DictionaryStats dictionary : dictionaries) {
+                bytes += dictionary.getSizeInBytes();
+            }
+            return bytes;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("count", dictionaries.size());
+            builder.field("references", getReferences());
+            builder.field("size_in_bytes", getSizeInBytes());
+            builder.startArray("dictionaries");
+            for (DictionaryStats dictionary : dictionaries) {
+                dictionary.toXContent(builder, params);
+            }
+            builder.endArray();
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    /**
+     * Statistics of a dictionary.
+     */
+    public static class DictionaryStats implements ToXContentObject {
+
+        private final Settings settings;
+
+        private final int references;
+
+        private final long sizeInBytes;
+
+        private final long loadMillis;
+
+        private final long version;
+
+        private final TinyLFUCache.Stats cacheStats;
+
+        DictionaryStats(Settings settings, int references, long sizeInBytes, long loadMillis, long version,
+                        TinyLFUCache.Stats cacheStats) {
+            this.settings = settings;
+            this.references = references;
+            this.sizeInBytes = sizeInBytes;
+            this.loadMillis = loadMillis;
+            this.version = version;
+            this.cacheStats = cacheStats;
+        }
+
+        public Settings getSettings() {
+            return settings;
+        }
+
+        public int getReferences() {
+            return references;
+        }
+
+        /**
+         * Return the size of the dictionary. Memory mapped dictionaries are counted with their mapped size.
+         *
+         * @return the size in bytes
+         */
+        public long getSizeInBytes() {
+            return sizeInBytes;
+        }
+
+        public long getLoadMillis() {
+            return loadMillis;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Return the summed cache statistics of the owners of the dictionary.
+         *
+         * @return the cache statistics, or null if no owner has a cache
+         */
+        public TinyLFUCache.Stats getCacheStats() {
+            return cacheStats;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.startObject("settings");
+            settings.toXContent(builder, params);
+            builder.endObject();
+            builder.field("references", references);
+            builder.field("size_in_bytes", sizeInBytes);
+            builder.field("load_time_in_millis", loadMillis);
+            builder.field("version", version);
+            if (cacheStats != null) {
+                builder.field("cache");
+                cacheStats.toXContent(builder, params);
+            }
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    /**
+     * Statistics of the reload of a dictionary.
+     */
+    public static class ReloadStats implements Writeable, ToXContentObject {
+
+        private final Settings settings;
+
+        private final long version;
+
+        private final long loadMillis;
+
+        private final long sizeBefore;
+
+        private final long sizeAfter;
+
+        private final String failure;
+
+        ReloadStats(Settings settings, long version, long loadMillis, long sizeBefore, long sizeAfter,
+                    String failure) {
+            this.settings = settings;
+            this.version = version;
+            this.loadMillis = loadMillis;
+            this.sizeBefore = sizeBefore;
+            this.sizeAfter = sizeAfter;
+            this.failure = failure;
+        }
+
+        public ReloadStats(StreamInput in) throws IOException {
+            this.settings = Settings.readSettingsFromStream(in);
+            this.version = in.readVLong();
+            this.loadMillis = in.readVLong();
+            this.sizeBefore = in.readVLong();
+            this.sizeAfter = in.readVLong();
+            this.failure = in.readOptionalString();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            Settings.writeSettingsToStream(settings, out);
+            out.writeVLong(version);
+            out.writeVLong(loadMillis);
+            out.writeVLong(sizeBefore);
+            out.writeVLong(sizeAfter);
+            out.writeOptionalString(failure);
+        }
+
+        public Settings getSettings() {
+            return settings;
+        }
+
+        /**
+         * Return the version of the dictionary after the reload.
+         *
+         * @return the version number
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        public long getLoadMillis() {
+            return loadMillis;
+        }
+
+        /**
+         * Return the difference of the sizes of the new and the former version of the dictionary.
+         *
+         * @return the size difference in bytes
+         */
+        public long getSizeDelta() {
+            return sizeAfter - sizeBefore;
+        }
+
+        /**
+         * Return the failure of the reload.
+         *
+         * @return the failure, or null if the dictionary has been reloaded
+         */
+        public String getFailure() {
+            return failure;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.startObject("settings");
+            settings.toXContent(builder, params);
+            builder.endObject();
+            builder.field("version", version);
+            builder.field("load_time_in_millis", loadMillis);
+            builder.field("size_in_bytes", sizeAfter);
+            builder.field("size_delta_in_bytes", sizeAfter - sizeBefore);
+            if (failure != null) {
+                builder.field("failure", failure);
+            }
+            builder.endObject();
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Classes for sharing dictionaries of analysis components in a node.
+ */
+package org.xbib.elasticsearch.plugin.bundle.common.dictionary;
@@ -80,6 +80,11 @@ public final class ConstantArcSizeFSA extends FSA {
         this.data = data;
     }
 
+    @Override
+    public long sizeInBytes() {
+        return data.length;
+    }
+
     @Override
     public int getRootNode() {
         return getEndNode(getFirstArc(epsilon));
@@ -119,4 +119,8 @@ public class Dictionary {
     public FSA fsa() {
         return fsa;
     }
+
+    public long sizeInBytes() {
+        return fsa != null ? fsa.sizeInBytes() : 0L;
+    }
 }
@@ -94,6 +94,11 @@ public abstract class FSA implements Iterable<ByteBuffer> {
 
     public abstract void write(DataOutputStream outputStream) throws IOException;
 
+    /**
+     * @return the size of the automaton data in bytes
+     */
+    public abstract long sizeInBytes();
+
     /**
      * @param node node
      * @return Returns the number of sequences reachable from the given state if
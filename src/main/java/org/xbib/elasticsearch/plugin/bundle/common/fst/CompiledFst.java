@@ -0,0 +1,237 @@
+package org.xbib.elasticsearch.plugin.bundle.common.fst;
+
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.NoOutputs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A finite state automaton in an aligned layout of fixed size arcs, which is traversed directly from a memory
+ * mapped buffer. This avoids reading the automaton into the heap, which Lucene FSTs always do.
+ *
+ * The file format is big endian:
+ * <pre>
+ * int magic, int version, int root address, int length
+ * ints states[length]
+ * </pre>
+ *
+ * A state is an int with the number of its arcs, followed by the arcs, sorted by label. An arc is an int label,
+ * which is a code point, and an int with the address of the target state. The highest bit of the address is set
+ * if the arc is final. Addresses count ints from the start of the states. The state at address 0 has no arcs.
+ * The buffer is only read by absolute positions, so one automaton can be used by many threads.
+ *
+ * The {@link #main(String[])} method compiles all FSTs of a directory at build time.
+ */
+public final class CompiledFst {
+
+    public static final String FST_SUFFIX = ".fst";
+
+    public static final String COMPILED_SUFFIX = ".cfst";
+
+    static final int MAGIC = 0x43465354;
+
+    static final int VERSION = 1;
+
+    static final int FINAL = 0x80000000;
+
+    private final IntBuffer states;
+
+    private final int root;
+
+    private CompiledFst(IntBuffer states, int root) {
+        this.states = states;
+        this.root = root;
+    }
+
+    /**
+     * Return the compiled file name of an FST file name.
+     *
+     * @param name the FST file name
+     * @return the compiled file name
+     */
+    public static String compiledName(String name) {
+        return name.endsWith(FST_SUFFIX) ?
+                name.substring(0, name.length() - FST_SUFFIX.length()) + COMPILED_SUFFIX : name + COMPILED_SUFFIX;
+    }
+
+    /**
+     * Load a compiled automaton. Files are memory mapped, other resources are read into a direct buffer.
+     *
+     * @param url the URL of the compiled automaton
+     * @return the compiled automaton
+     * @throws IOException if the compiled automaton can not be read
+     */
+    public static CompiledFst load(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return load(Paths.get(url.toURI()));
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+        try (InputStream in = url.openStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            return read(direct(out));
+        }
+    }
+
+    /**
+     * Load a compiled automaton from a memory mapped file.
+     *
+     * @param path the path of the compiled automaton
+     * @return the compiled automaton
+     * @throws IOException if the compiled automaton can not be read
+     */
+    public static CompiledFst load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static CompiledFst read(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("not a compiled FST file");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported compiled FST version " + version);
+        }
+        int root = buffer.getInt();
+        int length = buffer.getInt();
+        if (length < 1 || buffer.remaining() < length * Integer.BYTES || root < 0 || root >= length) {
+            throw new IOException("truncated compiled FST");
+        }
+        IntBuffer states = buffer.asIntBuffer();
+        states.limit(length);
+        return new CompiledFst(states.slice(), root);
+    }
+
+    /**
+     * Compile an FST into a direct buffer.
+     *
+     * @param fst the FST
+     * @return the compiled automaton
+     * @throws IOException if the FST can not be read
+     */
+    public static CompiledFst of(FST<Object> fst) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FstCompiler.writeAligned(fst, out);
+        return read(direct(out));
+    }
+
+    private static ByteBuffer direct(ByteArrayOutputStream out) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(out.size());
+        buffer.put(out.toByteArray());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Return the address of the root state.
+     *
+     * @return the root state
+     */
+    public int root() {
+        return root;
+    }
+
+    /**
+     * Find the arc of a state with a label.
+     *
+     * @param state the address of the state
+     * @param label the label
+     * @return the position of the arc, or -1 if the state has no arc with this label
+     */
+    public int arc(int state, int label) {
+        int low = 0;
+        int high = states.get(state) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int arc = state + 1 + 2 * mid;
+            int l = states.get(arc);
+            if (l < label) {
+                low = mid + 1;
+            } else if (l > label) {
+                high = mid - 1;
+            } else {
+                return arc;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the target state of an arc.
+     *
+     * @param arc the position of the arc
+     * @return the address of the target state
+     */
+    public int target(int arc) {
+        return states.get(arc + 1) & ~FINAL;
+    }
+
+    /**
+     * Return true if the input up to and including an arc is accepted.
+     *
+     * @param arc the position of the arc
+     * @return true if the arc is final
+     */
+    public boolean isFinal(int arc) {
+        return (states.get(arc + 1) & FINAL) != 0;
+    }
+
+    /**
+     * Return the size of the automaton. Memory mapped automatons are counted with their mapped size.
+     *
+     * @return the size in bytes
+     */
+    public long sizeInBytes() {
+        return (long) states.capacity() * Integer.BYTES;
+    }
+
+    /**
+     * Compile the FSTs of a directory into the compiled files of an output directory.
+     *
+     * @param args the FST directory and the output directory
+     * @throws IOException if the FSTs can not be read or the output can not be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("usage: CompiledFst <fst directory> <output directory>");
+        }
+        Path input = Paths.get(args[0]);
+        Path output = Paths.get(args[1]);
+        Files.createDirectories(output);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(input, "*" + FST_SUFFIX)) {
+            for (Path path : stream) {
+                FST<Object> fst;
+                try (InputStream in = Files.newInputStream(path)) {
+                    fst = new FST<>(new InputStreamDataInput(in), NoOutputs.getSingleton());
+                }
+                Path target = output.resolve(compiledName(path.getFileName().toString()));
+                try (OutputStream out = Files.newOutputStream(target)) {
+                    FstCompiler.writeAligned(fst, out);
+                }
+            }
+        }
+    }
+}
@@ -1,19 +1,40 @@
 package org.xbib.elasticsearch.plugin.bundle.common.fst;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.OfflineSorter;
 import org.apache.lucene.util.fst.Builder;
 import org.apache.lucene.util.fst.FST;
 import org.apache.lucene.util.fst.FST.INPUT_TYPE;
@@ -22,11 +43,48 @@ import org.apache.lucene.util.fst.NoOutputs;
 
 /**
  * Compile an FSA from an UTF-8 text file (must be properly sorted).
+ *
+ * The FSA is written as Lucene FST, or in the aligned layout of {@link CompiledFst}, which can be memory mapped.
+ *
+ * By default, the words are sorted on the heap. For large word lists, a temporary directory can be given,
+ * then the words are sorted offline: sorted runs of the words are spilled to temporary files, sorted by
+ * a pool of threads, and merged into a stream of words which is added to the FST.
  */
 public class FstCompiler {
 
     private static final Pattern pattern = Pattern.compile("\\s+");
 
+    private final Path tempDir;
+
+    private final int threads;
+
+    private final int bufferSizeMB;
+
+    private Stats stats;
+
+    /**
+     * Create a compiler which sorts the words on the heap.
+     */
+    public FstCompiler() {
+        this(null, 1, 0);
+    }
+
+    /**
+     * Create a compiler which sorts the words offline.
+     *
+     * @param tempDir the directory for the temporary files, or null for sorting on the heap
+     * @param threads the number of threads for sorting the runs
+     * @param bufferSizeMB the size of a run in megabytes, or 0 for a size depending on the free heap
+     */
+    public FstCompiler(Path tempDir, int threads, int bufferSizeMB) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.tempDir = tempDir;
+        this.threads = threads;
+        this.bufferSizeMB = bufferSizeMB;
+    }
+
     /**
      *
      * @param inputStream the input stream
@@ -34,11 +92,110 @@ public class FstCompiler {
      * @throws IOException if compilation fails
      */
     public void compile(InputStream inputStream, OutputStream outputStream) throws IOException {
+        final FST<Object> fst = build(inputStream);
+        try (OutputStreamDataOutput out = new OutputStreamDataOutput(outputStream)) {
+            fst.save(out);
+        }
+    }
+
+    /**
+     * Compile into the aligned layout of {@link CompiledFst}.
+     *
+     * @param inputStream the input stream
+     * @param outputStream the output stream
+     * @throws IOException if compilation fails
+     */
+    public void compileAligned(InputStream inputStream, OutputStream outputStream) throws IOException {
+        writeAligned(build(inputStream), outputStream);
+    }
+
+    /**
+     * Return the statistics of the last compilation.
+     *
+     * @return the statistics, or null if nothing has been compiled
+     */
+    public Stats getStats() {
+        return stats;
+    }
+
+    private FST<Object> build(InputStream inputStream) throws IOException {
+        return tempDir != null ? buildOffline(inputStream) : buildOnHeap(inputStream);
+    }
+
+    private FST<Object> buildOnHeap(InputStream inputStream) throws IOException {
+        long t0 = System.nanoTime();
         final HashSet<BytesRef> words = new HashSet<>();
+        long count = read(inputStream, entry -> words.add(BytesRef.deepCopyOf(entry)));
+        final BytesRef [] all = new BytesRef[words.size()];
+        words.toArray(all);
+        Arrays.sort(all, BytesRef::compareTo);
+        long t1 = System.nanoTime();
+        final Builder<Object> builder = new Builder<>(INPUT_TYPE.BYTE4, NoOutputs.getSingleton());
+        final IntsRefBuilder intsRef = new IntsRefBuilder();
+        for (BytesRef bytesRef : all) {
+            add(builder, intsRef, bytesRef);
+        }
+        return finish(builder, count, all.length, t0, t1);
+    }
+
+    private FST<Object> buildOffline(InputStream inputStream) throws IOException {
+        long t0 = System.nanoTime();
+        Files.createDirectories(tempDir);
+        Path dir = Files.createTempDirectory(tempDir, "fst");
+        ExecutorService executorService = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try (Directory directory = FSDirectory.open(dir)) {
+            long count;
+            String input;
+            IndexOutput output = directory.createTempOutput("words", "unsorted", IOContext.DEFAULT);
+            try (OfflineSorter.ByteSequencesWriter writer = new OfflineSorter.ByteSequencesWriter(output)) {
+                input = output.getName();
+                count = read(inputStream, writer::write);
+                CodecUtil.writeFooter(output);
+            }
+            OfflineSorter sorter = new OfflineSorter(directory, "words", OfflineSorter.DEFAULT_COMPARATOR,
+                    bufferSizeMB > 0 ? OfflineSorter.BufferSize.megabytes(bufferSizeMB) :
+                            OfflineSorter.BufferSize.automatic(),
+                    OfflineSorter.MAX_TEMPFILES, -1, executorService, threads);
+            String sorted = sorter.sort(input);
+            long t1 = System.nanoTime();
+            final Builder<Object> builder = new Builder<>(INPUT_TYPE.BYTE4, NoOutputs.getSingleton());
+            final IntsRefBuilder intsRef = new IntsRefBuilder();
+            BytesRefBuilder last = new BytesRefBuilder();
+            long entries = 0L;
+            try (OfflineSorter.ByteSequencesReader reader = new OfflineSorter.ByteSequencesReader(
+                    directory.openChecksumInput(sorted, IOContext.READONCE), sorted)) {
+                BytesRef bytesRef;
+                while ((bytesRef = reader.next()) != null) {
+                    // equal entries are adjacent after sorting, only the first one is added
+                    if (entries == 0L || !bytesRef.bytesEquals(last.get())) {
+                        add(builder, intsRef, bytesRef);
+                        last.copyBytes(bytesRef);
+                        entries++;
+                    }
+                }
+            }
+            return finish(builder, count, entries, t0, t1);
+        } finally {
+            if (executorService != null) {
+                executorService.shutdown();
+            }
+            IOUtils.rm(dir);
+        }
+    }
+
+    /**
+     * Read the words of a word list, and add each word in left-to-right characters order and reversed
+     * for easier matching later on.
+     *
+     * @return the number of words
+     */
+    private long read(InputStream inputStream, Entries entries) throws IOException {
+        long count = 0L;
         BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
         String line;
         String last = null;
         StringBuilder stringBuilder = new StringBuilder();
+        BytesRefBuilder bytesRefBuilder = new BytesRefBuilder();
         while ((line = reader.readLine()) != null) {
             if (line.indexOf('#') >= 0) {
                 continue;
@@ -49,34 +206,246 @@ public class FstCompiler {
                 continue;
             }
             last = line;
-            /*
-             * Add the word to the hash set in left-to-right characters order and reversed
-             * for easier matching later on.
-             */
+            count++;
             stringBuilder.setLength(0);
             stringBuilder.append(line);
             final int len = stringBuilder.length();
             stringBuilder.append('>');
-            words.add(new BytesRef(stringBuilder));
+            bytesRefBuilder.copyChars(stringBuilder);
+            entries.add(bytesRefBuilder.get());
             stringBuilder.setLength(len);
             stringBuilder.reverse().append('<');
-            words.add(new BytesRef(stringBuilder));
+            bytesRefBuilder.copyChars(stringBuilder);
+            entries.add(bytesRefBuilder.get());
         }
         reader.close();
-        final BytesRef [] all = new BytesRef[words.size()];
-        words.toArray(all);
-        Arrays.sort(all, BytesRef::compareTo);
-        final Object nothing = NoOutputs.getSingleton().getNoOutput();
-        final Builder<Object> builder = new Builder<>(INPUT_TYPE.BYTE4, NoOutputs.getSingleton());
-        final IntsRefBuilder intsRef = new IntsRefBuilder();
-        for (BytesRef bytesRef : all) {
-            intsRef.clear();
-            intsRef.copyUTF8Bytes(bytesRef);
-            builder.add(intsRef.get(), nothing);
+        return count;
+    }
+
+    private static void add(Builder<Object> builder, IntsRefBuilder intsRef, BytesRef bytesRef) throws IOException {
+        intsRef.clear();
+        intsRef.copyUTF8Bytes(bytesRef);
+        builder.add(intsRef.get(), NoOutputs.getSingleton().getNoOutput());
+    }
+
+    private FST<Object> finish(Builder<Object> builder, long words, long entries, long t0, long t1)
+            throws IOException {
+        FST<Object> fst = builder.finish();
+        long t2 = System.nanoTime();
+        stats = new Stats(words, entries, builder.getNodeCount(), builder.getArcCount(),
+                fst.ramBytesUsed(), TimeUnit.NANOSECONDS.toMillis(t1 - t0), TimeUnit.NANOSECONDS.toMillis(t2 - t1));
+        return fst;
+    }
+
+    /**
+     * Write an FST in the aligned layout of {@link CompiledFst}. The states of the FST are shared as in the FST,
+     * but the arcs are not compressed, so the layout is larger than the FST.
+     *
+     * @param fst the FST
+     * @param outputStream the output stream
+     * @throws IOException if the FST can not be read or written
+     */
+    public static void writeAligned(FST<Object> fst, OutputStream outputStream) throws IOException {
+        Layout layout = new Layout();
+        // the empty state at address 0 is the target of all arcs to states without arcs
+        layout.add(0);
+        int root = layout.state(fst, fst.getFirstArc(new FST.Arc<>()), fst.getBytesReader());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        out.writeInt(CompiledFst.MAGIC);
+        out.writeInt(CompiledFst.VERSION);
+        out.writeInt(root);
+        out.writeInt(layout.length);
+        for (int i = 0; i < layout.length; i++) {
+            out.writeInt(layout.data[i]);
         }
-        final FST<Object> fst = builder.finish();
-        try (OutputStreamDataOutput out = new OutputStreamDataOutput(outputStream)) {
-            fst.save(out);
+        out.flush();
+    }
+
+    /**
+     * The states of an FST in the aligned layout, each state after the states it refers to.
+     */
+    private static class Layout {
+
+        private final Map<Long, Integer> addresses = new HashMap<>();
+
+        private int[] data = new int[1024];
+
+        private int length;
+
+        private int state(FST<Object> fst, FST.Arc<Object> follow, FST.BytesReader in) throws IOException {
+            if (!FST.targetHasArcs(follow)) {
+                return 0;
+            }
+            Integer address = addresses.get(follow.target);
+            if (address != null) {
+                return address;
+            }
+            // the arcs are copied before the reader is moved by the states they refer to
+            List<FST.Arc<Object>> arcs = new ArrayList<>();
+            FST.Arc<Object> arc = fst.readFirstTargetArc(follow, new FST.Arc<>(), in);
+            while (true) {
+                if (arc.label != FST.END_LABEL) {
+                    arcs.add(new FST.Arc<>().copyFrom(arc));
+                }
+                if (arc.isLast()) {
+                    break;
+                }
+                fst.readNextArc(arc, in);
+            }
+            int[] targets = new int[arcs.size()];
+            for (int i = 0; i < targets.length; i++) {
+                targets[i] = state(fst, arcs.get(i), in);
+            }
+            address = length;
+            add(arcs.size());
+            for (int i = 0; i < targets.length; i++) {
+                add(arcs.get(i).label);
+                add(arcs.get(i).isFinal() ? targets[i] | CompiledFst.FINAL : targets[i]);
+            }
+            addresses.put(follow.target, address);
+            return address;
+        }
+
+        private void add(int value) {
+            data = ArrayUtil.grow(data, length + 1);
+            data[length++] = value;
+        }
+    }
+
+    /**
+     * Compile a word list into an FST, or into a compiled automaton if the output ends with
+     * {@link CompiledFst#COMPILED_SUFFIX}, and print the statistics.
+     *
+     * @param args the options, the word list and the output file
+     * @throws IOException if the word list can not be read or the output can not be written
+     */
+    public static void main(String[] args) throws IOException {
+        Path tempDir = null;
+        int threads = 1;
+        int bufferSizeMB = 0;
+        int i = 0;
+        while (i < args.length && args[i].startsWith("--")) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value of option " + args[i]);
+            }
+            switch (args[i]) {
+                case "--temp":
+                    tempDir = Paths.get(args[i + 1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--buffer":
+                    bufferSizeMB = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+            i += 2;
+        }
+        if (args.length - i != 2) {
+            throw new IllegalArgumentException("usage: FstCompiler [--temp <directory>] [--threads <n>] " +
+                    "[--buffer <megabytes>] <word list> <output file>");
+        }
+        Path input = Paths.get(args[i]);
+        Path output = Paths.get(args[i + 1]);
+        FstCompiler compiler = new FstCompiler(tempDir, threads, bufferSizeMB);
+        try (InputStream in = Files.newInputStream(input); OutputStream out = Files.newOutputStream(output)) {
+            if (output.getFileName().toString().endsWith(CompiledFst.COMPILED_SUFFIX)) {
+                compiler.compileAligned(in, out);
+            } else {
+                compiler.compile(in, out);
+            }
+        }
+        System.out.println(compiler.getStats());
+    }
+
+    /**
+     * A receiver of the entries of a word list.
+     */
+    @FunctionalInterface
+    private interface Entries {
+
+        void add(BytesRef entry) throws IOException;
+    }
+
+    /**
+     * Statistics of a compilation.
+     */
+    public static class Stats {
+
+        private final long words;
+
+        private final long entries;
+
+        private final long nodes;
+
+        private final long arcs;
+
+        private final long sizeInBytes;
+
+        private final long sortMillis;
+
+        private final long buildMillis;
+
+        Stats(long words, long entries, long nodes, long arcs, long sizeInBytes, long sortMillis, long buildMillis) {
+            this.words = words;
+            this.entries = entries;
+            this.nodes = nodes;
+            this.arcs = arcs;
+            this.sizeInBytes = sizeInBytes;
+            this.sortMillis = sortMillis;
+            this.buildMillis = buildMillis;
+        }
+
+        public long getWords() {
+            return words;
+        }
+
+        /**
+         * Return the number of distinct entries, which are the words in both directions.
+         *
+         * @return the number of entries
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        public long getNodes() {
+            return nodes;
+        }
+
+        public long getArcs() {
+            return arcs;
+        }
+
+        public long getSizeInBytes() {
+            return sizeInBytes;
+        }
+
+        /**
+         * Return the time for reading and sorting the words.
+         *
+         * @return the time in milliseconds
+         */
+        public long getSortMillis() {
+            return sortMillis;
+        }
+
+        /**
+         * Return the time for adding the sorted words to the FST.
+         *
+         * @return the time in milliseconds
+         */
+        public long getBuildMillis() {
+            return buildMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "words=" + words + " entries=" + entries + " nodes=" + nodes + " arcs=" + arcs +
+                    " size_in_bytes=" + sizeInBytes + " sort_time_in_millis=" + sortMillis +
+                    " build_time_in_millis=" + buildMillis;
         }
     }
 }
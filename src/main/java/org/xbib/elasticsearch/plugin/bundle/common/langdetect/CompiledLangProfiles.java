@@ -0,0 +1,248 @@
+package org.xbib.elasticsearch.plugin.bundle.common.langdetect;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Language profiles compiled into one binary file, holding the language list, the n-gram keys, and the
+ * probability matrix. This avoids parsing the JSON profiles into boxed maps at runtime.
+ *
+ * The file format is big endian:
+ * <pre>
+ * int magic, int version
+ * int languages, for each language: int length, chars
+ * int grams, long keys[grams]
+ * float probs[grams * languages], ordered by gram, then language
+ * </pre>
+ *
+ * The {@link #main(String[])} method compiles all profiles of a directory and its subdirectories at build time.
+ */
+public class CompiledLangProfiles {
+
+    public static final String RESOURCE_NAME = "profiles.bin";
+
+    private static final int MAGIC = 0x4c445046;
+
+    private static final int VERSION = 1;
+
+    private final List<String> languages;
+
+    private final long[] keys;
+
+    private final float[] probs;
+
+    private CompiledLangProfiles(List<String> languages, long[] keys, float[] probs) {
+        this.languages = languages;
+        this.keys = keys;
+        this.probs = probs;
+    }
+
+    /**
+     * Compile language profiles. The probabilities are computed as in
+     * {@link LangdetectService#addProfile(LangProfile, int, int)}.
+     *
+     * @param profiles the language profiles
+     * @return the compiled language profiles
+     */
+    public static CompiledLangProfiles compile(List<LangProfile> profiles) {
+        List<String> languages = new ArrayList<>();
+        NGramModel model = new NGramModel();
+        model.ensureLanguages(profiles.size());
+        List<Long> keys = new ArrayList<>();
+        for (int i = 0; i < profiles.size(); i++) {
+            LangProfile profile = profiles.get(i);
+            languages.add(profile.getName());
+            for (Map.Entry<String, Integer> entry : profile.getFreq().entrySet()) {
+                String s = entry.getKey();
+                long key = NGramModel.key(s);
+                if (key != 0L) {
+                    double prob = entry.getValue().doubleValue() / profile.getNWords().get(s.length() - 1);
+                    int id = model.add(key);
+                    if (id == keys.size()) {
+                        keys.add(key);
+                    }
+                    model.set(id, i, prob);
+                }
+            }
+        }
+        long[] k = new long[keys.size()];
+        float[] p = new float[keys.size() * languages.size()];
+        for (int id = 0; id < k.length; id++) {
+            k[id] = keys.get(id);
+            for (int lang = 0; lang < languages.size(); lang++) {
+                p[id * languages.size() + lang] = (float) model.get(id, lang);
+            }
+        }
+        return new CompiledLangProfiles(languages, k, p);
+    }
+
+    /**
+     * Load compiled language profiles. Files are memory mapped, other resources are read in one piece.
+     *
+     * @param url the URL of the compiled language profiles
+     * @return the compiled language profiles
+     * @throws IOException if the compiled language profiles can not be read
+     */
+    public static CompiledLangProfiles load(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try (FileChannel channel = FileChannel.open(Paths.get(url.toURI()), StandardOpenOption.READ)) {
+                return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+        try (InputStream in = url.openStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            return read(ByteBuffer.wrap(out.toByteArray()));
+        }
+    }
+
+    public static CompiledLangProfiles read(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("not a compiled language profile file");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported compiled language profile version " + version);
+        }
+        int size = buffer.getInt();
+        List<String> languages = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            char[] chars = new char[buffer.getInt()];
+            buffer.asCharBuffer().get(chars);
+            buffer.position(buffer.position() + chars.length * Character.BYTES);
+            languages.add(new String(chars));
+        }
+        long[] keys = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(keys);
+        buffer.position(buffer.position() + keys.length * Long.BYTES);
+        float[] probs = new float[keys.length * size];
+        buffer.asFloatBuffer().get(probs);
+        return new CompiledLangProfiles(Collections.unmodifiableList(languages), keys, probs);
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(languages.size());
+        for (String language : languages) {
+            out.writeInt(language.length());
+            out.writeChars(language);
+        }
+        out.writeInt(keys.length);
+        for (long key : keys) {
+            out.writeLong(key);
+        }
+        for (float prob : probs) {
+            out.writeFloat(prob);
+        }
+        out.flush();
+    }
+
+    public List<String> getLanguages() {
+        return languages;
+    }
+
+    /**
+     * Add the n-grams of the selected languages to a model. N-grams which do not occur in any of
+     * the selected languages are not added, as if only the selected profiles had been loaded.
+     *
+     * @param model the model
+     * @param selected the selected languages, in the order of the language indexes in the model
+     */
+    public void addTo(NGramModel model, List<String> selected) {
+        int[] columns = new int[selected.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = languages.indexOf(selected.get(i));
+            if (columns[i] < 0) {
+                throw new IllegalArgumentException("language " + selected.get(i) + " is not compiled");
+            }
+        }
+        model.ensureLanguages(columns.length);
+        int size = languages.size();
+        for (int g = 0; g < keys.length; g++) {
+            int offset = g * size;
+            boolean found = false;
+            for (int column : columns) {
+                if (probs[offset + column] != 0f) {
+                    found = true;
+                    break;
+                }
+            }
+            if (found) {
+                int id = model.add(keys[g]);
+                for (int i = 0; i < columns.length; i++) {
+                    model.set(id, i, probs[offset + columns[i]]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compile the language profiles of a directory into the {@link #RESOURCE_NAME} file of an output directory.
+     * Subdirectories are compiled into the corresponding subdirectories of the output directory.
+     *
+     * @param args the profile directory and the output directory
+     * @throws IOException if the profiles can not be read or the output can not be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("usage: CompiledLangProfiles <profile directory> <output directory>");
+        }
+        compileDirectory(Paths.get(args[0]), Paths.get(args[1]));
+    }
+
+    private static void compileDirectory(Path input, Path output) throws IOException {
+        Map<String, LangProfile> profiles = new LinkedHashMap<>();
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(input)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                compileDirectory(path, output.resolve(path.getFileName().toString()));
+            } else if (!path.getFileName().toString().contains(".")) {
+                LangProfile profile = new LangProfile();
+                try (InputStream in = Files.newInputStream(path)) {
+                    profile.read(in);
+                }
+                if (profile.getName() != null && profile.getFreq() != null) {
+                    profiles.put(path.getFileName().toString(), profile);
+                }
+            }
+        }
+        if (!profiles.isEmpty()) {
+            Files.createDirectories(output);
+            try (OutputStream out = Files.newOutputStream(output.resolve(RESOURCE_NAME))) {
+                compile(new ArrayList<>(profiles.values())).writeTo(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.xbib.elasticsearch.plugin.bundle.common.langdetect;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a language detection, the detected languages and the number of characters
+ * which have been consumed to detect them.
+ */
+public class Detection {
+
+    private final List<Language> languages;
+
+    private final long consumedChars;
+
+    public Detection(List<Language> languages, long consumedChars) {
+        this.languages = Collections.unmodifiableList(languages);
+        this.consumedChars = consumedChars;
+    }
+
+    /**
+     * Return the detected languages.
+     *
+     * @return the detected languages, sorted by descending probability
+     */
+    public List<Language> getLanguages() {
+        return languages;
+    }
+
+    /**
+     * Return the number of characters consumed. This is less than the length of the text if
+     * only windows of the text have been sampled.
+     *
+     * @return the number of characters consumed
+     */
+    public long getConsumedChars() {
+        return consumedChars;
+    }
+}
@@ -2,20 +2,28 @@ package org.xbib.elasticsearch.plugin.bundle.common.langdetect;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.IntsRefBuilder;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
 import org.elasticsearch.common.settings.Settings;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.SecureRandom;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
 /**
@@ -23,6 +31,28 @@ import java.util.regex.Pattern;
  */
 public class LangdetectService {
 
+    /**
+     * The detection modes.
+     */
+    public enum Mode {
+        /**
+         * Random walks over the n-grams of a text, averaged over a number of trials.
+         */
+        SAMPLING,
+        /**
+         * Exact naive Bayes over all n-grams of a text, computed in log space.
+         */
+        NAIVE_BAYES;
+
+        public static Mode fromString(String mode) {
+            try {
+                return valueOf(mode.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown langdetect mode [" + mode + "]", e);
+            }
+        }
+    }
+
     private static final String[] DEFAULT_LANGUAGES = new String[]{
             "ar",
             "bg",
@@ -108,7 +138,11 @@ public class LangdetectService {
 
     private static final Logger logger = LogManager.getLogger(LangdetectService.class.getName());
 
-    private static final Pattern word = Pattern.compile("[\\P{IsWord}]", Pattern.UNICODE_CHARACTER_CLASS);
+    private static final int MAX_RETAINED_GRAMS = 1 << 16;
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final ThreadLocal<IntsRefBuilder> gramIds = ThreadLocal.withInitial(IntsRefBuilder::new);
 
     private static final Settings DEFAULT_SETTINGS = Settings.builder()
             .putList("languages", DEFAULT_LANGUAGES)
@@ -119,69 +153,145 @@ public class LangdetectService {
 
     private final String profile;
 
-    private Map<String, double[]> wordLangProbMap = new HashMap<>();
+    private final NGramModel model;
+
+    private final List<String> langlist;
+
+    private final Map<String, String> langmap;
+
+    private final double alpha;
 
-    private List<String> langlist = new LinkedList<>();
+    private final double alphaWidth;
 
-    private Map<String, String> langmap = new HashMap<>();
+    private final Mode mode;
 
-    private double alpha;
+    private final long seed;
 
-    private double alphaWidth;
+    private final int nTrial;
 
-    private int nTrial;
+    private final double trialTolerance;
 
-    private double[] priorMap;
+    private final double[] priorMap;
 
-    private int iterationLimit;
+    private final int iterationLimit;
 
-    private double probThreshold;
+    private final double probThreshold;
 
-    private double convThreshold;
+    private final double convThreshold;
 
-    private int baseFreq;
+    private final int baseFreq;
 
-    private Pattern filterPattern;
+    private final int max;
 
-    private boolean isStarted;
+    private final Pattern filterPattern;
+
+    private final Cache<String, Detection> cache;
+
+    private final int cacheMaxTextLength;
+
+    private final int maxChars;
+
+    private final int windows;
+
+    private final double windowThreshold;
+
+    private final LongAdder totalChars = new LongAdder();
+
+    private final LongAdder consumedChars = new LongAdder();
 
     public LangdetectService() {
         this(DEFAULT_SETTINGS);
     }
 
     public LangdetectService(Settings settings) {
-        this(settings, null);
+        this(settings, (String) null);
     }
 
+    /**
+     * Create a language detection service. All profiles are loaded here, the language model is not
+     * modified after construction (except by explicit {@link #addProfile} calls before any detection),
+     * so {@link #detectAll(CharSequence)} can be called concurrently without locking.
+     *
+     * @param settings the settings
+     * @param profile the profile name or null for the default profile
+     */
     public LangdetectService(Settings settings, String profile) {
+        this(settings, profile, null);
+    }
+
+    /**
+     * Create a language detection service which shares the language model of another service. The other
+     * service must have been created with the same languages, profile, and map settings.
+     *
+     * @param settings the settings
+     * @param shared the service with the language model
+     */
+    public LangdetectService(Settings settings, LangdetectService shared) {
+        this(settings, shared.profile, shared);
+    }
+
+    private LangdetectService(Settings settings, String profile, LangdetectService shared) {
         this.settings = settings;
         this.profile = settings.get("profile", profile);
-        load(settings);
-        init();
+        if (shared != null) {
+            this.model = shared.model;
+            this.langlist = shared.langlist;
+            this.langmap = shared.langmap;
+        } else {
+            this.model = new NGramModel();
+            this.langlist = new ArrayList<>();
+            this.langmap = load(settings);
+        }
+        this.priorMap = null;
+        this.mode = Mode.fromString(settings.get("mode", "sampling"));
+        this.seed = settings.getAsLong("seed", 0L);
+        this.nTrial = settings.getAsInt("number_of_trials", 7);
+        this.trialTolerance = settings.getAsDouble("trial_tolerance", 0d);
+        this.alpha = settings.getAsDouble("alpha", 0.5);
+        this.alphaWidth = settings.getAsDouble("alpha_width", 0.05);
+        this.iterationLimit = settings.getAsInt("iteration_limit", 10000);
+        this.probThreshold = settings.getAsDouble("prob_threshold", 0.1);
+        this.convThreshold = settings.getAsDouble("conv_threshold", 0.99999);
+        this.baseFreq = settings.getAsInt("base_freq", 10000);
+        this.max = settings.getAsInt("max", Integer.MAX_VALUE);
+        this.filterPattern = settings.get("pattern") != null ?
+                Pattern.compile(settings.get("pattern"), Pattern.UNICODE_CHARACTER_CLASS) : null;
+        int cacheSize = settings.getAsInt("cache_size", 0);
+        this.cache = cacheSize > 0 ? CacheBuilder.<String, Detection>builder()
+                .setMaximumWeight(cacheSize)
+                .build() : null;
+        this.cacheMaxTextLength = settings.getAsInt("cache_max_text_length", 256);
+        this.maxChars = settings.getAsInt("max_chars", 0);
+        this.windows = Math.max(1, settings.getAsInt("windows", 4));
+        this.windowThreshold = settings.getAsDouble("window_threshold", 0.999);
     }
 
     public Settings getSettings() {
         return settings;
     }
 
-    private void load(Settings settings) {
+    private Map<String, String> load(Settings settings) {
         if (settings.equals(Settings.EMPTY)) {
             // empty service
-            return;
+            return Collections.emptyMap();
         }
         List<String> keys = "shorttext".equals(profile) ?
                 settings.getAsList("languages_short_text", Arrays.asList(DEFAULT_LANGUAGES_SHORT_TEXT)) :
                 settings.getAsList("languages", Arrays.asList(DEFAULT_LANGUAGES));
-        int index = 0;
-        int size = keys.size();
-        for (String key : keys) {
-            try {
-                loadProfileFromResource(key, index++, size);
-            } catch (Exception e) {
-                logger.error(e.getMessage() + " key=" + key + " profile=" + profile, e);
+        if (!loadCompiledProfiles(keys)) {
+            int index = 0;
+            int size = keys.size();
+            for (String key : keys) {
+                try {
+                    loadProfileFromResource(key, index++, size);
+                } catch (Exception e) {
+                    logger.error(e.getMessage() + " key=" + key + " profile=" + profile, e);
+                }
             }
         }
-        logger.debug("language detection service installed for {}", langlist);
+        model.trim();
+        logger.debug("language detection service installed for {}, {} n-grams, {} bytes",
+                langlist, model.size(), model.ramBytesUsed());
         try {
             // map by settings
             Settings settings1 = Settings.builder().put(settings.getByPrefix("map.")).build();
@@ -198,25 +308,39 @@ public class LangdetectService {
             for (String key : settings1.keySet()) {
                 map.put(key, settings1.get(key));
             }
-            this.langmap = map;
+            return map;
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             throw new ElasticsearchException(e.getMessage());
         }
     }
 
-    private void init() {
-        this.priorMap = null;
-        this.nTrial = settings.getAsInt("number_of_trials", 7);
-        this.alpha = settings.getAsDouble("alpha", 0.5);
-        this.alphaWidth = settings.getAsDouble("alpha_width", 0.05);
-        this.iterationLimit = settings.getAsInt("iteration_limit", 10000);
-        this.probThreshold = settings.getAsDouble("prob_threshold", 0.1);
-        this.convThreshold = settings.getAsDouble("conv_threshold", 0.99999);
-        this.baseFreq = settings.getAsInt("base_freq", 10000);
-        this.filterPattern = settings.get("pattern") != null ?
-                Pattern.compile(settings.get("pattern"), Pattern.UNICODE_CHARACTER_CLASS) : null;
-        isStarted = true;
+    /**
+     * Load the languages from the compiled profiles, if they have been compiled at build time and contain
+     * all the languages.
+     *
+     * @param keys the languages
+     * @return true if the languages have been loaded, false if the JSON profiles must be loaded
+     */
+    private boolean loadCompiledProfiles(List<String> keys) {
+        String thisProfile = (this.profile != null ? this.profile + "/" : "");
+        URL url = getClass().getResource(thisProfile + CompiledLangProfiles.RESOURCE_NAME);
+        if (url == null || new HashSet<>(keys).size() != keys.size()) {
+            return false;
+        }
+        try {
+            CompiledLangProfiles compiledLangProfiles = CompiledLangProfiles.load(url);
+            if (!compiledLangProfiles.getLanguages().containsAll(keys)) {
+                logger.debug("compiled profiles {} do not contain all of {}", url, keys);
+                return false;
+            }
+            compiledLangProfiles.addTo(model, keys);
+            langlist.addAll(keys);
+            return true;
+        } catch (IOException e) {
+            logger.warn("unable to load compiled profiles " + url, e);
+            return false;
+        }
     }
 
     public void loadProfileFromResource(String resource, int index, int langsize) throws IOException {
@@ -236,99 +360,370 @@ public class LangdetectService {
             throw new IOException("duplicate of the same language profile: " + lang);
         }
         langlist.add(lang);
-        for (String s : profile.getFreq().keySet()) {
-            if (!wordLangProbMap.containsKey(s)) {
-                wordLangProbMap.put(s, new double[langsize]);
-            }
-            int length = s.length();
-            if (length >= 1 && length <= 3) {
-                double prob = profile.getFreq().get(s).doubleValue() / profile.getNWords().get(length - 1);
-                wordLangProbMap.get(s)[index] = prob;
+        model.ensureLanguages(langsize);
+        for (Map.Entry<String, Integer> entry : profile.getFreq().entrySet()) {
+            String s = entry.getKey();
+            long key = NGramModel.key(s);
+            if (key != 0L) {
+                double prob = entry.getValue().doubleValue() / profile.getNWords().get(s.length() - 1);
+                model.set(model.add(key), index, prob);
             }
         }
     }
 
+    /**
+     * Return the n-gram model of this service.
+     *
+     * @return the n-gram model
+     */
+    public NGramModel getModel() {
+        return model;
+    }
+
     public String getProfile() {
         return profile;
     }
 
-    public synchronized List<Language> detectAll(String text) {
-        if (!isStarted) {
-            load(settings);
-            init();
+    public List<String> getLanguages() {
+        return Collections.unmodifiableList(langlist);
+    }
+
+    /**
+     * Return the statistics of the detection result cache.
+     *
+     * @return the cache statistics, or null if the cache is disabled
+     */
+    public Cache.CacheStats getCacheStats() {
+        return cache != null ? cache.stats() : null;
+    }
+
+    /**
+     * Return the number of texts in the detection result cache.
+     *
+     * @return the number of texts, or 0 if the cache is disabled
+     */
+    public int getCacheCount() {
+        return cache != null ? cache.count() : 0;
+    }
+
+    /**
+     * Return the number of characters which are consumed at most for detecting the languages of a text.
+     *
+     * @return the maximum number of characters, or 0 if whole texts are consumed
+     */
+    public int getMaxChars() {
+        return maxChars;
+    }
+
+    /**
+     * Return the number of characters of the texts which have been detected by this service.
+     *
+     * @return the number of characters
+     */
+    public long getTotalChars() {
+        return totalChars.sum();
+    }
+
+    /**
+     * Return the number of characters which have been consumed for detecting texts by this service.
+     *
+     * @return the number of characters consumed
+     */
+    public long getConsumedChars() {
+        return consumedChars.sum();
+    }
+
+    /**
+     * Detect languages of a text. This method is thread safe, all scratch state (n-gram list,
+     * probability arrays, random generator) is confined to the calling thread.
+     *
+     * @param text the text
+     * @return the list of detected languages, sorted by descending probability
+     */
+    public List<Language> detectAll(CharSequence text) {
+        return detect(text).getLanguages();
+    }
+
+    /**
+     * Detect languages of a text, and count the characters consumed.
+     *
+     * If the result cache is enabled, the results of texts up to the maximum cache text length are cached,
+     * so repeated texts are detected only once. The detection is deterministic for a text, so a cached
+     * result equals a detected result.
+     *
+     * If max chars is set, texts longer than max chars are detected from evenly spaced windows
+     * of the text, see {@link #detect(Reader, long)}.
+     *
+     * @param text the text
+     * @return the detection
+     */
+    public Detection detect(CharSequence text) {
+        if (cache == null || text.length() > cacheMaxTextLength) {
+            return detectText(text);
         }
-        List<Language> languages = new ArrayList<>();
+        String key = text.toString();
+        Detection detection = cache.get(key);
+        if (detection == null) {
+            detection = detectText(text);
+            cache.put(key, detection);
+        }
+        return detection;
+    }
+
+    /**
+     * Detect languages of a text from a reader, without reading the whole text into memory.
+     *
+     * If max chars is set and the text is longer, the text is read in a number of evenly spaced windows
+     * of max chars in total, and the characters between the windows are skipped. The languages are
+     * detected again after each window, and no more windows are read once the probability of the most
+     * probable language reaches the window threshold.
+     *
+     * If a pattern is set, the text is not read in windows, because the pattern is matched against the text
+     * as a whole. At most max chars are read from the beginning of the text, and the pattern is matched
+     * against them only. Without max chars, the whole text is read into memory.
+     *
+     * @param reader the reader
+     * @param length the length of the text, or an upper bound of the length. This is used to space the windows,
+     *               the text is read in chunks of bounded size.
+     * @return the detection
+     * @throws IOException if the reader fails
+     */
+    public Detection detect(Reader reader, long length) throws IOException {
+        if (filterPattern != null) {
+            // the pattern must match the text read, which is bounded by max chars
+            long limit = maxChars > 0 ? maxChars : Long.MAX_VALUE;
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[8192];
+            int n;
+            while (sb.length() < limit &&
+                    (n = reader.read(buffer, 0, (int) Math.min(buffer.length, limit - sb.length()))) != -1) {
+                sb.append(buffer, 0, n);
+            }
+            return detectText(sb);
+        }
+        if (maxChars <= 0 || length <= maxChars) {
+            return detectWindows(reader, length, 1, length);
+        }
+        return detectWindows(reader, length, windows, Math.max(NGram.N_GRAM, maxChars / windows));
+    }
+
+    private Detection detectText(CharSequence text) {
         if (filterPattern != null && !filterPattern.matcher(text).matches()) {
-            return languages;
+            return new Detection(Collections.emptyList(), 0L);
+        }
+        if (maxChars > 0 && text.length() > maxChars) {
+            try {
+                return detectWindows(new CharSequenceReader(text), text.length(), windows,
+                        Math.max(NGram.N_GRAM, maxChars / windows));
+            } catch (IOException e) {
+                // can not happen
+                throw new UncheckedIOException(e);
+            }
+        }
+        List<Language> languages = new ArrayList<>();
+        IntsRefBuilder list = gramIds.get();
+        try {
+            new NGram().scan(text, model, list);
+            languages = sortProbability(languages, detectBlock(list));
+        } finally {
+            list.clear();
+            if (list.ints().length > MAX_RETAINED_GRAMS) {
+                gramIds.remove();
+            }
         }
-        List<String> list = new ArrayList<>();
-        languages = sortProbability(languages, detectBlock(list, text));
-        return languages.subList(0, Math.min(languages.size(), settings.getAsInt("max", languages.size())));
+        totalChars.add(text.length());
+        consumedChars.add(text.length());
+        return new Detection(languages.subList(0, Math.min(languages.size(), max)), text.length());
     }
 
-    private double[] detectBlock(List<String> list, String string) {
-        // clean all non-work characters from text
-        String text = string.replaceAll(word.pattern(), " ");
-        extractNGrams(list, text);
+    private Detection detectWindows(Reader reader, long length, int count, long size) throws IOException {
+        // a window is scanned in chunks, so the buffer does not depend on the window size or the declared length
+        char[] buffer = new char[(int) Math.max(2L, Math.min(size, CHUNK_SIZE))];
         double[] langprob = new double[langlist.size()];
-        if (list.isEmpty()) {
+        long position = 0L;
+        long consumed = 0L;
+        IntsRefBuilder list = gramIds.get();
+        try {
+            for (int i = 0; i < count; i++) {
+                long start = count > 1 ? i * (length - size) / (count - 1) : 0L;
+                if (skip(reader, start - position) < start - position) {
+                    break;
+                }
+                // windows are not contiguous, so the n-grams of a window do not continue the last window
+                NGram ngram = new NGram();
+                long n = 0L;
+                int carry = 0;
+                while (n < size) {
+                    int len = (int) Math.min(buffer.length - carry, size - n);
+                    int k = read(reader, buffer, carry, len);
+                    n += k;
+                    int end = carry + k;
+                    carry = 0;
+                    if (k == len && n < size && Character.isHighSurrogate(buffer[end - 1])) {
+                        // keep a surrogate pair together for the next chunk
+                        end--;
+                        carry = 1;
+                    }
+                    ngram.scan(CharBuffer.wrap(buffer, 0, end), model, list);
+                    if (carry > 0) {
+                        buffer[0] = buffer[end];
+                    }
+                    if (k < len) {
+                        break;
+                    }
+                }
+                position = start + n;
+                consumed += n;
+                if (n > 0) {
+                    langprob = detectBlock(list);
+                }
+                if (n < size || maxProbability(langprob) >= windowThreshold) {
+                    break;
+                }
+            }
+        } finally {
+            list.clear();
+            if (list.ints().length > MAX_RETAINED_GRAMS) {
+                gramIds.remove();
+            }
+        }
+        totalChars.add(Math.max(length, consumed));
+        consumedChars.add(consumed);
+        List<Language> languages = sortProbability(new ArrayList<>(), langprob);
+        return new Detection(languages.subList(0, Math.min(languages.size(), max)), consumed);
+    }
+
+    private static long skip(Reader reader, long n) throws IOException {
+        long skipped = 0L;
+        while (skipped < n) {
+            long k = reader.skip(n - skipped);
+            if (k <= 0) {
+                break;
+            }
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    private static int read(Reader reader, char[] buffer, int offset, int length) throws IOException {
+        int len = 0;
+        while (len < length) {
+            int n = reader.read(buffer, offset + len, length - len);
+            if (n < 0) {
+                break;
+            }
+            len += n;
+        }
+        return len;
+    }
+
+    private static double maxProbability(double[] prob) {
+        double maxp = 0d;
+        for (double p : prob) {
+            maxp = Math.max(maxp, p);
+        }
+        return maxp;
+    }
+
+    /**
+     * Detect languages of a char array slice, for example the text buffer of a parser.
+     *
+     * @param chars the chars
+     * @param offset the offset
+     * @param length the length
+     * @return the list of detected languages, sorted by descending probability
+     */
+    public List<Language> detectAll(char[] chars, int offset, int length) {
+        return detectAll(CharBuffer.wrap(chars, offset, length));
+    }
+
+    private double[] detectBlock(IntsRefBuilder list) {
+        double[] langprob = new double[langlist.size()];
+        if (list.length() == 0) {
             return langprob;
         }
-        Random rand = new SecureRandom();
-        Long seed = 0L;
-        rand.setSeed(seed);
+        return mode == Mode.NAIVE_BAYES ? naiveBayes(list, langprob) : sample(list, langprob);
+    }
+
+    /**
+     * Average the language probabilities of random walks over the n-grams. The random generator is seeded
+     * per text, so the result of a text does not change between calls. If a trial tolerance is set,
+     * no more trials are run once a trial moves none of the averaged probabilities by more than the tolerance.
+     */
+    private double[] sample(IntsRefBuilder list, double[] langprob) {
+        SplittableRandom rand = new SplittableRandom(seed);
+        double[] prob = new double[langprob.length];
         for (int t = 0; t < nTrial; ++t) {
-            double[] prob = initProbability();
-            double a = this.alpha + rand.nextGaussian() * alphaWidth;
+            initProbability(prob);
+            double a = this.alpha + nextGaussian(rand) * alphaWidth;
             for (int i = 0; ; ++i) {
-                int r = rand.nextInt(list.size());
-                updateLangProb(prob, list.get(r), a);
+                int r = rand.nextInt(list.length());
+                updateLangProb(prob, list.intAt(r), a);
                 if (i % 5 == 0 && normalizeProb(prob) > convThreshold || i >= iterationLimit) {
                     break;
                 }
             }
+            double delta = 0d;
             for (int j = 0; j < langprob.length; ++j) {
-                langprob[j] += prob[j] / nTrial;
+                double p = langprob[j] + (prob[j] - langprob[j]) / (t + 1);
+                delta = Math.max(delta, Math.abs(p - langprob[j]));
+                langprob[j] = p;
+            }
+            if (t > 0 && delta < trialTolerance) {
+                break;
             }
         }
         return langprob;
     }
 
-    private double[] initProbability() {
-        double[] prob = new double[langlist.size()];
+    /**
+     * Sum the smoothed log probabilities of all n-grams and normalize the result.
+     */
+    private double[] naiveBayes(IntsRefBuilder list, double[] langprob) {
+        initProbability(langprob);
+        for (int j = 0; j < langprob.length; ++j) {
+            langprob[j] = Math.log(langprob[j]);
+        }
+        double weight = alpha / baseFreq;
+        for (int i = 0; i < list.length(); ++i) {
+            model.updateLog(langprob, list.intAt(i), weight);
+        }
+        double maxlog = Double.NEGATIVE_INFINITY;
+        for (double l : langprob) {
+            maxlog = Math.max(maxlog, l);
+        }
+        for (int j = 0; j < langprob.length; ++j) {
+            langprob[j] = Math.exp(langprob[j] - maxlog);
+        }
+        normalizeProb(langprob);
+        return langprob;
+    }
+
+    private void initProbability(double[] prob) {
         if (priorMap != null) {
             System.arraycopy(priorMap, 0, prob, 0, prob.length);
         } else {
-            for (int i = 0; i < prob.length; ++i) {
-                prob[i] = 1.0 / langlist.size();
-            }
+            Arrays.fill(prob, 1.0 / langlist.size());
         }
-        return prob;
     }
 
-    private void extractNGrams(List<String> list, String text) {
-        NGram ngram = new NGram();
-        for (int i = 0; i < text.length(); ++i) {
-            ngram.addChar(text.charAt(i));
-            for (int n = 1; n <= NGram.N_GRAM; ++n) {
-                String w = ngram.get(n);
-                if (w != null && wordLangProbMap.containsKey(w)) {
-                    list.add(w);
-                }
-            }
-        }
+    /**
+     * Marsaglia polar method, as in {@link java.util.Random#nextGaussian()}.
+     */
+    private static double nextGaussian(SplittableRandom rand) {
+        double v1;
+        double v2;
+        double s;
+        do {
+            v1 = 2 * rand.nextDouble() - 1;
+            v2 = 2 * rand.nextDouble() - 1;
+            s = v1 * v1 + v2 * v2;
+        } while (s >= 1 || s == 0);
+        return v1 * StrictMath.sqrt(-2 * StrictMath.log(s) / s);
     }
 
-    private boolean updateLangProb(double[] prob, String word, double alpha) {
-        if (word == null || !wordLangProbMap.containsKey(word)) {
-            return false;
-        }
-        double[] langProbMap = wordLangProbMap.get(word);
-        double weight = alpha / baseFreq;
-        for (int i = 0; i < prob.length; ++i) {
-            prob[i] *= weight + langProbMap[i];
-        }
-        return true;
+    private void updateLangProb(double[] prob, int id, double alpha) {
+        model.update(prob, id, alpha / baseFreq);
     }
 
     private double normalizeProb(double[] prob) {
@@ -368,4 +763,42 @@ public class LangdetectService {
         }
         return list;
     }
+
+    /**
+     * A reader over a char sequence which skips without reading.
+     */
+    private static class CharSequenceReader extends Reader {
+
+        private final CharSequence text;
+
+        private int position;
+
+        CharSequenceReader(CharSequence text) {
+            this.text = text;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (position >= text.length()) {
+                return -1;
+            }
+            int n = Math.min(len, text.length() - position);
+            for (int i = 0; i < n; i++) {
+                cbuf[off + i] = text.charAt(position++);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int k = (int) Math.min(n, text.length() - position);
+            position += k;
+            return k;
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+    }
 }
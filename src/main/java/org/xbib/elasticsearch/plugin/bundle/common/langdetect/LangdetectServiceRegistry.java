@@ -0,0 +1,372 @@
+package org.xbib.elasticsearch.plugin.bundle.common.langdetect;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A node-wide registry of language models. Services created with equal languages, profile, and map settings
+ * share one language model, so each model is loaded only once per node, however many mappers use it.
+ *
+ * Mappers have no close hook, so the services handed out are tracked by weak references. A model is
+ * released from the registry when no service which uses it is reachable any more.
+ */
+public class LangdetectServiceRegistry {
+
+    private static final Logger logger = LogManager.getLogger(LangdetectServiceRegistry.class.getName());
+
+    private final ConcurrentMap<Settings, Entry> entries = new ConcurrentHashMap<>();
+
+    private final ReferenceQueue<LangdetectService> queue = new ReferenceQueue<>();
+
+    /**
+     * The references must be reachable until they are enqueued.
+     */
+    private final Set<ServiceReference> references = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Return a language detection service for the given settings, with a shared language model.
+     *
+     * @param settings the settings
+     * @return the language detection service
+     */
+    public LangdetectService getOrCreate(Settings settings) {
+        expunge();
+        if (settings.isEmpty()) {
+            // empty service, nothing to share
+            return new LangdetectService(settings);
+        }
+        Settings key = modelSettings(settings);
+        // the model is loaded while the entry is locked, so concurrent callers wait for it instead of loading it again
+        Entry entry = entries.compute(key, (k, e) -> {
+            Entry en = e != null ? e : new Entry(new LangdetectService(settings));
+            en.references++;
+            return en;
+        });
+        LangdetectService service = new LangdetectService(settings, entry.model);
+        references.add(new ServiceReference(service, key, queue, entry));
+        return service;
+    }
+
+    /**
+     * Return the statistics of the models in this registry. The result cache statistics and the character
+     * counts of a model are summed over the services which use the model and are still reachable.
+     *
+     * @return the statistics
+     */
+    public Stats stats() {
+        expunge();
+        List<ModelStats> list = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            CacheStats cacheStats = new CacheStats();
+            long totalChars = 0L;
+            long consumedChars = 0L;
+            for (ServiceReference reference : references) {
+                LangdetectService service = reference.entry == entry ? reference.get() : null;
+                if (service != null) {
+                    cacheStats.add(service);
+                    totalChars += service.getTotalChars();
+                    consumedChars += service.getConsumedChars();
+                }
+            }
+            LangdetectService model = entry.model;
+            list.add(new ModelStats(model.getProfile(), model.getLanguages(), entry.references,
+                    model.getModel().size(), model.getModel().ramBytesUsed(), cacheStats,
+                    totalChars, consumedChars));
+        }
+        return new Stats(list);
+    }
+
+    private void expunge() {
+        Reference<? extends LangdetectService> ref;
+        while ((ref = queue.poll()) != null) {
+            ServiceReference serviceReference = (ServiceReference) ref;
+            references.remove(serviceReference);
+            Entry entry = serviceReference.entry;
+            entries.computeIfPresent(serviceReference.key, (k, e) -> {
+                if (e != entry) {
+                    return e;
+                }
+                e.references--;
+                if (e.references <= 0) {
+                    logger.debug("releasing language model for {}", k);
+                    return null;
+                }
+                return e;
+            });
+        }
+    }
+
+    /**
+     * The settings which define a language model.
+     */
+    private static Settings modelSettings(Settings settings) {
+        return Settings.builder()
+                .put(settings.filter(key -> key.equals("languages") || key.equals("languages_short_text") ||
+                        key.equals("profile") || key.equals("map") || key.startsWith("map.")))
+                .build();
+    }
+
+    private static class Entry {
+
+        private final LangdetectService model;
+
+        /**
+         * Only modified within compute on the map entry.
+         */
+        private volatile int references;
+
+        Entry(LangdetectService model) {
+            this.model = model;
+        }
+    }
+
+    private static class ServiceReference extends WeakReference<LangdetectService> {
+
+        private final Settings key;
+
+        private final Entry entry;
+
+        ServiceReference(LangdetectService service, Settings key, ReferenceQueue<LangdetectService> queue,
+                         Entry entry) {
+            super(service, queue);
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Statistics of the language models in a registry.
+     */
+    public static class Stats implements ToXContentObject {
+
+        private final List<ModelStats> models;
+
+        Stats(List<ModelStats> models) {
+            this.models = Collections.unmodifiableList(models);
+        }
+
+        public List<ModelStats> getModels() {
+            return models;
+        }
+
+        public long getReferences() {
+            long references = 0L;
+            for (ModelStats model : models) {
+                references += model.getReferences();
+            }
+            return references;
+        }
+
+        public long getRamBytesUsed() {
+            long bytes = 0L;
+            for (ModelStats model : models) {
+                bytes += model.getRamBytesUsed();
+            }
+            return bytes;
+        }
+
+        public CacheStats getCacheStats() {
+            CacheStats cacheStats = new CacheStats();
+            for (ModelStats model : models) {
+                cacheStats.add(model.getCacheStats());
+            }
+            return cacheStats;
+        }
+
+        public long getTotalChars() {
+            long chars = 0L;
+            for (ModelStats model : models) {
+                chars += model.getTotalChars();
+            }
+            return chars;
+        }
+
+        public long getConsumedChars() {
+            long chars = 0L;
+            for (ModelStats model : models) {
+                chars += model.getConsumedChars();
+            }
+            return chars;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("count", models.size());
+            builder.field("references", getReferences());
+            builder.field("ram_bytes_used", getRamBytesUsed());
+            builder.field("cache");
+            getCacheStats().toXContent(builder, params);
+            builder.startObject("chars");
+            builder.field("total", getTotalChars());
+            builder.field("consumed", getConsumedChars());
+            builder.endObject();
+            builder.startArray("models");
+            for (ModelStats model : models) {
+                model.toXContent(builder, params);
+            }
+            builder.endArray();
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    /**
+     * Statistics of a language model.
+     */
+    public static class ModelStats implements ToXContentObject {
+
+        private final String profile;
+
+        private final List<String> languages;
+
+        private final int references;
+
+        private final int ngrams;
+
+        private final long ramBytesUsed;
+
+        private final CacheStats cacheStats;
+
+        private final long totalChars;
+
+        private final long consumedChars;
+
+        ModelStats(String profile, List<String> languages, int references, int ngrams, long ramBytesUsed,
+                   CacheStats cacheStats, long totalChars, long consumedChars) {
+            this.profile = profile;
+            this.languages = languages;
+            this.references = references;
+            this.ngrams = ngrams;
+            this.ramBytesUsed = ramBytesUsed;
+            this.cacheStats = cacheStats;
+            this.totalChars = totalChars;
+            this.consumedChars = consumedChars;
+        }
+
+        public String getProfile() {
+            return profile;
+        }
+
+        public List<String> getLanguages() {
+            return languages;
+        }
+
+        public int getReferences() {
+            return references;
+        }
+
+        public int getNGrams() {
+            return ngrams;
+        }
+
+        public long getRamBytesUsed() {
+            return ramBytesUsed;
+        }
+
+        public CacheStats getCacheStats() {
+            return cacheStats;
+        }
+
+        public long getTotalChars() {
+            return totalChars;
+        }
+
+        public long getConsumedChars() {
+            return consumedChars;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            if (profile != null) {
+                builder.field("profile", profile);
+            }
+            builder.field("languages", languages);
+            builder.field("references", references);
+            builder.field("ngrams", ngrams);
+            builder.field("ram_bytes_used", ramBytesUsed);
+            builder.field("cache");
+            cacheStats.toXContent(builder, params);
+            builder.startObject("chars");
+            builder.field("total", totalChars);
+            builder.field("consumed", consumedChars);
+            builder.endObject();
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    /**
+     * Statistics of the detection result caches.
+     */
+    public static class CacheStats implements ToXContentObject {
+
+        private long count;
+
+        private long hits;
+
+        private long misses;
+
+        private long evictions;
+
+        void add(LangdetectService service) {
+            Cache.CacheStats stats = service.getCacheStats();
+            if (stats != null) {
+                count += service.getCacheCount();
+                hits += stats.getHits();
+                misses += stats.getMisses();
+                evictions += stats.getEvictions();
+            }
+        }
+
+        void add(CacheStats other) {
+            count += other.count;
+            hits += other.hits;
+            misses += other.misses;
+            evictions += other.evictions;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("count", count);
+            builder.field("hits", hits);
+            builder.field("misses", misses);
+            builder.field("evictions", evictions);
+            builder.endObject();
+            return builder;
+        }
+    }
+}
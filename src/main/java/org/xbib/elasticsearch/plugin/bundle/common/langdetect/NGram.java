@@ -1,15 +1,19 @@
 package org.xbib.elasticsearch.plugin.bundle.common.langdetect;
 
+import org.apache.lucene.util.IntsRefBuilder;
+
 import java.lang.Character.UnicodeBlock;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * N-grams for languague detection.
  */
 public class NGram {
 
-    private static final Map<Character, Character> cjk_map = new HashMap<>();
+    private static final char CJK_MIN = '\u4e00';
+
+    private static final char CJK_MAX = '\u9fff';
+
+    private static final char[] cjk_map = new char[CJK_MAX - CJK_MIN + 1];
 
     public static final  int N_GRAM = 3;
 
@@ -483,16 +487,26 @@ public class NGram {
         for (String cjk_list : CJK_CLASS) {
             char representative = cjk_list.charAt(0);
             for (int i = 0; i < cjk_list.length(); ++i) {
-                cjk_map.put(cjk_list.charAt(i), representative);
+                cjk_map[cjk_list.charAt(i) - CJK_MIN] = representative;
             }
         }
     }
 
-    private StringBuilder grams;
+    private final char[] grams;
+    private int length;
     private boolean capitalword;
 
     public NGram() {
-        grams = new StringBuilder(" ");
+        grams = new char[N_GRAM];
+        reset();
+    }
+
+    /**
+     * Reset this n-gram to the start of a text, so the instance can be reused.
+     */
+    public void reset() {
+        grams[0] = ' ';
+        length = 1;
         capitalword = false;
     }
 
@@ -524,8 +538,8 @@ public class NGram {
         } else if (block == UnicodeBlock.BOPOMOFO || block == UnicodeBlock.BOPOMOFO_EXTENDED) {
             ch = '\u3105';
         } else if (block == UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS) {
-            if (cjk_map.containsKey(ch)) {
-                ch = cjk_map.get(ch);
+            if (ch >= CJK_MIN && ch <= CJK_MAX && cjk_map[ch - CJK_MIN] != 0) {
+                ch = cjk_map[ch - CJK_MIN];
             }
         } else if (block == UnicodeBlock.HANGUL_SYLLABLES) {
             ch = '\uac00';
@@ -535,17 +549,17 @@ public class NGram {
 
     public void addChar(char c) {
         char ch = normalize(c);
-        char lastchar = grams.charAt(grams.length() - 1);
+        char lastchar = grams[length - 1];
         if (lastchar == ' ') {
-            grams = new StringBuilder(" ");
-            capitalword = false;
+            reset();
             if (ch == ' ') {
                 return;
             }
-        } else if (grams.length() >= N_GRAM) {
-            grams.deleteCharAt(0);
+        } else if (length >= N_GRAM) {
+            System.arraycopy(grams, 1, grams, 0, N_GRAM - 1);
+            length--;
         }
-        grams.append(ch);
+        grams[length++] = ch;
         if (Character.isUpperCase(ch)) {
             if (Character.isUpperCase(lastchar)) {
                 capitalword = true;
@@ -559,18 +573,101 @@ public class NGram {
         if (capitalword) {
             return null;
         }
-        int len = grams.length();
-        if (n < 1 || n > 3 || len < n) {
+        if (n < 1 || n > 3 || length < n) {
             return null;
         }
         if (n == 1) {
-            char ch = grams.charAt(len - 1);
+            char ch = grams[length - 1];
             if (ch == ' ') {
                 return null;
             }
             return Character.toString(ch);
         } else {
-            return grams.substring(len - n, len);
+            return new String(grams, length - n, n);
+        }
+    }
+
+    /**
+     * Get the packed key of the n-gram, without creating a string.
+     *
+     * @param n the gram length
+     * @return the key as created by {@link NGramModel#key(CharSequence)}, or zero if there is no n-gram
+     */
+    public long getKey(int n) {
+        if (capitalword) {
+            return 0L;
+        }
+        if (n < 1 || n > 3 || length < n) {
+            return 0L;
+        }
+        if (n == 1) {
+            char ch = grams[length - 1];
+            if (ch == ' ') {
+                return 0L;
+            }
+            return NGramModel.key(ch);
+        } else if (n == 2) {
+            return NGramModel.key(grams[length - 2], grams[length - 1]);
+        } else {
+            return NGramModel.key(grams[length - 3], grams[length - 2], grams[length - 1]);
+        }
+    }
+
+    /**
+     * Scan a text for n-grams known to a model and append their ids to a buffer. This is equivalent
+     * to replacing all {@code [\P{IsWord}]} matches by a space and feeding each char of the result
+     * to {@link #addChar(char)}, but works in a single pass over the original chars
+     * without creating intermediate strings.
+     *
+     * @param text the text
+     * @param model the n-gram model
+     * @param ids the buffer for the gram ids
+     */
+    public void scan(CharSequence text, NGramModel model, IntsRefBuilder ids) {
+        int len = text.length();
+        int i = 0;
+        while (i < len) {
+            char c = text.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(i + 1));
+                if (isWord(cp)) {
+                    // the regex matcher keeps the high surrogate, but then replaces the low surrogate on its own
+                    add(c, model, ids);
+                    add(' ', model, ids);
+                } else {
+                    add(' ', model, ids);
+                }
+                i += 2;
+            } else {
+                add(isWord(c) ? c : ' ', model, ids);
+                i++;
+            }
         }
     }
+
+    private void add(char c, NGramModel model, IntsRefBuilder ids) {
+        addChar(c);
+        for (int n = 1; n <= N_GRAM; n++) {
+            int id = model.get(getKey(n));
+            if (id >= 0) {
+                ids.append(id);
+            }
+        }
+    }
+
+    /**
+     * Same as the Unicode {@code \p{IsWord}} character class of {@link java.util.regex.Pattern}.
+     *
+     * @param cp the code point
+     * @return true if the code point is a word character
+     */
+    public static boolean isWord(int cp) {
+        return Character.isAlphabetic(cp) ||
+                ((((1 << Character.NON_SPACING_MARK) |
+                        (1 << Character.ENCLOSING_MARK) |
+                        (1 << Character.COMBINING_SPACING_MARK) |
+                        (1 << Character.DECIMAL_DIGIT_NUMBER) |
+                        (1 << Character.CONNECTOR_PUNCTUATION)) >> Character.getType(cp)) & 1) != 0 ||
+                (cp & ~1) == 0x200c;
+    }
 }
@@ -0,0 +1,209 @@
+package org.xbib.elasticsearch.plugin.bundle.common.langdetect;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Arrays;
+
+/**
+ * A compact n-gram language model. N-grams of up to three chars are packed into a primitive long key,
+ * held in an open addressing hash table which maps them to a gram id. The language probabilities are
+ * stored in one flat float matrix, indexed by gram id times number of languages plus language index.
+ */
+public class NGramModel implements Accountable {
+
+    private static final long EMPTY = 0L;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int languages;
+
+    private long[] keys;
+
+    private int[] ids;
+
+    private float[] probs;
+
+    private int size;
+
+    private int mask;
+
+    public NGramModel() {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.ids = new int[INITIAL_CAPACITY];
+        this.probs = new float[0];
+        this.mask = INITIAL_CAPACITY - 1;
+    }
+
+    /**
+     * Pack a gram of one to three chars into a key. The gram length is encoded in the upper bits,
+     * so a valid key is never zero.
+     *
+     * @param gram the gram
+     * @return the key, or zero if the gram length is not supported
+     */
+    public static long key(CharSequence gram) {
+        int len = gram.length();
+        if (len < 1 || len > NGram.N_GRAM) {
+            return EMPTY;
+        }
+        long key = len;
+        for (int i = 0; i < len; i++) {
+            key = (key << 16) | gram.charAt(i);
+        }
+        return key;
+    }
+
+    public static long key(char c1) {
+        return (1L << 16) | c1;
+    }
+
+    public static long key(char c1, char c2) {
+        return (((2L << 16) | c1) << 16) | c2;
+    }
+
+    public static long key(char c1, char c2, char c3) {
+        return (((((3L << 16) | c1) << 16) | c2) << 16) | c3;
+    }
+
+    /**
+     * Make room for the given number of languages per gram.
+     *
+     * @param languages number of languages
+     */
+    public void ensureLanguages(int languages) {
+        if (languages <= this.languages) {
+            return;
+        }
+        float[] newProbs = new float[Math.max(size, 1) * languages];
+        for (int id = 0; id < size; id++) {
+            System.arraycopy(probs, id * this.languages, newProbs, id * languages, this.languages);
+        }
+        this.probs = newProbs;
+        this.languages = languages;
+    }
+
+    /**
+     * Return the id of a key, add the key if it does not exist.
+     *
+     * @param key the key
+     * @return the gram id
+     */
+    public int add(long key) {
+        int slot = slot(key);
+        if (keys[slot] == key) {
+            return ids[slot];
+        }
+        if (2 * (size + 1) > keys.length) {
+            rehash(keys.length << 1);
+            slot = slot(key);
+        }
+        int id = size++;
+        keys[slot] = key;
+        ids[slot] = id;
+        if ((id + 1) * languages > probs.length) {
+            probs = Arrays.copyOf(probs, Math.max(probs.length << 1, (id + 1) * languages));
+        }
+        return id;
+    }
+
+    /**
+     * Look up a key.
+     *
+     * @param key the key
+     * @return the gram id, or -1 if the key does not exist
+     */
+    public int get(long key) {
+        if (key == EMPTY) {
+            return -1;
+        }
+        int slot = slot(key);
+        return keys[slot] == key ? ids[slot] : -1;
+    }
+
+    public void set(int id, int language, double prob) {
+        probs[id * languages + language] = (float) prob;
+    }
+
+    public double get(int id, int language) {
+        return probs[id * languages + language];
+    }
+
+    /**
+     * Multiply each language probability with the weighted probabilities of a gram.
+     *
+     * @param prob the language probabilities
+     * @param id the gram id
+     * @param weight the weight
+     */
+    public void update(double[] prob, int id, double weight) {
+        int offset = id * languages;
+        for (int i = 0; i < prob.length; i++) {
+            prob[i] *= weight + probs[offset + i];
+        }
+    }
+
+    /**
+     * Add the logarithms of the weighted probabilities of a gram to each language log probability.
+     *
+     * @param logprob the language log probabilities
+     * @param id the gram id
+     * @param weight the weight
+     */
+    public void updateLog(double[] logprob, int id, double weight) {
+        int offset = id * languages;
+        for (int i = 0; i < logprob.length; i++) {
+            logprob[i] += Math.log(weight + probs[offset + i]);
+        }
+    }
+
+    /**
+     * Release unused capacity of the probability matrix after the model has been loaded.
+     */
+    public void trim() {
+        if (probs.length > size * languages) {
+            probs = Arrays.copyOf(probs, size * languages);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int languages() {
+        return languages;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(keys) + RamUsageEstimator.sizeOf(ids) + RamUsageEstimator.sizeOf(probs);
+    }
+
+    private int slot(long key) {
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldIds = ids;
+        this.keys = new long[capacity];
+        this.ids = new int[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
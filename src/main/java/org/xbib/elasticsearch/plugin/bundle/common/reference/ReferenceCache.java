@@ -0,0 +1,185 @@
+package org.xbib.elasticsearch.plugin.bundle.common.reference;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A node-wide cache of the values of referenced documents, by index, type and id. The cache is bounded by the
+ * estimated size of the values and expires entries after a time to live. If entries are verified, a cached entry
+ * is only used after the version of the referenced document has been found unchanged, which costs a get request
+ * without the source, but no transfer and no parsing of the source. Entries are verified when the references of
+ * a shard bulk request are resolved in advance. A reference which is looked up while a document is parsed takes
+ * the cached entry without verification, so a changed referenced document may be seen with its old values until
+ * the time to live has passed. A referenced index which is deleted and created again may repeat versions, such
+ * entries are only replaced after the time to live.
+ *
+ * The cache is configured by the node settings
+ * {@code plugins.xbib.reference.cache.max_bytes} (0 disables the cache),
+ * {@code plugins.xbib.reference.cache.ttl}, and {@code plugins.xbib.reference.cache.verify}.
+ */
+public class ReferenceCache {
+
+    private final Cache<String, ReferenceValues> cache;
+
+    private final boolean verify;
+
+    private final LongAdder stale;
+
+    public ReferenceCache(Settings settings) {
+        ByteSizeValue maxBytes = settings.getAsBytesSize("plugins.xbib.reference.cache.max_bytes",
+                new ByteSizeValue(10L * 1024L * 1024L));
+        TimeValue ttl = settings.getAsTime("plugins.xbib.reference.cache.ttl", TimeValue.timeValueHours(1L));
+        this.cache = maxBytes.getBytes() > 0L ? CacheBuilder.<String, ReferenceValues>builder()
+                .setMaximumWeight(maxBytes.getBytes())
+                .weigher((key, values) -> 2L * key.length() + values.sizeInBytes())
+                .setExpireAfterWrite(ttl)
+                .build() : null;
+        this.verify = settings.getAsBoolean("plugins.xbib.reference.cache.verify", true);
+        this.stale = new LongAdder();
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Return true if cached entries must be verified by the version of the referenced document.
+     *
+     * @return true if entries are verified
+     */
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     * Return the cached values of a referenced document, if they contain the values of all given fields.
+     *
+     * @param index the index
+     * @param type the type
+     * @param id the id
+     * @param fields the fields
+     * @return the values, or null
+     */
+    public ReferenceValues get(String index, String type, String id, Collection<String> fields) {
+        if (cache == null) {
+            return null;
+        }
+        ReferenceValues values = cache.get(key(index, type, id));
+        return values != null && values.containsAll(fields) ? values : null;
+    }
+
+    /**
+     * Cache the values of a referenced document. Values of missing documents are not cached, because the
+     * documents may be created later.
+     *
+     * @param index the index
+     * @param type the type
+     * @param id the id
+     * @param values the values
+     */
+    public void put(String index, String type, String id, ReferenceValues values) {
+        if (cache != null && values.exists()) {
+            cache.put(key(index, type, id), values);
+        }
+    }
+
+    /**
+     * Remove the values of a referenced document which has been found changed or deleted.
+     *
+     * @param index the index
+     * @param type the type
+     * @param id the id
+     */
+    public void invalidate(String index, String type, String id) {
+        if (cache != null) {
+            stale.increment();
+            cache.invalidate(key(index, type, id));
+        }
+    }
+
+    public Stats stats() {
+        if (cache == null) {
+            return new Stats(0, 0L, 0L, 0L, 0L, 0L);
+        }
+        Cache.CacheStats stats = cache.stats();
+        return new Stats(cache.count(), cache.weight(), stats.getHits(), stats.getMisses(), stats.getEvictions(),
+                stale.sum());
+    }
+
+    private static String key(String index, String type, String id) {
+        return index + '/' + type + '/' + id;
+    }
+
+    /**
+     * Statistics of the reference cache.
+     */
+    public static class Stats implements ToXContentObject {
+
+        private final int count;
+
+        private final long sizeInBytes;
+
+        private final long hits;
+
+        private final long misses;
+
+        private final long evictions;
+
+        private final long stale;
+
+        Stats(int count, long sizeInBytes, long hits, long misses, long evictions, long stale) {
+            this.count = count;
+            this.sizeInBytes = sizeInBytes;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.stale = stale;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getSizeInBytes() {
+            return sizeInBytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getStale() {
+            return stale;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("count", count);
+            builder.field("size_in_bytes", sizeInBytes);
+            builder.field("hits", hits);
+            builder.field("misses", misses);
+            builder.field("evictions", evictions);
+            builder.field("stale", stale);
+            builder.endObject();
+            return builder;
+        }
+    }
+}
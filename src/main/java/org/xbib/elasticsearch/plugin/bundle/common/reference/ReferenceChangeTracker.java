@@ -0,0 +1,437 @@
+package org.xbib.elasticsearch.plugin.bundle.common.reference;
+
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.AliasOrIndex;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.shard.IndexingOperationListener;
+import org.elasticsearch.index.shard.ShardId;
+import org.xbib.elasticsearch.plugin.bundle.index.mapper.reference.ReferenceMapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the changes of referenced documents, so the {@link ReferencePropagationJob} can index the referring
+ * documents again with the new values.
+ *
+ * The reference fields of all mappings in the cluster are collected whenever indices are created or deleted, or
+ * mappings or aliases change. Changes of documents in referenced indices are recorded on the node of the primary
+ * shard, so each change is recorded once in the cluster. Changes made by the propagation job itself are not
+ * recorded, so references which form a cycle do not propagate forever.
+ *
+ * Pending changes are kept on the heap, and are saved by the propagation job, so they survive a restart of the
+ * node. If there are too many pending changes, a change is dropped, and a repair of its referenced index and
+ * type is recorded instead, which makes the propagation job index all referring documents again.
+ */
+public class ReferenceChangeTracker implements IndexingOperationListener, ClusterStateListener {
+
+    private static final Logger logger = LogManager.getLogger(ReferenceChangeTracker.class.getName());
+
+    /**
+     * The request header which marks the requests of the propagation job.
+     */
+    public static final String PROPAGATION_HEADER = "_xbib_reference_propagation";
+
+    private final ThreadContext threadContext;
+
+    private final ReferenceCache cache;
+
+    private final int maxPending;
+
+    private final Map<Change, Long> pending;
+
+    private final List<Change> unsaved;
+
+    private final LongAdder recorded;
+
+    private final LongAdder dropped;
+
+    private volatile Map<String, List<Target>> targets;
+
+    private long sequence;
+
+    public ReferenceChangeTracker(Settings settings, ThreadContext threadContext, ReferenceCache cache) {
+        this.threadContext = threadContext;
+        this.cache = cache;
+        this.maxPending = settings.getAsInt("plugins.xbib.reference.propagation.max_pending", 100000);
+        this.pending = new LinkedHashMap<>();
+        this.unsaved = new ArrayList<>();
+        this.recorded = new LongAdder();
+        this.dropped = new LongAdder();
+        this.targets = Collections.emptyMap();
+    }
+
+    @Override
+    public void clusterChanged(ClusterChangedEvent event) {
+        if (referencesChanged(event)) {
+            targets = targets(event.state().metaData());
+        }
+    }
+
+    /**
+     * Check if the reference fields may have changed, because an index was created or deleted, or the mappings
+     * or aliases of an index have changed. Other changes of the metadata, for example of settings or of the
+     * in-sync allocations, do not affect the reference fields.
+     */
+    private static boolean referencesChanged(ClusterChangedEvent event) {
+        if (!event.metaDataChanged()) {
+            return false;
+        }
+        MetaData metaData = event.state().metaData();
+        MetaData previousMetaData = event.previousState().metaData();
+        if (metaData.indices().size() != previousMetaData.indices().size()) {
+            return true;
+        }
+        for (ObjectCursor<IndexMetaData> cursor : metaData.indices().values()) {
+            IndexMetaData indexMetaData = cursor.value;
+            IndexMetaData previousIndexMetaData = previousMetaData.index(indexMetaData.getIndex());
+            if (previousIndexMetaData == null) {
+                return true;
+            }
+            if (indexMetaData != previousIndexMetaData &&
+                    (!indexMetaData.getMappings().equals(previousIndexMetaData.getMappings()) ||
+                    !indexMetaData.getAliases().equals(previousIndexMetaData.getAliases()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void postIndex(ShardId shardId, Engine.Index index, Engine.IndexResult result) {
+        if (result.getResultType() == Engine.Result.Type.SUCCESS) {
+            record(shardId, index, index.type(), index.id());
+        }
+    }
+
+    @Override
+    public void postDelete(ShardId shardId, Engine.Delete delete, Engine.DeleteResult result) {
+        if (result.getResultType() == Engine.Result.Type.SUCCESS) {
+            record(shardId, delete, delete.type(), delete.id());
+        }
+    }
+
+    private void record(ShardId shardId, Engine.Operation operation, String type, String id) {
+        if (operation.origin() != Engine.Operation.Origin.PRIMARY ||
+                !targets.containsKey(key(shardId.getIndexName(), type)) ||
+                threadContext.getHeader(PROPAGATION_HEADER) != null) {
+            return;
+        }
+        Change change = new Change(shardId.getIndexName(), type, id);
+        cache.invalidate(change.index, change.type, change.id);
+        synchronized (pending) {
+            if (pending.size() >= maxPending && !pending.containsKey(change)) {
+                dropped.increment();
+                // repair all referring documents, recorded again if a pass of an earlier repair is under way
+                Change repair = new Change(change.index, change.type, null);
+                if (pending.put(repair, ++sequence) == null) {
+                    unsaved.add(repair);
+                    logger.warn("more than {} pending reference changes, dropping changes of {}/{}, " +
+                            "all referring documents will be indexed again", maxPending, change.index, change.type);
+                }
+                return;
+            }
+            if (pending.put(change, ++sequence) == null) {
+                unsaved.add(change);
+            }
+        }
+        recorded.increment();
+    }
+
+    /**
+     * Restore a pending change which has been saved before the node stopped.
+     *
+     * @param index the referenced index
+     * @param type the referenced type
+     * @param id the id of the referenced document, or null for a repair
+     */
+    public void restore(String index, String type, String id) {
+        Change change = new Change(index, type, id);
+        synchronized (pending) {
+            if (id != null && pending.size() >= maxPending && !pending.containsKey(change)) {
+                dropped.increment();
+                change = new Change(index, type, null);
+            }
+            pending.putIfAbsent(change, ++sequence);
+        }
+    }
+
+    /**
+     * Return the pending changes which have been recorded since the last call, so they can be saved.
+     *
+     * @return the unsaved changes
+     */
+    public List<Change> takeUnsaved() {
+        synchronized (pending) {
+            List<Change> list = new ArrayList<>(unsaved);
+            unsaved.clear();
+            return list;
+        }
+    }
+
+    /**
+     * Return changes which could not be saved, so they are saved again later. Changes which are no longer
+     * pending are ignored.
+     *
+     * @param changes the changes
+     */
+    public void unsaved(List<Change> changes) {
+        synchronized (pending) {
+            for (Change change : changes) {
+                if (pending.containsKey(change)) {
+                    unsaved.add(change);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the oldest pending changes of one referenced index and type, or a repair of one referenced index and
+     * type. The changes stay pending until they are completed.
+     *
+     * @param max the maximum number of changes
+     * @return the changes, with the sequence numbers at which they were recorded
+     */
+    public Map<Change, Long> take(int max) {
+        Map<Change, Long> map = new LinkedHashMap<>();
+        synchronized (pending) {
+            Change first = null;
+            for (Map.Entry<Change, Long> entry : pending.entrySet()) {
+                Change change = entry.getKey();
+                if (first == null) {
+                    first = change;
+                } else if (first.isRepair() || change.isRepair() ||
+                        !first.index.equals(change.index) || !first.type.equals(change.type)) {
+                    // a repair is taken on its own
+                    continue;
+                }
+                map.put(change, entry.getValue());
+                if (map.size() >= max) {
+                    break;
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Remove completed changes. A change which has been recorded again since it was taken stays pending.
+     *
+     * @param changes the changes, with the sequence numbers at which they were taken
+     * @return the changes which are no longer pending
+     */
+    public List<Change> complete(Map<Change, Long> changes) {
+        List<Change> list = new ArrayList<>();
+        synchronized (pending) {
+            for (Map.Entry<Change, Long> entry : changes.entrySet()) {
+                if (pending.remove(entry.getKey(), entry.getValue())) {
+                    list.add(entry.getKey());
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Return the reference fields which refer to documents of an index and type.
+     *
+     * @param index the referenced index
+     * @param type the referenced type
+     * @return the reference fields
+     */
+    public List<Target> getTargets(String index, String type) {
+        List<Target> list = targets.get(key(index, type));
+        return list != null ? list : Collections.emptyList();
+    }
+
+    public int getPending() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    public long getRecorded() {
+        return recorded.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Return the pending repairs of referenced indices and types whose changes have been dropped.
+     *
+     * @return the repairs
+     */
+    public List<Change> getRepairs() {
+        List<Change> list = new ArrayList<>();
+        synchronized (pending) {
+            for (Change change : pending.keySet()) {
+                if (change.isRepair()) {
+                    list.add(change);
+                }
+            }
+        }
+        return list;
+    }
+
+    private static Map<String, List<Target>> targets(MetaData metaData) {
+        Map<String, List<Target>> map = new HashMap<>();
+        for (ObjectCursor<IndexMetaData> indexMetaData : metaData.indices().values()) {
+            for (ObjectCursor<MappingMetaData> mappingMetaData : indexMetaData.value.getMappings().values()) {
+                Map<String, Object> mapping;
+                try {
+                    mapping = mappingMetaData.value.sourceAsMap();
+                } catch (RuntimeException e) {
+                    logger.warn("unable to read mapping of " + indexMetaData.value.getIndex(), e);
+                    continue;
+                }
+                List<String[]> fields = new ArrayList<>();
+                collect(mapping, null, fields);
+                for (String[] field : fields) {
+                    // a referenced index may be an alias
+                    AliasOrIndex aliasOrIndex = metaData.getAliasAndIndexLookup().get(field[1]);
+                    List<String> indices = new ArrayList<>();
+                    if (aliasOrIndex != null) {
+                        for (IndexMetaData referenced : aliasOrIndex.getIndices()) {
+                            indices.add(referenced.getIndex().getName());
+                        }
+                    } else {
+                        indices.add(field[1]);
+                    }
+                    for (String index : indices) {
+                        map.computeIfAbsent(key(index, field[2]), k -> new ArrayList<>())
+                                .add(new Target(indexMetaData.value.getIndex().getName(),
+                                        mappingMetaData.value.type(), field[0]));
+                    }
+                }
+            }
+        }
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void collect(Map<String, Object> mapping, String prefix, List<String[]> fields) {
+        Object properties = mapping.get("properties");
+        if (!(properties instanceof Map)) {
+            return;
+        }
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) properties).entrySet()) {
+            if (!(entry.getValue() instanceof Map)) {
+                continue;
+            }
+            String path = prefix != null ? prefix + "." + entry.getKey() : entry.getKey();
+            Map<String, Object> field = (Map<String, Object>) entry.getValue();
+            if (ReferenceMapper.CONTENT_TYPE.equals(field.get("type"))) {
+                Object refIndex = field.get("ref_index");
+                Object refType = field.get("ref_type");
+                if (refIndex != null && refType != null) {
+                    fields.add(new String[] { path, refIndex.toString(), refType.toString() });
+                }
+            } else {
+                collect(field, path, fields);
+            }
+        }
+    }
+
+    private static String key(String index, String type) {
+        return index + '/' + type;
+    }
+
+    /**
+     * A changed referenced document, or a repair of all referring documents of a referenced index and type,
+     * which has no id.
+     */
+    public static class Change {
+
+        private final String index;
+
+        private final String type;
+
+        private final String id;
+
+        Change(String index, String type, String id) {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public boolean isRepair() {
+            return id == null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Change)) {
+                return false;
+            }
+            Change change = (Change) o;
+            return index.equals(change.index) && type.equals(change.type) && Objects.equals(id, change.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(index, type, id);
+        }
+    }
+
+    /**
+     * A reference field, in an index and type, which refers to documents of another index.
+     */
+    public static class Target {
+
+        private final String index;
+
+        private final String type;
+
+        private final String field;
+
+        Target(String index, String type, String field) {
+            this.index = index;
+            this.type = type;
+            this.field = field;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getField() {
+            return field;
+        }
+    }
+}
@@ -0,0 +1,678 @@
+package org.xbib.elasticsearch.plugin.bundle.common.reference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.mapper.RoutingFieldMapper;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.index.query.Operator;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchModule;
+import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.index.query.QueryBuilders.matchQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+
+/**
+ * A background job which indexes the referring documents of changed referenced documents again, so the values
+ * copied by the reference mapper are refreshed without reindexing whole indices.
+ *
+ * The job takes the pending changes of one referenced index from the {@link ReferenceChangeTracker} and searches
+ * each reference field which refers to this index for the changed ids. The documents found are indexed again with
+ * their own source and version, which makes the reference mapper copy the new values. A document which has been
+ * changed in the meantime is skipped by the version conflict, because it already has the new values.
+ *
+ * The source of a referring document is indexed as it is, in the content type in which it was indexed.
+ *
+ * A pass searches for at most {@code max_changes} changed ids, which is limited by the maximum number of clauses
+ * of a boolean query, {@code indices.query.bool.max_clause_count}. A repair, which is recorded for a referenced
+ * index and type whose changes have been dropped, indexes all documents of the referring types again.
+ *
+ * The pending changes are saved in the index {@code .xbib-reference-changes} at the beginning of each run, and
+ * removed from there when they are completed. The saved changes are restored when the job runs for the first time,
+ * so changes which have not been propagated before the node stopped are not lost. Changes which have been
+ * recorded after the last run are lost if the node stops. The index is shared by all nodes, each node saves its
+ * changes with its node id, which is kept across restarts, and restores only its own changes.
+ *
+ * Each run indexes at most one batch, and runs are separated by the interval, which throttles the job.
+ * A pass over a set of changes continues with the next run where the previous run stopped. The changes are
+ * only completed when all their referring documents have been indexed. If a pass fails, it is repeated from
+ * the beginning, up to a maximum number of attempts. The job runs on the generic thread pool of the node
+ * which has recorded the changes, and blocks it while searching and indexing one batch.
+ *
+ * The job is configured by the node settings {@code plugins.xbib.reference.propagation.enabled},
+ * {@code plugins.xbib.reference.propagation.interval}, {@code plugins.xbib.reference.propagation.batch_size},
+ * and {@code plugins.xbib.reference.propagation.max_changes}.
+ */
+public class ReferencePropagationJob implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger(ReferencePropagationJob.class.getName());
+
+    private static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(5L);
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * The index where the pending changes are saved.
+     */
+    public static final String CHANGES_INDEX = ".xbib-reference-changes";
+
+    private static final String CHANGES_TYPE = "change";
+
+    private final String nodeId;
+
+    private final Client client;
+
+    private final ThreadPool threadPool;
+
+    private final ReferenceChangeTracker tracker;
+
+    private final TimeValue interval;
+
+    private final int batchSize;
+
+    private final int maxChanges;
+
+    private final AtomicBoolean running;
+
+    private volatile Scheduler.Cancellable cancellable;
+
+    private volatile Pass current;
+
+    private volatile boolean restored;
+
+    private volatile long saved;
+
+    private volatile long repairs;
+
+    private volatile long passes;
+
+    private volatile long changes;
+
+    private volatile long documents;
+
+    private volatile long conflicts;
+
+    private volatile long failures;
+
+    private volatile String lastFailure;
+
+    public ReferencePropagationJob(Settings settings, String nodeId, Client client, ThreadPool threadPool,
+                                   ReferenceChangeTracker tracker) {
+        this.nodeId = nodeId;
+        this.client = client;
+        this.threadPool = threadPool;
+        this.tracker = tracker;
+        this.interval = settings.getAsTime("plugins.xbib.reference.propagation.interval",
+                TimeValue.timeValueSeconds(1L));
+        this.batchSize = settings.getAsInt("plugins.xbib.reference.propagation.batch_size", 500);
+        // each changed id is a clause of a boolean query
+        this.maxChanges = Math.min(settings.getAsInt("plugins.xbib.reference.propagation.max_changes", 256),
+                SearchModule.INDICES_MAX_CLAUSE_COUNT_SETTING.get(settings));
+        this.running = new AtomicBoolean();
+    }
+
+    public void start() {
+        if (cancellable == null) {
+            cancellable = threadPool.scheduleWithFixedDelay(this, interval, ThreadPool.Names.GENERIC);
+        }
+    }
+
+    public void stop() {
+        if (cancellable != null) {
+            cancellable.cancel();
+            cancellable = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        ThreadContext threadContext = threadPool.getThreadContext();
+        ThreadContext.StoredContext storedContext = threadContext.stashContext();
+        try {
+            // the changes of referring documents are not tracked again
+            threadContext.putHeader(ReferenceChangeTracker.PROPAGATION_HEADER, "true");
+            if (!restored) {
+                restore();
+                if (!restored) {
+                    return;
+                }
+            }
+            save();
+            step();
+        } catch (Exception e) {
+            failures++;
+            lastFailure = e.toString();
+            logger.warn("reference propagation failed: " + e.getMessage(), e);
+            Pass pass = current;
+            if (pass != null) {
+                restart(pass);
+            }
+        } finally {
+            storedContext.restore();
+            running.set(false);
+        }
+    }
+
+    /**
+     * Search or scroll for the next batch of referring documents of the current pass and index them.
+     */
+    private void step() {
+        Pass pass = current;
+        if (pass == null) {
+            Map<ReferenceChangeTracker.Change, Long> map = tracker.take(maxChanges);
+            if (map.isEmpty()) {
+                return;
+            }
+            ReferenceChangeTracker.Change first = map.keySet().iterator().next();
+            pass = new Pass(map, tracker.getTargets(first.getIndex(), first.getType()));
+            current = pass;
+        }
+        if (pass.target >= pass.targets.size()) {
+            complete(pass);
+            return;
+        }
+        SearchResponse response;
+        if (pass.scrollId == null) {
+            ReferenceChangeTracker.Target target = pass.targets.get(pass.target);
+            QueryBuilder query;
+            if (pass.isRepair()) {
+                query = matchAllQuery();
+            } else {
+                BoolQueryBuilder boolQuery = boolQuery();
+                for (ReferenceChangeTracker.Change change : pass.changes.keySet()) {
+                    boolQuery.should(matchQuery(target.getField(), change.getId()).operator(Operator.AND));
+                }
+                query = boolQuery;
+            }
+            response = client.prepareSearch(target.getIndex())
+                    .setTypes(target.getType())
+                    .setQuery(query)
+                    .setSize(batchSize)
+                    .setVersion(true)
+                    .setScroll(KEEP_ALIVE)
+                    .addSort("_doc", SortOrder.ASC)
+                    .execute().actionGet();
+        } else {
+            response = client.prepareSearchScroll(pass.scrollId)
+                    .setScroll(KEEP_ALIVE)
+                    .execute().actionGet();
+        }
+        pass.scrollId = response.getScrollId();
+        SearchHit[] hits = response.getHits().getHits();
+        if (hits.length == 0) {
+            clearScroll(pass);
+            pass.target++;
+            if (pass.target >= pass.targets.size()) {
+                complete(pass);
+            }
+            return;
+        }
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (SearchHit hit : hits) {
+            if (hit.getSourceRef() == null) {
+                continue;
+            }
+            XContentType contentType = contentType(hit.getSourceRef());
+            if (contentType == null) {
+                pass.failed = true;
+                failures++;
+                lastFailure = "unknown content type of " + hit.getIndex() + "/" + hit.getType() + "/" + hit.getId();
+                continue;
+            }
+            IndexRequest indexRequest = new IndexRequest(hit.getIndex(), hit.getType(), hit.getId())
+                    .source(hit.getSourceRef(), contentType)
+                    .version(hit.getVersion());
+            DocumentField routing = hit.field("_routing");
+            if (routing != null) {
+                indexRequest.routing(routing.getValue());
+            }
+            DocumentField parent = hit.field("_parent");
+            if (parent != null) {
+                indexRequest.parent(parent.getValue());
+            }
+            bulk.add(indexRequest);
+        }
+        if (bulk.numberOfActions() == 0) {
+            return;
+        }
+        BulkResponse bulkResponse = bulk.execute().actionGet();
+        for (BulkItemResponse item : bulkResponse.getItems()) {
+            if (!item.isFailed()) {
+                documents++;
+                pass.documents++;
+            } else if (item.getFailure().getCause() instanceof VersionConflictEngineException ||
+                    item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                // changed in the meantime, so indexed with the new values
+                conflicts++;
+            } else {
+                pass.failed = true;
+                failures++;
+                lastFailure = item.getFailureMessage();
+            }
+        }
+    }
+
+    /**
+     * Detect the content type of the source of a referring document, the documents of an index may have been
+     * indexed in different content types.
+     */
+    @SuppressWarnings("deprecation")
+    private static XContentType contentType(BytesReference source) {
+        return XContentHelper.xContentType(source);
+    }
+
+    private void complete(Pass pass) {
+        clearScroll(pass);
+        if (pass.failed && pass.attempts < MAX_ATTEMPTS) {
+            restart(pass);
+            return;
+        }
+        if (pass.failed) {
+            logger.warn("giving up reference propagation of {} changes after {} attempts",
+                    pass.changes.size(), pass.attempts);
+        }
+        delete(tracker.complete(pass.changes));
+        passes++;
+        if (pass.isRepair()) {
+            repairs++;
+        } else {
+            changes += pass.changes.size();
+        }
+        current = null;
+    }
+
+    private void restart(Pass pass) {
+        clearScroll(pass);
+        pass.attempts++;
+        if (pass.attempts >= MAX_ATTEMPTS) {
+            logger.warn("giving up reference propagation of {} changes after {} attempts",
+                    pass.changes.size(), pass.attempts);
+            delete(tracker.complete(pass.changes));
+            current = null;
+            return;
+        }
+        pass.target = 0;
+        pass.failed = false;
+    }
+
+    /**
+     * Restore the changes which this node has saved before it stopped. Changes are only saved, and taken, after
+     * they have been restored.
+     */
+    private void restore() {
+        SearchResponse response;
+        try {
+            // the changes of a node are routed by its node id, which does not depend on the mapping of the index
+            response = client.prepareSearch(CHANGES_INDEX)
+                    .setTypes(CHANGES_TYPE)
+                    .setRouting(nodeId)
+                    .setQuery(termQuery(RoutingFieldMapper.NAME, nodeId))
+                    .setSize(batchSize)
+                    .setScroll(KEEP_ALIVE)
+                    .addSort("_doc", SortOrder.ASC)
+                    .execute().actionGet();
+        } catch (IndexNotFoundException e) {
+            restored = true;
+            return;
+        } catch (ClusterBlockException e) {
+            // the cluster state is not recovered yet
+            logger.debug("unable to restore reference changes: " + e.getMessage());
+            return;
+        }
+        int count = 0;
+        try {
+            while (response.getHits().getHits().length > 0) {
+                for (SearchHit hit : response.getHits().getHits()) {
+                    Map<String, Object> source = hit.getSourceAsMap();
+                    Object index = source.get("index");
+                    Object type = source.get("type");
+                    Object id = source.get("id");
+                    if (index != null && type != null) {
+                        tracker.restore(index.toString(), type.toString(), id != null ? id.toString() : null);
+                        count++;
+                    }
+                }
+                response = client.prepareSearchScroll(response.getScrollId())
+                        .setScroll(KEEP_ALIVE)
+                        .execute().actionGet();
+            }
+        } finally {
+            if (response.getScrollId() != null) {
+                client.prepareClearScroll().addScrollId(response.getScrollId()).execute().actionGet();
+            }
+        }
+        restored = true;
+        if (count > 0) {
+            logger.info("restored {} pending reference changes", count);
+        }
+    }
+
+    /**
+     * Save the changes which have been recorded since the last run.
+     */
+    private void save() throws IOException {
+        List<ReferenceChangeTracker.Change> list = tracker.takeUnsaved();
+        if (list.isEmpty()) {
+            return;
+        }
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (ReferenceChangeTracker.Change change : list) {
+            XContentBuilder builder = jsonBuilder().startObject()
+                    .field("node", nodeId)
+                    .field("index", change.getIndex())
+                    .field("type", change.getType());
+            if (!change.isRepair()) {
+                builder.field("id", change.getId());
+            }
+            bulk.add(client.prepareIndex(CHANGES_INDEX, CHANGES_TYPE, id(change))
+                    .setRouting(nodeId)
+                    .setSource(builder.endObject()));
+        }
+        BulkResponse bulkResponse;
+        try {
+            bulkResponse = bulk.execute().actionGet();
+        } catch (RuntimeException e) {
+            tracker.unsaved(list);
+            throw e;
+        }
+        List<ReferenceChangeTracker.Change> failed = new ArrayList<>();
+        for (BulkItemResponse item : bulkResponse.getItems()) {
+            if (item.isFailed()) {
+                failed.add(list.get(item.getItemId()));
+            } else {
+                saved++;
+            }
+        }
+        if (!failed.isEmpty()) {
+            logger.warn("unable to save {} reference changes: {}", failed.size(), bulkResponse.buildFailureMessage());
+            tracker.unsaved(failed);
+        }
+    }
+
+    /**
+     * Delete saved changes which are completed.
+     */
+    private void delete(List<ReferenceChangeTracker.Change> list) {
+        if (list.isEmpty()) {
+            return;
+        }
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (ReferenceChangeTracker.Change change : list) {
+            bulk.add(client.prepareDelete(CHANGES_INDEX, CHANGES_TYPE, id(change)).setRouting(nodeId));
+        }
+        try {
+            BulkResponse bulkResponse = bulk.execute().actionGet();
+            if (bulkResponse.hasFailures()) {
+                // a completed change which is restored later is propagated once more
+                logger.debug("unable to delete completed reference changes: {}", bulkResponse.buildFailureMessage());
+            }
+        } catch (RuntimeException e) {
+            logger.debug("unable to delete completed reference changes: " + e.getMessage(), e);
+        }
+    }
+
+    private String id(ReferenceChangeTracker.Change change) {
+        // the same change may be saved by several nodes
+        String key = nodeId + '/' + change.getIndex() + '/' + change.getType() +
+                (change.isRepair() ? "" : '/' + change.getId());
+        // the ids of referenced documents may be too long to be concatenated
+        return MessageDigests.toHexString(MessageDigests.sha1().digest(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void clearScroll(Pass pass) {
+        if (pass.scrollId != null) {
+            String scrollId = pass.scrollId;
+            pass.scrollId = null;
+            try {
+                client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+            } catch (Exception e) {
+                logger.debug("unable to clear scroll: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    public Stats stats() {
+        Pass pass = current;
+        return new Stats(tracker.getPending(), tracker.getRecorded(), tracker.getDropped(), tracker.getRepairs(),
+                saved, passes, changes, repairs, documents, conflicts, failures, lastFailure, pass);
+    }
+
+    /**
+     * A pass over a set of changes of one referenced index and type.
+     */
+    private static class Pass {
+
+        private final Map<ReferenceChangeTracker.Change, Long> changes;
+
+        private final List<ReferenceChangeTracker.Target> targets;
+
+        private volatile int target;
+
+        private volatile String scrollId;
+
+        private volatile long documents;
+
+        private volatile int attempts;
+
+        private volatile boolean failed;
+
+        Pass(Map<ReferenceChangeTracker.Change, Long> changes, List<ReferenceChangeTracker.Target> targets) {
+            this.changes = changes;
+            this.targets = targets;
+        }
+
+        boolean isRepair() {
+            return changes.size() == 1 && changes.keySet().iterator().next().isRepair();
+        }
+    }
+
+    /**
+     * Statistics of the reference propagation job.
+     */
+    public static class Stats implements ToXContentObject {
+
+        private final int pending;
+
+        private final long recorded;
+
+        private final long dropped;
+
+        private final List<String> pendingRepairs;
+
+        private final long saved;
+
+        private final long passes;
+
+        private final long changes;
+
+        private final long repairs;
+
+        private final long documents;
+
+        private final long conflicts;
+
+        private final long failures;
+
+        private final String lastFailure;
+
+        private final String currentIndex;
+
+        private final int currentChanges;
+
+        private final int currentTarget;
+
+        private final int currentTargets;
+
+        private final long currentDocuments;
+
+        Stats(int pending, long recorded, long dropped, List<ReferenceChangeTracker.Change> pendingRepairs, long saved,
+              long passes, long changes, long repairs, long documents, long conflicts, long failures,
+              String lastFailure, Pass pass) {
+            this.pending = pending;
+            this.recorded = recorded;
+            this.dropped = dropped;
+            this.pendingRepairs = new ArrayList<>();
+            for (ReferenceChangeTracker.Change change : pendingRepairs) {
+                this.pendingRepairs.add(change.getIndex() + '/' + change.getType());
+            }
+            this.saved = saved;
+            this.passes = passes;
+            this.changes = changes;
+            this.repairs = repairs;
+            this.documents = documents;
+            this.conflicts = conflicts;
+            this.failures = failures;
+            this.lastFailure = lastFailure;
+            if (pass != null) {
+                ReferenceChangeTracker.Change first = pass.changes.keySet().iterator().next();
+                this.currentIndex = first.getIndex();
+                this.currentChanges = pass.changes.size();
+                this.currentTarget = pass.target;
+                this.currentTargets = pass.targets.size();
+                this.currentDocuments = pass.documents;
+            } else {
+                this.currentIndex = null;
+                this.currentChanges = 0;
+                this.currentTarget = 0;
+                this.currentTargets = 0;
+                this.currentDocuments = 0L;
+            }
+        }
+
+        /**
+         * Return the number of changes which wait for propagation.
+         *
+         * @return the number of pending changes
+         */
+        public int getPending() {
+            return pending;
+        }
+
+        public long getRecorded() {
+            return recorded;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Return the referenced indices and types whose changes have been dropped, and whose referring documents
+         * wait to be indexed again.
+         *
+         * @return the pending repairs, as index and type separated by a slash
+         */
+        public List<String> getPendingRepairs() {
+            return pendingRepairs;
+        }
+
+        /**
+         * Return the number of changes which have been saved.
+         *
+         * @return the number of saved changes
+         */
+        public long getSaved() {
+            return saved;
+        }
+
+        /**
+         * Return the number of completed repairs.
+         *
+         * @return the number of repairs
+         */
+        public long getRepairs() {
+            return repairs;
+        }
+
+        public long getPasses() {
+            return passes;
+        }
+
+        public long getChanges() {
+            return changes;
+        }
+
+        /**
+         * Return the number of referring documents which have been indexed again.
+         *
+         * @return the number of documents
+         */
+        public long getDocuments() {
+            return documents;
+        }
+
+        public long getConflicts() {
+            return conflicts;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("pending", pending);
+            builder.field("recorded", recorded);
+            builder.field("dropped", dropped);
+            builder.field("pending_repairs", pendingRepairs);
+            builder.field("saved", saved);
+            builder.field("passes", passes);
+            builder.field("changes", changes);
+            builder.field("repairs", repairs);
+            builder.field("documents", documents);
+            builder.field("conflicts", conflicts);
+            builder.field("failures", failures);
+            if (lastFailure != null) {
+                builder.field("last_failure", lastFailure);
+            }
+            if (currentIndex != null) {
+                builder.startObject("current");
+                builder.field("index", currentIndex);
+                builder.field("changes", currentChanges);
+                builder.field("target", currentTarget);
+                builder.field("targets", currentTargets);
+                builder.field("documents", currentDocuments);
+                builder.endObject();
+            }
+            builder.endObject();
+            return builder;
+        }
+    }
+}
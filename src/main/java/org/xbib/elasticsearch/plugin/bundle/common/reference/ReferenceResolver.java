@@ -0,0 +1,609 @@
+package org.xbib.elasticsearch.plugin.bundle.common.reference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemRequest;
+import org.elasticsearch.action.bulk.BulkShardRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.Transports;
+import org.xbib.elasticsearch.plugin.bundle.index.mapper.reference.ReferenceMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves the referenced documents of a shard bulk request with one multi get request, before the documents
+ * of the bulk request are parsed. The reference mapper takes the values of the referenced documents from here
+ * instead of blocking an indexing thread with a get request for each document.
+ *
+ * Shard bulk requests are resolved on the node of each copy of the shard, see
+ * {@link ReferenceTransportInterceptor}. Only the reference fields of the documents are parsed to collect the
+ * references. The resolved values are kept until the shard bulk request is completed. References which are not
+ * resolved here, for example if they are set by the script of an update request, or if the multi get request
+ * fails, are rejected by the reference mapper on an indexing thread, so the document of the bulk item is not
+ * indexed without the referenced values and the client can try again.
+ *
+ * Values found in the {@link ReferenceCache} are verified in the same multi get request by fetching the version
+ * of the document without the source. Only documents which have changed are fetched again.
+ */
+public class ReferenceResolver {
+
+    private static final Logger logger = LogManager.getLogger(ReferenceResolver.class.getName());
+
+    private static final Releasable NOOP = () -> {};
+
+    private final Client client;
+
+    private final ReferenceCache cache;
+
+    private final ConcurrentMap<String, Resolved> resolved;
+
+    private final LongAdder hits;
+
+    private final LongAdder misses;
+
+    private final LongAdder rejected;
+
+    private volatile IndicesService indicesService;
+
+    public ReferenceResolver(Client client, ReferenceCache cache) {
+        this.client = client;
+        this.cache = cache;
+        this.resolved = new ConcurrentHashMap<>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.rejected = new LongAdder();
+    }
+
+    public void setIndicesService(IndicesService indicesService) {
+        this.indicesService = indicesService;
+    }
+
+    /**
+     * Return the values of a referenced document which have been resolved for the current shard bulk request,
+     * or which are in the cache. Cached values are trusted within the time to live of the cache, they are not
+     * verified here, because the calling thread must not wait. Verification is done in advance by
+     * {@link #resolve(BulkShardRequest, ActionListener)}.
+     *
+     * @param index the index of the referenced document
+     * @param type the type of the referenced document
+     * @param id the id of the referenced document
+     * @param fields the reference fields
+     * @return the values, or null if the document must be fetched
+     */
+    public ReferenceValues get(String index, String type, String id, Collection<String> fields) {
+        Resolved r = resolved.get(key(index, type, id));
+        if (r != null && (!r.values.exists() || r.values.containsAll(fields))) {
+            hits.increment();
+            return r.values;
+        }
+        misses.increment();
+        return cache.get(index, type, id, fields);
+    }
+
+    /**
+     * Add the values of a fetched referenced document to the cache.
+     *
+     * @param index the index of the referenced document
+     * @param type the type of the referenced document
+     * @param id the id of the referenced document
+     * @param values the values
+     */
+    public void put(String index, String type, String id, ReferenceValues values) {
+        cache.put(index, type, id, values);
+    }
+
+    /**
+     * Count a reference which is neither resolved nor cached, and which is rejected because the current
+     * thread must not wait.
+     */
+    public void reject() {
+        rejected.increment();
+    }
+
+    /**
+     * Check if the current thread may wait for a get request. Write threads and transport threads must not wait,
+     * the references of the documents they parse are resolved in advance.
+     *
+     * @return true if the current thread may wait
+     */
+    public static boolean mayWait() {
+        Thread thread = Thread.currentThread();
+        String name = thread.getName();
+        return !Transports.isTransportThread(thread) &&
+                !name.contains("[" + ThreadPool.Names.WRITE + "]") &&
+                !name.contains("[" + ThreadPool.Names.INDEX + "]");
+    }
+
+    /**
+     * Return the statistics of the resolved references and of the cache.
+     *
+     * @return the statistics
+     */
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), rejected.sum(), cache.stats());
+    }
+
+    /**
+     * Resolve the references of the index and update requests of a shard bulk request. The listener is always
+     * notified with a releasable, which releases the resolved values. If a multi get request fails, the references
+     * which are not resolved yet are rejected by the reference mapper.
+     *
+     * The documents of update requests are fetched first, with the reference fields only, because the references
+     * of the existing document remain in the updated document. References which are set by a script can not be
+     * resolved in advance.
+     *
+     * @param request the shard bulk request
+     * @param listener the listener
+     */
+    public void resolve(BulkShardRequest request, ActionListener<Releasable> listener) {
+        Map<String, Reference> references = new LinkedHashMap<>();
+        List<Update> updates = new ArrayList<>();
+        collect(request, references, updates);
+        if (updates.isEmpty()) {
+            resolve(references.values(), listener);
+            return;
+        }
+        MultiGetRequest multiGetRequest = new MultiGetRequest();
+        for (Update update : updates) {
+            UpdateRequest updateRequest = update.request;
+            multiGetRequest.add(new MultiGetRequest.Item(updateRequest.index(), updateRequest.type(),
+                    updateRequest.id())
+                    .routing(updateRequest.routing())
+                    .parent(updateRequest.parent())
+                    .fetchSourceContext(new FetchSourceContext(true, update.fields.paths(), null)));
+        }
+        client.multiGet(multiGetRequest, new ActionListener<MultiGetResponse>() {
+            @Override
+            public void onResponse(MultiGetResponse response) {
+                MultiGetItemResponse[] items = response.getResponses();
+                for (int i = 0; i < items.length; i++) {
+                    if (items[i].isFailed() || !items[i].getResponse().isExists()) {
+                        continue;
+                    }
+                    // the source is filtered to the reference fields
+                    Map<String, Object> source = items[i].getResponse().getSourceAsMap();
+                    for (ReferenceMapper mapper : updates.get(i).fields.mappers()) {
+                        for (Object value : XContentMapValues.extractRawValues(mapper.name(), source)) {
+                            if (value instanceof String) {
+                                add(references, mapper, (String) value);
+                            }
+                        }
+                    }
+                }
+                resolve(references.values(), listener);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                logger.warn("unable to fetch updated documents: " + e.getMessage(), e);
+                resolve(references.values(), listener);
+            }
+        });
+    }
+
+    private void resolve(Collection<Reference> references, ActionListener<Releasable> listener) {
+        if (references.isEmpty()) {
+            listener.onResponse(NOOP);
+            return;
+        }
+        List<String> keys = new ArrayList<>();
+        Releasable releasable = () -> {
+            for (String key : keys) {
+                resolved.computeIfPresent(key, (k, r) -> r.release() ? null : r);
+            }
+        };
+        List<Reference> verify = new ArrayList<>();
+        List<Reference> fetch = new ArrayList<>();
+        for (Reference reference : references) {
+            reference.cached = cache.get(reference.index, reference.type, reference.id, reference.fields);
+            if (reference.cached == null) {
+                fetch.add(reference);
+            } else if (cache.isVerify()) {
+                verify.add(reference);
+            } else {
+                acquire(reference, reference.cached, keys);
+            }
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        Runnable finish = () -> {
+            if (done.compareAndSet(false, true)) {
+                listener.onResponse(releasable);
+            }
+        };
+        multiGet(verify, fetch, keys, new ActionListener<List<Reference>>() {
+            @Override
+            public void onResponse(List<Reference> stale) {
+                if (stale.isEmpty()) {
+                    finish.run();
+                } else {
+                    // fetch the documents which have changed since they were cached
+                    multiGet(Collections.emptyList(), stale, keys, ActionListener.wrap(finish));
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                finish.run();
+            }
+        });
+    }
+
+    /**
+     * Verify cached values and fetch documents with one multi get request. The listener receives the references
+     * whose cached values have turned out to be stale.
+     */
+    private void multiGet(List<Reference> verify, List<Reference> fetch, List<String> keys,
+                          ActionListener<List<Reference>> listener) {
+        if (verify.isEmpty() && fetch.isEmpty()) {
+            listener.onResponse(Collections.emptyList());
+            return;
+        }
+        MultiGetRequest multiGetRequest = new MultiGetRequest();
+        for (Reference reference : verify) {
+            multiGetRequest.add(new MultiGetRequest.Item(reference.index, reference.type, reference.id)
+                    .fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE));
+        }
+        for (Reference reference : fetch) {
+            multiGetRequest.add(new MultiGetRequest.Item(reference.index, reference.type, reference.id)
+                    .fetchSourceContext(ReferenceValues.sourceContext(reference.fields)));
+        }
+        client.multiGet(multiGetRequest, new ActionListener<MultiGetResponse>() {
+            @Override
+            public void onResponse(MultiGetResponse response) {
+                List<Reference> stale = new ArrayList<>();
+                MultiGetItemResponse[] items = response.getResponses();
+                for (int i = 0; i < items.length; i++) {
+                    Reference reference = i < verify.size() ? verify.get(i) : fetch.get(i - verify.size());
+                    if (items[i].isFailed()) {
+                        continue;
+                    }
+                    GetResponse getResponse = items[i].getResponse();
+                    if (i < verify.size()) {
+                        if (getResponse.isExists() && getResponse.getVersion() == reference.cached.getVersion()) {
+                            acquire(reference, reference.cached, keys);
+                        } else {
+                            cache.invalidate(reference.index, reference.type, reference.id);
+                            stale.add(reference);
+                        }
+                    } else {
+                        ReferenceValues values = ReferenceValues.of(getResponse, reference.fields);
+                        cache.put(reference.index, reference.type, reference.id, values);
+                        acquire(reference, values, keys);
+                    }
+                }
+                listener.onResponse(stale);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                logger.warn("unable to resolve references: " + e.getMessage(), e);
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    private void collect(BulkShardRequest request, Map<String, Reference> references, List<Update> updates) {
+        IndicesService indicesService = this.indicesService;
+        if (indicesService == null) {
+            return;
+        }
+        // the documents are parsed on every copy of the shard, on the node of the copy
+        IndexService indexService = indicesService.indexService(request.shardId().getIndex());
+        if (indexService == null) {
+            return;
+        }
+        Map<String, ReferenceFields> fieldsByType = new HashMap<>();
+        for (BulkItemRequest item : request.items()) {
+            if (item == null) {
+                continue;
+            }
+            ReferenceFields fields = fieldsByType.computeIfAbsent(item.request().type(), type ->
+                    new ReferenceFields(indexService.mapperService().documentMapper(type)));
+            if (fields.isEmpty()) {
+                continue;
+            }
+            if (item.request() instanceof IndexRequest) {
+                collect((IndexRequest) item.request(), fields, references);
+            } else if (item.request() instanceof UpdateRequest) {
+                UpdateRequest updateRequest = (UpdateRequest) item.request();
+                collect(updateRequest.doc(), fields, references);
+                collect(updateRequest.upsertRequest(), fields, references);
+                updates.add(new Update(updateRequest, fields));
+            }
+        }
+    }
+
+    /**
+     * Collect the references of a document by parsing the reference fields only. All other fields are skipped.
+     */
+    private static void collect(IndexRequest indexRequest, ReferenceFields fields, Map<String, Reference> references) {
+        if (indexRequest == null || indexRequest.source() == null || indexRequest.getContentType() == null) {
+            return;
+        }
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, indexRequest.source(), indexRequest.getContentType())) {
+            if (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+                collect(parser, "", fields, references);
+            }
+        } catch (IOException | RuntimeException e) {
+            // the document is rejected while parsing
+        }
+    }
+
+    private static void collect(XContentParser parser, String prefix, ReferenceFields fields,
+                                Map<String, Reference> references) throws IOException {
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME) {
+            String path = prefix + parser.currentName();
+            token = parser.nextToken();
+            List<ReferenceMapper> mappers = fields.get(path);
+            if (mappers != null) {
+                if (token == XContentParser.Token.VALUE_STRING) {
+                    add(references, mappers, parser.text());
+                } else if (token == XContentParser.Token.START_ARRAY) {
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        if (token == XContentParser.Token.VALUE_STRING) {
+                            add(references, mappers, parser.text());
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            } else if (fields.isPrefix(path)) {
+                if (token == XContentParser.Token.START_OBJECT) {
+                    collect(parser, path + '.', fields, references);
+                } else if (token == XContentParser.Token.START_ARRAY) {
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        if (token == XContentParser.Token.START_OBJECT) {
+                            collect(parser, path + '.', fields, references);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static void add(Map<String, Reference> references, List<ReferenceMapper> mappers, String id) {
+        for (ReferenceMapper mapper : mappers) {
+            add(references, mapper, id);
+        }
+    }
+
+    private static void add(Map<String, Reference> references, ReferenceMapper mapper, String id) {
+        references.computeIfAbsent(key(mapper.getRefIndex(), mapper.getRefType(), id), k ->
+                new Reference(mapper.getRefIndex(), mapper.getRefType(), id))
+                .fields.addAll(mapper.getRefFields());
+    }
+
+    private void acquire(Reference reference, ReferenceValues values, List<String> keys) {
+        String key = key(reference.index, reference.type, reference.id);
+        resolved.compute(key, (k, r) -> r == null ? new Resolved(values) : r.retain(values));
+        keys.add(key);
+    }
+
+    private static String key(String index, String type, String id) {
+        return index + '/' + type + '/' + id;
+    }
+
+    /**
+     * The reference mappers of a type by the full path of their field, and the paths of the objects which
+     * contain them.
+     */
+    private static class ReferenceFields {
+
+        private final Map<String, List<ReferenceMapper>> mappers;
+
+        private final Set<String> prefixes;
+
+        ReferenceFields(DocumentMapper documentMapper) {
+            this.mappers = new HashMap<>();
+            this.prefixes = new HashSet<>();
+            if (documentMapper == null) {
+                return;
+            }
+            for (FieldMapper fieldMapper : documentMapper.mappers()) {
+                if (fieldMapper instanceof ReferenceMapper) {
+                    ReferenceMapper mapper = (ReferenceMapper) fieldMapper;
+                    if (mapper.getRefIndex() != null && mapper.getRefType() != null &&
+                            mapper.getRefFields() != null) {
+                        mappers.computeIfAbsent(mapper.name(), name -> new ArrayList<>()).add(mapper);
+                        for (int i = mapper.name().indexOf('.'); i >= 0; i = mapper.name().indexOf('.', i + 1)) {
+                            prefixes.add(mapper.name().substring(0, i));
+                        }
+                    }
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return mappers.isEmpty();
+        }
+
+        List<ReferenceMapper> get(String path) {
+            return mappers.get(path);
+        }
+
+        boolean isPrefix(String path) {
+            return prefixes.contains(path);
+        }
+
+        String[] paths() {
+            return mappers.keySet().toArray(new String[0]);
+        }
+
+        List<ReferenceMapper> mappers() {
+            List<ReferenceMapper> list = new ArrayList<>();
+            mappers.values().forEach(list::addAll);
+            return list;
+        }
+    }
+
+    /**
+     * An update request of a shard bulk request, whose document must be fetched for its references.
+     */
+    private static class Update {
+
+        private final UpdateRequest request;
+
+        private final ReferenceFields fields;
+
+        Update(UpdateRequest request, ReferenceFields fields) {
+            this.request = request;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * A reference of a shard bulk request, with the fields of all reference mappers which refer to it.
+     */
+    private static class Reference {
+
+        private final String index;
+
+        private final String type;
+
+        private final String id;
+
+        private final Set<String> fields;
+
+        private ReferenceValues cached;
+
+        Reference(String index, String type, String id) {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+            this.fields = new LinkedHashSet<>();
+        }
+    }
+
+    /**
+     * Resolved values, with the number of shard bulk requests which resolved them.
+     */
+    private static class Resolved {
+
+        private volatile ReferenceValues values;
+
+        private int references;
+
+        Resolved(ReferenceValues values) {
+            this.values = values;
+            this.references = 1;
+        }
+
+        Resolved retain(ReferenceValues values) {
+            this.values = values;
+            references++;
+            return this;
+        }
+
+        boolean release() {
+            return --references == 0;
+        }
+    }
+
+    /**
+     * Statistics of the reference resolver.
+     */
+    public static class Stats implements ToXContentObject {
+
+        private final long hits;
+
+        private final long misses;
+
+        private final long rejected;
+
+        private final ReferenceCache.Stats cacheStats;
+
+        Stats(long hits, long misses, long rejected, ReferenceCache.Stats cacheStats) {
+            this.hits = hits;
+            this.misses = misses;
+            this.rejected = rejected;
+            this.cacheStats = cacheStats;
+        }
+
+        /**
+         * Return the number of references which were taken from resolved values.
+         *
+         * @return the number of hits
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * Return the number of references which were not resolved in advance.
+         *
+         * @return the number of misses
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Return the number of references which were neither resolved in advance nor cached, and rejected
+         * because the indexing thread must not wait.
+         *
+         * @return the number of rejected references
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        public ReferenceCache.Stats getCacheStats() {
+            return cacheStats;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("resolved", hits);
+            builder.field("unresolved", misses);
+            builder.field("rejected", rejected);
+            builder.field("cache");
+            cacheStats.toXContent(builder, params);
+            builder.endObject();
+            return builder;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.inject.Injector;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.indices.IndicesService;
 import org.xbib.elasticsearch.plugin.bundle.index.mapper.reference.ReferenceMapperTypeParser;
 
 /**
@@ -14,6 +15,8 @@ public class ReferenceService extends AbstractLifecycleComponent {
 
     private final Injector injector;
 
+    private ReferencePropagationJob referencePropagationJob;
+
     @Inject
     public ReferenceService(Settings settings, Injector injector) {
         super(settings);
@@ -27,11 +30,22 @@ public class ReferenceService extends AbstractLifecycleComponent {
         // copy the client to the mapper type parser
         ReferenceMapperTypeParser referenceMapperTypeParser = injector.getInstance(ReferenceMapperTypeParser.class);
         referenceMapperTypeParser.setClient(client);
+        // let the resolver find the reference fields of the local shards, and the mapper find the resolver
+        ReferenceResolver referenceResolver = injector.getInstance(ReferenceResolver.class);
+        referenceResolver.setIndicesService(injector.getInstance(IndicesService.class));
+        referenceMapperTypeParser.setResolver(referenceResolver);
+        // the propagation job is only bound if it is enabled
+        if (settings.getAsBoolean("plugins.xbib.reference.propagation.enabled", false)) {
+            referencePropagationJob = injector.getInstance(ReferencePropagationJob.class);
+            referencePropagationJob.start();
+        }
     }
 
     @Override
     protected void doStop() {
-        // nothing to stop
+        if (referencePropagationJob != null) {
+            referencePropagationJob.stop();
+        }
     }
 
     @Override
@@ -0,0 +1,206 @@
+package org.xbib.elasticsearch.plugin.bundle.common.reference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkShardRequest;
+import org.elasticsearch.action.bulk.TransportShardBulkAction;
+import org.elasticsearch.action.support.ContextPreservingActionListener;
+import org.elasticsearch.action.support.replication.TransportReplicationAction;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportInterceptor;
+import org.elasticsearch.transport.TransportRequest;
+import org.elasticsearch.transport.TransportRequestHandler;
+import org.elasticsearch.transport.TransportResponse;
+import org.elasticsearch.transport.TransportResponseOptions;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Transport interceptor which resolves the references of a shard bulk request on the node of the shard, before
+ * the documents are parsed. This is done for the primary shard and for each replica shard, because the documents
+ * are parsed on every copy of the shard, wherever the bulk request came from.
+ *
+ * The request handler proceeds on its executor when the referenced documents have arrived, so no thread waits
+ * for them. The resolved values are released when the response of the shard is sent.
+ */
+public class ReferenceTransportInterceptor implements TransportInterceptor {
+
+    private static final Logger logger = LogManager.getLogger(ReferenceTransportInterceptor.class.getName());
+
+    private static final Set<String> ACTIONS = new HashSet<>(Arrays.asList(
+            TransportShardBulkAction.ACTION_NAME + "[p]", TransportShardBulkAction.ACTION_NAME + "[r]"));
+
+    private final ThreadContext threadContext;
+
+    private final Supplier<ReferenceResolver> resolver;
+
+    private final Supplier<ThreadPool> threadPool;
+
+    public ReferenceTransportInterceptor(ThreadContext threadContext,
+                                         Supplier<ReferenceResolver> resolver,
+                                         Supplier<ThreadPool> threadPool) {
+        this.threadContext = threadContext;
+        this.resolver = resolver;
+        this.threadPool = threadPool;
+    }
+
+    @Override
+    public <T extends TransportRequest> TransportRequestHandler<T> interceptHandler(String action, String executor,
+            boolean forceExecution, TransportRequestHandler<T> actualHandler) {
+        if (!ACTIONS.contains(action)) {
+            return actualHandler;
+        }
+        return new ReferenceRequestHandler<>(executor, forceExecution, actualHandler);
+    }
+
+    private static BulkShardRequest bulkShardRequest(TransportRequest request) {
+        if (request instanceof TransportReplicationAction.ConcreteShardRequest) {
+            Object shardRequest = ((TransportReplicationAction.ConcreteShardRequest<?>) request).getRequest();
+            if (shardRequest instanceof BulkShardRequest) {
+                return (BulkShardRequest) shardRequest;
+            }
+        }
+        return null;
+    }
+
+    private class ReferenceRequestHandler<T extends TransportRequest> implements TransportRequestHandler<T> {
+
+        private final String executor;
+
+        private final boolean forceExecution;
+
+        private final TransportRequestHandler<T> handler;
+
+        ReferenceRequestHandler(String executor, boolean forceExecution, TransportRequestHandler<T> handler) {
+            this.executor = executor;
+            this.forceExecution = forceExecution;
+            this.handler = handler;
+        }
+
+        @Override
+        public void messageReceived(T request, TransportChannel channel) {
+            throw new UnsupportedOperationException("the task parameter is required for this operation");
+        }
+
+        @Override
+        public void messageReceived(T request, TransportChannel channel, Task task) throws Exception {
+            BulkShardRequest bulkShardRequest = bulkShardRequest(request);
+            ReferenceResolver referenceResolver = resolver.get();
+            ThreadPool pool = threadPool.get();
+            if (bulkShardRequest == null || referenceResolver == null || pool == null) {
+                handler.messageReceived(request, channel, task);
+                return;
+            }
+            Thread thread = Thread.currentThread();
+            AtomicBoolean returned = new AtomicBoolean();
+            Consumer<Releasable> proceed = releasable -> {
+                ReleasingChannel releasingChannel = new ReleasingChannel(channel, releasable);
+                AbstractRunnable runnable = new AbstractRunnable() {
+                    @Override
+                    public boolean isForceExecution() {
+                        return forceExecution;
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        try {
+                            releasingChannel.sendResponse(e);
+                        } catch (Exception inner) {
+                            inner.addSuppressed(e);
+                            logger.warn("failed to send response for " + bulkShardRequest, inner);
+                        }
+                    }
+
+                    @Override
+                    protected void doRun() throws Exception {
+                        handler.messageReceived(request, releasingChannel, task);
+                    }
+                };
+                if (thread == Thread.currentThread() && !returned.get()) {
+                    // resolved without waiting, continue on this thread
+                    runnable.run();
+                } else {
+                    pool.executor(executor).execute(runnable);
+                }
+            };
+            ActionListener<Releasable> listener = ActionListener.wrap(proceed::accept, e -> {
+                // the references are left to the reference mapper
+                logger.warn("unable to resolve references of " + bulkShardRequest, e);
+                proceed.accept(() -> {});
+            });
+            referenceResolver.resolve(bulkShardRequest,
+                    new ContextPreservingActionListener<>(threadContext.newRestorableContext(false), listener));
+            returned.set(true);
+        }
+    }
+
+    /**
+     * A transport channel which releases the resolved values of a shard bulk request with the response.
+     */
+    private static class ReleasingChannel implements TransportChannel {
+
+        private final TransportChannel channel;
+
+        private final AtomicBoolean released;
+
+        private final Releasable releasable;
+
+        ReleasingChannel(TransportChannel channel, Releasable releasable) {
+            this.channel = channel;
+            this.releasable = releasable;
+            this.released = new AtomicBoolean();
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                releasable.close();
+            }
+        }
+
+        @Override
+        public Version getVersion() {
+            return channel.getVersion();
+        }
+
+        @Override
+        public String getProfileName() {
+            return channel.getProfileName();
+        }
+
+        @Override
+        public String getChannelType() {
+            return channel.getChannelType();
+        }
+
+        @Override
+        public void sendResponse(TransportResponse response) throws IOException {
+            release();
+            channel.sendResponse(response);
+        }
+
+        @Override
+        public void sendResponse(TransportResponse response, TransportResponseOptions options) throws IOException {
+            release();
+            channel.sendResponse(response, options);
+        }
+
+        @Override
+        public void sendResponse(Exception exception) throws IOException {
+            release();
+            channel.sendResponse(exception);
+        }
+    }
+}
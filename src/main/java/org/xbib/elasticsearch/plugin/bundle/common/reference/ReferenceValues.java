@@ -0,0 +1,137 @@
+package org.xbib.elasticsearch.plugin.bundle.common.reference;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.geo.GeoPoint;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values of the reference fields of a referenced document, with the version of the document.
+ * The values are extracted once from the source, so they can be cached without the source.
+ * Referenced documents are fetched with a source filter on the reference fields, so only the bytes of these
+ * fields are transferred and parsed.
+ */
+public final class ReferenceValues {
+
+    /**
+     * The values of a referenced document which does not exist.
+     */
+    public static final ReferenceValues MISSING = new ReferenceValues(false, -1L, Collections.emptyMap());
+
+    private static final long SHALLOW_SIZE = 64L;
+
+    private final boolean exists;
+
+    private final long version;
+
+    private final Map<String, List<Object>> values;
+
+    private final long sizeInBytes;
+
+    private ReferenceValues(boolean exists, long version, Map<String, List<Object>> values) {
+        this.exists = exists;
+        this.version = version;
+        this.values = values;
+        long size = SHALLOW_SIZE;
+        for (Map.Entry<String, List<Object>> entry : values.entrySet()) {
+            size += SHALLOW_SIZE + 2L * entry.getKey().length();
+            for (Object object : entry.getValue()) {
+                size += object instanceof String ? SHALLOW_SIZE + 2L * ((String) object).length() : SHALLOW_SIZE;
+            }
+        }
+        this.sizeInBytes = size;
+    }
+
+    /**
+     * Extract the values of reference fields from a get response. A field which is an object with
+     * {@code lat} and {@code lon} is extracted as a geo point.
+     *
+     * @param response the get response
+     * @param fields the reference fields
+     * @return the values
+     */
+    @SuppressWarnings("unchecked")
+    public static ReferenceValues of(GetResponse response, Collection<String> fields) {
+        if (response == null || !response.isExists()) {
+            return MISSING;
+        }
+        Map<String, Object> source = response.getSource();
+        Map<String, List<Object>> values = new LinkedHashMap<>();
+        for (String field : fields) {
+            List<Object> list = source != null ?
+                    XContentMapValues.extractRawValues(field, source) : Collections.emptyList();
+            if (list.isEmpty() && source != null) {
+                Object object = XContentMapValues.extractValue(field, source);
+                if (object instanceof Map) {
+                    Map<String, Object> map = (Map<String, Object>) object;
+                    Double lat = (Double) map.get("lat");
+                    Double lon = (Double) map.get("lon");
+                    if (lat != null && lon != null) {
+                        list = Collections.singletonList(new GeoPoint(lat, lon));
+                    }
+                }
+            }
+            values.put(field, list);
+        }
+        return new ReferenceValues(true, response.getVersion(), values);
+    }
+
+    /**
+     * Return the source filter for fetching the reference fields of a referenced document.
+     *
+     * @param fields the reference fields
+     * @return the source filter
+     */
+    public static FetchSourceContext sourceContext(Collection<String> fields) {
+        return new FetchSourceContext(true, fields.toArray(new String[fields.size()]), Strings.EMPTY_ARRAY);
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Return true if the values of all given fields have been extracted.
+     *
+     * @param fields the fields
+     * @return true if the values contain all fields
+     */
+    public boolean containsAll(Collection<String> fields) {
+        return values.keySet().containsAll(fields);
+    }
+
+    public Collection<String> getFields() {
+        return values.keySet();
+    }
+
+    /**
+     * Return the values of a field.
+     *
+     * @param field the field
+     * @return the values, empty if the field has no values
+     */
+    public List<Object> get(String field) {
+        List<Object> list = values.get(field);
+        return list != null ? list : Collections.emptyList();
+    }
+
+    /**
+     * Return the estimated size of the values on the heap.
+     *
+     * @return the size in bytes
+     */
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+}
@@ -10,10 +10,13 @@ import org.xbib.standardnumber.ISBN;
 import org.xbib.standardnumber.NoSuchStandardNumberException;
 import org.xbib.standardnumber.StandardNumber;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Standard number service.
@@ -23,6 +26,13 @@ public class StandardnumberService extends AbstractLifecycleComponent {
     private static final List<String> DEFAULT_STANDARD_NUMBERS =
             Arrays.asList("isbn", "issn", "ismn", "isni",  "orcid", "ppn", "zdb");
 
+    /**
+     * The validators of a thread, by standard numbers. They are shared by all mappers, so a mapper which is
+     * rebuilt by a mapping update does not leave validators behind.
+     */
+    private static final ThreadLocal<Map<List<String>, StandardnumberValidator>> validators =
+            ThreadLocal.withInitial(HashMap::new);
+
     @Inject
     public StandardnumberService(Settings settings) {
         super(settings);
@@ -52,37 +62,60 @@ public class StandardnumberService extends AbstractLifecycleComponent {
     }
 
     /**
-     * Called from {@link StandardnumberTokenFilter}.
+     * Resolve the standard numbers of the settings once, for the validators of a token filter factory or a mapper.
+     * Unknown standard numbers are logged and dropped.
      * @param settings settings
-     * @param content content
-     * @return a collection of variants of the detected standard number or an empty collection
+     * @return the names of the standard numbers
      */
-    public Collection<CharSequence> lookup(Settings settings, CharSequence content) {
+    public List<String> getStandardNumbers(Settings settings) {
         List<String> stdnums = settings.getAsList("standardnumbers", DEFAULT_STANDARD_NUMBERS);
         if (stdnums.isEmpty()) {
             stdnums = DEFAULT_STANDARD_NUMBERS;
         }
-        Collection<CharSequence> variants = new LinkedList<>();
+        List<String> list = new ArrayList<>();
         for (String stdnum : stdnums) {
             try {
-                StandardNumber standardNumber = StandardNumber.getInstance(stdnum);
-                if (standardNumber instanceof ISBN) {
-                    handleISBN((ISBN) standardNumber, content, variants);
-                } else {
-                    standardNumber = standardNumber.set(content).normalize();
-                    if (standardNumber.isValid()) {
-                        for (String variant : standardNumber.getTypedVariants()) {
-                            if (variant != null) {
-                                variants.add(variant);
-                            }
-                        }
-                    }
-                }
+                StandardNumber.getInstance(stdnum);
+                list.add(stdnum);
             } catch (NoSuchStandardNumberException e) {
                 logger.error(e.getMessage(), e);
             }
         }
-        return variants;
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Create a validator for standard numbers. A validator must not be shared between threads.
+     * @param stdnums the names of the standard numbers, as returned by {@link #getStandardNumbers(Settings)}
+     * @return the validator
+     */
+    public StandardnumberValidator newValidator(List<String> stdnums) {
+        try {
+            return new StandardnumberValidator(stdnums);
+        } catch (NoSuchStandardNumberException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Return the validator of the current thread for standard numbers. The validator must not be passed
+     * to other threads.
+     * @param stdnums the names of the standard numbers, as returned by {@link #getStandardNumbers(Settings)}
+     * @return the validator
+     */
+    public StandardnumberValidator getValidator(List<String> stdnums) {
+        return validators.get().computeIfAbsent(stdnums, this::newValidator);
+    }
+
+    /**
+     * Look up the variants of a standard number. This resolves the standard numbers on each call,
+     * {@link StandardnumberTokenFilter} and {@link StandardnumberMapper} resolve them once.
+     * @param settings settings
+     * @param content content
+     * @return a collection of variants of the detected standard number or an empty collection
+     */
+    public Collection<CharSequence> lookup(Settings settings, CharSequence content) {
+        return new ArrayList<>(getValidator(getStandardNumbers(settings)).lookup(content));
     }
 
     public void handle(String value, ISBNFormatResponse isbnFormatResponse) {
@@ -93,24 +126,4 @@ public class StandardnumberService extends AbstractLifecycleComponent {
         isbnFormatResponse.setIsbn13(isbn.ean(true).normalizedValue());
         isbnFormatResponse.setIsbn13Formatted(isbn.ean(true).format());
     }
-
-    private void handleISBN(ISBN isbn, CharSequence content, Collection<CharSequence> variants) {
-        ISBN normalizedISBN = (ISBN)isbn.set(content).normalize();
-        if (normalizedISBN.isValid()) {
-            if (!normalizedISBN.isEAN()) {
-                // create variants: ISBN, ISBN normalized, ISBN-13, ISBN-13 normalized
-                variants.add(normalizedISBN.ean(false).format());
-                variants.add(normalizedISBN.ean(false).normalizedValue());
-                StandardNumber normalizedEAN = normalizedISBN.ean(true).set(content).normalize();
-                if (normalizedEAN.isValid()) {
-                    variants.add(normalizedEAN.format());
-                    variants.add(normalizedEAN.normalizedValue());
-                }
-            } else {
-                // 2 variants, do not create ISBN-10 for an ISBN-13
-                variants.add(normalizedISBN.ean(true).format());
-                variants.add(normalizedISBN.ean(true).normalizedValue());
-            }
-        }
-    }
 }
@@ -0,0 +1,153 @@
+package org.xbib.elasticsearch.plugin.bundle.common.standardnumber;
+
+import org.xbib.standardnumber.ISBN;
+import org.xbib.standardnumber.NoSuchStandardNumberException;
+import org.xbib.standardnumber.StandardNumber;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Validates terms against a fixed set of standard numbers and collects the variants of the detected standard
+ * numbers.
+ *
+ * The standard number instances are created once and reused, and so is the list of variants. A term which
+ * can not be one of the standard numbers, because it is too long or has too few digits, is rejected before
+ * any standard number is set. A validator is not thread safe, each thread must use its own validator.
+ */
+public class StandardnumberValidator {
+
+    /**
+     * The minimum number of decimal digits of known standard numbers, without a check digit which may be an 'X'.
+     */
+    private static final Map<String, Integer> MIN_DIGITS = new HashMap<>();
+
+    static {
+        MIN_DIGITS.put("isbn", 9);
+        MIN_DIGITS.put("ismn", 8);
+        MIN_DIGITS.put("issn", 7);
+        MIN_DIGITS.put("isni", 15);
+        MIN_DIGITS.put("orcid", 15);
+        MIN_DIGITS.put("ean", 12);
+        MIN_DIGITS.put("gtin", 12);
+        MIN_DIGITS.put("upc", 11);
+        MIN_DIGITS.put("ppn", 1);
+        MIN_DIGITS.put("zdb", 1);
+    }
+
+    /**
+     * The maximum length of a term which may contain a known standard number, with prefixes and separators.
+     */
+    private static final int MAX_LENGTH = 256;
+
+    private final StandardNumber[] standardNumbers;
+
+    private final int[] minDigits;
+
+    private final int leastDigits;
+
+    private final int maxLength;
+
+    private final List<CharSequence> variants;
+
+    StandardnumberValidator(List<String> types) throws NoSuchStandardNumberException {
+        this.standardNumbers = new StandardNumber[types.size()];
+        this.minDigits = new int[types.size()];
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int i = 0; i < types.size(); i++) {
+            String type = types.get(i);
+            standardNumbers[i] = StandardNumber.getInstance(type);
+            Integer digits = MIN_DIGITS.get(type);
+            // unknown standard numbers are never prefiltered
+            minDigits[i] = digits != null ? digits : 0;
+            min = Math.min(min, minDigits[i]);
+            max = Math.max(max, digits != null ? MAX_LENGTH : Integer.MAX_VALUE);
+        }
+        this.leastDigits = min == Integer.MAX_VALUE ? 0 : min;
+        this.maxLength = max;
+        this.variants = new ArrayList<>();
+    }
+
+    /**
+     * Check if a term may be one of the standard numbers, without validating it.
+     *
+     * @param content the term
+     * @return true if the term may be a standard number
+     */
+    public boolean isCandidate(CharSequence content) {
+        if (content == null || standardNumbers.length == 0) {
+            return false;
+        }
+        int length = content.length();
+        return length >= leastDigits && length <= maxLength && digits(content) >= leastDigits;
+    }
+
+    /**
+     * Look up the variants of a term. The returned list is reused by the next lookup.
+     *
+     * @param content the term
+     * @return the variants of the detected standard numbers, or an empty list
+     */
+    public List<CharSequence> lookup(CharSequence content) {
+        variants.clear();
+        if (!isCandidate(content)) {
+            return variants;
+        }
+        int digits = digits(content);
+        String value = content.toString();
+        for (int i = 0; i < standardNumbers.length; i++) {
+            if (digits < minDigits[i]) {
+                continue;
+            }
+            StandardNumber standardNumber = standardNumbers[i];
+            if (standardNumber instanceof ISBN) {
+                handleISBN((ISBN) standardNumber, value);
+            } else {
+                standardNumber = standardNumber.set(value).normalize();
+                if (standardNumber.isValid()) {
+                    for (String variant : standardNumber.getTypedVariants()) {
+                        if (variant != null) {
+                            variants.add(variant);
+                        }
+                    }
+                }
+            }
+        }
+        return variants;
+    }
+
+    private void handleISBN(ISBN isbn, String content) {
+        // the instance is reused, reset the EAN preference of the last lookup
+        ISBN normalizedISBN = (ISBN) isbn.ean(false).set(content).normalize();
+        if (normalizedISBN.isValid()) {
+            if (!normalizedISBN.isEAN()) {
+                // create variants: ISBN, ISBN normalized, ISBN-13, ISBN-13 normalized
+                variants.add(normalizedISBN.ean(false).format());
+                variants.add(normalizedISBN.ean(false).normalizedValue());
+                StandardNumber normalizedEAN = normalizedISBN.ean(true).set(content).normalize();
+                if (normalizedEAN.isValid()) {
+                    variants.add(normalizedEAN.format());
+                    variants.add(normalizedEAN.normalizedValue());
+                }
+            } else {
+                // 2 variants, do not create ISBN-10 for an ISBN-13
+                variants.add(normalizedISBN.ean(true).format());
+                variants.add(normalizedISBN.ean(true).normalizedValue());
+            }
+        }
+    }
+
+    private static int digits(CharSequence content) {
+        int digits = 0;
+        for (int i = 0; i < content.length(); i++) {
+            char ch = content.charAt(i);
+            if (ch >= '0' && ch <= '9') {
+                digits++;
+            }
+        }
+        return digits;
+    }
+}
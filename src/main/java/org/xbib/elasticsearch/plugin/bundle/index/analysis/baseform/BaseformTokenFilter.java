@@ -11,15 +11,19 @@ import org.xbib.elasticsearch.plugin.bundle.common.fsa.Dictionary;
 import java.io.IOException;
 import java.nio.charset.CharacterCodingException;
 import java.util.LinkedList;
+import java.util.function.Supplier;
 
 /**
- * Base form tokern filter.
+ * Base form tokern filter. The dictionary is taken from its supplier when the filter is reset,
+ * so a reloaded dictionary is used from the next document on.
  */
 public class BaseformTokenFilter extends TokenFilter {
 
     private final LinkedList<String> tokens;
 
-    private final Dictionary dictionary;
+    private final Supplier<Dictionary> dictionarySupplier;
+
+    private Dictionary dictionary;
 
     private final boolean respectKeywords;
 
@@ -31,10 +35,11 @@ public class BaseformTokenFilter extends TokenFilter {
 
     private AttributeSource.State current;
 
-    protected BaseformTokenFilter(TokenStream input, Dictionary dictionary, boolean respectKeywords) {
+    protected BaseformTokenFilter(TokenStream input, Supplier<Dictionary> dictionary, boolean respectKeywords) {
         super(input);
         this.tokens = new LinkedList<>();
-        this.dictionary = dictionary;
+        this.dictionarySupplier = dictionary;
+        this.dictionary = dictionary.get();
         this.respectKeywords = respectKeywords;
     }
 
@@ -74,6 +79,7 @@ public class BaseformTokenFilter extends TokenFilter {
     @Override
     public void reset() throws IOException {
         super.reset();
+        dictionary = dictionarySupplier.get();
         tokens.clear();
         current = null;
     }
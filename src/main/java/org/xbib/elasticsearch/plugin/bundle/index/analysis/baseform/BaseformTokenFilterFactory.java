@@ -6,25 +6,32 @@ import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
+import org.xbib.elasticsearch.plugin.bundle.common.dictionary.DictionaryRegistry;
 import org.xbib.elasticsearch.plugin.bundle.common.fsa.Dictionary;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
- * Base form token filter factory.
+ * Base form token filter factory. The dictionary is shared with all factories of the node
+ * which use the same language. A dictionary in the config directory is used instead of the dictionary
+ * of the plugin, so it can be changed and reloaded.
  */
 public class BaseformTokenFilterFactory extends AbstractTokenFilterFactory {
 
     private final boolean respectKeywords;
 
-    private final Dictionary dictionary;
+    private final DictionaryRegistry.Handle<Dictionary> dictionary;
 
-    public BaseformTokenFilterFactory(IndexSettings indexSettings, Environment environment, String name, Settings settings) {
+    public BaseformTokenFilterFactory(IndexSettings indexSettings, Environment environment, String name, Settings settings,
+                                      DictionaryRegistry dictionaryRegistry) {
         super(indexSettings, name, settings);
         this.respectKeywords = settings.getAsBoolean("respect_keywords", false);
-        this.dictionary = createDictionary(settings);
+        this.dictionary = createDictionary(environment, settings, dictionaryRegistry);
     }
 
     @Override
@@ -32,13 +39,27 @@ public class BaseformTokenFilterFactory extends AbstractTokenFilterFactory {
         return new BaseformTokenFilter(tokenStream, dictionary, respectKeywords);
     }
 
-    private Dictionary createDictionary(Settings settings) {
+    private DictionaryRegistry.Handle<Dictionary> createDictionary(Environment environment, Settings settings,
+                                                                   DictionaryRegistry dictionaryRegistry) {
         try {
             String lang = settings.get("language", "de");
             String path = lang + "-lemma-utf8.txt";
-            return new Dictionary().loadLines(new InputStreamReader(getClass().getResourceAsStream(path), StandardCharsets.UTF_8));
+            Settings key = Settings.builder()
+                    .put("type", "baseform")
+                    .put("language", lang)
+                    .build();
+            return dictionaryRegistry.acquireHandle(this, key, () -> loadDictionary(environment, path),
+                    Dictionary::sizeInBytes);
         } catch (IOException e) {
             throw new ElasticsearchException("resources in settings not found: " + settings, e);
         }
     }
+
+    private static Dictionary loadDictionary(Environment environment, String path) throws IOException {
+        Path file = environment != null ? environment.configFile().resolve(path) : null;
+        try (InputStream inputStream = file != null && Files.isRegularFile(file) ? Files.newInputStream(file) :
+                BaseformTokenFilterFactory.class.getResourceAsStream(path)) {
+            return new Dictionary().loadLines(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        }
+    }
 }
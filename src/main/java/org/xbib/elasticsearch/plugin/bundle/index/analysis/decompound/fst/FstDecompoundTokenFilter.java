@@ -6,26 +6,36 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.KeywordAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.util.AttributeSource;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.TinyLFUCache;
 import org.xbib.elasticsearch.plugin.bundle.common.decompound.fst.FstDecompounder;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 
 /**
- * Finite state decompound token filter.
+ * Finite state decompound token filter. The decompounder and the cache are taken from their suppliers when the
+ * filter is reset, so a reloaded decompounder is used from the next document on.
  */
 public class FstDecompoundTokenFilter extends TokenFilter {
 
-    private final LinkedList<String> tokens;
+    private final Supplier<FstDecompounder> decompounder;
 
-    private final FstDecompounder fstDecompounder;
+    private final Supplier<TinyLFUCache<String, int[]>> cacheSupplier;
+
+    private FstDecompounder fstDecompounder;
+
+    private final FstDecompounder.Context context;
+
+    private final List<String> unrecognized;
 
     private final boolean respectKeywords;
 
     private final boolean subwordsonly;
 
+    private TinyLFUCache<String, int[]> cache;
+
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
 
     private final KeywordAttribute keywordAtt = addAttribute(KeywordAttribute.class);
@@ -34,24 +44,32 @@ public class FstDecompoundTokenFilter extends TokenFilter {
 
     private AttributeSource.State current;
 
-    protected FstDecompoundTokenFilter(TokenStream input, FstDecompounder fstDecompounder,
-                                       boolean respectKeywords, boolean subwordsonly) {
+    private int next;
+
+    private int count;
+
+    protected FstDecompoundTokenFilter(TokenStream input, Supplier<FstDecompounder> decompounder,
+                                       boolean respectKeywords, boolean subwordsonly,
+                                       Supplier<TinyLFUCache<String, int[]>> cache) {
         super(input);
-        this.tokens = new LinkedList<>();
-        this.fstDecompounder = fstDecompounder;
+        this.decompounder = decompounder;
+        this.cacheSupplier = cache;
+        this.context = new FstDecompounder.Context();
+        this.unrecognized = new ArrayList<>();
         this.respectKeywords = respectKeywords;
         this.subwordsonly = subwordsonly;
+        this.cache = cache.get();
+        this.fstDecompounder = decompounder.get();
     }
 
     @Override
     public final boolean incrementToken() throws IOException {
-        if (!tokens.isEmpty()) {
+        if (next < count) {
             if (current == null) {
                 throw new IllegalArgumentException("current is null");
             }
-            String token = tokens.removeFirst();
             restoreState(current);
-            termAtt.setEmpty().append(token);
+            setPart(next++);
             if (!subwordsonly) {
                 posIncAtt.setPositionIncrement(0);
             }
@@ -66,35 +84,68 @@ public class FstDecompoundTokenFilter extends TokenFilter {
         if (!decompound()) {
             current = captureState();
             if (subwordsonly) {
-                String token = tokens.removeFirst();
                 restoreState(current);
-                termAtt.setEmpty().append(token);
+                setPart(next++);
                 return true;
             }
         }
         return true;
     }
 
+    /**
+     * Split the term into the parts of all its interpretations. A term which is not recognized is its only part,
+     * unless it contains the separators of the former string output of the decompounder.
+     *
+     * @return true if there are no parts
+     */
     protected boolean decompound() {
-        String term = new String(termAtt.buffer(), 0, termAtt.length());
-        tokens.addAll(doDecompound(term));
-        return tokens.isEmpty();
+        next = 0;
+        unrecognized.clear();
+        count = cache != null ?
+                fstDecompounder.split(termAtt.buffer(), 0, termAtt.length(), context, cache) :
+                fstDecompounder.split(termAtt.buffer(), 0, termAtt.length(), context);
+        if (count == 0) {
+            if (hasSeparator()) {
+                for (String suggestion : termAtt.toString().split(",")) {
+                    for (String part : suggestion.split("\\.")) {
+                        unrecognized.add(part);
+                    }
+                }
+                count = unrecognized.size();
+            } else {
+                count = 1;
+            }
+        }
+        return count == 0;
     }
 
-    private List<String> doDecompound(String term) {
-        List<String> list = new LinkedList<>();
-        for (String suggestions : fstDecompounder.decompound(term)) {
-            for (String suggestion : suggestions.split(",")) {
-                list.addAll(Arrays.asList(suggestion.split("\\.")));
+    private boolean hasSeparator() {
+        char[] buffer = termAtt.buffer();
+        for (int i = 0; i < termAtt.length(); i++) {
+            if (buffer[i] == ',' || buffer[i] == '.') {
+                return true;
             }
         }
-        return list;
+        return false;
+    }
+
+    private void setPart(int i) {
+        if (context.count() > 0) {
+            int start = context.start(i);
+            termAtt.copyBuffer(context.chars(), start, context.end(i) - start);
+        } else if (!unrecognized.isEmpty()) {
+            termAtt.setEmpty().append(unrecognized.get(i));
+        }
     }
 
     @Override
     public void reset() throws IOException {
         super.reset();
-        tokens.clear();
+        // the cache first, it is reloaded after the decompounder
+        cache = cacheSupplier.get();
+        fstDecompounder = decompounder.get();
+        next = 0;
+        count = 0;
         current = null;
     }
 
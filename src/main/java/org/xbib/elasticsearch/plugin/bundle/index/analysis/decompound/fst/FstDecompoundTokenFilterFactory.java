@@ -5,42 +5,105 @@ import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.TinyLFUCache;
 import org.xbib.elasticsearch.plugin.bundle.common.decompound.fst.FstDecompounder;
+import org.xbib.elasticsearch.plugin.bundle.common.dictionary.DictionaryRegistry;
+import org.xbib.elasticsearch.plugin.bundle.common.fst.CompiledFst;
 
 import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 
 /**
- * Finite state decompound token filter factory.
+ * Finite state decompound token filter factory. The decompounder is shared with all factories of the node
+ * which use the same transducer and glue morphemes. A compiled transducer in the config directory is memory
+ * mapped.
+ *
+ * The cache of split words is shared with all factories of the node which use the same transducer,
+ * glue morphemes, and cache size. It is replaced by an empty cache when the transducers are reloaded.
  */
 public class FstDecompoundTokenFilterFactory extends AbstractTokenFilterFactory {
 
-    private final FstDecompounder decompounder;
+    private final DictionaryRegistry.Handle<FstDecompounder> decompounder;
+
+    private final DictionaryRegistry.Handle<TinyLFUCache<String, int[]>> cache;
 
     private final Boolean respectKeywords;
 
     private final Boolean subwordsonly;
 
     public FstDecompoundTokenFilterFactory(IndexSettings indexSettings, Environment environment, String name,
-                                           Settings settings) {
+                                           Settings settings, DictionaryRegistry dictionaryRegistry) {
         super(indexSettings, name, settings);
-        this.decompounder = createDecompounder(settings);
+        Settings key = Settings.builder()
+                .put("type", "fst_decompound")
+                .put("fst", settings.get("fst", "words.fst"))
+                .putList("glue_morphs", settings.getAsList("glue_morphs"))
+                .build();
+        this.decompounder = createDecompounder(environment, settings, key, dictionaryRegistry);
+        this.cache = settings.getAsBoolean("use_cache", false) ?
+                createCache(settings, key, dictionaryRegistry) : null;
         this.respectKeywords = settings.getAsBoolean("respect_keywords", false);
         this.subwordsonly = settings.getAsBoolean("subwords_only", false);
     }
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
-        return new FstDecompoundTokenFilter(tokenStream, decompounder, respectKeywords, subwordsonly);
+        return new FstDecompoundTokenFilter(tokenStream, decompounder, respectKeywords, subwordsonly,
+                cache != null ? cache : () -> null);
     }
 
-    private FstDecompounder createDecompounder(Settings settings) {
+    private DictionaryRegistry.Handle<FstDecompounder> createDecompounder(Environment environment, Settings settings, Settings key,
+                                               DictionaryRegistry dictionaryRegistry) {
         try {
-            String words = settings.get("fst", "words.fst");
-            List<String> glueMorphs = settings.getAsList("glue_morphs");
-            return new FstDecompounder(getClass().getResourceAsStream(words), glueMorphs);
+            String words = key.get("fst");
+            List<String> glueMorphs = key.getAsList("glue_morphs");
+            return dictionaryRegistry.acquireHandle(this, key,
+                    () -> loadDecompounder(environment, words, glueMorphs),
+                    FstDecompounder::sizeInBytes);
         } catch (IOException e) {
             throw new IllegalArgumentException("fst decompounder resources in settings not found: " + settings, e);
         }
     }
+
+    /**
+     * Create the cache of split words, which is registered like a dictionary, so its statistics are shown
+     * with the dictionaries.
+     */
+    private DictionaryRegistry.Handle<TinyLFUCache<String, int[]>> createCache(Settings settings, Settings key,
+                                                    DictionaryRegistry dictionaryRegistry) {
+        int cacheSize = settings.getAsInt("cache_size", 100000);
+        Settings cacheKey = Settings.builder()
+                .put(key)
+                .put("type", "fst_decompound_cache")
+                .put("cache_size", cacheSize)
+                .build();
+        try {
+            return dictionaryRegistry.acquireHandle(this, cacheKey, () -> new TinyLFUCache<>(cacheSize), c -> 0L);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("fst decompounder cache in settings not created: " + settings, e);
+        }
+    }
+
+    /**
+     * Load the decompounder from a compiled transducer, memory mapped from the config directory, or from the
+     * compiled resources of the plugin, and fall back to the transducer resource.
+     */
+    private static FstDecompounder loadDecompounder(Environment environment, String words, List<String> glueMorphs)
+            throws IOException {
+        String compiledName = CompiledFst.compiledName(words);
+        if (environment != null) {
+            Path path = environment.configFile().resolve(compiledName);
+            if (Files.isRegularFile(path)) {
+                return new FstDecompounder(CompiledFst.load(path), glueMorphs);
+            }
+        }
+        URL url = FstDecompoundTokenFilterFactory.class.getResource(compiledName);
+        if (url != null) {
+            return new FstDecompounder(CompiledFst.load(url), glueMorphs);
+        }
+        return new FstDecompounder(FstDecompoundTokenFilterFactory.class.getResourceAsStream(words), glueMorphs);
+    }
 }
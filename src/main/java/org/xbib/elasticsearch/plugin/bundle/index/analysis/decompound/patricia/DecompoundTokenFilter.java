@@ -9,21 +9,30 @@ import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.util.AttributeSource;
 import org.apache.lucene.util.BytesRef;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.CharsKey;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.TinyLFUCache;
 import org.xbib.elasticsearch.plugin.bundle.common.decompound.patricia.Decompounder;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.function.Supplier;
 
 /**
- * Decompound token filter.
+ * Decompound token filter. The decompounder and the cache are taken from their suppliers when the filter is reset,
+ * so a reloaded decompounder is used from the next document on.
  */
 public class DecompoundTokenFilter extends TokenFilter {
 
-    private final LinkedList<DecompoundToken> tokens;
+    private final Supplier<Decompounder> decompounder;
 
-    private final Decompounder decomp;
+    private final Supplier<TinyLFUCache<CharsKey, List<String>>> cacheSupplier;
+
+    private Decompounder decomp;
+
+    private final Decompounder.Context context;
+
+    private final CharsKey key;
 
     private final boolean respectKeywords;
 
@@ -31,7 +40,7 @@ public class DecompoundTokenFilter extends TokenFilter {
 
     private final boolean usePayload;
 
-    private final Map<String, List<String>> cache;
+    private TinyLFUCache<CharsKey, List<String>> cache;
 
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
 
@@ -45,31 +54,41 @@ public class DecompoundTokenFilter extends TokenFilter {
 
     private AttributeSource.State current;
 
+    private int next;
+
+    private int count;
+
+    private int startOffset;
+
+    private int endOffset;
+
     private static final byte TOKEN_TYPE = 1;
 
     private static final byte DECOMP_TOKEN_TYPE = 2;
 
-    protected DecompoundTokenFilter(TokenStream input, Decompounder decomp, boolean respectKeywords,
-                                    boolean subwordsonly, boolean usePayload, Map<String, List<String>> cache) {
+    protected DecompoundTokenFilter(TokenStream input, Supplier<Decompounder> decompounder, boolean respectKeywords,
+                                    boolean subwordsonly, boolean usePayload,
+                                    Supplier<TinyLFUCache<CharsKey, List<String>>> cache) {
         super(input);
-        this.tokens = new LinkedList<>();
-        this.decomp = decomp;
+        this.decompounder = decompounder;
+        this.cacheSupplier = cache;
+        this.context = new Decompounder.Context();
+        this.key = new CharsKey();
         this.respectKeywords = respectKeywords;
         this.subwordsonly = subwordsonly;
         this.usePayload= usePayload;
-        this.cache = cache;
+        this.cache = cache.get();
+        this.decomp = decompounder.get();
     }
 
     @Override
     public final boolean incrementToken() throws IOException {
-        if (!tokens.isEmpty()) {
+        if (next < count) {
             if (current == null) {
                 throw new IllegalArgumentException("current is null");
             }
-            DecompoundToken token = tokens.removeFirst();
             restoreState(current);
-            termAtt.setEmpty().append(token.value);
-            offsetAtt.setOffset(token.startOffset, token.endOffset);
+            setPart(next++);
             if (!subwordsonly) {
                 posIncAtt.setPositionIncrement(0);
             }
@@ -90,10 +109,8 @@ public class DecompoundTokenFilter extends TokenFilter {
         if (!decompound()) {
             current = captureState();
             if (subwordsonly) {
-                DecompoundToken token = tokens.removeFirst();
                 restoreState(current);
-                termAtt.setEmpty().append(token.value);
-                offsetAtt.setOffset(token.startOffset, token.endOffset);
+                setPart(next++);
                 if (usePayload) {
                     addPayload(DECOMP_TOKEN_TYPE);
                 }
@@ -104,14 +121,40 @@ public class DecompoundTokenFilter extends TokenFilter {
     }
 
     protected boolean decompound() {
-        String term = new String(termAtt.buffer(), 0, termAtt.length());
-        List<String> list = (cache != null ?
-                cache.computeIfAbsent(term, decomp::decompound) : decomp.decompound(term));
-        for (String string : list) {
-            DecompoundToken token = new DecompoundToken(string, termAtt, offsetAtt);
-            tokens.add(token);
+        if (cache != null) {
+            // probe the cache with the term buffer, the chars are only copied into a new entry
+            List<String> list = cache.get(key.reset(termAtt.buffer(), 0, termAtt.length()));
+            if (list == null) {
+                count = decomp.decompound(termAtt.buffer(), 0, termAtt.length(), context);
+                list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(context.toString(i));
+                }
+                cache.put(key.copy(), list);
+            } else {
+                context.clear();
+                for (String part : list) {
+                    context.add(part);
+                }
+                count = list.size();
+            }
+        } else {
+            count = decomp.decompound(termAtt.buffer(), 0, termAtt.length(), context);
+        }
+        next = 0;
+        startOffset = offsetAtt.startOffset();
+        if (offsetAtt.endOffset() - offsetAtt.startOffset() != termAtt.length()) {
+            endOffset = offsetAtt.endOffset();
+        } else {
+            endOffset = offsetAtt.startOffset() + termAtt.length();
         }
-        return tokens.isEmpty();
+        return count == 0;
+    }
+
+    private void setPart(int i) {
+        int start = context.start(i);
+        termAtt.copyBuffer(context.chars(), start, context.end(i) - start);
+        offsetAtt.setOffset(startOffset, endOffset);
     }
 
     private void addPayload(byte tokenType) {
@@ -137,37 +180,23 @@ public class DecompoundTokenFilter extends TokenFilter {
     @Override
     public void reset() throws IOException {
         super.reset();
-        tokens.clear();
+        // the cache first, so it never belongs to a newer decompounder than the one which is used
+        cache = cacheSupplier.get();
+        decomp = decompounder.get();
+        next = 0;
+        count = 0;
         current = null;
     }
 
     @Override
     public boolean equals(Object object) {
         return object instanceof DecompoundTokenFilter &&
-                tokens.equals(((DecompoundTokenFilter)object).tokens) &&
                 respectKeywords == ((DecompoundTokenFilter)object).respectKeywords &&
                 subwordsonly == ((DecompoundTokenFilter)object).subwordsonly;
     }
 
     @Override
     public int hashCode() {
-        return tokens.hashCode() ^ Boolean.hashCode(respectKeywords) ^ Boolean.hashCode(subwordsonly);
-    }
-
-    class DecompoundToken {
-        final CharSequence value;
-        final int startOffset;
-        final int endOffset;
-
-        DecompoundToken(CharSequence value, CharTermAttribute termAttribute, OffsetAttribute offsetAttribute) {
-            this.value = value;
-            if (offsetAttribute.endOffset() - offsetAttribute.startOffset() != termAttribute.length()) {
-                this.startOffset = offsetAttribute.startOffset();
-                this.endOffset = offsetAttribute.endOffset();
-            } else {
-                this.startOffset = offsetAttribute.startOffset();
-                this.endOffset = offsetAttribute.startOffset() + termAttribute.length();
-            }
-        }
+        return Boolean.hashCode(respectKeywords) ^ Boolean.hashCode(subwordsonly);
     }
 }
@@ -7,21 +7,32 @@ import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.CharsKey;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.TinyLFUCache;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.patricia.CompiledPatriciaTrie;
 import org.xbib.elasticsearch.plugin.bundle.common.decompound.patricia.Decompounder;
-import org.xbib.elasticsearch.plugin.bundle.common.decompound.patricia.LFUCache;
+import org.xbib.elasticsearch.plugin.bundle.common.dictionary.DictionaryRegistry;
 
-import java.util.Collections;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Decompound token filter factory.
+ *
+ * The decompounder is shared with all factories of the node which use the same tries and threshold.
+ * Each factory has its own cache, which is replaced by an empty cache when the decompounder is reloaded.
  */
-public class DecompoundTokenFilterFactory extends AbstractTokenFilterFactory {
+public class DecompoundTokenFilterFactory extends AbstractTokenFilterFactory
+        implements DictionaryRegistry.CacheStatsProvider {
 
-    private static Map<String, List<String>> cache;
+    private final DictionaryRegistry.Handle<Decompounder> decompounder;
 
-    private final Decompounder decompounder;
+    private final int cacheSize;
+
+    private volatile CacheState cacheState;
 
     private final Boolean respectKeywords;
 
@@ -30,41 +41,120 @@ public class DecompoundTokenFilterFactory extends AbstractTokenFilterFactory {
     private final Boolean usePayload;
 
     public DecompoundTokenFilterFactory(IndexSettings indexSettings, Environment environment,
-                                        @Assisted String name, @Assisted Settings settings) {
+                                        @Assisted String name, @Assisted Settings settings,
+                                        DictionaryRegistry dictionaryRegistry) {
         super(indexSettings, name, settings);
-        this.decompounder = createDecompounder(settings);
+        this.decompounder = createDecompounder(environment, settings, dictionaryRegistry);
         this.respectKeywords = settings.getAsBoolean("respect_keywords", false);
         this.subwordsonly = settings.getAsBoolean("subwords_only", false);
         this.usePayload = settings.getAsBoolean("use_payload", false);
-        if (cache == null && settings.getAsBoolean("use_cache", false)) {
-            cache = createCache(settings);
-        }
+        this.cacheSize = settings.getAsBoolean("use_cache", false) ? settings.getAsInt("cache_size", 100000) : 0;
+        this.cacheState = cacheSize > 0 ? new CacheState(decompounder.get(), new TinyLFUCache<>(cacheSize)) : null;
     }
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
         return new DecompoundTokenFilter(tokenStream, decompounder, respectKeywords, subwordsonly,
-                usePayload, cache);
+                usePayload, this::cache);
+    }
+
+    /**
+     * Return the cache for the current decompounder.
+     *
+     * @return the cache, or null if the cache is not used
+     */
+    private TinyLFUCache<CharsKey, List<String>> cache() {
+        if (cacheSize <= 0) {
+            return null;
+        }
+        Decompounder current = decompounder.get();
+        CacheState state = cacheState;
+        if (state.decompounder != current) {
+            synchronized (this) {
+                state = cacheState;
+                if (state.decompounder != current) {
+                    state = new CacheState(current, new TinyLFUCache<>(cacheSize));
+                    cacheState = state;
+                }
+            }
+        }
+        return state.cache;
     }
 
-    private Decompounder createDecompounder(Settings settings) {
+    private DictionaryRegistry.Handle<Decompounder> createDecompounder(Environment environment, Settings settings,
+                                            DictionaryRegistry dictionaryRegistry) {
         try {
             String forward = settings.get("forward", "kompVVic.tree");
             String backward = settings.get("backward", "kompVHic.tree");
             String reduce = settings.get("reduce", "grfExt.tree");
             double threshold = settings.getAsDouble("threshold", 0.51d);
-            return new Decompounder(getClass().getResourceAsStream(forward),
-                    getClass().getResourceAsStream(backward),
-                    getClass().getResourceAsStream(reduce),
-                    threshold);
+            Settings key = Settings.builder()
+                    .put("type", "decompound")
+                    .put("forward", forward)
+                    .put("backward", backward)
+                    .put("reduce", reduce)
+                    .put("threshold", threshold)
+                    .build();
+            return dictionaryRegistry.acquireHandle(this, key,
+                    () -> loadDecompounder(environment, forward, backward, reduce, threshold),
+                    Decompounder::sizeInBytes);
         } catch (Exception e) {
             throw new ElasticsearchException("decompounder resources in settings not found: " + settings, e);
         }
     }
 
-    private Map<String, List<String>> createCache(Settings settings) {
-        int cachesize = settings.getAsInt("cache_size", 100000);
-        float evictionfactor = settings.getAsFloat("cache_eviction_factor", 0.90f);
-        return Collections.synchronizedMap(new LFUCache<>(cachesize, evictionfactor));
+    private static Decompounder loadDecompounder(Environment environment, String forward, String backward, String reduce,
+                                          double threshold) throws IOException {
+        CompiledPatriciaTrie forwardTrie = loadCompiled(environment, forward);
+        CompiledPatriciaTrie backwardTrie = loadCompiled(environment, backward);
+        CompiledPatriciaTrie reduceTrie = loadCompiled(environment, reduce);
+        if (forwardTrie != null && backwardTrie != null && reduceTrie != null) {
+            return new Decompounder(forwardTrie, backwardTrie, reduceTrie, threshold);
+        }
+        return new Decompounder(DecompoundTokenFilterFactory.class.getResourceAsStream(forward),
+                DecompoundTokenFilterFactory.class.getResourceAsStream(backward),
+                DecompoundTokenFilterFactory.class.getResourceAsStream(reduce),
+                threshold);
+    }
+
+    /**
+     * Load a compiled trie, memory mapped from the config directory, or from the compiled resources of the plugin.
+     *
+     * @return the compiled trie, or null if there is no compiled trie of this name
+     */
+    private static CompiledPatriciaTrie loadCompiled(Environment environment, String name) throws IOException {
+        String compiledName = CompiledPatriciaTrie.compiledName(name);
+        Path path = environment.configFile().resolve(compiledName);
+        if (Files.isRegularFile(path)) {
+            return CompiledPatriciaTrie.load(path);
+        }
+        URL url = DecompoundTokenFilterFactory.class.getResource(compiledName);
+        return url != null ? CompiledPatriciaTrie.load(url) : null;
+    }
+
+    /**
+     * Return the statistics of the cache of this factory.
+     *
+     * @return the cache statistics, or null if the cache is not used
+     */
+    @Override
+    public TinyLFUCache.Stats getCacheStats() {
+        CacheState state = cacheState;
+        return state != null ? state.cache.stats() : null;
+    }
+
+    /**
+     * A cache with the decompounder whose results it holds.
+     */
+    private static class CacheState {
+
+        private final Decompounder decompounder;
+
+        private final TinyLFUCache<CharsKey, List<String>> cache;
+
+        CacheState(Decompounder decompounder, TinyLFUCache<CharsKey, List<String>> cache) {
+            this.decompounder = decompounder;
+            this.cache = cache;
+        }
     }
 }
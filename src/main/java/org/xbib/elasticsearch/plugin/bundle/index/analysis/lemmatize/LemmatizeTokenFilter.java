@@ -11,15 +11,19 @@ import org.xbib.elasticsearch.plugin.bundle.common.fsa.Dictionary;
 import java.io.IOException;
 import java.nio.charset.CharacterCodingException;
 import java.util.LinkedList;
+import java.util.function.Supplier;
 
 /**
- * Lemmative token filter.
+ * Lemmative token filter. The dictionary is taken from its supplier when the filter is reset,
+ * so a reloaded dictionary is used from the next document on.
  */
 public class LemmatizeTokenFilter extends TokenFilter {
 
     private final LinkedList<String> tokens;
 
-    private final Dictionary dictionary;
+    private final Supplier<Dictionary> dictionarySupplier;
+
+    private Dictionary dictionary;
 
     private final boolean respectKeywords;
 
@@ -33,11 +37,12 @@ public class LemmatizeTokenFilter extends TokenFilter {
 
     private AttributeSource.State current;
 
-    protected LemmatizeTokenFilter(TokenStream input, Dictionary dictionary,
+    protected LemmatizeTokenFilter(TokenStream input, Supplier<Dictionary> dictionary,
                                    boolean respectKeywords, boolean lemmaOnly) {
         super(input);
         this.tokens = new LinkedList<>();
-        this.dictionary = dictionary;
+        this.dictionarySupplier = dictionary;
+        this.dictionary = dictionary.get();
         this.respectKeywords = respectKeywords;
         this.lemmaOnly = lemmaOnly;
     }
@@ -86,6 +91,7 @@ public class LemmatizeTokenFilter extends TokenFilter {
     @Override
     public void reset() throws IOException {
         super.reset();
+        dictionary = dictionarySupplier.get();
         tokens.clear();
         current = null;
     }
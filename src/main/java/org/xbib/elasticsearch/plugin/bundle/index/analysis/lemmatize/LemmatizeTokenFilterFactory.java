@@ -6,30 +6,37 @@ import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
+import org.xbib.elasticsearch.plugin.bundle.common.dictionary.DictionaryRegistry;
 import org.xbib.elasticsearch.plugin.bundle.common.fsa.Dictionary;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.zip.GZIPInputStream;
 
 /**
- * Lemmatize token filter factory.
+ * Lemmatize token filter factory. The dictionary is shared with all factories of the node
+ * which use the same resource. A resource in the config directory is used instead of the resource
+ * of the plugin, so it can be changed and reloaded.
  */
 public class LemmatizeTokenFilterFactory extends AbstractTokenFilterFactory {
 
-    private final Dictionary dictionary;
+    private final DictionaryRegistry.Handle<Dictionary> dictionary;
 
     private final boolean respectKeywords;
 
     private final boolean lemmaOnly;
 
-    public LemmatizeTokenFilterFactory(IndexSettings indexSettings, Environment environment, String name, Settings settings) {
+    public LemmatizeTokenFilterFactory(IndexSettings indexSettings, Environment environment, String name, Settings settings,
+                                       DictionaryRegistry dictionaryRegistry) {
         super(indexSettings, name, settings);
         this.respectKeywords = settings.getAsBoolean("respect_keywords", false);
         this.lemmaOnly = settings.getAsBoolean("lemma_only", true);
-        this.dictionary = createDictionary(settings);
+        this.dictionary = createDictionary(environment, settings, dictionaryRegistry);
     }
 
     @Override
@@ -37,33 +44,49 @@ public class LemmatizeTokenFilterFactory extends AbstractTokenFilterFactory {
         return new LemmatizeTokenFilter(tokenStream, dictionary, respectKeywords, lemmaOnly);
     }
 
-    private Dictionary createDictionary(Settings settings) {
+    private DictionaryRegistry.Handle<Dictionary> createDictionary(Environment environment, Settings settings,
+                                                                   DictionaryRegistry dictionaryRegistry) {
         String language = settings.get("language", "en");
         try {
             String resource = settings.get("resource", "lemmatization-" + language + ".fsa.gz");
-            if (resource.endsWith(".fsa") || resource.endsWith("fsa.gz")) {
-                // FSA
-                InputStream inputStream = getClass().getResourceAsStream(resource);
-                if (resource.endsWith(".gz")) {
-                    inputStream = new GZIPInputStream(inputStream);
-                }
-                Dictionary dictionary = new Dictionary().loadFSA(inputStream);
-                inputStream.close();
-                return dictionary;
-            } else {
-                // Text
-                InputStream inputStream = getClass().getResourceAsStream(resource);
-                if (resource.endsWith(".gz")) {
-                    inputStream = new GZIPInputStream(inputStream);
-                }
-                Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
-                Dictionary dictionary = new Dictionary().loadLinesReverse(reader);
-                reader.close();
-                return dictionary;
-            }
+            Settings key = Settings.builder()
+                    .put("type", "lemmatize")
+                    .put("resource", resource)
+                    .build();
+            return dictionaryRegistry.acquireHandle(this, key, () -> loadDictionary(environment, resource),
+                    Dictionary::sizeInBytes);
         } catch (Exception e) {
             throw new ElasticsearchException("resources for language " + language +
                     " in settings not found: " + settings, e);
         }
     }
+
+    private static Dictionary loadDictionary(Environment environment, String resource) throws IOException {
+        if (resource.endsWith(".fsa") || resource.endsWith("fsa.gz")) {
+            // FSA
+            InputStream inputStream = open(environment, resource);
+            if (resource.endsWith(".gz")) {
+                inputStream = new GZIPInputStream(inputStream);
+            }
+            Dictionary dictionary = new Dictionary().loadFSA(inputStream);
+            inputStream.close();
+            return dictionary;
+        } else {
+            // Text
+            InputStream inputStream = open(environment, resource);
+            if (resource.endsWith(".gz")) {
+                inputStream = new GZIPInputStream(inputStream);
+            }
+            Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
+            Dictionary dictionary = new Dictionary().loadLinesReverse(reader);
+            reader.close();
+            return dictionary;
+        }
+    }
+
+    private static InputStream open(Environment environment, String resource) throws IOException {
+        Path file = environment != null ? environment.configFile().resolve(resource) : null;
+        return file != null && Files.isRegularFile(file) ? Files.newInputStream(file) :
+                LemmatizeTokenFilterFactory.class.getResourceAsStream(resource);
+    }
 }
@@ -3,26 +3,24 @@ package org.xbib.elasticsearch.plugin.bundle.index.analysis.standardnumber;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.analysis.tokenattributes.PackedTokenAttributeImpl;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
-import org.elasticsearch.common.settings.Settings;
 import org.xbib.elasticsearch.plugin.bundle.common.standardnumber.StandardnumberService;
+import org.xbib.elasticsearch.plugin.bundle.common.standardnumber.StandardnumberValidator;
 
 import java.io.IOException;
-import java.nio.charset.CharacterCodingException;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Standard number token filter.
  */
 public class StandardnumberTokenFilter extends TokenFilter {
 
-    private final LinkedList<PackedTokenAttributeImpl> tokens;
-
     private final StandardnumberService service;
 
-    private final Settings settings;
+    private final List<String> stdnums;
+
+    private final StandardnumberValidator validator;
 
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
 
@@ -30,28 +28,35 @@ public class StandardnumberTokenFilter extends TokenFilter {
 
     private State current;
 
-    protected StandardnumberTokenFilter(TokenStream input, StandardnumberService service, Settings settings) {
+    private List<CharSequence> variants;
+
+    private int pos;
+
+    protected StandardnumberTokenFilter(TokenStream input, StandardnumberService service, List<String> stdnums) {
         super(input);
-        this.tokens = new LinkedList<>();
         this.service = service;
-        this.settings = settings;
+        this.stdnums = stdnums;
+        this.validator = service.newValidator(stdnums);
+        this.variants = Collections.emptyList();
     }
 
     @Override
     public final boolean incrementToken() throws IOException {
-        if (!tokens.isEmpty()) {
+        if (pos < variants.size()) {
             if (current == null) {
                 throw new IllegalArgumentException("current is null");
             }
-            PackedTokenAttributeImpl token = tokens.removeFirst();
+            CharSequence variant = variants.get(pos++);
             restoreState(current);
-            termAtt.setEmpty().append(token);
+            termAtt.setEmpty().append(variant);
             posIncAtt.setPositionIncrement(0);
             return true;
         }
         if (input.incrementToken()) {
-            detect();
-            if (!tokens.isEmpty()) {
+            // the variants are kept in the buffer of the validator until the next lookup
+            variants = validator.lookup(termAtt);
+            pos = 0;
+            if (!variants.isEmpty()) {
                 current = captureState();
             }
             return true;
@@ -60,22 +65,11 @@ public class StandardnumberTokenFilter extends TokenFilter {
         }
     }
 
-    private void detect() throws CharacterCodingException {
-        CharSequence term = new String(termAtt.buffer(), 0, termAtt.length());
-        Collection<CharSequence> variants = service.lookup(settings, term);
-        for (CharSequence ch : variants) {
-            if (ch != null) {
-                PackedTokenAttributeImpl token = new PackedTokenAttributeImpl();
-                token.append(ch);
-                tokens.add(token);
-            }
-        }
-    }
-
     @Override
     public void reset() throws IOException {
         super.reset();
-        tokens.clear();
+        variants = Collections.emptyList();
+        pos = 0;
         current = null;
     }
 
@@ -83,11 +77,11 @@ public class StandardnumberTokenFilter extends TokenFilter {
     public boolean equals(Object object) {
         return object instanceof StandardnumberTokenFilter &&
                 service.equals(((StandardnumberTokenFilter)object).service) &&
-                settings.equals(((StandardnumberTokenFilter)object).settings);
+                stdnums.equals(((StandardnumberTokenFilter)object).stdnums);
     }
 
     @Override
     public int hashCode() {
-        return service.hashCode() ^ settings.hashCode();
+        return service.hashCode() ^ stdnums.hashCode();
     }
 }
@@ -8,25 +8,27 @@ import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
 import org.xbib.elasticsearch.plugin.bundle.index.mapper.standardnumber.StandardnumberMapper;
 import org.xbib.elasticsearch.plugin.bundle.common.standardnumber.StandardnumberService;
 
+import java.util.List;
+
 /**
  * Standard number token filter factory.
  */
 public class StandardnumberTokenFilterFactory extends AbstractTokenFilterFactory {
 
-    private final Settings settings;
-
     private final StandardnumberService standardnumberService;
 
+    private final List<String> stdnums;
+
     public StandardnumberTokenFilterFactory(IndexSettings indexSettings, Environment environment, String name,
                                             Settings settings, StandardnumberMapper.TypeParser standardNumberTypeParser) {
         super(indexSettings, name, settings);
-        this.settings = settings;
         this.standardnumberService = new StandardnumberService(settings);
         this.standardnumberService.setStandardNumberTypeParser(standardNumberTypeParser);
+        this.stdnums = standardnumberService.getStandardNumbers(settings);
     }
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
-        return new StandardnumberTokenFilter(tokenStream, standardnumberService, settings);
+        return new StandardnumberTokenFilter(tokenStream, standardnumberService, stdnums);
     }
 }
@@ -15,13 +15,20 @@ import org.elasticsearch.index.mapper.Mapper;
 import org.elasticsearch.index.mapper.MapperParsingException;
 import org.elasticsearch.index.mapper.ParseContext;
 import org.elasticsearch.index.mapper.TextFieldMapper;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.Detection;
 import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectService;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectServiceRegistry;
 import org.xbib.elasticsearch.plugin.bundle.common.langdetect.Language;
 import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LanguageDetectionException;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -71,18 +78,26 @@ public class LangdetectMapper extends FieldMapper {
 
     @Override
     protected void parseCreateField(ParseContext context, List<IndexableField> fields) throws IOException {
-        String value;
+        CharSequence value;
         XContentParser parser = context.parser();
         if (context.externalValueSet()) {
             value = context.externalValue().toString();
+        } else if (parser.currentToken() == XContentParser.Token.VALUE_STRING) {
+            // detect directly from the parser text buffer, without creating a string
+            value = CharBuffer.wrap(parser.textCharacters(), parser.textOffset(), parser.textLength());
         } else {
-            value = context.parser().textOrNull();
+            value = parser.textOrNull();
         }
         if (value == null) {
             return;
         }
         boolean isBinary = langdetectService.getSettings().getAsBoolean("binary", false);
-        if (isBinary) {
+        Detection detection = null;
+        if (isBinary && langdetectService.getMaxChars() > 0 && !context.externalValueSet() &&
+                parser.currentToken() == XContentParser.Token.VALUE_STRING) {
+            // decode only the sampled windows of the base64 text
+            detection = detectBase64(parser.textCharacters(), parser.textOffset(), parser.textLength());
+        } else if (isBinary) {
             try {
                 byte[] b = parser.binaryValue();
                 if (b != null && b.length > 0) {
@@ -105,8 +120,10 @@ public class LangdetectMapper extends FieldMapper {
         }
         try {
             createFieldNamesField(context, fields);
-            List<Language> langs = langdetectService.detectAll(value);
-            for (Language lang : langs) {
+            if (detection == null) {
+                detection = langdetectService.detect(value);
+            }
+            for (Language lang : detection.getLanguages()) {
                 Field field = new Field(fieldType().name(), lang.getLanguage(), fieldType());
                 fields.add(field);
                 if (languageTo.languageToFields().containsKey(lang.getLanguage())) {
@@ -118,6 +135,22 @@ public class LangdetectMapper extends FieldMapper {
         }
     }
 
+    /**
+     * Detect the languages of a base64 encoded UTF-8 text, decoding it while reading.
+     *
+     * @return the detection, or null if the text is not base64 encoded or empty, so the clear text must be detected
+     */
+    private Detection detectBase64(char[] chars, int offset, int length) {
+        InputStream in = Base64.getDecoder().wrap(new AsciiInputStream(chars, offset, length));
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            Detection detection = langdetectService.detect(reader, length / 4L * 3L);
+            return detection.getConsumedChars() > 0 ? detection : null;
+        } catch (IOException e) {
+            // if clear text, decoding fails with illegal base64 characters
+            return null;
+        }
+    }
+
     protected void createFieldNamesField(ParseContext context, List<IndexableField> fields) {
         FieldNamesFieldMapper.FieldNamesFieldType fieldNamesFieldType = context.docMapper()
                 .metadataMapper(FieldNamesFieldMapper.class).fieldType();
@@ -210,9 +243,16 @@ public class LangdetectMapper extends FieldMapper {
 
         protected Settings.Builder settingsBuilder = Settings.builder();
 
+        protected final LangdetectServiceRegistry registry;
+
         public Builder(String name) {
+            this(name, null);
+        }
+
+        public Builder(String name, LangdetectServiceRegistry registry) {
             super(name, FIELD_TYPE, FIELD_TYPE);
             this.builder = this;
+            this.registry = registry;
         }
 
         public Builder positionIncrementGap(int positionIncrementGap) {
@@ -220,6 +260,21 @@ public class LangdetectMapper extends FieldMapper {
             return this;
         }
 
+        public Builder mode(String mode) {
+            settingsBuilder.put("mode", mode);
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            settingsBuilder.put("seed", seed);
+            return this;
+        }
+
+        public Builder trialTolerance(double trialTolerance) {
+            settingsBuilder.put("trial_tolerance", trialTolerance);
+            return this;
+        }
+
         public Builder ntrials(int trials) {
             settingsBuilder.put("number_of_trials", trials);
             return this;
@@ -270,6 +325,31 @@ public class LangdetectMapper extends FieldMapper {
             return this;
         }
 
+        public Builder maxChars(int maxChars) {
+            settingsBuilder.put("max_chars", maxChars);
+            return this;
+        }
+
+        public Builder windows(int windows) {
+            settingsBuilder.put("windows", windows);
+            return this;
+        }
+
+        public Builder windowThreshold(double windowThreshold) {
+            settingsBuilder.put("window_threshold", windowThreshold);
+            return this;
+        }
+
+        public Builder cacheSize(int cacheSize) {
+            settingsBuilder.put("cache_size", cacheSize);
+            return this;
+        }
+
+        public Builder cacheMaxTextLength(int cacheMaxTextLength) {
+            settingsBuilder.put("cache_max_text_length", cacheMaxTextLength);
+            return this;
+        }
+
         public Builder map(Map<String, Object> map) {
             for (Map.Entry<String, Object> entry : map.entrySet()) {
                 settingsBuilder.put("map." + entry.getKey(), (String) entry.getValue());
@@ -296,7 +376,9 @@ public class LangdetectMapper extends FieldMapper {
         @Override
         public LangdetectMapper build(BuilderContext context) {
             setupFieldType(context);
-            LangdetectService service = new LangdetectService(settingsBuilder.build());
+            Settings settings = settingsBuilder.build();
+            LangdetectService service = registry != null ?
+                    registry.getOrCreate(settings) : new LangdetectService(settings);
             return new LangdetectMapper(name,
                     fieldType(),
                     defaultFieldType,
@@ -310,9 +392,19 @@ public class LangdetectMapper extends FieldMapper {
 
     public static class TypeParser implements Mapper.TypeParser {
 
+        private final LangdetectServiceRegistry registry;
+
+        public TypeParser() {
+            this(new LangdetectServiceRegistry());
+        }
+
+        public TypeParser(LangdetectServiceRegistry registry) {
+            this.registry = registry;
+        }
+
         @Override
         public Mapper.Builder<?, ?> parse(String name, Map<String, Object> mapping, ParserContext parserContext) {
-            Builder builder = new Builder(name);
+            Builder builder = new Builder(name, registry);
             Iterator<Map.Entry<String, Object>> iterator = mapping.entrySet().iterator();
             while (iterator.hasNext()) {
                 Map.Entry<String, Object> entry = iterator.next();
@@ -344,6 +436,18 @@ public class LangdetectMapper extends FieldMapper {
                         builder.store(XContentMapValues.nodeBooleanValue(fieldNode));
                         iterator.remove();
                         break;
+                    case "mode":
+                        builder.mode(XContentMapValues.nodeStringValue(fieldNode, null));
+                        iterator.remove();
+                        break;
+                    case "seed":
+                        builder.seed(XContentMapValues.nodeLongValue(fieldNode));
+                        iterator.remove();
+                        break;
+                    case "trial_tolerance":
+                        builder.trialTolerance(XContentMapValues.nodeDoubleValue(fieldNode));
+                        iterator.remove();
+                        break;
                     case "number_of_trials":
                         builder.ntrials(XContentMapValues.nodeIntegerValue(fieldNode));
                         iterator.remove();
@@ -384,6 +488,26 @@ public class LangdetectMapper extends FieldMapper {
                         builder.binary(XContentMapValues.nodeBooleanValue(fieldNode));
                         iterator.remove();
                         break;
+                    case "max_chars":
+                        builder.maxChars(XContentMapValues.nodeIntegerValue(fieldNode));
+                        iterator.remove();
+                        break;
+                    case "windows":
+                        builder.windows(XContentMapValues.nodeIntegerValue(fieldNode));
+                        iterator.remove();
+                        break;
+                    case "window_threshold":
+                        builder.windowThreshold(XContentMapValues.nodeDoubleValue(fieldNode));
+                        iterator.remove();
+                        break;
+                    case "cache_size":
+                        builder.cacheSize(XContentMapValues.nodeIntegerValue(fieldNode));
+                        iterator.remove();
+                        break;
+                    case "cache_max_text_length":
+                        builder.cacheMaxTextLength(XContentMapValues.nodeIntegerValue(fieldNode));
+                        iterator.remove();
+                        break;
                     case "map":
                         builder.map(XContentMapValues.nodeMapValue(fieldNode, "map"));
                         iterator.remove();
@@ -411,6 +535,36 @@ public class LangdetectMapper extends FieldMapper {
         }
     }
 
+    /**
+     * The bytes of the ASCII chars of a char array slice, without line breaks. Other chars are replaced
+     * by a byte which is not in the base64 alphabet. Spaces are kept, so clear text fails to decode.
+     */
+    private static class AsciiInputStream extends InputStream {
+
+        private final char[] chars;
+
+        private final int end;
+
+        private int position;
+
+        AsciiInputStream(char[] chars, int offset, int length) {
+            this.chars = chars;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() {
+            while (position < end) {
+                char c = chars[position++];
+                if (c != '\n' && c != '\r') {
+                    return c < 0x80 ? c : '?';
+                }
+            }
+            return -1;
+        }
+    }
+
     public static class LanguageTo {
 
         private final Map<String, Object> languageToFields;
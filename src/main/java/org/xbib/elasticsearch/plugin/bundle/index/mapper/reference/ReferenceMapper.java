@@ -11,15 +11,14 @@ import org.apache.lucene.search.TermInSetQuery;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.Version;
+import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.client.Client;
-import org.elasticsearch.common.geo.GeoPoint;
 import org.elasticsearch.common.lucene.BytesRefs;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.Fuzziness;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.mapper.Mapper;
@@ -28,6 +27,8 @@ import org.elasticsearch.index.mapper.ParseContext;
 import org.elasticsearch.index.mapper.TextFieldMapper;
 import org.elasticsearch.index.mapper.TypeParsers;
 import org.elasticsearch.index.query.QueryShardContext;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceResolver;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceValues;
 
 import java.io.IOException;
 import java.util.Collections;
@@ -55,6 +56,8 @@ public class ReferenceMapper extends FieldMapper {
 
     private final Client client;
 
+    private final ReferenceResolver resolver;
+
     private String index;
 
     private String type;
@@ -70,6 +73,7 @@ public class ReferenceMapper extends FieldMapper {
                            MappedFieldType fieldType,
                            MappedFieldType defaultFieldType,
                            Client client,
+                           ReferenceResolver resolver,
                            String refindex,
                            String reftype,
                            List<String> reffields,
@@ -80,6 +84,7 @@ public class ReferenceMapper extends FieldMapper {
         super(simpleName, fieldType, defaultFieldType, indexSettings, multiFields, COPYTO_EMPTY);
         this.copyTo = copyTo;
         this.client = client;
+        this.resolver = resolver;
         this.index = refindex;
         this.type = reftype;
         this.fields = reffields;
@@ -87,7 +92,6 @@ public class ReferenceMapper extends FieldMapper {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public Mapper parse(ParseContext originalContext) throws IOException {
         String content = null;
         ParseContext context = originalContext;
@@ -135,31 +139,27 @@ public class ReferenceMapper extends FieldMapper {
         contentMapper.parse(context);
         if (client != null && index != null && type != null && fields != null) {
             try {
-                GetResponse response = client.prepareGet()
-                        .setIndex(index)
-                        .setType(type)
-                        .setId(content)
-                        .execute()
-                        .actionGet();
-                if (response != null && response.isExists()) {
+                ReferenceValues values = resolver != null ? resolver.get(index, type, content, fields) : null;
+                if (values == null && !ReferenceResolver.mayWait()) {
+                    // the reference was not resolved before the document was parsed, do not block an indexing thread,
+                    // and do not index the document without the referenced values, so the client can try again
+                    if (resolver != null) {
+                        resolver.reject();
+                    }
+                    throw new MapperParsingException("ref doc not resolved: " + index + "/" + type + "/" + content);
+                }
+                if (values == null) {
+                    GetResponse response = client.get(new GetRequest(index, type, content)
+                            .fetchSourceContext(ReferenceValues.sourceContext(fields)))
+                            .actionGet();
+                    values = ReferenceValues.of(response, fields);
+                    if (resolver != null) {
+                        resolver.put(index, type, content, values);
+                    }
+                }
+                if (values.exists()) {
                     for (String field : fields) {
-                        Map<String, Object> source = response.getSource();
-                        List<Object> list = XContentMapValues.extractRawValues(field, source);
-                        if (list.isEmpty()) {
-                            Object object = XContentMapValues.extractValue(field, source);
-                            if (object instanceof Map) {
-                                Map<String, Object> map = (Map<String, Object>) object;
-                                Double lat = (Double)map.get("lat");
-                                Double lon = (Double)map.get("lon");
-                                if (lat != null && lon != null) {
-                                    list = Collections.singletonList(new GeoPoint(lat, lon));
-                                }
-                            }
-                        }
-                        if (list.isEmpty()) {
-                            list = XContentMapValues.extractRawValues(field, response.getSource());
-                        }
-                        for (Object object : list) {
+                        for (Object object : values.get(field)) {
                             context = context.createExternalValueContext(object);
                             if (copyTo != null) {
                                 parseCopyFields(context, copyTo.copyToFields());
@@ -169,6 +169,8 @@ public class ReferenceMapper extends FieldMapper {
                 } else {
                     logger.warn("ref doc does not exist: {}/{}/{}", index, type, content);
                 }
+            } catch (MapperParsingException e) {
+                throw e;
             } catch (Exception e) {
                 logger.error("error while getting ref doc " + index + "/" + type + "/"+ content + ": " + e.getMessage(), e);
             }
@@ -179,6 +181,18 @@ public class ReferenceMapper extends FieldMapper {
         return null;
     }
 
+    public String getRefIndex() {
+        return index;
+    }
+
+    public String getRefType() {
+        return type;
+    }
+
+    public List<String> getRefFields() {
+        return fields;
+    }
+
     @Override
     protected void parseCreateField(ParseContext parseContext, List<IndexableField> fields) {
         // override
@@ -331,15 +345,18 @@ public class ReferenceMapper extends FieldMapper {
 
         private Client client;
 
+        private ReferenceResolver resolver;
+
         private String refIndex;
 
         private String refType;
 
         private List<String> refFields;
 
-        public Builder(String name, Client client) {
+        public Builder(String name, Client client, ReferenceResolver resolver) {
             super(name, FIELD_TYPE, FIELD_TYPE);
             this.client = client;
+            this.resolver = resolver;
             this.refFields = new LinkedList<>();
             this.contentBuilder = new TextFieldMapper.Builder(name);
         }
@@ -372,6 +389,7 @@ public class ReferenceMapper extends FieldMapper {
                     fieldType,
                     defaultFieldType,
                     client,
+                    resolver,
                     refIndex,
                     refType,
                     refFields,
@@ -386,15 +404,21 @@ public class ReferenceMapper extends FieldMapper {
 
         private Client client;
 
+        private ReferenceResolver resolver;
+
         public void setClient(Client client) {
             this.client = client;
         }
 
+        public void setResolver(ReferenceResolver resolver) {
+            this.resolver = resolver;
+        }
+
         @Override
         @SuppressWarnings({"unchecked", "rawtypes"})
         public Mapper.Builder parse(String name, Map<String, Object> node, ParserContext parserContext)
                 throws MapperParsingException {
-            ReferenceMapper.Builder builder = new Builder(name, client);
+            ReferenceMapper.Builder builder = new Builder(name, client, resolver);
             TypeParsers.parseField(builder, name, node, parserContext);
             Iterator<Map.Entry<String, Object>> iterator = node.entrySet().iterator();
             while (iterator.hasNext()) {
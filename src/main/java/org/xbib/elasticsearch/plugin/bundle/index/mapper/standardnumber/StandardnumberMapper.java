@@ -18,7 +18,6 @@ import org.elasticsearch.index.mapper.TextFieldMapper;
 import org.xbib.elasticsearch.plugin.bundle.common.standardnumber.StandardnumberService;
 
 import java.io.IOException;
-import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +35,8 @@ public class StandardnumberMapper extends FieldMapper {
 
     private final StandardnumberService service;
 
+    private final List<String> stdnums;
+
     public StandardnumberMapper(Settings settings,
                                 String simpleName,
                                 MappedFieldType fieldType,
@@ -47,6 +48,7 @@ public class StandardnumberMapper extends FieldMapper {
         super(simpleName, fieldType, defaultFieldType, indexSettings, multiFields, copyTo);
         this.settings = settings;
         this.service = service;
+        this.stdnums = service.getStandardNumbers(settings);
     }
 
     @Override
@@ -75,8 +77,9 @@ public class StandardnumberMapper extends FieldMapper {
             value = parser.textOrNull();
         }
         try {
-            Collection<CharSequence> stdnums = service.lookup(settings, value);
-            for (CharSequence stdnum : stdnums) {
+            // documents are parsed concurrently, each thread uses its own validator
+            List<CharSequence> variants = service.getValidator(stdnums).lookup(value);
+            for (CharSequence stdnum : variants) {
                 Field field = new Field(fieldType().name(), stdnum.toString(), fieldType());
                 fields.add(field);
             }
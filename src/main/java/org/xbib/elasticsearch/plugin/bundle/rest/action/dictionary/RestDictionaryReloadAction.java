@@ -0,0 +1,39 @@
+package org.xbib.elasticsearch.plugin.bundle.rest.action.dictionary;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+import org.xbib.elasticsearch.plugin.bundle.action.dictionary.DictionaryReloadAction;
+import org.xbib.elasticsearch.plugin.bundle.action.dictionary.DictionaryReloadRequest;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * REST action for reloading the dictionaries on all nodes.
+ */
+public class RestDictionaryReloadAction extends BaseRestHandler {
+
+    public RestDictionaryReloadAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(POST, "/_dictionaries/_reload", this);
+        controller.registerHandler(POST, "/_dictionaries/{type}/_reload", this);
+    }
+
+    @Override
+    public String getName() {
+        return "dictionaries_reload";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        DictionaryReloadRequest reloadRequest = new DictionaryReloadRequest()
+                .setType(request.param("type"));
+        return channel -> client.execute(DictionaryReloadAction.INSTANCE, reloadRequest,
+                new RestActions.NodesResponseRestListener<>(channel));
+    }
+}
@@ -0,0 +1,49 @@
+package org.xbib.elasticsearch.plugin.bundle.rest.action.dictionary;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.xbib.elasticsearch.plugin.bundle.common.dictionary.DictionaryRegistry;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * REST action for the statistics of the dictionaries loaded on the local node.
+ */
+public class RestDictionaryStatsAction extends BaseRestHandler {
+
+    private final DictionaryRegistry registry;
+
+    public RestDictionaryStatsAction(Settings settings, RestController controller,
+                                     DictionaryRegistry registry) {
+        super(settings);
+        this.registry = registry;
+        controller.registerHandler(GET, "/_dictionaries/_stats", this);
+    }
+
+    @Override
+    public String getName() {
+        return "dictionaries_stats";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        DictionaryRegistry.Stats stats = registry.stats();
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("node", client.getLocalNodeId());
+            builder.field("dictionaries");
+            stats.toXContent(builder, request);
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * REST actions for the dictionaries of analysis components.
+ */
+package org.xbib.elasticsearch.plugin.bundle.rest.action.dictionary;
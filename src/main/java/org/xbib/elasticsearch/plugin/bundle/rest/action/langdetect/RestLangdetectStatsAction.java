@@ -0,0 +1,49 @@
+package org.xbib.elasticsearch.plugin.bundle.rest.action.langdetect;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectServiceRegistry;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * REST action for the statistics of the language models loaded on the local node.
+ */
+public class RestLangdetectStatsAction extends BaseRestHandler {
+
+    private final LangdetectServiceRegistry registry;
+
+    public RestLangdetectStatsAction(Settings settings, RestController controller,
+                                     LangdetectServiceRegistry registry) {
+        super(settings);
+        this.registry = registry;
+        controller.registerHandler(GET, "/_langdetect/_stats", this);
+    }
+
+    @Override
+    public String getName() {
+        return "langdetect_stats";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        LangdetectServiceRegistry.Stats stats = registry.stats();
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("node", client.getLocalNodeId());
+            builder.field("langdetect");
+            stats.toXContent(builder, request);
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+}
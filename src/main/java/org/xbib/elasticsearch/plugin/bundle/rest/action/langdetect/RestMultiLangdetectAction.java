@@ -0,0 +1,106 @@
+package org.xbib.elasticsearch.plugin.bundle.rest.action.langdetect;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestToXContentListener;
+import org.xbib.elasticsearch.plugin.bundle.action.langdetect.LangdetectRequest;
+import org.xbib.elasticsearch.plugin.bundle.action.langdetect.MultiLangdetectAction;
+import org.xbib.elasticsearch.plugin.bundle.action.langdetect.MultiLangdetectRequest;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * REST multi language detection action.
+ *
+ * The body contains a {@code texts} array, with strings or with objects with a {@code text} and
+ * an optional {@code profile}. The profile of the request is used for items without a profile.
+ */
+public class RestMultiLangdetectAction extends BaseRestHandler {
+
+    public RestMultiLangdetectAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(GET, "/_langdetect/_bulk", this);
+        controller.registerHandler(POST, "/_langdetect/_bulk", this);
+    }
+
+    @Override
+    public String getName() {
+        return "langdetect_multi";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        MultiLangdetectRequest multiLangdetectRequest = new MultiLangdetectRequest();
+        multiLangdetectRequest.setMaxConcurrentRequests(request.paramAsInt("max_concurrent_requests", 0));
+        String profile = request.param("profile", "");
+        BytesReference content = request.content();
+        if (content.length() > 0) {
+            try (XContentParser parser = XContentType.JSON.xContent().createParser(request.getXContentRegistry(),
+                    DeprecationHandler.THROW_UNSUPPORTED_OPERATION, content.streamInput())) {
+                parse(parser, multiLangdetectRequest, profile);
+            }
+        }
+        return channel -> client.execute(MultiLangdetectAction.INSTANCE, multiLangdetectRequest,
+                new RestToXContentListener<>(channel));
+    }
+
+    private static void parse(XContentParser parser, MultiLangdetectRequest multiLangdetectRequest,
+                              String defaultProfile) throws IOException {
+        String profile = defaultProfile;
+        if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+            throw new ParsingException(parser.getTokenLocation(), "expected an object");
+        }
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME) {
+            String name = parser.currentName();
+            token = parser.nextToken();
+            if ("profile".equals(name) && token == XContentParser.Token.VALUE_STRING) {
+                profile = parser.text();
+            } else if ("texts".equals(name) && token == XContentParser.Token.START_ARRAY) {
+                while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                    if (token == XContentParser.Token.VALUE_STRING) {
+                        multiLangdetectRequest.add(new LangdetectRequest().setText(parser.text()));
+                    } else if (token == XContentParser.Token.START_OBJECT) {
+                        multiLangdetectRequest.add(parseItem(parser));
+                    } else {
+                        throw new ParsingException(parser.getTokenLocation(),
+                                "expected a string or an object in [texts], but found [" + token + "]");
+                    }
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "unknown field [" + name + "]");
+            }
+        }
+        for (LangdetectRequest langdetectRequest : multiLangdetectRequest.requests()) {
+            if (langdetectRequest.getProfile() == null) {
+                langdetectRequest.setProfile(profile);
+            }
+        }
+    }
+
+    private static LangdetectRequest parseItem(XContentParser parser) throws IOException {
+        LangdetectRequest langdetectRequest = new LangdetectRequest();
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.VALUE_STRING) {
+                if ("text".equals(parser.currentName())) {
+                    langdetectRequest.setText(parser.text());
+                } else if ("profile".equals(parser.currentName())) {
+                    langdetectRequest.setProfile(parser.text());
+                }
+            }
+        }
+        return langdetectRequest;
+    }
+}
@@ -0,0 +1,59 @@
+package org.xbib.elasticsearch.plugin.bundle.rest.action.reference;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferencePropagationJob;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceResolver;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * REST action for the statistics of the resolved and cached references, and of the reference propagation,
+ * on the local node.
+ */
+public class RestReferenceStatsAction extends BaseRestHandler {
+
+    private final ReferenceResolver resolver;
+
+    private final ReferencePropagationJob propagationJob;
+
+    public RestReferenceStatsAction(Settings settings, RestController controller,
+                                    ReferenceResolver resolver, ReferencePropagationJob propagationJob) {
+        super(settings);
+        this.resolver = resolver;
+        this.propagationJob = propagationJob;
+        controller.registerHandler(GET, "/_reference/_stats", this);
+    }
+
+    @Override
+    public String getName() {
+        return "reference_stats";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        ReferenceResolver.Stats stats = resolver.stats();
+        ReferencePropagationJob.Stats propagationStats = propagationJob != null ? propagationJob.stats() : null;
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("node", client.getLocalNodeId());
+            builder.field("reference");
+            stats.toXContent(builder, request);
+            if (propagationStats != null) {
+                builder.field("propagation");
+                propagationStats.toXContent(builder, request);
+            }
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * REST actions for the reference mapper.
+ */
+package org.xbib.elasticsearch.plugin.bundle.rest.action.reference;
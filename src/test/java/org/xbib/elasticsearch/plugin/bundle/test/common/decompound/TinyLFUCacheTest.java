@@ -0,0 +1,98 @@
+package org.xbib.elasticsearch.plugin.bundle.test.common.decompound;
+
+import org.junit.Test;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.CharsKey;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.TinyLFUCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TinyLFUCacheTest {
+
+    @Test
+    public void testBounded() {
+        TinyLFUCache<Integer, Integer> cache = new TinyLFUCache<>(100);
+        for (int i = 0; i < 500; i++) {
+            assertEquals(Integer.valueOf(i % 2), cache.computeIfAbsent(i, f -> f % 2));
+        }
+        assertTrue(cache.size() <= 100);
+        TinyLFUCache.Stats stats = cache.stats();
+        assertEquals(0L, stats.getHits());
+        assertEquals(500L, stats.getMisses());
+        assertEquals(500L - cache.size(), stats.getEvictions() + stats.getRejections());
+    }
+
+    @Test
+    public void testCharsKey() {
+        TinyLFUCache<CharsKey, String> cache = new TinyLFUCache<>(100);
+        CharsKey probe = new CharsKey();
+        char[] buffer = "[Haus]".toCharArray();
+        assertNull(cache.get(probe.reset(buffer, 1, 4)));
+        cache.put(probe.copy(), "Haus");
+        // the entry does not share the buffer of the probe
+        "[Maus]".getChars(0, 6, buffer, 0);
+        assertNull(cache.get(probe.reset(buffer, 1, 4)));
+        assertEquals("Haus", cache.get(probe.reset("Haus".toCharArray(), 0, 4)));
+        assertEquals("Haus", probe.toString());
+    }
+
+    @Test
+    public void testFrequentKeysStay() {
+        TinyLFUCache<String, String> cache = new TinyLFUCache<>(64, 1);
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 64; i++) {
+                cache.computeIfAbsent("frequent" + i, String::toUpperCase);
+            }
+        }
+        // a scan of rare keys, mixed with the frequent keys, does not flush the frequent keys
+        int hits = 0;
+        for (int i = 0; i < 10000; i++) {
+            cache.computeIfAbsent("rare" + i, String::toUpperCase);
+            if (cache.get("frequent" + (i % 64)) != null) {
+                hits++;
+            }
+        }
+        assertTrue("hits = " + hits, hits > 9000);
+        assertNull(cache.get("rare0"));
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        TinyLFUCache<Integer, Integer> cache = new TinyLFUCache<>(1000);
+        int threads = 8;
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> list = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    latch.await();
+                    for (int i = 0; i < 100000; i++) {
+                        int key = (i * 31) % 2000;
+                        if (cache.computeIfAbsent(key, k -> k * 2) != key * 2) {
+                            throw new IllegalStateException("wrong value for " + key);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            thread.start();
+            list.add(thread);
+        }
+        latch.countDown();
+        for (Thread thread : list) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertTrue(cache.size() <= 1000);
+        TinyLFUCache.Stats stats = cache.stats();
+        assertEquals(threads * 100000L, stats.getHits() + stats.getMisses());
+    }
+}
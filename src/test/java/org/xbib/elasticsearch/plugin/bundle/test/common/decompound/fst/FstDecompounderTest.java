@@ -0,0 +1,100 @@
+package org.xbib.elasticsearch.plugin.bundle.test.common.decompound.fst;
+
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.NoOutputs;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.TinyLFUCache;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.fst.FstDecompounder;
+import org.xbib.elasticsearch.plugin.bundle.common.fst.CompiledFst;
+import org.xbib.elasticsearch.plugin.bundle.common.fst.FstCompiler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FstDecompounderTest {
+
+    private static final String PATH = "/org/xbib/elasticsearch/plugin/bundle/index/analysis/decompound/fst/words.fst";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSplit() throws IOException {
+        FstDecompounder decompounder = new FstDecompounder(getClass().getResourceAsStream(PATH), null);
+        assertEquals("rechts.anwalts.kanzleien", decompounder.split("Rechtsanwaltskanzleien").toString());
+        assertEquals("ein.stein,einst.ein", decompounder.split("Einstein").toString());
+        assertNull(decompounder.split("Xyzzy"));
+    }
+
+    @Test
+    public void testContext() throws IOException {
+        FstDecompounder decompounder = new FstDecompounder(getClass().getResourceAsStream(PATH), null);
+        FstDecompounder.Context context = new FstDecompounder.Context();
+        char[] buffer = "[Einstein][Donaudampfschiff][Xyzzy]".toCharArray();
+        assertEquals(4, decompounder.split(buffer, 1, 8, context));
+        assertEquals(2, context.alternatives());
+        assertEquals(2, context.alternativeEnd(0));
+        assertEquals(Arrays.asList("ein", "stein", "einst", "ein"), parts(context));
+        assertEquals(0, context.start(0));
+        assertEquals(8, context.end(1));
+        assertEquals(3, decompounder.split(buffer, 11, 16, context));
+        assertEquals(Arrays.asList("donau", "dampf", "schiff"), parts(context));
+        assertEquals(0, decompounder.split(buffer, 29, 5, context));
+        assertEquals(0, context.alternatives());
+    }
+
+    @Test
+    public void testCompiled() throws IOException {
+        Path path = folder.getRoot().toPath().resolve(CompiledFst.compiledName("words.fst"));
+        try (InputStream in = getClass().getResourceAsStream(PATH); OutputStream out = Files.newOutputStream(path)) {
+            FstCompiler.writeAligned(new FST<>(new InputStreamDataInput(in), NoOutputs.getSingleton()), out);
+        }
+        FstDecompounder decompounder = new FstDecompounder(getClass().getResourceAsStream(PATH), null);
+        FstDecompounder mapped = new FstDecompounder(CompiledFst.load(path), null);
+        for (String word : Arrays.asList("Rechtsanwaltskanzleien", "Einstein", "Donaudampfschiff", "Xyzzy", "")) {
+            assertEquals(String.valueOf(decompounder.split(word)), String.valueOf(mapped.split(word)));
+        }
+        assertEquals(decompounder.sizeInBytes(), mapped.sizeInBytes());
+    }
+
+    @Test
+    public void testCache() throws IOException {
+        FstDecompounder decompounder = new FstDecompounder(getClass().getResourceAsStream(PATH), null);
+        TinyLFUCache<String, int[]> cache = new TinyLFUCache<>(100);
+        FstDecompounder.Context context = new FstDecompounder.Context();
+        FstDecompounder.Context cached = new FstDecompounder.Context();
+        List<String> words = Arrays.asList("Einstein", "einstein", "Donaudampfschiff", "DONAUDAMPFSCHIFF", "Xyzzy");
+        for (int round = 0; round < 2; round++) {
+            for (String word : words) {
+                char[] chars = word.toCharArray();
+                int count = decompounder.split(chars, 0, chars.length, context);
+                assertEquals(count, decompounder.split(chars, 0, chars.length, cached, cache));
+                assertEquals(parts(context), parts(cached));
+                assertEquals(context.alternatives(), cached.alternatives());
+            }
+        }
+        // "Einstein" and "einstein" have the same lower cased chars
+        assertEquals(6L, cache.stats().getHits());
+        assertEquals(4L, cache.stats().getMisses());
+    }
+
+    private static List<String> parts(FstDecompounder.Context context) {
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < context.count(); i++) {
+            list.add(new String(context.chars(), context.start(i), context.end(i) - context.start(i)));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,116 @@
+package org.xbib.elasticsearch.plugin.bundle.test.common.decompound.patricia;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.patricia.CompactPatriciaTrie;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.patricia.CompiledPatriciaTrie;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.patricia.Decompounder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+public class CompiledPatriciaTrieTest {
+
+    private static final String PATH = "/org/xbib/elasticsearch/plugin/bundle/index/analysis/decompound/patricia/";
+
+    private static final String[] WORDS = {
+            "Jahresfeier", "Kinderzahnarzt", "Donaudampfschifffahrt", "Bundesministerium", "Straßenbahnhaltestelle",
+            "Arbeitszeit", "Häuser", "Gärten", "Schule", "Wasserkraftwerk", "Rechtsschutzversicherung",
+            "Fußballweltmeisterschaft", "Haus", "a", "", "Xyz", "ÄÖÜ", "Schlüsselbund", "Tageszeitungen"
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTrained() throws IOException {
+        CompactPatriciaTrie trie = new CompactPatriciaTrie();
+        trie.train("Haustür", "4");
+        trie.train("Hausmeister", "4");
+        trie.train("Haustier", "4");
+        trie.train("Kindergarten", "6");
+        trie.train("Kinderarzt", "6");
+        trie.train("Kind", "0");
+        CompiledPatriciaTrie compiled = compile(trie);
+        for (String word : new String[] { "Haustür", "Hausarzt", "Kindergärten", "Kinder", "Kind", "Baum", "" }) {
+            assertEquals(word, trie.classify(word), compiled.classify(word));
+        }
+    }
+
+    @Test
+    public void testThreshold() throws IOException {
+        CompactPatriciaTrie trie = new CompactPatriciaTrie();
+        trie.train("Bank", "4", 2);
+        trie.train("Bank", "3", 1);
+        trie.train("Bach", "2", 1);
+        trie.train("Bach", "1", 1);
+        CompiledPatriciaTrie compiled = compile(trie);
+        for (double threshold : new double[] { 0.0d, 0.5d, 0.51d, 0.9d }) {
+            trie.setThreshold(threshold);
+            CompiledPatriciaTrie view = compiled.with(false, threshold);
+            for (String word : new String[] { "Bank", "Bach", "Ba", "Bau" }) {
+                assertEquals(word + " " + threshold, trie.classify(word), view.classify(word));
+            }
+        }
+        assertEquals(2, compiled.classify("Bach").split(";").length);
+        assertEquals("undecided", compiled.with(false, 0.9d).classify("Bank"));
+    }
+
+    @Test
+    public void testResources() throws IOException {
+        for (String name : new String[] { "grfExt.tree", "kompVHic.tree" }) {
+            CompactPatriciaTrie trie = load(name);
+            trie.setIgnoreCase(true);
+            trie.setThreshold(0.51d);
+            CompiledPatriciaTrie compiled = compile(load(name)).with(true, 0.51d);
+            for (String word : WORDS) {
+                assertEquals(name + " " + word, trie.classify(word + "<"), compiled.classify(word + "<"));
+                assertEquals(name + " " + word, trie.classify(word), compiled.classify(word));
+            }
+        }
+    }
+
+    @Test
+    public void testMapped() throws IOException {
+        Path path = folder.getRoot().toPath().resolve(CompiledPatriciaTrie.compiledName("kompVHic.tree"));
+        try (OutputStream out = Files.newOutputStream(path)) {
+            CompiledPatriciaTrie.compile(load("kompVHic.tree"), out);
+        }
+        CompiledPatriciaTrie backward = CompiledPatriciaTrie.load(path);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompiledPatriciaTrie.compile(load("grfExt.tree"), out);
+        CompiledPatriciaTrie reduce = CompiledPatriciaTrie.read(ByteBuffer.wrap(out.toByteArray()));
+        // the backward tree stands in for the forward tree
+        Decompounder compiled = new Decompounder(backward, backward, reduce, 0.51d);
+        Decompounder decompounder = new Decompounder(getClass().getResourceAsStream(PATH + "kompVHic.tree"),
+                getClass().getResourceAsStream(PATH + "kompVHic.tree"),
+                getClass().getResourceAsStream(PATH + "grfExt.tree"), 0.51d);
+        for (String word : WORDS) {
+            if (!word.isEmpty()) {
+                assertEquals(word, decompounder.decompound(word), compiled.decompound(word));
+            }
+        }
+    }
+
+    private CompactPatriciaTrie load(String name) throws IOException {
+        CompactPatriciaTrie trie = new CompactPatriciaTrie();
+        try (InputStream in = getClass().getResourceAsStream(PATH + name)) {
+            trie.load(in);
+        }
+        return trie;
+    }
+
+    private static CompiledPatriciaTrie compile(CompactPatriciaTrie trie) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompiledPatriciaTrie.compile(trie, out);
+        return CompiledPatriciaTrie.read(ByteBuffer.wrap(out.toByteArray()));
+    }
+}
@@ -2,21 +2,56 @@ package org.xbib.elasticsearch.plugin.bundle.test.common.decompound.patricia;
 
 import com.carrotsearch.randomizedtesting.annotations.SuppressForbidden;
 import org.junit.Test;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.TinyLFUCache;
 import org.xbib.elasticsearch.plugin.bundle.common.decompound.patricia.Decompounder;
-import org.xbib.elasticsearch.plugin.bundle.common.decompound.patricia.LFUCache;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class DecompounderTest {
 
+    private static final String PATH = "/org/xbib/elasticsearch/plugin/bundle/index/analysis/decompound/patricia/";
+
+    @Test
+    public void testContext() throws IOException {
+        // the backward tree stands in for the forward tree
+        Decompounder decompounder = new Decompounder(getClass().getResourceAsStream(PATH + "kompVHic.tree"),
+                getClass().getResourceAsStream(PATH + "kompVHic.tree"),
+                getClass().getResourceAsStream(PATH + "grfExt.tree"), 0.51d);
+        Decompounder.Context context = new Decompounder.Context();
+        String[] words = {
+                "Donaudampfschifffahrtsgesellschaftskapitänsmützenabzeichen", "Jahresfeier", "Kinderzahnarzt",
+                "Straßenbahnhaltestelle", "Häuser", "Rechtsschutzversicherung", "Haus", "Fußballweltmeisterschaft"
+        };
+        for (String word : words) {
+            List<String> expected = decompounder.decompound(word);
+            char[] buffer = ("[" + word + "]").toCharArray();
+            int count = decompounder.decompound(buffer, 1, word.length(), context);
+            assertEquals(word, expected.size(), count);
+            List<String> parts = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                assertEquals(context.end(i), i + 1 < count ? context.start(i + 1) : context.end(i));
+                parts.add(context.toString(i));
+            }
+            assertEquals(word, expected, parts);
+            StringBuilder sb = new StringBuilder();
+            for (String part : expected) {
+                sb.append(part);
+            }
+            assertEquals(word, sb.toString(), new String(context.chars(), 0, context.end(count - 1)));
+        }
+        assertEquals(decompounder.reduceToBaseForm("Häuser"), decompounder.decompound("Häuser").get(0));
+    }
+
     @SuppressForbidden(value = "execute this to test decompounder cache performance")
     @Test
     public void testWikipediaSample() throws IOException, XMLStreamException {
@@ -52,7 +87,7 @@ public class DecompounderTest {
         long t1 = System.currentTimeMillis();
         long uncachedPerf = partCount * 1000 / (t1 - t0);
 
-        LFUCache<String, List<String>> cache = new LFUCache<>(100000, 0.90f);
+        TinyLFUCache<String, List<String>> cache = new TinyLFUCache<>(100000);
         long partCacheCount = 0;
         long t2 = System.currentTimeMillis();
         try (InputStream inputStream = new GZIPInputStream(getClass().getResourceAsStream("wpd13_sample.i5.xml.gz"))) {
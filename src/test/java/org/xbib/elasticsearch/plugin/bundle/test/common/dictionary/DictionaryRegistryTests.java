@@ -0,0 +1,217 @@
+package org.xbib.elasticsearch.plugin.bundle.test.common.dictionary;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.IndexSettingsModule;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.TinyLFUCache;
+import org.xbib.elasticsearch.plugin.bundle.common.dictionary.DictionaryRegistry;
+import org.xbib.elasticsearch.plugin.bundle.index.analysis.baseform.BaseformTokenFilterFactory;
+import org.xbib.elasticsearch.plugin.bundle.index.analysis.decompound.fst.FstDecompoundTokenFilterFactory;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for sharing dictionaries between analysis components.
+ */
+public class DictionaryRegistryTests extends ESTestCase {
+
+    public void testShared() throws IOException {
+        DictionaryRegistry registry = new DictionaryRegistry();
+        AtomicInteger loads = new AtomicInteger();
+        Object owner1 = new Object();
+        Object owner2 = new Object();
+        Settings key = Settings.builder().put("type", "test").put("resource", "a").build();
+        String dictionary1 = registry.acquire(owner1, key, () -> "dictionary" + loads.incrementAndGet(),
+                String::length);
+        String dictionary2 = registry.acquire(owner2, Settings.builder().put(key).build(),
+                () -> "dictionary" + loads.incrementAndGet(), String::length);
+        assertSame(dictionary1, dictionary2);
+        assertEquals(1, loads.get());
+        registry.acquire(owner2, Settings.builder().put("type", "test").put("resource", "b").build(),
+                () -> "other", String::length);
+        DictionaryRegistry.Stats stats = registry.stats();
+        assertEquals(2, stats.getDictionaries().size());
+        assertEquals(3L, stats.getReferences());
+        assertEquals(16L, stats.getSizeInBytes());
+        // the owners must be reachable until the statistics are taken
+        assertNotSame(owner1, owner2);
+    }
+
+    public void testLoadFailure() {
+        DictionaryRegistry registry = new DictionaryRegistry();
+        Settings key = Settings.builder().put("type", "test").build();
+        expectThrows(IOException.class, () -> registry.acquire(new Object(), key, () -> {
+            throw new IOException("missing");
+        }, String::length));
+        assertTrue(registry.stats().getDictionaries().isEmpty());
+    }
+
+    public void testFactories() {
+        DictionaryRegistry registry = new DictionaryRegistry();
+        IndexSettings index1 = IndexSettingsModule.newIndexSettings("test1", Settings.EMPTY);
+        IndexSettings index2 = IndexSettingsModule.newIndexSettings("test2", Settings.EMPTY);
+        // the factories must be reachable until the statistics are taken
+        List<TokenFilterFactory> factories = Arrays.asList(
+                new FstDecompoundTokenFilterFactory(index1, null, "fst", Settings.EMPTY, registry),
+                new FstDecompoundTokenFilterFactory(index2, null, "fst", Settings.EMPTY, registry),
+                new FstDecompoundTokenFilterFactory(index2, null, "fst_glue",
+                        Settings.builder().putList("glue_morphs", "s").build(), registry),
+                new BaseformTokenFilterFactory(index1, null, "baseform", Settings.EMPTY, registry));
+        DictionaryRegistry.Stats stats = registry.stats();
+        assertEquals(3, stats.getDictionaries().size());
+        assertEquals(4L, stats.getReferences());
+        assertTrue(stats.getSizeInBytes() > 0L);
+        assertEquals(4, factories.size());
+    }
+
+    public void testSharedCache() throws IOException {
+        DictionaryRegistry registry = new DictionaryRegistry();
+        IndexSettings index1 = IndexSettingsModule.newIndexSettings("test1", Settings.EMPTY);
+        IndexSettings index2 = IndexSettingsModule.newIndexSettings("test2", Settings.EMPTY);
+        Settings settings = Settings.builder().put("use_cache", true).put("cache_size", 1000).build();
+        List<TokenFilterFactory> factories = Arrays.asList(
+                new FstDecompoundTokenFilterFactory(index1, null, "fst", settings, registry),
+                new FstDecompoundTokenFilterFactory(index2, null, "fst", settings, registry));
+        for (TokenFilterFactory factory : factories) {
+            Tokenizer tokenizer = new WhitespaceTokenizer();
+            tokenizer.setReader(new StringReader("Donaudampfschiff Einstein Donaudampfschiff"));
+            int tokens = 0;
+            try (TokenStream stream = factory.create(tokenizer)) {
+                stream.reset();
+                while (stream.incrementToken()) {
+                    tokens++;
+                }
+                stream.end();
+            }
+            // the words and the parts of their interpretations
+            assertEquals(13, tokens);
+        }
+        DictionaryRegistry.Stats stats = registry.stats();
+        assertEquals(2, stats.getDictionaries().size());
+        TinyLFUCache.Stats cacheStats = null;
+        for (DictionaryRegistry.DictionaryStats dictionary : stats.getDictionaries()) {
+            if ("fst_decompound_cache".equals(dictionary.getSettings().get("type"))) {
+                assertEquals(2, dictionary.getReferences());
+                cacheStats = dictionary.getCacheStats();
+            }
+        }
+        assertNotNull(cacheStats);
+        assertEquals(2L, cacheStats.getMisses());
+        assertEquals(4L, cacheStats.getHits());
+        assertEquals(2, factories.size());
+    }
+
+    public void testReload() throws IOException {
+        DictionaryRegistry registry = new DictionaryRegistry();
+        AtomicInteger loads = new AtomicInteger();
+        Object owner = new Object();
+        Settings key = Settings.builder().put("type", "test").build();
+        DictionaryRegistry.Handle<String> handle = registry.acquireHandle(owner, key,
+                () -> "dictionary" + loads.incrementAndGet(), String::length);
+        TinyLFUCache<String, String> cache = new TinyLFUCache<>(10);
+        DictionaryRegistry.Handle<TinyLFUCache<String, String>> cacheHandle = registry.acquireHandle(owner,
+                Settings.builder().put("type", "test_cache").build(), () -> cache, c -> 0L);
+        DictionaryRegistry.Handle<String> other = registry.acquireHandle(owner,
+                Settings.builder().put("type", "other").build(), () -> "other", String::length);
+        assertEquals("dictionary1", handle.get());
+        assertEquals(1L, handle.getVersion());
+        List<DictionaryRegistry.ReloadStats> reloaded = registry.reload("test");
+        assertEquals(2, reloaded.size());
+        // the dictionaries are reloaded before the caches
+        assertEquals("test", reloaded.get(0).getSettings().get("type"));
+        assertEquals("test_cache", reloaded.get(1).getSettings().get("type"));
+        assertEquals(2L, reloaded.get(0).getVersion());
+        assertEquals(0L, reloaded.get(0).getSizeDelta());
+        assertNull(reloaded.get(0).getFailure());
+        assertEquals("dictionary2", handle.get());
+        assertEquals(2L, handle.getVersion());
+        assertEquals(2L, cacheHandle.getVersion());
+        assertEquals(1L, other.getVersion());
+        assertEquals(3, registry.reload(null).size());
+        assertEquals("dictionary3", handle.get());
+        assertEquals(2L, other.getVersion());
+        // the owner must be reachable until the dictionaries are reloaded
+        assertNotNull(owner);
+    }
+
+    public void testReloadFailure() throws IOException {
+        DictionaryRegistry registry = new DictionaryRegistry();
+        AtomicInteger loads = new AtomicInteger();
+        Object owner = new Object();
+        Settings key = Settings.builder().put("type", "test").build();
+        DictionaryRegistry.Handle<String> handle = registry.acquireHandle(owner, key, () -> {
+            if (loads.incrementAndGet() > 1) {
+                throw new IOException("missing");
+            }
+            return "dictionary";
+        }, String::length);
+        List<DictionaryRegistry.ReloadStats> reloaded = registry.reload("test");
+        assertEquals(1, reloaded.size());
+        assertNotNull(reloaded.get(0).getFailure());
+        assertEquals(1L, reloaded.get(0).getVersion());
+        assertEquals("dictionary", handle.get());
+        assertEquals(1L, handle.getVersion());
+        assertNotNull(owner);
+    }
+
+    public void testReloadFactory() throws IOException {
+        DictionaryRegistry registry = new DictionaryRegistry();
+        IndexSettings index = IndexSettingsModule.newIndexSettings("test", Settings.EMPTY);
+        Settings settings = Settings.builder().put("use_cache", true).put("cache_size", 1000).build();
+        FstDecompoundTokenFilterFactory factory =
+                new FstDecompoundTokenFilterFactory(index, null, "fst", settings, registry);
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream stream = factory.create(tokenizer);
+        assertEquals(13, count(tokenizer, stream));
+        List<DictionaryRegistry.ReloadStats> reloaded = registry.reload("fst_decompound");
+        assertEquals(2, reloaded.size());
+        for (DictionaryRegistry.ReloadStats stats : reloaded) {
+            assertNull(stats.getFailure());
+            assertEquals(2L, stats.getVersion());
+        }
+        // the reused stream switches to the new versions, the cache is empty
+        assertEquals(13, count(tokenizer, stream));
+        for (DictionaryRegistry.DictionaryStats dictionary : registry.stats().getDictionaries()) {
+            if (dictionary.getCacheStats() != null) {
+                assertEquals(2L, dictionary.getCacheStats().getMisses());
+                assertEquals(1L, dictionary.getCacheStats().getHits());
+            }
+        }
+        assertNotNull(factory.name());
+    }
+
+    private static int count(Tokenizer tokenizer, TokenStream stream) throws IOException {
+        tokenizer.setReader(new StringReader("Donaudampfschiff Einstein Donaudampfschiff"));
+        int tokens = 0;
+        stream.reset();
+        while (stream.incrementToken()) {
+            tokens++;
+        }
+        stream.end();
+        stream.close();
+        return tokens;
+    }
+
+    public void testRelease() throws Exception {
+        DictionaryRegistry registry = new DictionaryRegistry();
+        IndexSettings index = IndexSettingsModule.newIndexSettings("test", Settings.EMPTY);
+        FstDecompoundTokenFilterFactory factory =
+                new FstDecompoundTokenFilterFactory(index, null, "fst", Settings.EMPTY, registry);
+        assertEquals(1, registry.stats().getDictionaries().size());
+        assertNotNull(factory.name());
+        factory = null;
+        assertBusy(() -> {
+            System.gc();
+            assertEquals(0, registry.stats().getDictionaries().size());
+        });
+    }
+}
@@ -0,0 +1,73 @@
+package org.xbib.elasticsearch.plugin.bundle.test.common.fst;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xbib.elasticsearch.plugin.bundle.common.decompound.fst.FstDecompounder;
+import org.xbib.elasticsearch.plugin.bundle.common.fst.FstCompiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FstCompilerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testOffline() throws IOException {
+        byte[] words = words();
+        FstCompiler onHeap = new FstCompiler();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        onHeap.compile(new ByteArrayInputStream(words), expected);
+        FstCompiler offline = new FstCompiler(folder.getRoot().toPath(), 4, 1);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        offline.compile(new ByteArrayInputStream(words), actual);
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        assertEquals(onHeap.getStats().getWords(), offline.getStats().getWords());
+        assertEquals(onHeap.getStats().getEntries(), offline.getStats().getEntries());
+        // the temporary files are removed
+        String[] files = folder.getRoot().list();
+        assertTrue(files == null || files.length == 0);
+    }
+
+    @Test
+    public void testDecompound() throws IOException {
+        String words = "# comment\nhaus\nHaus\ntür\nschlüssel\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FstCompiler compiler = new FstCompiler(folder.getRoot().toPath(), 2, 0);
+        compiler.compile(new ByteArrayInputStream(words.getBytes(StandardCharsets.UTF_8)), out);
+        assertEquals(3L, compiler.getStats().getWords());
+        assertEquals(6L, compiler.getStats().getEntries());
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        FstDecompounder decompounder = new FstDecompounder(in, null);
+        assertEquals("haus.tür.schlüssel", decompounder.split("Haustürschlüssel").toString());
+    }
+
+    /**
+     * Random words of several megabytes, so the offline sort spills more than one run.
+     */
+    private static byte[] words() {
+        Random random = new Random(42L);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300000; i++) {
+            int length = 3 + random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            if (random.nextInt(100) == 0) {
+                sb.append('ü');
+            }
+            sb.append(" x\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,109 @@
+package org.xbib.elasticsearch.plugin.bundle.test.common.reference;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.junit.Test;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceCache;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceValues;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReferenceCacheTest {
+
+    private static final List<String> FIELDS = Collections.singletonList("author");
+
+    @Test
+    public void testValues() {
+        ReferenceValues values = ReferenceValues.of(response("1", 3L,
+                "{\"author\":[\"John Doe\",\"J. Doe\"],\"location\":{\"lat\":51.3,\"lon\":12.4}}"),
+                Arrays.asList("author", "location", "missing"));
+        assertTrue(values.exists());
+        assertEquals(3L, values.getVersion());
+        assertEquals(Arrays.asList("John Doe", "J. Doe"), values.get("author"));
+        assertEquals(1, values.get("location").size());
+        assertTrue(values.get("missing").isEmpty());
+        assertTrue(values.containsAll(FIELDS));
+        assertFalse(values.containsAll(Collections.singletonList("title")));
+        assertSame(ReferenceValues.MISSING, ReferenceValues.of(null, FIELDS));
+    }
+
+    @Test
+    public void testSourceContext() {
+        FetchSourceContext context = ReferenceValues.sourceContext(Arrays.asList("author", "location"));
+        assertTrue(context.fetchSource());
+        assertArrayEquals(new String[] { "author", "location" }, context.includes());
+        assertEquals(0, context.excludes().length);
+        // the values of a filtered source are the same
+        ReferenceValues values = ReferenceValues.of(response("1", 1L,
+                "{\"author\":\"John Doe\",\"location\":{\"lat\":51.3,\"lon\":12.4}}"),
+                Arrays.asList("author", "location"));
+        assertEquals(Collections.singletonList("John Doe"), values.get("author"));
+        assertEquals(1, values.get("location").size());
+    }
+
+    @Test
+    public void testCache() {
+        ReferenceCache cache = new ReferenceCache(Settings.EMPTY);
+        assertTrue(cache.isEnabled());
+        assertTrue(cache.isVerify());
+        ReferenceValues values = ReferenceValues.of(response("1", 1L, "{\"author\":\"John Doe\"}"), FIELDS);
+        cache.put("authorities", "persons", "1", values);
+        cache.put("authorities", "persons", "2", ReferenceValues.MISSING);
+        assertSame(values, cache.get("authorities", "persons", "1", FIELDS));
+        assertNull(cache.get("authorities", "persons", "1", Arrays.asList("author", "title")));
+        assertNull(cache.get("authorities", "persons", "2", FIELDS));
+        cache.invalidate("authorities", "persons", "1");
+        assertNull(cache.get("authorities", "persons", "1", FIELDS));
+        ReferenceCache.Stats stats = cache.stats();
+        assertEquals(0, stats.getCount());
+        assertEquals(1L, stats.getStale());
+    }
+
+    @Test
+    public void testMaxBytes() {
+        ReferenceCache cache = new ReferenceCache(Settings.builder()
+                .put("plugins.xbib.reference.cache.max_bytes", "4kb")
+                .put("plugins.xbib.reference.cache.verify", false)
+                .build());
+        assertFalse(cache.isVerify());
+        for (int i = 0; i < 100; i++) {
+            String id = Integer.toString(i);
+            cache.put("authorities", "persons", id,
+                    ReferenceValues.of(response(id, 1L, "{\"author\":\"John Doe " + i + "\"}"), FIELDS));
+        }
+        ReferenceCache.Stats stats = cache.stats();
+        assertTrue(stats.getSizeInBytes() <= 4096L);
+        assertTrue(stats.getEvictions() > 0L);
+        assertNotNull(cache.get("authorities", "persons", "99", FIELDS));
+    }
+
+    @Test
+    public void testDisabled() {
+        ReferenceCache cache = new ReferenceCache(Settings.builder()
+                .put("plugins.xbib.reference.cache.max_bytes", 0)
+                .build());
+        assertFalse(cache.isEnabled());
+        cache.put("authorities", "persons", "1",
+                ReferenceValues.of(response("1", 1L, "{\"author\":\"John Doe\"}"), FIELDS));
+        assertNull(cache.get("authorities", "persons", "1", FIELDS));
+        assertEquals(0, cache.stats().getCount());
+    }
+
+    private static GetResponse response(String id, long version, String source) {
+        return new GetResponse(new GetResult("authorities", "persons", id, version, true,
+                new BytesArray(source), Collections.emptyMap()));
+    }
+}
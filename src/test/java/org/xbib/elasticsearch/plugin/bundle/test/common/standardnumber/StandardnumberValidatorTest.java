@@ -0,0 +1,65 @@
+package org.xbib.elasticsearch.plugin.bundle.test.common.standardnumber;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+import org.xbib.elasticsearch.plugin.bundle.common.standardnumber.StandardnumberService;
+import org.xbib.elasticsearch.plugin.bundle.common.standardnumber.StandardnumberValidator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StandardnumberValidatorTest {
+
+    @Test
+    public void testPrefilter() {
+        StandardnumberService service = new StandardnumberService(Settings.EMPTY);
+        Settings settings = Settings.builder().putList("standardnumbers", "isbn").build();
+        StandardnumberValidator validator = service.newValidator(service.getStandardNumbers(settings));
+        assertFalse(validator.isCandidate("Hello"));
+        assertFalse(validator.isCandidate("3-551"));
+        assertFalse(validator.isCandidate("ISBN"));
+        assertTrue(validator.isCandidate("3-551-75213-X"));
+        assertTrue(validator.isCandidate("978-3-551-75213-0"));
+        assertFalse(validator.isCandidate(String.format("%0300d", 0)));
+        assertTrue(validator.lookup("Hello").isEmpty());
+    }
+
+    @Test
+    public void testLookup() {
+        StandardnumberService service = new StandardnumberService(Settings.EMPTY);
+        StandardnumberValidator validator = service.newValidator(service.getStandardNumbers(Settings.EMPTY));
+        List<CharSequence> variants = validator.lookup("978-3-551-75213-0");
+        assertEquals(Arrays.asList("978-3-551-75213-0", "9783551752130"), variants);
+        // the buffer is reused
+        assertSame(variants, validator.lookup("Hello world"));
+        assertTrue(variants.isEmpty());
+    }
+
+    @Test
+    public void testReuse() {
+        StandardnumberService service = new StandardnumberService(Settings.EMPTY);
+        List<String> stdnums = service.getStandardNumbers(Settings.EMPTY);
+        StandardnumberValidator validator = service.getValidator(stdnums);
+        assertSame(validator, service.getValidator(stdnums));
+        // the reused standard numbers do not carry state from one lookup to the next
+        String[] inputs = {
+                "3-551-75213-3", "978-3-551-75213-0", "Hello world", "0000-0002-1825-0097", "3-551-75213-3"
+        };
+        List<List<CharSequence>> results = new ArrayList<>();
+        for (String input : inputs) {
+            List<CharSequence> expected = new ArrayList<>(service.newValidator(stdnums).lookup(input));
+            List<CharSequence> variants = new ArrayList<>(validator.lookup(input));
+            assertEquals(input, expected, variants);
+            results.add(variants);
+        }
+        assertEquals(results.get(0), results.get(4));
+        assertEquals(Arrays.asList("3-551-75213-3", "3551752133", "978-3-551-75213-0", "9783551752130"),
+                results.get(0));
+    }
+}
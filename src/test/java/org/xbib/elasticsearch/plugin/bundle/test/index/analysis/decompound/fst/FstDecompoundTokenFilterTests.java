@@ -1,6 +1,9 @@
 package org.xbib.elasticsearch.plugin.bundle.test.index.analysis.decompound.fst;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.elasticsearch.analysis.common.CommonAnalysisPlugin;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.index.Index;
@@ -8,16 +11,102 @@ import org.elasticsearch.test.ESTestCase;
 import org.elasticsearch.test.ESTokenStreamTestCase;
 import org.xbib.elasticsearch.plugin.bundle.BundlePlugin;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Finite state transducer decompound token filter tests.
  */
 public class FstDecompoundTokenFilterTests extends ESTokenStreamTestCase {
 
+    private static final String SOURCE =
+            "Die Jahresfeier der Rechtsanwaltskanzleien auf dem Donaudampfschiff hat viel Ökosteuer gekostet";
+
+    private static final String[] WORDS = {
+            "die", "der", "und", "in", "den", "von", "zu", "das", "mit", "sich", "des", "auf", "für", "ist",
+            "Bundesregierung", "Bundestag", "Jahresfeier", "Rechtsanwaltskanzleien", "Donaudampfschiff",
+            "Ökosteuer", "Arbeitsmarkt", "Gesundheitsministerium", "Wirtschaftswachstum", "Einstein",
+            "Landtagswahl", "Verkehrsminister", "Klimaschutzgesetz", "Flüchtlingspolitik", "Tarifverhandlungen",
+            "Fußballbundesliga", "Haushaltsdebatte", "Energiewende", "Koalitionsvertrag", "Stadtrat",
+            "Polizeisprecher", "Zinserhöhung", "Wohnungsmarkt", "Schuldenbremse", "Rentenversicherung",
+            "Kindergeld", "Bahnstreik", "Autobahnausbau", "Gewerkschaftsbund", "Landesregierung"
+    };
+
+    private static final int TOKENS = 5000;
+
     public void testDecompound() throws Exception {
+        assertAnalyzesTo(analyzer(Settings.EMPTY, true), SOURCE, expected());
+    }
 
-        String source = "Die Jahresfeier der Rechtsanwaltskanzleien auf dem Donaudampfschiff hat viel Ökosteuer gekostet";
+    public void testCache() throws Exception {
+        Analyzer analyzer = analyzer(Settings.builder().put("use_cache", true).build(), true);
+        for (int i = 0; i < 3; i++) {
+            assertAnalyzesTo(analyzer, SOURCE, expected());
+        }
+    }
 
-        String[] expected = {
+    /**
+     * The filter produces the same tokens with and without cache, for words with a Zipf distribution
+     * like in news texts, so most words are taken from the cache.
+     */
+    public void testCacheEquivalence() throws Exception {
+        double[] weights = new double[WORDS.length];
+        double sum = 0d;
+        for (int i = 0; i < WORDS.length; i++) {
+            sum += 1d / (i + 1);
+            weights[i] = sum;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < TOKENS; i++) {
+            double r = random().nextDouble() * sum;
+            int k = 0;
+            while (weights[k] < r) {
+                k++;
+            }
+            sb.append(WORDS[k]).append(' ');
+        }
+        String text = sb.toString();
+        List<String> expected = tokens(analyzer(Settings.EMPTY, false), text);
+        Analyzer analyzer = analyzer(Settings.builder().put("use_cache", true).build(), false);
+        for (int round = 0; round < 2; round++) {
+            assertEquals(expected, tokens(analyzer, text));
+        }
+    }
+
+    private static List<String> tokens(Analyzer analyzer, String text) throws Exception {
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream("field", text)) {
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(termAtt.toString() + "/" + posIncAtt.getPositionIncrement());
+            }
+            stream.end();
+        }
+        return tokens;
+    }
+
+    private static Analyzer analyzer(Settings filterSettings, boolean unique) throws Exception {
+        Settings.Builder settings = Settings.builder()
+                .put("index.analysis.filter.fst.type", "fst_decompound")
+                .put("index.analysis.analyzer.myanalyzer.type", "custom")
+                .put("index.analysis.analyzer.myanalyzer.tokenizer", "standard")
+                .put("index.analysis.analyzer.myanalyzer.filter.0", "fst");
+        if (unique) {
+            settings.put("index.analysis.analyzer.myanalyzer.filter.1", "unique");
+        }
+        for (String key : filterSettings.keySet()) {
+            settings.put("index.analysis.filter.fst." + key, filterSettings.get(key));
+        }
+        ESTestCase.TestAnalysis analysis = ESTestCase.createTestAnalysis(new Index("test", "_na_"),
+                settings.build(),
+                new BundlePlugin(Settings.EMPTY), new CommonAnalysisPlugin());
+        return analysis.indexAnalyzers.get("myanalyzer");
+    }
+
+    private static String[] expected() {
+        return new String[] {
                 "Die",
                 "Jahresfeier",
                 "jahres",
@@ -40,17 +129,5 @@ public class FstDecompoundTokenFilterTests extends ESTokenStreamTestCase {
                 "teuer",
                 "gekostet"
         };
-
-        Settings settings = Settings.builder()
-                .put("index.analysis.analyzer.myanalyzer.type", "custom")
-                .put("index.analysis.analyzer.myanalyzer.tokenizer", "standard")
-                .put("index.analysis.analyzer.myanalyzer.filter.0", "fst_decompound")
-                .put("index.analysis.analyzer.myanalyzer.filter.1", "unique")
-                .build();
-        ESTestCase.TestAnalysis analysis = ESTestCase.createTestAnalysis(new Index("test", "_na_"),
-                settings,
-                new BundlePlugin(Settings.EMPTY), new CommonAnalysisPlugin());
-        Analyzer myanalyzer = analysis.indexAnalyzers.get("myanalyzer");
-        assertAnalyzesTo(myanalyzer, source, expected);
     }
 }
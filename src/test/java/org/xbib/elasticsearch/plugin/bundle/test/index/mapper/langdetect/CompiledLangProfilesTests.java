@@ -0,0 +1,95 @@
+package org.xbib.elasticsearch.plugin.bundle.test.index.mapper.langdetect;
+
+import org.elasticsearch.test.ESTestCase;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.CompiledLangProfiles;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangProfile;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectService;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.NGramModel;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for compiled language profiles.
+ */
+public class CompiledLangProfilesTests extends ESTestCase {
+
+    private static final List<String> LANGUAGES = Arrays.asList("de", "en", "fr", "ja", "zh-cn");
+
+    public void testRoundTrip() throws Exception {
+        List<LangProfile> profiles = new ArrayList<>();
+        for (String language : LANGUAGES) {
+            profiles.add(profile(language));
+        }
+        Path path = createTempDir().resolve(CompiledLangProfiles.RESOURCE_NAME);
+        try (OutputStream out = Files.newOutputStream(path)) {
+            CompiledLangProfiles.compile(profiles).writeTo(out);
+        }
+        CompiledLangProfiles compiled = CompiledLangProfiles.load(path.toUri().toURL());
+        assertEquals(LANGUAGES, compiled.getLanguages());
+
+        // a subset of the languages, in another order, must give the same model as the JSON profiles
+        List<String> selected = Arrays.asList("fr", "de", "ja");
+        NGramModel model = new NGramModel();
+        compiled.addTo(model, selected);
+        NGramModel expected = new NGramModel();
+        expected.ensureLanguages(selected.size());
+        for (int i = 0; i < selected.size(); i++) {
+            LangProfile profile = profile(selected.get(i));
+            for (Map.Entry<String, Integer> entry : profile.getFreq().entrySet()) {
+                long key = NGramModel.key(entry.getKey());
+                if (key != 0L) {
+                    double prob = entry.getValue().doubleValue() / profile.getNWords().get(entry.getKey().length() - 1);
+                    expected.set(expected.add(key), i, prob);
+                }
+            }
+        }
+        assertEquals(expected.size(), model.size());
+        for (int i = 0; i < selected.size(); i++) {
+            LangProfile profile = profile(selected.get(i));
+            for (String gram : profile.getFreq().keySet()) {
+                long key = NGramModel.key(gram);
+                if (key != 0L) {
+                    assertEquals(gram, expected.get(expected.get(key), i), model.get(model.get(key), i), 0d);
+                }
+            }
+        }
+        expectThrows(IllegalArgumentException.class, () -> compiled.addTo(new NGramModel(), Arrays.asList("xx")));
+    }
+
+    public void testCompileDirectory() throws Exception {
+        Path input = createTempDir();
+        for (String language : LANGUAGES) {
+            try (InputStream in = LangdetectService.class.getResourceAsStream(language)) {
+                Files.copy(in, input.resolve(language));
+            }
+        }
+        Files.createDirectories(input.resolve("short"));
+        try (InputStream in = LangdetectService.class.getResourceAsStream("shorttext/de")) {
+            Files.copy(in, input.resolve("short").resolve("de"));
+        }
+        try (InputStream in = LangdetectService.class.getResourceAsStream("language.json")) {
+            Files.copy(in, input.resolve("language.json"));
+        }
+        Path output = createTempDir();
+        CompiledLangProfiles.main(new String[] { input.toString(), output.toString() });
+        assertEquals(LANGUAGES, CompiledLangProfiles.load(output.resolve(CompiledLangProfiles.RESOURCE_NAME)
+                .toUri().toURL()).getLanguages());
+        assertEquals(Arrays.asList("de"), CompiledLangProfiles.load(output.resolve("short")
+                .resolve(CompiledLangProfiles.RESOURCE_NAME).toUri().toURL()).getLanguages());
+    }
+
+    private static LangProfile profile(String language) throws Exception {
+        LangProfile profile = new LangProfile();
+        try (InputStream in = LangdetectService.class.getResourceAsStream(language)) {
+            profile.read(in);
+        }
+        return profile;
+    }
+}
@@ -1,5 +1,6 @@
 package org.xbib.elasticsearch.plugin.bundle.test.index.mapper.langdetect;
 
+import org.elasticsearch.action.ActionFuture;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentFactory;
@@ -10,8 +11,10 @@ import org.xbib.elasticsearch.plugin.bundle.action.langdetect.LangdetectRequestB
 import org.xbib.elasticsearch.plugin.bundle.action.langdetect.LangdetectResponse;
 import org.xbib.elasticsearch.plugin.bundle.BundlePlugin;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 /**
  * Language detecttion action test.
@@ -60,6 +63,32 @@ public class LangDetectActionTests extends ESSingleNodeTestCase {
         //}
     }
 
+    public void testConcurrentProfileLoad() throws Exception {
+        List<ActionFuture<LangdetectResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            futures.add(new LangdetectRequestBuilder(client())
+                    .setText("hello this is a test")
+                    .setProfile("shorttext")
+                    .execute());
+        }
+        for (ActionFuture<LangdetectResponse> future : futures) {
+            LangdetectResponse response = future.actionGet();
+            assertEquals("en", response.getLanguages().get(0).getLanguage());
+            assertEquals("shorttext", response.getProfile());
+        }
+    }
+
+    public void testLargeText() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() <= 10000) {
+            sb.append("Einigkeit und Recht und Freiheit für das deutsche Vaterland! ");
+        }
+        LangdetectResponse response = new LangdetectRequestBuilder(client())
+                .setText(sb.toString())
+                .execute().actionGet();
+        assertEquals("de", response.getLanguages().get(0).getLanguage());
+    }
+
     public void testSort() throws Exception {
         //startCluster();
         //try {
@@ -0,0 +1,107 @@
+package org.xbib.elasticsearch.plugin.bundle.test.index.mapper.langdetect;
+
+import org.elasticsearch.test.ESTestCase;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectService;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.Language;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Concurrent language detection test.
+ */
+public class LangdetectConcurrencyTests extends ESTestCase {
+
+    private static final String[] TEXTS = {
+            "Das kann deutsch sein",
+            "This is a very small test",
+            "Oh, say can you see by the dawn`s early light",
+            "Ein Tag in Köln im Café an der Straßenecke",
+            "Le petit prince est un roman de Saint-Exupéry",
+            "La vida es sueño y los sueños, sueños son",
+            "Это небольшой тест на русском языке"
+    };
+
+    private static final int THREADS = 8;
+
+    private static final int ROUNDS = 200;
+
+    public void testConcurrentDetection() throws Exception {
+        LangdetectService service = new LangdetectService();
+        List<String> expected = new ArrayList<>();
+        for (String text : TEXTS) {
+            expected.add(topLanguage(service.detectAll(text)));
+        }
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executorService.submit(() -> {
+                    List<String> results = new ArrayList<>();
+                    for (int i = 0; i < ROUNDS; i++) {
+                        results.add(topLanguage(service.detectAll(TEXTS[i % TEXTS.length])));
+                    }
+                    return results;
+                }));
+            }
+            for (Future<List<String>> future : futures) {
+                List<String> results = future.get();
+                for (int i = 0; i < results.size(); i++) {
+                    assertEquals(expected.get(i % TEXTS.length), results.get(i));
+                }
+            }
+        } finally {
+            terminate(executorService);
+        }
+    }
+
+    /**
+     * Detection without a lock returns the same languages as detection under a lock, and no result is lost.
+     */
+    public void testSameAsSynchronized() throws Exception {
+        LangdetectService service = new LangdetectService();
+        Object lock = new Object();
+        List<List<String>> synchronizedResults = run(text -> {
+            synchronized (lock) {
+                return service.detectAll(text);
+            }
+        });
+        List<List<String>> concurrentResults = run(service::detectAll);
+        assertEquals(THREADS, concurrentResults.size());
+        for (List<String> results : concurrentResults) {
+            assertEquals(ROUNDS, results.size());
+        }
+        assertEquals(synchronizedResults, concurrentResults);
+    }
+
+    private static List<List<String>> run(Function<String, List<Language>> detector) throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executorService.submit(() -> {
+                    List<String> results = new ArrayList<>();
+                    for (int i = 0; i < ROUNDS; i++) {
+                        results.add(topLanguage(detector.apply(TEXTS[i % TEXTS.length])));
+                    }
+                    return results;
+                }));
+            }
+            List<List<String>> results = new ArrayList<>();
+            for (Future<List<String>> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            terminate(executorService);
+        }
+    }
+
+    private static String topLanguage(List<Language> languages) {
+        return languages.isEmpty() ? null : languages.get(0).getLanguage();
+    }
+}
@@ -21,6 +21,8 @@ import org.elasticsearch.test.InternalSettingsPlugin;
 import org.xbib.elasticsearch.plugin.bundle.BundlePlugin;
 
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Collection;
 
 /**
@@ -132,6 +134,62 @@ public class LangdetectMappingTests extends ESSingleNodeTestCase {
         assertEquals("This is a very small example of a text", doc.rootDoc().getFields("english_field")[0].stringValue());
     }
 
+    public void testBinaryMaxChars() throws Exception {
+        XContentBuilder mapping = XContentFactory.jsonBuilder()
+                .startObject().startObject("someType").startObject("properties")
+                .startObject("someField")
+                .field("type", "langdetect")
+                .array("languages", "de", "en", "fr")
+                .field("binary", true)
+                .field("max_chars", 2000)
+                .endObject()
+                .endObject().endObject().endObject();
+        IndexService indexService = createIndex("some_index", Settings.EMPTY, "someType", mapping);
+        DocumentMapper docMapper = indexService.mapperService().documentMapper("someType");
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 100000) {
+            sb.append("This is a very small example of a text. ");
+        }
+        String[] values = {
+                Base64.getMimeEncoder().encodeToString(sb.toString().getBytes(StandardCharsets.UTF_8)),
+                copyToStringFromClasspath("base64.txt"),
+                // clear text is not base64
+                "This is a very small example of a text"
+        };
+        for (String value : values) {
+            BytesReference json = BytesReference.bytes(XContentFactory.jsonBuilder()
+                    .startObject().field("someField", value).endObject());
+            SourceToParse sourceToParse = SourceToParse.source("some_index", "someType", "1", json, XContentType.JSON);
+            ParsedDocument doc = docMapper.parse(sourceToParse);
+            assertEquals(1, doc.rootDoc().getFields("someField").length);
+            assertEquals("en", doc.rootDoc().getFields("someField")[0].stringValue());
+        }
+    }
+
+    public void testCache() throws Exception {
+        XContentBuilder mapping = XContentFactory.jsonBuilder()
+                .startObject().startObject("someType").startObject("properties")
+                .startObject("someField")
+                .field("type", "langdetect")
+                .array("languages", "de", "en", "fr")
+                .field("cache_size", 10)
+                .field("cache_max_text_length", 100)
+                .endObject()
+                .endObject().endObject().endObject();
+        IndexService indexService = createIndex("some_index", Settings.EMPTY, "someType", mapping);
+        DocumentMapper docMapper = indexService.mapperService().documentMapper("someType");
+        assertTrue(docMapper.mappingSource().string().contains("\"cache_size\":\"10\""));
+        for (int i = 0; i < 5; i++) {
+            BytesReference json = BytesReference.bytes(XContentFactory.jsonBuilder()
+                    .startObject().field("someField", "Einigkeit und Recht und Freiheit").endObject());
+            SourceToParse sourceToParse = SourceToParse.source("some_index", "someType", Integer.toString(i),
+                    json, XContentType.JSON);
+            ParsedDocument doc = docMapper.parse(sourceToParse);
+            assertEquals(1, doc.rootDoc().getFields("someField").length);
+            assertEquals("de", doc.rootDoc().getFields("someField")[0].stringValue());
+        }
+    }
+
     @SuppressForbidden(reason = "accessing local resources from classpath")
     private String copyToStringFromClasspath(String path) throws Exception {
         return Streams.copyToString(new InputStreamReader(getClass().getResourceAsStream(path), "UTF-8"));
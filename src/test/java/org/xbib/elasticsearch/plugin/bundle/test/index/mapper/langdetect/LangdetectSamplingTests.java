@@ -0,0 +1,121 @@
+package org.xbib.elasticsearch.plugin.bundle.test.index.mapper.langdetect;
+
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectService;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.Language;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the sampling modes of language detection, and a latency/accuracy comparison of the modes.
+ */
+public class LangdetectSamplingTests extends ESTestCase {
+
+    private static final String[] LANGUAGES = {
+            "ar", "bg", "bn", "cs", "da", "de", "el", "en", "es", "et", "fa", "fi", "fr", "gu", "he",
+            "hi", "hr", "hu", "id", "it", "ja", "ko", "lt", "lv", "mk", "ml", "nl", "no", "pa", "pl",
+            "pt", "ro", "ru", "sq", "sv", "ta", "te", "th", "tl", "tr", "uk", "ur", "vi", "zh-cn", "zh-tw"
+    };
+
+    private static final int ROUNDS = 50;
+
+    public void testDeterministic() {
+        LangdetectService service = new LangdetectService(settings().build());
+        String text = "Oh, say can you see by the dawn`s early light";
+        List<Language> first = service.detectAll(text);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(toString(first), toString(service.detectAll(text)));
+        }
+        LangdetectService other = new LangdetectService(settings().put("seed", 42L).build());
+        assertEquals("en", other.detectAll(text).get(0).getLanguage());
+    }
+
+    public void testNaiveBayes() throws Exception {
+        LangdetectService service = new LangdetectService(settings().put("mode", "naive_bayes").build());
+        for (Map.Entry<String, String> entry : texts().entrySet()) {
+            List<Language> languages = service.detectAll(entry.getKey());
+            assertEquals(entry.getKey(), entry.getValue(), languages.get(0).getLanguage());
+            assertTrue(languages.get(0).getProbability() <= 1.0d);
+        }
+    }
+
+    public void testTrialTolerance() throws Exception {
+        LangdetectService service = new LangdetectService(settings().put("trial_tolerance", 0.01d).build());
+        for (Map.Entry<String, String> entry : texts().entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue(), service.detectAll(entry.getKey()).get(0).getLanguage());
+        }
+    }
+
+    public void testUnknownMode() {
+        expectThrows(IllegalArgumentException.class, () -> new LangdetectService(settings().put("mode", "foo").build()));
+    }
+
+    public void testBenchmark() throws Exception {
+        Map<String, String> texts = texts();
+        Map<String, Settings> configs = new LinkedHashMap<>();
+        configs.put("sampling", settings().build());
+        configs.put("sampling, trial_tolerance 0.01", settings().put("trial_tolerance", 0.01d).build());
+        configs.put("sampling, number_of_trials 1", settings().put("number_of_trials", 1).build());
+        configs.put("naive_bayes", settings().put("mode", "naive_bayes").build());
+        for (Map.Entry<String, Settings> config : configs.entrySet()) {
+            LangdetectService service = new LangdetectService(config.getValue());
+            int correct = 0;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                for (Map.Entry<String, String> entry : texts.entrySet()) {
+                    List<Language> languages = service.detectAll(entry.getKey());
+                    if (i == 0 && !languages.isEmpty() && entry.getValue().equals(languages.get(0).getLanguage())) {
+                        correct++;
+                    }
+                }
+            }
+            long nanos = System.nanoTime() - t0;
+            logger.info("{}: {}/{} correct, {} us per detection", config.getKey(), correct, texts.size(),
+                    TimeUnit.NANOSECONDS.toMicros(nanos / (ROUNDS * texts.size())));
+        }
+    }
+
+    private static Settings.Builder settings() {
+        return Settings.builder().putList("languages", LANGUAGES);
+    }
+
+    private Map<String, String> texts() throws Exception {
+        Map<String, String> texts = new LinkedHashMap<>();
+        texts.put(read("english.txt"), "en");
+        texts.put(read("german.txt"), "de");
+        texts.put(read("chinese.txt"), "zh-cn");
+        texts.put(read("japanese.txt"), "ja");
+        texts.put(read("korean.txt"), "ko");
+        texts.put("Einigkeit und Recht und Freiheit für das deutsche Vaterland", "de");
+        texts.put("Le petit prince est un roman de Saint-Exupéry", "fr");
+        texts.put("La vida es sueño y los sueños, sueños son", "es");
+        texts.put("Это небольшой тест на русском языке", "ru");
+        texts.put("Nel mezzo del cammin di nostra vita mi ritrovai per una selva oscura", "it");
+        return texts;
+    }
+
+    private String read(String path) throws Exception {
+        Reader reader = new InputStreamReader(getClass().getResourceAsStream(path), StandardCharsets.UTF_8);
+        Writer writer = new StringWriter();
+        Streams.copy(reader, writer);
+        return writer.toString();
+    }
+
+    private static String toString(List<Language> languages) {
+        StringBuilder sb = new StringBuilder();
+        for (Language language : languages) {
+            sb.append(language.getLanguage()).append(':').append(language.getProbability()).append(' ');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package org.xbib.elasticsearch.plugin.bundle.test.index.mapper.langdetect;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectService;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectServiceRegistry;
+
+/**
+ * Tests for sharing language models between language detection services.
+ */
+public class LangdetectServiceRegistryTests extends ESTestCase {
+
+    public void testSharedModel() {
+        LangdetectServiceRegistry registry = new LangdetectServiceRegistry();
+        LangdetectService service1 = registry.getOrCreate(Settings.builder()
+                .putList("languages", "de", "en", "fr")
+                .build());
+        LangdetectService service2 = registry.getOrCreate(Settings.builder()
+                .putList("languages", "de", "en", "fr")
+                .put("number_of_trials", 3)
+                .build());
+        LangdetectService service3 = registry.getOrCreate(Settings.builder()
+                .putList("languages", "de", "en")
+                .build());
+        assertNotSame(service1, service2);
+        assertSame(service1.getModel(), service2.getModel());
+        assertNotSame(service1.getModel(), service3.getModel());
+        assertEquals(3, service2.getSettings().getAsInt("number_of_trials", 7).intValue());
+        assertEquals("de", service2.detectAll("Das ist ein kleiner Text als Beispiel").get(0).getLanguage());
+        LangdetectServiceRegistry.Stats stats = registry.stats();
+        assertEquals(2, stats.getModels().size());
+        assertEquals(3L, stats.getReferences());
+        assertEquals(service1.getModel().ramBytesUsed() + service3.getModel().ramBytesUsed(), stats.getRamBytesUsed());
+    }
+
+    public void testResultCache() {
+        LangdetectServiceRegistry registry = new LangdetectServiceRegistry();
+        LangdetectService uncached = registry.getOrCreate(Settings.builder()
+                .putList("languages", "de", "en", "fr")
+                .build());
+        LangdetectService cached = registry.getOrCreate(Settings.builder()
+                .putList("languages", "de", "en", "fr")
+                .put("cache_size", 2)
+                .put("cache_max_text_length", 40)
+                .build());
+        String[] texts = {
+                "Das ist ein kleiner Text als Beispiel",
+                "This is a very small example of a text",
+                "Ceci est un petit exemple de texte"
+        };
+        for (int i = 0; i < 3; i++) {
+            assertEquals(uncached.detectAll(texts[0]).toString(), cached.detectAll(texts[0]).toString());
+            assertEquals(uncached.detectAll(texts[1]).toString(), cached.detectAll(texts[1]).toString());
+        }
+        // evicts one of the two cached texts
+        assertEquals(uncached.detectAll(texts[2]).toString(), cached.detectAll(texts[2]).toString());
+        // too long to be cached
+        String longText = texts[0] + " und noch ein Satz";
+        assertEquals(uncached.detectAll(longText).toString(), cached.detectAll(longText).toString());
+        assertNull(uncached.getCacheStats());
+        assertEquals(2, cached.getCacheCount());
+        LangdetectServiceRegistry.CacheStats stats = registry.stats().getCacheStats();
+        assertEquals(2L, stats.getCount());
+        assertEquals(4L, stats.getHits());
+        assertEquals(3L, stats.getMisses());
+        assertEquals(1L, stats.getEvictions());
+    }
+
+    public void testEmptySettings() {
+        LangdetectServiceRegistry registry = new LangdetectServiceRegistry();
+        LangdetectService service = registry.getOrCreate(Settings.EMPTY);
+        assertTrue(service.getLanguages().isEmpty());
+        assertTrue(registry.stats().getModels().isEmpty());
+    }
+
+    public void testRelease() throws Exception {
+        LangdetectServiceRegistry registry = new LangdetectServiceRegistry();
+        LangdetectService service = registry.getOrCreate(Settings.builder()
+                .putList("languages", "de", "en")
+                .build());
+        assertEquals(1, registry.stats().getModels().size());
+        assertEquals(2, service.getLanguages().size());
+        service = null;
+        assertBusy(() -> {
+            System.gc();
+            assertEquals(0, registry.stats().getModels().size());
+        });
+    }
+}
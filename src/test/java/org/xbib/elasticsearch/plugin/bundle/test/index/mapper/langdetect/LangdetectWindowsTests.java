@@ -0,0 +1,147 @@
+package org.xbib.elasticsearch.plugin.bundle.test.index.mapper.langdetect;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.Detection;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectService;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.Language;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests for language detection from windows of long texts.
+ */
+public class LangdetectWindowsTests extends ESTestCase {
+
+    private static final String GERMAN = "Einigkeit und Recht und Freiheit für das deutsche Vaterland! " +
+            "Danach lasst uns alle streben brüderlich mit Herz und Hand! ";
+
+    private static final String ENGLISH = "Oh, say can you see by the dawn's early light what so proudly " +
+            "we hailed at the twilight's last gleaming? ";
+
+    public void testWindows() {
+        LangdetectService service = new LangdetectService(settings()
+                .put("max_chars", 4000)
+                .put("window_threshold", 1.1d)
+                .build());
+        String text = repeat(GERMAN, 200000);
+        Detection detection = service.detect(text);
+        assertEquals("de", detection.getLanguages().get(0).getLanguage());
+        assertEquals(4000L, detection.getConsumedChars());
+        assertEquals(text.length(), service.getTotalChars());
+        assertEquals(4000L, service.getConsumedChars());
+    }
+
+    public void testConvergence() {
+        LangdetectService service = new LangdetectService(settings()
+                .put("max_chars", 4000)
+                .build());
+        Detection detection = service.detect(repeat(GERMAN, 200000));
+        assertEquals("de", detection.getLanguages().get(0).getLanguage());
+        // the first window is enough
+        assertEquals(1000L, detection.getConsumedChars());
+    }
+
+    public void testEvenlySpaced() {
+        LangdetectService service = new LangdetectService(settings()
+                .put("max_chars", 4000)
+                .put("windows", 2)
+                .put("window_threshold", 1.1d)
+                .build());
+        Detection detection = service.detect(repeat(GERMAN, 100000) + repeat(ENGLISH, 100000));
+        Set<String> languages = new HashSet<>();
+        for (Language language : detection.getLanguages()) {
+            languages.add(language.getLanguage());
+        }
+        assertTrue(languages.toString(), languages.contains("de"));
+        assertTrue(languages.toString(), languages.contains("en"));
+        assertEquals(4000L, detection.getConsumedChars());
+    }
+
+    public void testReader() throws Exception {
+        LangdetectService service = new LangdetectService(settings()
+                .put("max_chars", 4000)
+                .put("window_threshold", 1.1d)
+                .build());
+        String text = repeat(ENGLISH, 100000) + repeat(GERMAN, 100000);
+        Detection expected = service.detect(text);
+        Detection detection = service.detect(new StringReader(text), text.length());
+        assertEquals(expected.getConsumedChars(), detection.getConsumedChars());
+        assertEquals(expected.getLanguages().toString(), detection.getLanguages().toString());
+        // with a length estimate which is too large, the windows after the end of the text are not read
+        detection = service.detect(new StringReader(text), text.length() * 2L);
+        assertEquals(2000L, detection.getConsumedChars());
+        assertFalse(detection.getLanguages().isEmpty());
+    }
+
+    public void testUnboundedLength() throws Exception {
+        LangdetectService service = new LangdetectService(settings().build());
+        // the text is read in chunks, a surrogate pair spans the first chunk boundary
+        String text = repeat(GERMAN, 8191) + "\uD835\uDD38" + repeat(GERMAN, 20000);
+        Detection expected = service.detect(text);
+        Detection detection = service.detect(new StringReader(text), Long.MAX_VALUE);
+        assertEquals(text.length(), detection.getConsumedChars());
+        assertEquals(expected.getLanguages().toString(), detection.getLanguages().toString());
+    }
+
+    public void testPatternReader() throws Exception {
+        LangdetectService service = new LangdetectService(settings()
+                .put("max_chars", 4000)
+                .put("pattern", "\\P{IsDigit}+")
+                .build());
+        String text = repeat(GERMAN, 200000);
+        // the pattern is matched against max chars only, the rest of the text is not read
+        CountingReader reader = new CountingReader(text);
+        Detection detection = service.detect(reader, text.length());
+        assertEquals("de", detection.getLanguages().get(0).getLanguage());
+        assertTrue(detection.getConsumedChars() <= 4000L);
+        assertEquals(4000L, reader.count);
+        reader = new CountingReader("4711 " + text);
+        detection = service.detect(reader, text.length() + 5L);
+        assertTrue(detection.getLanguages().isEmpty());
+        assertEquals(4000L, reader.count);
+    }
+
+    public void testShortText() {
+        LangdetectService service = new LangdetectService(settings()
+                .put("max_chars", 4000)
+                .build());
+        Detection detection = service.detect(GERMAN);
+        assertEquals("de", detection.getLanguages().get(0).getLanguage());
+        assertEquals(GERMAN.length(), detection.getConsumedChars());
+    }
+
+    private static class CountingReader extends StringReader {
+
+        private long count;
+
+        CountingReader(String s) {
+            super(s);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int n = super.read(cbuf, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    private static Settings.Builder settings() {
+        return Settings.builder().putList("languages", "de", "en", "fr", "es", "it", "nl");
+    }
+
+    private static String repeat(String s, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(s);
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+}
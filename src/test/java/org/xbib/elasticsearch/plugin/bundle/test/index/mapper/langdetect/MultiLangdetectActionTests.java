@@ -0,0 +1,59 @@
+package org.xbib.elasticsearch.plugin.bundle.test.index.mapper.langdetect;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.test.ESSingleNodeTestCase;
+import org.xbib.elasticsearch.plugin.bundle.BundlePlugin;
+import org.xbib.elasticsearch.plugin.bundle.action.langdetect.LangdetectRequest;
+import org.xbib.elasticsearch.plugin.bundle.action.langdetect.MultiLangdetectRequestBuilder;
+import org.xbib.elasticsearch.plugin.bundle.action.langdetect.MultiLangdetectResponse;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Multi language detection action test.
+ */
+public class MultiLangdetectActionTests extends ESSingleNodeTestCase {
+
+    private static final String[][] TEXTS = {
+            {"hello this is a test", "en"},
+            {"Einigkeit und Recht und Freiheit für das deutsche Vaterland", "de"},
+            {"Allons enfants de la Patrie, le jour de gloire est arrivé", "fr"},
+            {"La vida es sueño y los sueños, sueños son", "es"}
+    };
+
+    @Override
+    protected Collection<Class<? extends Plugin>> getPlugins() {
+        return Collections.singletonList(BundlePlugin.class);
+    }
+
+    public void testMultiLangdetect() {
+        MultiLangdetectRequestBuilder builder = new MultiLangdetectRequestBuilder(client())
+                .setMaxConcurrentRequests(2);
+        for (int i = 0; i < 50; i++) {
+            builder.add(TEXTS[i % TEXTS.length][0], i % 2 == 0 ? null : "shorttext");
+        }
+        builder.add(new LangdetectRequest());
+        MultiLangdetectResponse response = builder.execute().actionGet();
+        assertEquals(51, response.getResponses().length);
+        for (int i = 0; i < 50; i++) {
+            MultiLangdetectResponse.Item item = response.getResponses()[i];
+            assertFalse(item.isFailure());
+            assertEquals(TEXTS[i % TEXTS.length][1], item.getResponse().getLanguages().get(0).getLanguage());
+            assertEquals(i % 2 == 0 ? null : "shorttext", item.getResponse().getProfile());
+        }
+        MultiLangdetectResponse.Item item = response.getResponses()[50];
+        assertTrue(item.isFailure());
+        assertTrue(item.getFailure() instanceof ActionRequestValidationException);
+        String json = Strings.toString(response);
+        assertTrue(json, json.contains("\"responses\":[{\"languages\":[{\"language\":\"en\""));
+        assertTrue(json, json.contains("\"status\":400"));
+    }
+
+    public void testEmpty() {
+        expectThrows(ActionRequestValidationException.class, () ->
+                new MultiLangdetectRequestBuilder(client()).execute().actionGet());
+    }
+}
@@ -0,0 +1,56 @@
+package org.xbib.elasticsearch.plugin.bundle.test.index.mapper.langdetect;
+
+import org.elasticsearch.test.ESTestCase;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.LangdetectService;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.NGramModel;
+
+/**
+ * N-gram model test.
+ */
+public class NGramModelTests extends ESTestCase {
+
+    public void testKey() {
+        assertEquals(0L, NGramModel.key(""));
+        assertEquals(0L, NGramModel.key("abcd"));
+        assertEquals(NGramModel.key('a'), NGramModel.key("a"));
+        assertEquals(NGramModel.key('a', 'b'), NGramModel.key("ab"));
+        assertEquals(NGramModel.key('a', 'b', 'c'), NGramModel.key("abc"));
+        assertNotEquals(NGramModel.key("a"), NGramModel.key("\u0000a"));
+    }
+
+    public void testAddAndGet() {
+        NGramModel model = new NGramModel();
+        model.ensureLanguages(2);
+        for (int i = 0; i < 10000; i++) {
+            int id = model.add(NGramModel.key(Integer.toString(i % 1000)));
+            model.set(id, i % 2, i);
+        }
+        assertEquals(1000, model.size());
+        for (int i = 0; i < 1000; i++) {
+            int id = model.get(NGramModel.key(Integer.toString(i)));
+            assertEquals(i, id);
+            assertEquals(9000 + i, model.get(id, i % 2), 0.5d);
+        }
+        assertEquals(-1, model.get(NGramModel.key("x")));
+        assertEquals(-1, model.get(0L));
+    }
+
+    public void testEnsureLanguages() {
+        NGramModel model = new NGramModel();
+        model.ensureLanguages(1);
+        int id = model.add(NGramModel.key("a"));
+        model.set(id, 0, 0.5d);
+        model.ensureLanguages(3);
+        model.set(id, 2, 0.25d);
+        assertEquals(0.5d, model.get(id, 0), 0d);
+        assertEquals(0d, model.get(id, 1), 0d);
+        assertEquals(0.25d, model.get(id, 2), 0d);
+    }
+
+    public void testModelSize() {
+        LangdetectService service = new LangdetectService();
+        NGramModel model = service.getModel();
+        assertTrue(model.size() > 0);
+        logger.info("{} languages, {} n-grams, {} bytes", model.languages(), model.size(), model.ramBytesUsed());
+    }
+}
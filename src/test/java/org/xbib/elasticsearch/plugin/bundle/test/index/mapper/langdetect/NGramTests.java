@@ -1,7 +1,11 @@
 package org.xbib.elasticsearch.plugin.bundle.test.index.mapper.langdetect;
 
+import org.apache.lucene.util.IntsRefBuilder;
 import org.elasticsearch.test.ESTestCase;
 import org.xbib.elasticsearch.plugin.bundle.common.langdetect.NGram;
+import org.xbib.elasticsearch.plugin.bundle.common.langdetect.NGramModel;
+
+import java.util.regex.Pattern;
 
 public class NGramTests extends ESTestCase {
 
@@ -112,4 +116,44 @@ public class NGramTests extends ESTestCase {
         assertEquals(ngram.get(2), " a");
         assertEquals(ngram.get(3), null);
     }
+
+    /**
+     * Test method for {@link NGram#getKey(int)}.
+     */
+    public final void testNGramKey() {
+        NGram ngram = new NGram();
+        for (char c : "Hello, \u3042\u30a2 World a".toCharArray()) {
+            ngram.addChar(c);
+            for (int n = 0; n <= NGram.N_GRAM + 1; n++) {
+                String gram = ngram.get(n);
+                assertEquals(gram == null ? 0L : NGramModel.key(gram), ngram.getKey(n));
+            }
+        }
+    }
+
+    /**
+     * Test method for {@link NGram#scan(CharSequence, NGramModel, IntsRefBuilder)}.
+     */
+    public final void testScan() {
+        Pattern word = Pattern.compile("[\\P{IsWord}]");
+        for (int i = 0; i < 100; i++) {
+            String text = randomBoolean() ? randomRealisticUnicodeOfLengthBetween(0, 200) :
+                    randomUnicodeOfLengthBetween(0, 200);
+            NGramModel model = new NGramModel();
+            IntsRefBuilder expected = new IntsRefBuilder();
+            NGram ngram = new NGram();
+            for (char c : word.matcher(text).replaceAll(" ").toCharArray()) {
+                ngram.addChar(c);
+                for (int n = 1; n <= NGram.N_GRAM; n++) {
+                    String gram = ngram.get(n);
+                    if (gram != null) {
+                        expected.append(model.add(NGramModel.key(gram)));
+                    }
+                }
+            }
+            IntsRefBuilder actual = new IntsRefBuilder();
+            new NGram().scan(text, model, actual);
+            assertEquals(text, expected.get(), actual.get());
+        }
+    }
 }
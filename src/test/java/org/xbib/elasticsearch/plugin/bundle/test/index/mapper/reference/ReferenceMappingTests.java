@@ -6,6 +6,9 @@ import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.util.SuppressForbidden;
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsRequest;
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
@@ -22,16 +25,24 @@ import org.elasticsearch.index.mapper.ParseContext;
 import org.elasticsearch.index.mapper.SourceToParse;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.script.MockScriptPlugin;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.test.ESSingleNodeTestCase;
 import org.junit.After;
 import org.junit.Before;
 import org.xbib.elasticsearch.plugin.bundle.BundlePlugin;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceCache;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceResolver;
 
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
+import java.util.function.Function;
 
 import static org.elasticsearch.common.io.Streams.copyToString;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
@@ -47,7 +58,7 @@ public class ReferenceMappingTests extends ESSingleNodeTestCase {
     /** The plugin classes that should be added to the node. */
     @Override
     protected Collection<Class<? extends Plugin>> getPlugins() {
-        return Collections.singletonList(BundlePlugin.class);
+        return Arrays.asList(BundlePlugin.class, AuthorScriptPlugin.class);
     }
 
     @Before
@@ -67,7 +78,10 @@ public class ReferenceMappingTests extends ESSingleNodeTestCase {
             logger.warn("unable to delete 'authorities' index");
         }
         client().prepareIndex("authorities", "persons", "1")
-                .setSource(jsonBuilder().startObject().field("author", "John Doe").endObject())
+                .setSource(jsonBuilder().startObject()
+                        .field("author", "John Doe")
+                        .field("biography", "not copied to referencing documents")
+                        .endObject())
                 .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
                 .execute().actionGet();
     }
@@ -206,6 +220,170 @@ public class ReferenceMappingTests extends ESSingleNodeTestCase {
         assertEquals(1, searchResponse.getHits().getTotalHits());
     }
 
+    public void testBulk() throws Exception {
+        try {
+            client().admin().indices().prepareDelete("books").execute().actionGet();
+        } catch (Exception e) {
+            logger.warn("unable to delete index 'books'");
+        }
+        client().admin().indices().prepareCreate("books")
+                .addMapping("test", copyToStringFromClasspath("ref-mapping-books-test.json"), XContentType.JSON)
+                .execute().actionGet();
+        ReferenceResolver resolver = getInstanceFromNode(ReferenceResolver.class);
+        long hits = resolver.stats().getHits();
+        long misses = resolver.stats().getMisses();
+        BulkRequestBuilder bulk = client().prepareBulk()
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        for (int i = 0; i < 10; i++) {
+            bulk.add(client().prepareIndex("books", "test", Integer.toString(i))
+                    .setSource(copyToStringFromClasspath("ref-doc-book.json"), XContentType.JSON));
+        }
+        BulkResponse bulkResponse = bulk.execute().actionGet();
+        assertFalse(bulkResponse.buildFailureMessage(), bulkResponse.hasFailures());
+        // all references were resolved by one multi get before the documents were parsed,
+        // a document is parsed again after a dynamic mapping update
+        assertTrue(resolver.stats().getHits() >= hits + 10);
+        assertEquals(misses, resolver.stats().getMisses());
+        SearchResponse searchResponse = client().prepareSearch("books")
+                .setQuery(matchPhraseQuery("dc.creator", "John Doe")).execute().actionGet();
+        assertEquals(10, searchResponse.getHits().getTotalHits());
+    }
+
+    public void testCache() throws Exception {
+        try {
+            client().admin().indices().prepareDelete("books").execute().actionGet();
+        } catch (Exception e) {
+            logger.warn("unable to delete index 'books'");
+        }
+        client().admin().indices().prepareCreate("books")
+                .addMapping("test", copyToStringFromClasspath("ref-mapping-books-test.json"), XContentType.JSON)
+                .execute().actionGet();
+        // a referenced document of its own, which is not cached by other tests
+        client().prepareIndex("authorities", "persons", "2")
+                .setSource(jsonBuilder().startObject().field("author", "John Doe").endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .execute().actionGet();
+        ReferenceResolver resolver = getInstanceFromNode(ReferenceResolver.class);
+        ReferenceCache.Stats stats = resolver.stats().getCacheStats();
+        for (int i = 0; i < 2; i++) {
+            indexBooks(i * 5, 5);
+        }
+        // the second bulk request takes the values from the cache, after verifying the version
+        assertEquals(stats.getMisses() + 1, resolver.stats().getCacheStats().getMisses());
+        assertEquals(stats.getHits() + 1, resolver.stats().getCacheStats().getHits());
+        client().prepareIndex("authorities", "persons", "2")
+                .setSource(jsonBuilder().startObject().field("author", "Jane Doe").endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .execute().actionGet();
+        indexBooks(10, 5);
+        assertEquals(stats.getStale() + 1, resolver.stats().getCacheStats().getStale());
+        SearchResponse searchResponse = client().prepareSearch("books")
+                .setQuery(matchPhraseQuery("dc.creator", "John Doe")).execute().actionGet();
+        assertEquals(10, searchResponse.getHits().getTotalHits());
+        searchResponse = client().prepareSearch("books")
+                .setQuery(matchPhraseQuery("dc.creator", "Jane Doe")).execute().actionGet();
+        assertEquals(5, searchResponse.getHits().getTotalHits());
+    }
+
+    public void testUpdate() throws Exception {
+        try {
+            client().admin().indices().prepareDelete("books").execute().actionGet();
+        } catch (Exception e) {
+            logger.warn("unable to delete index 'books'");
+        }
+        client().admin().indices().prepareCreate("books")
+                .addMapping("test", copyToStringFromClasspath("ref-mapping-books-test.json"), XContentType.JSON)
+                .execute().actionGet();
+        BulkRequestBuilder bulk = client().prepareBulk()
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        for (int i = 0; i < 5; i++) {
+            bulk.add(client().prepareIndex("books", "test", Integer.toString(i))
+                    .setSource(copyToStringFromClasspath("ref-doc-book.json"), XContentType.JSON));
+        }
+        BulkResponse bulkResponse = bulk.execute().actionGet();
+        assertFalse(bulkResponse.buildFailureMessage(), bulkResponse.hasFailures());
+        client().prepareIndex("authorities", "persons", "3")
+                .setSource(jsonBuilder().startObject().field("author", "Jane Doe").endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .execute().actionGet();
+        ReferenceResolver resolver = getInstanceFromNode(ReferenceResolver.class);
+        long misses = resolver.stats().getMisses();
+        long rejected = resolver.stats().getRejected();
+        // the references of updated documents are resolved from the existing documents and the upserts
+        bulk = client().prepareBulk()
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        for (int i = 0; i < 10; i++) {
+            bulk.add(client().prepareUpdate("books", "test", Integer.toString(i))
+                    .setDoc(jsonBuilder().startObject().field("title", "Another title").endObject())
+                    .setUpsert(jsonBuilder().startObject()
+                            .field("title", "Another title")
+                            .field("authorID", "3")
+                            .endObject()));
+        }
+        bulkResponse = bulk.execute().actionGet();
+        assertFalse(bulkResponse.buildFailureMessage(), bulkResponse.hasFailures());
+        assertEquals(misses, resolver.stats().getMisses());
+        assertEquals(rejected, resolver.stats().getRejected());
+        SearchResponse searchResponse = client().prepareSearch("books")
+                .setQuery(matchPhraseQuery("dc.creator", "John Doe")).execute().actionGet();
+        assertEquals(5, searchResponse.getHits().getTotalHits());
+        searchResponse = client().prepareSearch("books")
+                .setQuery(matchPhraseQuery("dc.creator", "Jane Doe")).execute().actionGet();
+        assertEquals(5, searchResponse.getHits().getTotalHits());
+    }
+
+    public void testScriptUpdate() throws Exception {
+        try {
+            client().admin().indices().prepareDelete("books").execute().actionGet();
+        } catch (Exception e) {
+            logger.warn("unable to delete index 'books'");
+        }
+        client().admin().indices().prepareCreate("books")
+                .addMapping("test", copyToStringFromClasspath("ref-mapping-books-test.json"), XContentType.JSON)
+                .execute().actionGet();
+        client().prepareIndex("books", "test", "0")
+                .setSource(copyToStringFromClasspath("ref-doc-book.json"), XContentType.JSON)
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .execute().actionGet();
+        client().prepareIndex("authorities", "persons", "4")
+                .setSource(jsonBuilder().startObject().field("author", "Jack Doe").endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .execute().actionGet();
+        ReferenceResolver resolver = getInstanceFromNode(ReferenceResolver.class);
+        long rejected = resolver.stats().getRejected();
+        // a reference set by a script is not resolved in advance, the update fails instead of losing the values
+        BulkResponse bulkResponse = client().prepareBulk()
+                .add(client().prepareUpdate("books", "test", "0")
+                        .setScript(new Script(ScriptType.INLINE, MockScriptPlugin.NAME, "author",
+                                Collections.emptyMap())))
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .execute().actionGet();
+        BulkItemResponse item = bulkResponse.getItems()[0];
+        assertTrue(item.isFailed());
+        assertTrue(item.getFailureMessage(), item.getFailureMessage().contains("ref doc not resolved"));
+        assertEquals(rejected + 1, resolver.stats().getRejected());
+        SearchResponse searchResponse = client().prepareSearch("books")
+                .setQuery(matchPhraseQuery("dc.creator", "Jack Doe")).execute().actionGet();
+        assertEquals(0, searchResponse.getHits().getTotalHits());
+        searchResponse = client().prepareSearch("books")
+                .setQuery(matchPhraseQuery("dc.creator", "John Doe")).execute().actionGet();
+        assertEquals(1, searchResponse.getHits().getTotalHits());
+    }
+
+    private void indexBooks(int from, int count) throws Exception {
+        BulkRequestBuilder bulk = client().prepareBulk()
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        for (int i = from; i < from + count; i++) {
+            bulk.add(client().prepareIndex("books", "test", Integer.toString(i))
+                    .setSource(jsonBuilder().startObject()
+                            .field("title", "A title")
+                            .field("authorID", "2")
+                            .endObject()));
+        }
+        BulkResponse bulkResponse = bulk.execute().actionGet();
+        assertFalse(bulkResponse.buildFailureMessage(), bulkResponse.hasFailures());
+    }
+
     @SuppressForbidden(reason = "accessing local resources from classpath")
     private String copyToStringFromClasspath(String path) throws Exception {
         return copyToString(new InputStreamReader(getClass().getResource(path).openStream(), StandardCharsets.UTF_8));
@@ -215,4 +393,21 @@ public class ReferenceMappingTests extends ESSingleNodeTestCase {
         return XContentFactory.jsonBuilder().map(XContentHelper.convertToMap(JsonXContent.jsonXContent,
                 getClass().getResourceAsStream(path), true));
     }
+
+    /**
+     * A script which sets the reference of a book.
+     */
+    public static class AuthorScriptPlugin extends MockScriptPlugin {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Map<String, Function<Map<String, Object>, Object>> pluginScripts() {
+            return Collections.singletonMap("author", vars -> {
+                Map<String, Object> ctx = (Map<String, Object>) vars.get("ctx");
+                Map<String, Object> source = (Map<String, Object>) ctx.get("_source");
+                source.put("authorID", "4");
+                return null;
+            });
+        }
+    }
 }
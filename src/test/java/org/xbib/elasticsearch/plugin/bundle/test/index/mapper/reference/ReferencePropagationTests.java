@@ -0,0 +1,158 @@
+package org.xbib.elasticsearch.plugin.bundle.test.index.mapper.reference;
+
+import org.apache.lucene.util.SuppressForbidden;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.test.ESSingleNodeTestCase;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.xbib.elasticsearch.plugin.bundle.BundlePlugin;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceCache;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferenceChangeTracker;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferencePropagationJob;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.elasticsearch.common.io.Streams.copyToString;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.index.query.QueryBuilders.matchPhraseQuery;
+
+/**
+ * Reference propagation tests.
+ */
+public class ReferencePropagationTests extends ESSingleNodeTestCase {
+
+    /** The plugin classes that should be added to the node. */
+    @Override
+    protected Collection<Class<? extends Plugin>> getPlugins() {
+        return Collections.singletonList(BundlePlugin.class);
+    }
+
+    @Override
+    protected Settings nodeSettings() {
+        return Settings.builder()
+                .put(super.nodeSettings())
+                .put("plugins.xbib.reference.propagation.enabled", true)
+                .put("plugins.xbib.reference.propagation.interval", "100ms")
+                .put("plugins.xbib.reference.propagation.batch_size", 3)
+                .build();
+    }
+
+    public void testPropagation() throws Exception {
+        client().prepareIndex("authorities", "persons", "1")
+                .setSource(jsonBuilder().startObject().field("author", "John Doe").endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .execute().actionGet();
+        client().prepareIndex("authorities", "persons", "2")
+                .setSource(jsonBuilder().startObject().field("author", "Joe Bloggs").endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .execute().actionGet();
+        client().admin().indices().prepareCreate("books")
+                .addMapping("test", copyToStringFromClasspath("ref-mapping-books-test.json"), XContentType.JSON)
+                .execute().actionGet();
+        BulkRequestBuilder bulk = client().prepareBulk()
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        // the referring documents are indexed in different content types
+        XContentType[] contentTypes = { XContentType.JSON, XContentType.SMILE, XContentType.CBOR, XContentType.YAML };
+        for (int i = 0; i < 10; i++) {
+            bulk.add(client().prepareIndex("books", "test", Integer.toString(i))
+                    .setSource(XContentFactory.contentBuilder(contentTypes[i % contentTypes.length]).startObject()
+                            .field("title", "A title")
+                            .field("authorID", i < 7 ? "1" : "2")
+                            .endObject()));
+        }
+        BulkResponse bulkResponse = bulk.execute().actionGet();
+        assertFalse(bulkResponse.buildFailureMessage(), bulkResponse.hasFailures());
+        ReferenceChangeTracker tracker = getInstanceFromNode(ReferenceChangeTracker.class);
+        assertEquals(1, tracker.getTargets("authorities", "persons").size());
+        ReferencePropagationJob job = getInstanceFromNode(ReferencePropagationJob.class);
+        long documents = job.stats().getDocuments();
+        client().prepareIndex("authorities", "persons", "1")
+                .setSource(jsonBuilder().startObject().field("author", "Jane Doe").endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .execute().actionGet();
+        // the referring documents are indexed again in batches, the other documents are not touched
+        assertBusy(() -> {
+            assertEquals(0, tracker.getPending());
+            assertEquals(documents + 7, job.stats().getDocuments());
+        });
+        client().admin().indices().prepareRefresh("books").execute().actionGet();
+        SearchResponse searchResponse = client().prepareSearch("books")
+                .setQuery(matchPhraseQuery("dc.creator", "Jane Doe")).execute().actionGet();
+        assertEquals(7, searchResponse.getHits().getTotalHits());
+        searchResponse = client().prepareSearch("books")
+                .setQuery(matchPhraseQuery("dc.creator", "John Doe")).execute().actionGet();
+        assertEquals(0, searchResponse.getHits().getTotalHits());
+        searchResponse = client().prepareSearch("books")
+                .setQuery(matchPhraseQuery("dc.creator", "Joe Bloggs")).execute().actionGet();
+        assertEquals(3, searchResponse.getHits().getTotalHits());
+        assertEquals(0L, job.stats().getFailures());
+        // the change was saved, and is removed from the saved changes when it is completed
+        assertTrue(job.stats().getSaved() >= 1L);
+        assertBusy(() -> {
+            client().admin().indices().prepareRefresh(ReferencePropagationJob.CHANGES_INDEX).execute().actionGet();
+            assertEquals(0L, client().prepareSearch(ReferencePropagationJob.CHANGES_INDEX)
+                    .execute().actionGet().getHits().getTotalHits());
+        });
+    }
+
+    public void testTargets() throws Exception {
+        client().admin().indices().prepareCreate("books")
+                .addMapping("test", copyToStringFromClasspath("ref-mapping-books-test.json"), XContentType.JSON)
+                .execute().actionGet();
+        ReferenceChangeTracker tracker = getInstanceFromNode(ReferenceChangeTracker.class);
+        List<ReferenceChangeTracker.Target> targets = tracker.getTargets("authorities", "persons");
+        assertEquals(1, targets.size());
+        // a change of the settings does not collect the reference fields again
+        client().admin().indices().prepareUpdateSettings("books")
+                .setSettings(Settings.builder().put("index.refresh_interval", "10s"))
+                .execute().actionGet();
+        assertSame(targets, tracker.getTargets("authorities", "persons"));
+        // a new index does
+        client().admin().indices().prepareCreate("journals")
+                .addMapping("test", copyToStringFromClasspath("ref-mapping-books-test.json"), XContentType.JSON)
+                .execute().actionGet();
+        assertEquals(2, tracker.getTargets("authorities", "persons").size());
+    }
+
+    public void testRestore() throws Exception {
+        // the changes index is shared by the nodes of the cluster
+        String[][] saved = { { "node-a", "1" }, { "node-b", "2" } };
+        for (String[] change : saved) {
+            client().prepareIndex(ReferencePropagationJob.CHANGES_INDEX, "change")
+                    .setRouting(change[0])
+                    .setSource(jsonBuilder().startObject()
+                            .field("node", change[0])
+                            .field("index", "authorities")
+                            .field("type", "persons")
+                            .field("id", change[1])
+                            .endObject())
+                    .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                    .execute().actionGet();
+        }
+        // a node restores its own changes only
+        ThreadPool threadPool = getInstanceFromNode(ThreadPool.class);
+        ReferenceChangeTracker tracker = new ReferenceChangeTracker(Settings.EMPTY, threadPool.getThreadContext(),
+                new ReferenceCache(Settings.EMPTY));
+        ReferencePropagationJob job = new ReferencePropagationJob(Settings.EMPTY, "node-a", client(), threadPool,
+                tracker);
+        job.run();
+        assertEquals(0L, job.stats().getFailures());
+        assertEquals(1L, job.stats().getChanges());
+        assertEquals(0, tracker.getPending());
+    }
+
+    @SuppressForbidden(reason = "accessing local resources from classpath")
+    private String copyToStringFromClasspath(String path) throws Exception {
+        return copyToString(new InputStreamReader(getClass().getResource(path).openStream(), StandardCharsets.UTF_8));
+    }
+}
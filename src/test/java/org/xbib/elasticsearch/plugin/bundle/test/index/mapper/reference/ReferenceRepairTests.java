@@ -0,0 +1,97 @@
+package org.xbib.elasticsearch.plugin.bundle.test.index.mapper.reference;
+
+import org.apache.lucene.util.SuppressForbidden;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.test.ESSingleNodeTestCase;
+import org.xbib.elasticsearch.plugin.bundle.BundlePlugin;
+import org.xbib.elasticsearch.plugin.bundle.common.reference.ReferencePropagationJob;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.elasticsearch.common.io.Streams.copyToString;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.index.query.QueryBuilders.matchPhraseQuery;
+
+/**
+ * Reference repair tests. No change is kept pending, so every change is dropped and repaired.
+ */
+public class ReferenceRepairTests extends ESSingleNodeTestCase {
+
+    /** The plugin classes that should be added to the node. */
+    @Override
+    protected Collection<Class<? extends Plugin>> getPlugins() {
+        return Collections.singletonList(BundlePlugin.class);
+    }
+
+    @Override
+    protected Settings nodeSettings() {
+        return Settings.builder()
+                .put(super.nodeSettings())
+                .put("plugins.xbib.reference.propagation.enabled", true)
+                .put("plugins.xbib.reference.propagation.interval", "100ms")
+                .put("plugins.xbib.reference.propagation.batch_size", 3)
+                .put("plugins.xbib.reference.propagation.max_pending", 0)
+                .build();
+    }
+
+    public void testRepair() throws Exception {
+        client().prepareIndex("authorities", "persons", "1")
+                .setSource(jsonBuilder().startObject().field("author", "John Doe").endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .execute().actionGet();
+        client().prepareIndex("authorities", "persons", "2")
+                .setSource(jsonBuilder().startObject().field("author", "Joe Bloggs").endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .execute().actionGet();
+        client().admin().indices().prepareCreate("books")
+                .addMapping("test", copyToStringFromClasspath("ref-mapping-books-test.json"), XContentType.JSON)
+                .execute().actionGet();
+        BulkRequestBuilder bulk = client().prepareBulk()
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        for (int i = 0; i < 10; i++) {
+            bulk.add(client().prepareIndex("books", "test", Integer.toString(i))
+                    .setSource(jsonBuilder().startObject()
+                            .field("title", "A title")
+                            .field("authorID", i < 7 ? "1" : "2")
+                            .endObject()));
+        }
+        BulkResponse bulkResponse = bulk.execute().actionGet();
+        assertFalse(bulkResponse.buildFailureMessage(), bulkResponse.hasFailures());
+        ReferencePropagationJob job = getInstanceFromNode(ReferencePropagationJob.class);
+        long documents = job.stats().getDocuments();
+        long repairs = job.stats().getRepairs();
+        client().prepareIndex("authorities", "persons", "1")
+                .setSource(jsonBuilder().startObject().field("author", "Jane Doe").endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .execute().actionGet();
+        // the change is dropped, all referring documents are indexed again
+        assertBusy(() -> {
+            assertTrue(job.stats().getRepairs() > repairs);
+            assertTrue(job.stats().getPendingRepairs().isEmpty());
+        });
+        assertTrue(job.stats().getDropped() >= 1L);
+        assertEquals(documents + 10, job.stats().getDocuments());
+        client().admin().indices().prepareRefresh("books").execute().actionGet();
+        SearchResponse searchResponse = client().prepareSearch("books")
+                .setQuery(matchPhraseQuery("dc.creator", "Jane Doe")).execute().actionGet();
+        assertEquals(7, searchResponse.getHits().getTotalHits());
+        searchResponse = client().prepareSearch("books")
+                .setQuery(matchPhraseQuery("dc.creator", "Joe Bloggs")).execute().actionGet();
+        assertEquals(3, searchResponse.getHits().getTotalHits());
+        assertEquals(0L, job.stats().getFailures());
+    }
+
+    @SuppressForbidden(reason = "accessing local resources from classpath")
+    private String copyToStringFromClasspath(String path) throws Exception {
+        return copyToString(new InputStreamReader(getClass().getResource(path).openStream(), StandardCharsets.UTF_8));
+    }
+}